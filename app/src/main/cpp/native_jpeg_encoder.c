@@ -0,0 +1,232 @@
+/*
+ * The JNI side of NativeJpegEncoder: encodes YUV 4:2:0 frames to JPEG with TurboJPEG, reading
+ * the camera planes in place.
+ *
+ * TurboJPEG compresses planar YUV without any color conversion. The luma plane is always read
+ * where it is. The chroma planes are read in place when they are planar and 4:2:0 output is
+ * requested; otherwise they are copied to planar scratch planes first (deinterleaving the
+ * semi-planar layouts, and upsampling for 4:2:2 and 4:4:4 output).
+ */
+#include <jni.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <turbojpeg.h>
+
+typedef struct {
+    tjhandle handle;
+    unsigned char *scratch;     /* The planar chroma planes, U then V */
+    size_t scratch_size;
+    const char *error;          /* Set by this file, otherwise the TurboJPEG error applies */
+} encoder_context;
+
+static int ensure_scratch(encoder_context *context, size_t size) {
+    if (context->scratch_size >= size) {
+        return 1;
+    }
+    unsigned char *scratch = realloc(context->scratch, size);
+    if (scratch == NULL) {
+        context->error = "Out of memory for the chroma planes";
+        return 0;
+    }
+    context->scratch = scratch;
+    context->scratch_size = size;
+    return 1;
+}
+
+static int chroma_width(int width, int subsampling) {
+    return subsampling == TJSAMP_444 ? width : (width + 1) / 2;
+}
+
+static int chroma_height(int height, int subsampling) {
+    return subsampling == TJSAMP_420 ? (height + 1) / 2 : height;
+}
+
+/*
+ * The bytes a plane must hold to read its samples, from the first one to the last one.
+ */
+static jlong plane_extent(int width, int height, int row_stride, int pixel_stride) {
+    return (jlong) (height - 1) * row_stride + (jlong) (width - 1) * pixel_stride + 1;
+}
+
+/*
+ * Copies a 4:2:0 chroma plane with any pixel stride into a planar plane of the output
+ * subsampling, repeating the samples horizontally for 4:4:4 and vertically for 4:2:2 and 4:4:4.
+ */
+static void copy_chroma(const unsigned char *source, int row_stride, int pixel_stride,
+                        unsigned char *destination, int width, int height, int subsampling) {
+    int x_shift = subsampling == TJSAMP_444 ? 1 : 0;
+    int y_shift = subsampling == TJSAMP_420 ? 0 : 1;
+    for (int y = 0; y < height; y++) {
+        const unsigned char *row = source + (size_t) (y >> y_shift) * row_stride;
+        unsigned char *out = destination + (size_t) y * width;
+        if (pixel_stride == 1 && x_shift == 0) {
+            memcpy(out, row, (size_t) width);
+        } else {
+            for (int x = 0; x < width; x++) {
+                out[x] = row[(size_t) (x >> x_shift) * pixel_stride];
+            }
+        }
+    }
+}
+
+/*
+ * Compresses the planes into the output buffer, returns the JPEG size or -1.
+ */
+static jint compress(encoder_context *context,
+                     const unsigned char *y, int y_row_stride,
+                     const unsigned char *u, int u_row_stride, int u_pixel_stride,
+                     const unsigned char *v, int v_row_stride, int v_pixel_stride,
+                     int width, int height, int subsampling, int quality,
+                     unsigned char *output, jlong output_capacity) {
+    const unsigned char *planes[3] = {y, NULL, NULL};
+    int strides[3] = {y_row_stride, 0, 0};
+    if (subsampling != TJSAMP_GRAY) {
+        int cw = chroma_width(width, subsampling);
+        int ch = chroma_height(height, subsampling);
+        if (subsampling == TJSAMP_420 && u_pixel_stride == 1 && v_pixel_stride == 1) {
+            planes[1] = u;
+            planes[2] = v;
+            strides[1] = u_row_stride;
+            strides[2] = v_row_stride;
+        } else {
+            size_t plane_size = (size_t) cw * ch;
+            if (!ensure_scratch(context, 2 * plane_size)) {
+                return -1;
+            }
+            copy_chroma(u, u_row_stride, u_pixel_stride, context->scratch, cw, ch, subsampling);
+            copy_chroma(v, v_row_stride, v_pixel_stride, context->scratch + plane_size, cw, ch, subsampling);
+            planes[1] = context->scratch;
+            planes[2] = context->scratch + plane_size;
+            strides[1] = cw;
+            strides[2] = cw;
+        }
+    }
+    unsigned char *jpeg = output;
+    unsigned long jpeg_size = (unsigned long) output_capacity;
+    if (tjCompressFromYUVPlanes(context->handle, planes, width, strides, height, subsampling,
+                                &jpeg, &jpeg_size, quality, TJFLAG_NOREALLOC | TJFLAG_FASTDCT) != 0) {
+        return -1;
+    }
+    return (jint) jpeg_size;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_xetiro_android_camstream_encoding_NativeJpegEncoder_nativeCreate(JNIEnv *env, jclass clazz) {
+    encoder_context *context = calloc(1, sizeof(encoder_context));
+    if (context == NULL) {
+        return 0;
+    }
+    context->handle = tjInitCompress();
+    if (context->handle == NULL) {
+        free(context);
+        return 0;
+    }
+    return (jlong) (intptr_t) context;
+}
+
+JNIEXPORT void JNICALL
+Java_com_xetiro_android_camstream_encoding_NativeJpegEncoder_nativeDestroy(JNIEnv *env, jclass clazz,
+                                                                          jlong handle) {
+    encoder_context *context = (encoder_context *) (intptr_t) handle;
+    if (context != NULL) {
+        tjDestroy(context->handle);
+        free(context->scratch);
+        free(context);
+    }
+}
+
+JNIEXPORT jint JNICALL
+Java_com_xetiro_android_camstream_encoding_NativeJpegEncoder_nativeBufferSize(JNIEnv *env, jclass clazz,
+                                                                             jint width, jint height,
+                                                                             jint subsampling) {
+    unsigned long size = tjBufSize(width, height, subsampling);
+    return size > 0x7fffffff ? -1 : (jint) size;
+}
+
+JNIEXPORT jstring JNICALL
+Java_com_xetiro_android_camstream_encoding_NativeJpegEncoder_nativeGetError(JNIEnv *env, jclass clazz,
+                                                                           jlong handle) {
+    encoder_context *context = (encoder_context *) (intptr_t) handle;
+    const char *error = context->error != NULL ? context->error : tjGetErrorStr2(context->handle);
+    return (*env)->NewStringUTF(env, error);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_xetiro_android_camstream_encoding_NativeJpegEncoder_nativeEncodeNV21(JNIEnv *env, jclass clazz,
+                                                                             jlong handle, jbyteArray nv21,
+                                                                             jint width, jint height,
+                                                                             jint subsampling, jint quality,
+                                                                             jobject output) {
+    encoder_context *context = (encoder_context *) (intptr_t) handle;
+    context->error = NULL;
+    unsigned char *out = (*env)->GetDirectBufferAddress(env, output);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, output);
+    if (out == NULL) {
+        context->error = "The output is not a direct buffer";
+        return -1;
+    }
+    if (width <= 0 || height <= 0) {
+        context->error = "Invalid frame size";
+        return -1;
+    }
+    /* The VU plane starts after the luma, its last U sample is one past its last V sample */
+    jlong required = (jlong) width * height + plane_extent((width + 1) / 2, (height + 1) / 2, width, 2) + 1;
+    if ((*env)->GetArrayLength(env, nv21) < required) {
+        context->error = "The NV21 frame is smaller than its size";
+        return -1;
+    }
+    /* Large arrays don't move on ART, so this is usually not a copy */
+    jbyte *bytes = (*env)->GetByteArrayElements(env, nv21, NULL);
+    if (bytes == NULL) {
+        context->error = "Cannot access the NV21 frame";
+        return -1;
+    }
+    const unsigned char *y = (const unsigned char *) bytes;
+    const unsigned char *vu = y + (size_t) width * height;
+    /* NV21 interleaves the chroma as V then U */
+    jint size = compress(context, y, width, vu + 1, width, 2, vu, width, 2,
+                         width, height, subsampling, quality, out, capacity);
+    (*env)->ReleaseByteArrayElements(env, nv21, bytes, JNI_ABORT);
+    return size;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_xetiro_android_camstream_encoding_NativeJpegEncoder_nativeEncodePlanes(
+        JNIEnv *env, jclass clazz, jlong handle,
+        jobject y_plane, jint y_row_stride, jint y_pixel_stride,
+        jobject u_plane, jint u_row_stride, jint u_pixel_stride,
+        jobject v_plane, jint v_row_stride, jint v_pixel_stride,
+        jint width, jint height, jint subsampling, jint quality, jobject output) {
+    encoder_context *context = (encoder_context *) (intptr_t) handle;
+    context->error = NULL;
+    unsigned char *out = (*env)->GetDirectBufferAddress(env, output);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, output);
+    const unsigned char *y = (*env)->GetDirectBufferAddress(env, y_plane);
+    const unsigned char *u = (*env)->GetDirectBufferAddress(env, u_plane);
+    const unsigned char *v = (*env)->GetDirectBufferAddress(env, v_plane);
+    if (out == NULL || y == NULL || u == NULL || v == NULL) {
+        context->error = "The planes and the output must be direct buffers";
+        return -1;
+    }
+    if (y_pixel_stride != 1) {
+        context->error = "The luma plane must have a pixel stride of 1";
+        return -1;
+    }
+    if (width <= 0 || height <= 0 || y_row_stride < width || u_row_stride <= 0 || u_pixel_stride <= 0
+        || v_row_stride <= 0 || v_pixel_stride <= 0) {
+        context->error = "Invalid frame size or plane strides";
+        return -1;
+    }
+    /* A truncated plane, e.g. from a corrupt replay, must not be read past its end */
+    int cw = (width + 1) / 2;
+    int ch = (height + 1) / 2;
+    if ((*env)->GetDirectBufferCapacity(env, y_plane) < plane_extent(width, height, y_row_stride, 1)
+        || (*env)->GetDirectBufferCapacity(env, u_plane) < plane_extent(cw, ch, u_row_stride, u_pixel_stride)
+        || (*env)->GetDirectBufferCapacity(env, v_plane) < plane_extent(cw, ch, v_row_stride, v_pixel_stride)) {
+        context->error = "A plane is smaller than its strides and the frame size imply";
+        return -1;
+    }
+    return compress(context, y, y_row_stride, u, u_row_stride, u_pixel_stride, v, v_row_stride, v_pixel_stride,
+                    width, height, subsampling, quality, out, capacity);
+}
@@ -5,15 +5,20 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.View;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.xetiro.android.camstream.network.Endpoint;
 import com.xetiro.android.camstream.network.ServerClient;
 import com.xetiro.android.camstream.network.ServerResultCallback;
 
+import java.util.List;
+
 /**
  * This activity is prompts the user to login with the server. After successfully login, the user
  * continues to the MainActivity where the camera will start streaming to the server.
@@ -27,6 +32,7 @@ public class LoginActivity extends AppCompatActivity implements ServerResultCall
     private TextView mPasswordTextView;
     private TextView mServerIpTextView;
     private TextView mServerPortTextView;
+    private Spinner mTransportSpinner;
 
     private ServerClient mServer;
 
@@ -41,6 +47,8 @@ public class LoginActivity extends AppCompatActivity implements ServerResultCall
         mPasswordTextView = findViewById(R.id.editTextPassword);
         mServerIpTextView = findViewById(R.id.editTextServerIp);
         mServerPortTextView = findViewById(R.id.editTextServerPort);
+        mTransportSpinner = findViewById(R.id.transportSpinner);
+        setTransportSpinner();
 
         // Set the callback listener for the Login button
         Button loginButton = findViewById(R.id.loginButton);
@@ -62,17 +70,41 @@ public class LoginActivity extends AppCompatActivity implements ServerResultCall
 
     private void login(String username, String password, String serverIp, String serverPort) {
         // Very basic sanity check. Not robust enough to use outside the scope of prototype experiment.
-        if(username.length() > 0 && password.length() > 0 && serverIp.length() > 0 && serverPort.length() > 0) {
-            int port = Integer.parseInt(serverPort);
-            mServer.init(username, password, serverIp, port);
+        if(username.length() > 0 && password.length() > 0 && serverIp.trim().length() > 0 && serverPort.length() > 0) {
+            int port;
+            try {
+                port = Integer.parseInt(serverPort.trim());
+            } catch (NumberFormatException e) {
+                port = -1;
+            }
+            // Several ingest endpoints can be given, the port field is the default port. The
+            // endpoints with an invalid port are skipped, so none may be left
+            List<Endpoint> endpoints = Endpoint.parseList(serverIp, port);
+            if (port <= 0 || port > 65535 || endpoints.isEmpty()) {
+                showInvalidLogin();
+                return;
+            }
+            mServer.setTransport((String) mTransportSpinner.getSelectedItem());
+            mServer.init(username, password, endpoints);
             mServer.connect();
         } else {
-            Toast invalidLogin = Toast.makeText(this, R.string.toast_invalid_login, Toast.LENGTH_LONG);
-            invalidLogin.setGravity(Gravity.CENTER, 0, 0);
-            invalidLogin.show();
+            showInvalidLogin();
         }
     }
 
+    private void showInvalidLogin() {
+        Toast invalidLogin = Toast.makeText(this, R.string.toast_invalid_login, Toast.LENGTH_LONG);
+        invalidLogin.setGravity(Gravity.CENTER, 0, 0);
+        invalidLogin.show();
+    }
+
+    private void setTransportSpinner() {
+        ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(this,
+                R.array.transport_array, android.R.layout.simple_spinner_item);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        mTransportSpinner.setAdapter(adapter);
+    }
+
     @Override
     public void onResume() {
         Log.d(TAG, "onResume");
@@ -4,9 +4,13 @@ import android.Manifest;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.Size;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
@@ -17,20 +21,45 @@ import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.camera.core.CameraSelector;
-import androidx.camera.core.ImageAnalysis;
-import androidx.camera.core.Preview;
-import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.camera.view.PreviewView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
-import androidx.lifecycle.LifecycleOwner;
 
-import com.google.common.util.concurrent.ListenableFuture;
+import com.xetiro.android.camstream.encoding.FrameEncoder;
+import com.xetiro.android.camstream.encoding.FrameEncoders;
+import com.xetiro.android.camstream.encoding.JpegFrameEncoder;
+import com.xetiro.android.camstream.encoding.TileDeltaEncoder;
+import com.xetiro.android.camstream.network.FrameEnvelope;
+import com.xetiro.android.camstream.network.FrameSpool;
+import com.xetiro.android.camstream.network.SendWindow;
 import com.xetiro.android.camstream.network.ServerClient;
+import com.xetiro.android.camstream.network.StreamControlCallback;
+import com.xetiro.android.camstream.network.StreamMetrics;
+import com.xetiro.android.camstream.network.StreamMetricsListener;
+import com.xetiro.android.camstream.streaming.CameraAnalysisSource;
+import com.xetiro.android.camstream.streaming.CameraPreviewSource;
+import com.xetiro.android.camstream.streaming.CameraSession;
+import com.xetiro.android.camstream.streaming.Frame;
+import com.xetiro.android.camstream.streaming.FramePacer;
+import com.xetiro.android.camstream.streaming.FramePipeline;
+import com.xetiro.android.camstream.streaming.FrameRecorder;
+import com.xetiro.android.camstream.streaming.FrameSource;
+import com.xetiro.android.camstream.streaming.MotionDetector;
+import com.xetiro.android.camstream.streaming.RateController;
+import com.xetiro.android.camstream.streaming.ReplayFrameSource;
+import com.xetiro.android.camstream.streaming.SimulcastLayer;
+import com.xetiro.android.camstream.streaming.SourceImage;
+import com.xetiro.android.camstream.streaming.SyntheticFrameSource;
+import com.xetiro.android.camstream.utils.BitmapPool;
+import com.xetiro.android.camstream.utils.BufferPool;
 import com.xetiro.android.camstream.utils.ImageConverter;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 
@@ -40,29 +69,88 @@ import static android.content.pm.PackageManager.PERMISSION_GRANTED;
  * <p>
  * Created by xetiro (aka Ruben Geraldes) on 27/09/2020.
  */
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements StreamControlCallback {
     public static String TAG = "MainActivityDebug";
     private static int ACCESS_CAMERA_REQUEST_CODE = 1;
+    // Thumbnail streams at least this frequent are sent in batches
+    private static int BATCHING_MAX_PIXELS = 192 * 144;
+    private static int BATCHING_MIN_FREQUENCY = 8;
+    // Keeps the frames captured while disconnected on disk and sends them once reconnected
+    private static boolean SPOOL_FRAMES = false;
+    private static String SPOOL_FILE_NAME = "frames.spool";
+    private static int SPOOL_CAPACITY = 32 * 1024 * 1024;
+    // Keeps the connection open for a while when paused, e.g. rotating or switching Activities
+    private static long KEEP_CONNECTION_WARM_MS = 30000;
+    // The image analysis stream drops to the idle frequency while nothing moves, and sends the
+    // pre-roll frames when the motion starts
+    private static boolean MOTION_GATING = true;
+    private static int IDLE_FREQUENCY = 1;
+    private static int PRE_ROLL_FRAMES = 3;
+    // Caps the uplink on metered connections, 0 for no cap. The burst must fit the largest frames
+    private static long UPLINK_BUDGET_BYTES_PER_SECOND = 0;
+    private static long UPLINK_BURST_BYTES = 256 * 1024;
+    // Streams the layers from the same capture instead of the selected resolution, e.g. small
+    // frequent frames for tracking and large occasional ones for recognition. Needs a stateless
+    // encoder, the capture frequency still caps the rate of the layers
+    private static boolean SIMULCAST = false;
+    private static List<SimulcastLayer> SIMULCAST_LAYERS = Arrays.asList(
+            new SimulcastLayer(1, 320, 240, 15, 60),
+            new SimulcastLayer(2, 1280, 720, 1, 90));
+    // Where the image analysis stream comes from: the camera, or for a reproducible load without
+    // it a replay of a recorded capture or a synthetic pattern. The recordings and the replays
+    // are in the external files directory, so they can be pulled and pushed with adb
+    private static String FRAME_SOURCE = "camera";  // "camera", "replay" or "synthetic"
+    private static boolean RECORD_CAPTURE = false;
+    private static String CAPTURE_FILE_NAME = "capture.frames";
+    private static float REPLAY_SPEED = 1;
+    private static boolean REPLAY_LOOP = true;
+    private static SyntheticFrameSource.Pattern SYNTHETIC_PATTERN = SyntheticFrameSource.Pattern.MOVING;
+    private static int SYNTHETIC_FREQUENCY = 30;
 
     private PreviewView mCameraPreview;
     private ServerClient mServer;
 
-    // Camera Use-Cases
-    private Preview mPreview;   // We are capturing from this one
-    private ImageAnalysis mImageAnalysis;
+    // Keeps the camera use cases bound between streams, so starting a stream only opens the gate
+    private CameraSession mCameraSession;
+    // When the stream was started, until its first frame is sent
+    private volatile long mStreamStartNanos = 0;
 
     // The Bitmap image from camera preview is converted to JPEG without artifacts.
     // The YUV image from the image Analysis when converted to JPEG sometimes can create artifacts
-    // because the conversion might fail for some cameras
+    // because the conversion might fail for some cameras. The replays, the synthetic patterns
+    // and the recordings only go through the image analysis, and so do the encoders other than
+    // JPEG: picking one in the encoder spinner switches to the image analysis
+    private boolean mPreviewStreamingAvailable = true;
     private boolean mStreamFromCameraPreview = true;
+    // The replays and the synthetic patterns keep their own timing, only the camera is paced
+    private boolean mPaceAnalysisFrames = true;
+
+    // The encoder selected by the user. The camera preview is only streamed with JPEG, any other
+    // encoder streams from the image analysis.
+    private volatile FrameEncoder mFrameEncoder = FrameEncoders.create(null);
 
     private int mTargetWidth;
     private int mTargetHeight;
 
-    private long mLastTime = 0;
     private long mUploadDelay = 0;
+    private int mFrequency = 0;
+    private long mPreviewSequence = 0;
+    private FramePacer mFramePacer;
+    private RateController mRateController;
+    private FramePipeline mFramePipeline;
+    private final MotionDetector mMotionDetector = new MotionDetector();
+    private FrameSpool mFrameSpool = null;
+    private FrameSource mPreviewSource;
+    private FrameSource mAnalysisSource;
+    private FrameRecorder mFrameRecorder = null;
+    private ConnectivityManager mConnectivityManager;
+
+    // Shows the stream metrics on top of the camera preview, toggled with a long click on it
+    private TextView mMetricsOverlay;
+    private boolean mShowMetricsOverlay = false;
 
     private Spinner mResolutionSpinner;
+    private Spinner mEncoderSpinner;
     private SeekBar mFrequencySeekBar;
     private Button mStreamStartButton;
     private Button mStreamStopButton;
@@ -76,10 +164,45 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         setResolutionSpinner();
+        setEncoderSpinner();
 
         mServer = ServerClient.getInstance();
+        mCameraSession = new CameraSession(this, this, CameraSelector.DEFAULT_FRONT_CAMERA);
+        mFramePacer = new FramePacer();
+        mRateController = new RateController();
+        mServer.getSendWindow().addListener(mRateController);
+        mServer.getSendWindow().addListener(mDeltaLossListener);
+        mServer.getShaper().setBudget(UPLINK_BUDGET_BYTES_PER_SECOND, UPLINK_BURST_BYTES);
+        mFramePipeline = new FramePipeline(BufferPool.getInstance(), mRateController,
+                mServer.getMetrics(), mFrameSink);
+        mMotionDetector.setListener(mMotionListener);
+        if (SPOOL_FRAMES) {
+            openFrameSpool();
+        }
+        mConnectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build(), mNetworkCallback);
 
         mCameraPreview = findViewById(R.id.cameraView);
+        mPreviewSource = new CameraPreviewSource(mCameraPreview, mFramePacer, mRateController);
+        mAnalysisSource = createAnalysisSource();
+        boolean fromCamera = mAnalysisSource instanceof CameraAnalysisSource;
+        if (RECORD_CAPTURE && fromCamera) {
+            openFrameRecorder();
+        }
+        if (!fromCamera || mFrameRecorder != null) {
+            mPreviewStreamingAvailable = false;
+            mStreamFromCameraPreview = false;
+        }
+        mPaceAnalysisFrames = fromCamera;
+        mMetricsOverlay = findViewById(R.id.metricsOverlay);
+        mCameraPreview.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                setMetricsOverlayVisible(!mShowMetricsOverlay);
+                return true;
+            }
+        });
         mResolutionSpinner = findViewById(R.id.cameraResolutionSpinner);
         mResolutionSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
@@ -95,6 +218,8 @@ public class MainActivity extends AppCompatActivity {
                     mTargetWidth = 320;
                     mTargetHeight = 240;
                 }
+                mRateController.setMaxResolution(mTargetWidth, mTargetHeight);
+                updateBatching();
 
                 Log.d(TAG, "new width = " + mTargetWidth + " new height = " + mTargetHeight);
             }
@@ -103,6 +228,24 @@ public class MainActivity extends AppCompatActivity {
 
             }
         });
+        mEncoderSpinner = findViewById(R.id.encoderSpinner);
+        mEncoderSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                String encoderId = (String) parent.getItemAtPosition(position);
+                mFrameEncoder = FrameEncoders.create(encoderId);
+                // The camera preview can only be sent as JPEG
+                mStreamFromCameraPreview = mPreviewStreamingAvailable
+                        && JpegFrameEncoder.ID.equals(mFrameEncoder.getId());
+                mServer.setEncoder(mFrameEncoder.getId());
+                updatePacerPeriod();
+                Log.d(TAG, "new encoder = " + mFrameEncoder.getId() + " | from camera preview = " + mStreamFromCameraPreview);
+            }
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+
+            }
+        });
         mFrequencySeekBar = findViewById(R.id.frequencySeekBar);
         mStreamStartButton = findViewById(R.id.streamStartButton);
         mStreamStartButton.setOnClickListener(new View.OnClickListener() {
@@ -111,7 +254,9 @@ public class MainActivity extends AppCompatActivity {
                 mStreamStartButton.setVisibility(View.GONE);
                 mStreamStopButton.setVisibility(View.VISIBLE);
                 mResolutionSpinner.setEnabled(false);
+                mEncoderSpinner.setEnabled(false);
 
+                mStreamStartNanos = SystemClock.elapsedRealtimeNanos();
                 if(mStreamFromCameraPreview) {
                     startStreaming();
                 } else {
@@ -126,6 +271,7 @@ public class MainActivity extends AppCompatActivity {
                 mStreamStopButton.setVisibility(View.GONE);
                 mStreamStartButton.setVisibility(View.VISIBLE);
                 mResolutionSpinner.setEnabled(true);
+                mEncoderSpinner.setEnabled(true);
 
                 if(mStreamFromCameraPreview){
                     stopStreaming();
@@ -164,6 +310,10 @@ public class MainActivity extends AppCompatActivity {
     public void onResume() {
         Log.d(TAG, "onResume");
         super.onResume();
+        mServer.registerStreamControlCallback(this);
+        if (mShowMetricsOverlay) {
+            mServer.registerMetricsListener(mMetricsListener);
+        }
         mServer.connect();
     }
 
@@ -173,9 +323,141 @@ public class MainActivity extends AppCompatActivity {
         super.onPause();
         if(mIsStreaming)
             stopStreaming();
-        mServer.disconnect();
+        mServer.unregisterStreamControlCallback();
+        mServer.unregisterMetricsListener();
+        mServer.disconnectLater(KEEP_CONNECTION_WARM_MS);
+    }
+
+    @Override
+    protected void onDestroy() {
+        Log.d(TAG, "onDestroy");
+        super.onDestroy();
+        mPreviewSource.close();
+        mAnalysisSource.close();
+        mCameraSession.close();
+        mFramePacer.shutdown();
+        mFramePipeline.shutdown();
+        BitmapPool.getInstance().clear();
+        mServer.getSendWindow().removeListener(mRateController);
+        mServer.getSendWindow().removeListener(mDeltaLossListener);
+        mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+        if (mFrameSpool != null) {
+            mServer.setSpool(null);
+            try {
+                mFrameSpool.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Cannot close the frame spool: " + e.getMessage());
+            }
+            mFrameSpool = null;
+        }
+        if (mFrameRecorder != null) {
+            try {
+                mFrameRecorder.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Cannot close the frame recorder: " + e.getMessage());
+            }
+            mFrameRecorder = null;
+        }
+    }
+
+    /**
+     * Reconnects as soon as a network is available, instead of waiting for the backoff delay.
+     */
+    private final ConnectivityManager.NetworkCallback mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            Log.d(TAG, "Network available, reconnecting now");
+            mServer.retryNow();
+        }
+    };
+
+    private void openFrameSpool() {
+        try {
+            mFrameSpool = new FrameSpool(new File(getFilesDir(), SPOOL_FILE_NAME), SPOOL_CAPACITY);
+            mServer.setSpool(mFrameSpool);
+        } catch (IOException e) {
+            Log.d(TAG, "Cannot open the frame spool: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The source of the image analysis stream, the camera unless the replay can't be opened.
+     */
+    private FrameSource createAnalysisSource() {
+        if (FRAME_SOURCE.equals("synthetic")) {
+            return new SyntheticFrameSource(SYNTHETIC_PATTERN, SYNTHETIC_FREQUENCY);
+        }
+        if (FRAME_SOURCE.equals("replay")) {
+            try {
+                return new ReplayFrameSource(new File(getExternalFilesDir(null), CAPTURE_FILE_NAME),
+                        REPLAY_SPEED, REPLAY_LOOP);
+            } catch (IOException e) {
+                Log.d(TAG, "Cannot open the replay, streaming the camera: " + e.getMessage());
+            }
+        }
+        return new CameraAnalysisSource(mCameraSession, mFramePipeline.getAnalyzerExecutor());
+    }
+
+    private void openFrameRecorder() {
+        try {
+            mFrameRecorder = new FrameRecorder(new File(getExternalFilesDir(null), CAPTURE_FILE_NAME),
+                    BufferPool.getInstance());
+        } catch (IOException e) {
+            Log.d(TAG, "Cannot open the frame recorder: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onKeyframeRequested() {
+        requestKeyframe();
+    }
+
+    private void requestKeyframe() {
+        FrameEncoder encoder = mFrameEncoder;
+        if (encoder instanceof TileDeltaEncoder) {
+            ((TileDeltaEncoder) encoder).requestKeyframe();
+        }
+    }
+
+    // A lost delta leaves the server with stale tiles, so the next frame must be a keyframe
+    private SendWindow.Listener mDeltaLossListener = new SendWindow.Listener() {
+        @Override
+        public void onFrameAcked(int size, long roundTripNanos, int inFlight, int queued) {
+            // Nothing to do
+        }
+
+        @Override
+        public void onFrameLost() {
+            requestKeyframe();
+        }
+    };
+
+    private void setMetricsOverlayVisible(boolean visible) {
+        mShowMetricsOverlay = visible;
+        if (visible) {
+            mServer.registerMetricsListener(mMetricsListener);
+        } else {
+            mServer.unregisterMetricsListener();
+        }
+        mMetricsOverlay.setVisibility(visible ? View.VISIBLE : View.GONE);
     }
 
+    // Called once per second from the metrics thread
+    private StreamMetricsListener mMetricsListener = new StreamMetricsListener() {
+        @Override
+        public void onMetrics(final StreamMetrics.Snapshot snapshot) {
+            Log.d(TAG, "Stream metrics: " + snapshot);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mShowMetricsOverlay) {
+                        mMetricsOverlay.setText(snapshot + "\nendpoint " + mServer.getEndpoint());
+                    }
+                }
+            });
+        }
+    };
+
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
         Log.d(TAG, "onRequestPermissionsResult: " + permissions.length);
@@ -197,112 +479,163 @@ public class MainActivity extends AppCompatActivity {
         } else {
             mUploadDelay = 1000 / frequency;
         }
+        mFrequency = frequency;
+        updatePacerPeriod();
+        updateBatching();
     }
 
-    private void startCameraImageAnalysis() {
-        Log.d(TAG, "startCameraPreview");
-        ListenableFuture<ProcessCameraProvider> cameraProviderFuture;
-        cameraProviderFuture = ProcessCameraProvider.getInstance(this);
-        cameraProviderFuture.addListener(() -> {
-            try {
-                ProcessCameraProvider cameraProvider = cameraProviderFuture.get();
-                bindImageAnalysis(cameraProvider);  // The stream will start after the bind
-            } catch (ExecutionException | InterruptedException e) {
+    // While gated by the motion the analysis stream runs at the idle frequency until something moves
+    private void updatePacerPeriod() {
+        long delay = mUploadDelay;
+        if (MOTION_GATING && !mStreamFromCameraPreview && delay != 0 && !mMotionDetector.isActive()) {
+            delay = Math.max(delay, 1000 / IDLE_FREQUENCY);
+        }
+        mFramePacer.setPeriod(delay, TimeUnit.MILLISECONDS);
+        mFramePipeline.setPreRoll(MOTION_GATING ? PRE_ROLL_FRAMES : 0, mUploadDelay, TimeUnit.MILLISECONDS);
+    }
 
+    // At high frequencies the small thumbnails cost more in per-message overhead than in payload
+    private void updateBatching() {
+        if (mServer != null) {
+            mServer.setBatchingEnabled(mTargetWidth * mTargetHeight <= BATCHING_MAX_PIXELS
+                    && mFrequency >= BATCHING_MIN_FREQUENCY);
+        }
+    }
+
+    /**
+     * The camera and the pipeline threads stay up between streams: starting only rebinds the
+     * image analysis if the resolution changed, and then opens the gate to the analyzer.
+     */
+    private void startCameraImageAnalysis() {
+        Log.d(TAG, "startCameraImageAnalysis");
+        mFramePipeline.start(mFrameEncoder);    // Keeps its threads if the encoder is the same
+        mMotionDetector.reset();
+        // The server may have dropped its reference frame since the last stream
+        requestKeyframe();
+        updatePacerPeriod();
+        int analysisWidth = mTargetWidth;
+        int analysisHeight = mTargetHeight;
+        List<SimulcastLayer> layers = Collections.emptyList();
+        if (SIMULCAST && !mFrameEncoder.isStateful()) {
+            // The camera captures at the largest layer resolution, the others are scaled from it
+            layers = SIMULCAST_LAYERS;
+            analysisWidth = 0;
+            analysisHeight = 0;
+            for (SimulcastLayer layer : layers) {
+                if (layer.getWidth() * layer.getHeight() > analysisWidth * analysisHeight) {
+                    analysisWidth = layer.getWidth();
+                    analysisHeight = layer.getHeight();
+                }
             }
-        }, ContextCompat.getMainExecutor(this));
+        }
+        mFramePipeline.setLayers(layers);
+        mServer.setSimulcastLayers(layers);
+        mAnalysisSource.setTargetResolution(analysisWidth, analysisHeight);
+        mAnalysisSource.start(mSourceListener);
     }
 
     private void stopCameraImageAnalysis() {
-        ListenableFuture<ProcessCameraProvider> cameraProviderFuture;
-        cameraProviderFuture = ProcessCameraProvider.getInstance(this);
-        cameraProviderFuture.addListener(() -> {
-            try {
-                ProcessCameraProvider cameraProvider = cameraProviderFuture.get();
-                cameraProvider.unbind(mImageAnalysis);  // The stream will stop after the unbind
-            } catch (ExecutionException | InterruptedException e) {
-                // do nothing
-            }
-        }, ContextCompat.getMainExecutor(this));
+        // The frames already in the pipeline are still sent
+        mAnalysisSource.stop();
+        mFramePipeline.clearPreRoll();
     }
 
     private void startCameraPreview() {
         Log.d(TAG, "startCameraPreview");
-        ListenableFuture<ProcessCameraProvider> cameraProviderFuture;
-        cameraProviderFuture = ProcessCameraProvider.getInstance(this);
-        cameraProviderFuture.addListener(() -> {
-            try {
-                ProcessCameraProvider cameraProvider = cameraProviderFuture.get();
-                bindPreview(cameraProvider);
-            } catch (ExecutionException | InterruptedException e) {
-                // do nothing
-            }
-        }, ContextCompat.getMainExecutor(this));
+        mCameraSession.bindPreview(mCameraPreview.createSurfaceProvider());
     }
 
     private void startStreaming() {
         mIsStreaming = true;
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while(mIsStreaming) {
-                    long elapsedTime = System.currentTimeMillis() - mLastTime;
-                    if (elapsedTime > mUploadDelay && mUploadDelay != 0) {   // Bound the image upload based on the user-defined frequency
-                        byte[] byteArray;
-                        Bitmap bmp = mCameraPreview.getBitmap();
-                        Bitmap bmp2 = Bitmap.createScaledBitmap(bmp, mTargetWidth, mTargetHeight, false);
-                        byteArray = ImageConverter.BitmaptoJPEG(bmp2);
-                        mServer.sendImage(byteArray);
-                        mLastTime = System.currentTimeMillis();
-                    }
-                }
-            }
-        }).start();
+        mPreviewSource.start(mSourceListener);
     }
 
     private void stopStreaming() {
         mIsStreaming = false;
+        mPreviewSource.stop();
     }
 
-    private void bindPreview(ProcessCameraProvider cameraProvider) {
-        mPreview = new Preview.Builder().build();
-        // Preview use-case will render a preview image on the screen as defined by the PreviewView
-        // element on the main's layout activity. The resolution of the layout is relative to the
-        // screen size and defined in dp, which means the final resolution in pixels will be decided
-        // at run-time when the layout is inflated to the device screen. But will always be proportional
-        // to the resolution defined on the layout.
-        mPreview.setSurfaceProvider(mCameraPreview.createSurfaceProvider());
-
-        CameraSelector cameraSelector = CameraSelector.DEFAULT_FRONT_CAMERA;
-        cameraProvider.bindToLifecycle((LifecycleOwner) this, cameraSelector, mPreview);
+    // Measures how long the stream took to get its first frame out
+    private void onFrameStreamed() {
+        long start = mStreamStartNanos;
+        if (start != 0) {
+            mStreamStartNanos = 0;
+            long duration = SystemClock.elapsedRealtimeNanos() - start;
+            Log.d(TAG, "First frame streamed " + TimeUnit.NANOSECONDS.toMillis(duration) + " ms after the start");
+            mServer.getMetrics().recordTimeToFirstFrame(duration);
+        }
     }
 
-    private void bindImageAnalysis(ProcessCameraProvider cameraProvider) {
-        mImageAnalysis = new ImageAnalysis.Builder()
-                .setTargetResolution(new Size(mTargetWidth, mTargetHeight))
-                .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)   // non blocking
-                .build();
-        // Image Analysis use-case will not render the image on the screen, but will
-        // deliver a frame by frame image (stream) directly from the camera buffer to the analyser.
-        // On this case we can set an actual target resolution as defined by the user. CameraX will
-        // try to match the captured resolution to the target resolution. If it cannot match, will
-        // capture the frame with the resolution immediately above.
-        mImageAnalysis.setAnalyzer(Executors.newFixedThreadPool(3), image -> {
-            long elapsedTime = System.currentTimeMillis() - mLastTime;
-            if (elapsedTime > mUploadDelay && mUploadDelay != 0) {   // Bound the image upload based on the user-defined frequency
-                byte[] byteArray;
+    // The image analysis sources deliver a frame by frame image (stream) straight to the
+    // listener, on the convert stage thread for the camera or on the thread of the source. With
+    // the camera, CameraX will try to match the captured resolution to the target resolution. If
+    // it cannot match, will capture the frame with the resolution immediately above.
+    // The listener only converts the image, the encoding and sending happen on the pipeline
+    // threads so they never block the camera. The camera preview is grabbed as a bitmap only
+    // when a frame is due, and encoded to JPEG right away.
+    private final FrameSource.Listener mSourceListener = new FrameSource.Listener() {
+        @Override
+        public void onImage(SourceImage image) {
+            if (mFrameRecorder != null) {
+                mFrameRecorder.record(image);
+            }
+            // The motion detector only samples the luma plane, before anything is converted
+            boolean motion = true;
+            if (MOTION_GATING) {
+                motion = mMotionDetector.analyze(image.getBuffer(0), image.getRowStride(0), image.getPixelStride(0),
+                        image.getWidth(), image.getHeight(), image.getTimestampNanos());
+            }
+            // Bound the image upload based on the user-defined frequency
+            if (!mPaceAnalysisFrames || mFramePacer.tryAcquireFrame()) {
                 // This its a better camera stream but the conversion might create artifacts with
                 // some cameras. Needs more investigation
-                byteArray = ImageConverter.YUV_420_800toJPEG(image);
-                mServer.sendImage(byteArray);
-                mLastTime = System.currentTimeMillis();
+                mFramePipeline.submit(image);
+            } else if (!motion) {
+                mFramePipeline.retain(image);
             }
-            image.close();
-        });
+        }
 
-        CameraSelector cameraSelector = CameraSelector.DEFAULT_FRONT_CAMERA;
-        cameraProvider.bindToLifecycle((LifecycleOwner) this, cameraSelector, mImageAnalysis);
-    }
+        @Override
+        public void onBitmap(Bitmap bitmap, long timestampNanos) {
+            // The rate controller picks the quality the link can take
+            Frame frame = new Frame();
+            frame.sequence = mPreviewSequence++;
+            frame.timestampNanos = timestampNanos;
+            frame.width = bitmap.getWidth();
+            frame.height = bitmap.getHeight();
+            frame.encoderId = JpegFrameEncoder.ID;
+            frame.quality = mRateController.getQuality();
+            frame.encoded = BufferPool.getInstance().acquireFrameBuffer();
+            FrameEnvelope.reserveHeader(frame.encoded);
+            ImageConverter.BitmaptoJPEG(bitmap, frame.quality, frame.encoded);
+            frame.encodeNanos = SystemClock.elapsedRealtimeNanos() - frame.timestampNanos;
+            mServer.getMetrics().recordEncode(frame.encodeNanos);
+            mServer.sendFrame(frame);   // The server client releases the buffer
+            onFrameStreamed();
+        }
+    };
+
+    // Called from the analyzer thread, so the pre-roll goes out before the next frame is submitted
+    private MotionDetector.Listener mMotionListener = new MotionDetector.Listener() {
+        @Override
+        public void onMotionChanged(boolean active) {
+            Log.d(TAG, "Motion " + (active ? "started" : "ended"));
+            if (active) {
+                mFramePipeline.flushPreRoll();
+            }
+            updatePacerPeriod();
+        }
+    };
+
+    // Receives the encoded frames of the pipeline in capture order
+    private FramePipeline.FrameSink mFrameSink = new FramePipeline.FrameSink() {
+        @Override
+        public void onFrameEncoded(Frame frame) {
+            // The server client releases the buffer
+            mServer.sendFrame(frame);
+            onFrameStreamed();
+        }
+    };
 
     private boolean cameraPermissionGranted() {
         return ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PERMISSION_GRANTED;
@@ -333,6 +666,14 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private void setEncoderSpinner() {
+        Spinner spinner = (Spinner) findViewById(R.id.encoderSpinner);
+        ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(this,
+                R.array.encoder_array, android.R.layout.simple_spinner_item);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinner.setAdapter(adapter);
+    }
+
     private void setResolutionSpinner() {
         Spinner spinner = (Spinner) findViewById(R.id.cameraResolutionSpinner);
         // Create an ArrayAdapter using the string array and a default spinner layout
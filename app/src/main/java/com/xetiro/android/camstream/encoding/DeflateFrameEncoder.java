@@ -0,0 +1,58 @@
+package com.xetiro.android.camstream.encoding;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+import com.xetiro.android.camstream.utils.YuvPlanes;
+
+import java.util.zip.Deflater;
+
+/**
+ * Lossless encoder sending the raw NV21 frame compressed with deflate at its fastest level.
+ * Much bigger than a JPEG but costs very little CPU and keeps the exact camera pixels.
+ * <p>
+ * Payload layout, big-endian: width (2) | height (2) | zlib stream of the NV21 bytes.
+ */
+public class DeflateFrameEncoder implements FrameEncoder {
+    public static final String ID = "deflate";
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    // One per encode worker, so the workers compress in parallel
+    private final ThreadLocal<Deflater> mDeflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private final ThreadLocal<byte[]> mChunk = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean isStateful() {
+        return false;
+    }
+
+    @Override
+    public boolean encode(byte[] nv21, int width, int height, int quality, FrameBuffer out) {
+        Deflater deflater = mDeflater.get();
+        byte[] chunk = mChunk.get();
+        out.writeShort(width);
+        out.writeShort(height);
+        deflater.reset();
+        deflater.setInput(nv21, 0, YuvPlanes.NV21Size(width, height));
+        deflater.finish();
+        while (!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            out.write(chunk, 0, length);
+        }
+        return true;
+    }
+}
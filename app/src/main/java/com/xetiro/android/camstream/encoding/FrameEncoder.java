@@ -0,0 +1,34 @@
+package com.xetiro.android.camstream.encoding;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+/**
+ * Encodes a YUV frame into the payload streamed to the server.
+ * <p>
+ * Frames are given in NV21 (the full-resolution Y plane followed by the interleaved VU plane),
+ * which is what the conversion path produces from the camera planes. Implementations are
+ * created through {@link FrameEncoders} and are advertised to the server by their id, so the
+ * server knows how to decode the payloads.
+ */
+public interface FrameEncoder {
+    /**
+     * The id advertised to the server in the stream configuration.
+     */
+    public String getId();
+
+    /**
+     * Whether the encoder keeps state between frames (e.g. a reference frame). Stateful encoders
+     * must see the frames one at a time and in capture order, the others are called from several
+     * encode workers at once.
+     */
+    public boolean isStateful();
+
+    /**
+     * Encodes the frame at the end of the given output buffer, which may already hold a header.
+     *
+     * @param quality the quality from 0 to 100, ignored by the lossless encoders
+     * @return false if there is nothing to send for this frame, in which case the output buffer
+     * is left as it was.
+     */
+    public boolean encode(byte[] nv21, int width, int height, int quality, FrameBuffer out);
+}
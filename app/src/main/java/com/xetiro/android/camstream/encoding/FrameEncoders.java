@@ -0,0 +1,56 @@
+package com.xetiro.android.camstream.encoding;
+
+/**
+ * Creates the available {@link FrameEncoder} implementations from their id.
+ */
+public class FrameEncoders {
+    /**
+     * The ids of all the encoders supported by this client, advertised to the server. The
+     * position in this array (starting at 1) is the encoder type sent in the frame envelope, so
+     * new encoders must be appended at the end.
+     */
+    public static final String[] IDS = {
+            JpegFrameEncoder.ID,
+            WebpFrameEncoder.ID,
+            DeflateFrameEncoder.ID,
+            LumaFrameEncoder.ID,
+            TileDeltaEncoder.ID
+    };
+
+    private FrameEncoders() {
+        // Static factory only
+    }
+
+    /**
+     * The numeric type of the encoder sent in the frame envelope, 0 if unknown.
+     */
+    public static int typeOf(String id) {
+        for (int i = 0; i < IDS.length; i++) {
+            if (IDS[i].equals(id)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Creates a new encoder for the given id, falling back to JPEG for unknown ids. Encoders
+     * may keep state between frames, so each stream needs its own instance. JPEG is encoded
+     * with libjpeg-turbo when the native encoder is in the build.
+     */
+    public static FrameEncoder create(String id) {
+        if (WebpFrameEncoder.ID.equals(id)) {
+            return new WebpFrameEncoder();
+        } else if (DeflateFrameEncoder.ID.equals(id)) {
+            return new DeflateFrameEncoder();
+        } else if (LumaFrameEncoder.ID.equals(id)) {
+            return new LumaFrameEncoder();
+        } else if (TileDeltaEncoder.ID.equals(id)) {
+            return new TileDeltaEncoder();
+        }
+        if (NativeJpegEncoder.isAvailable()) {
+            return new NativeJpegEncoder();
+        }
+        return new JpegFrameEncoder();
+    }
+}
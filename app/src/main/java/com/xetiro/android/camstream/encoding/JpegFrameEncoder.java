@@ -0,0 +1,27 @@
+package com.xetiro.android.camstream.encoding;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+import com.xetiro.android.camstream.utils.ImageConverter;
+
+/**
+ * The default encoder: a plain JPEG of the whole frame.
+ */
+public class JpegFrameEncoder implements FrameEncoder {
+    public static final String ID = "jpeg";
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean isStateful() {
+        return false;
+    }
+
+    @Override
+    public boolean encode(byte[] nv21, int width, int height, int quality, FrameBuffer out) {
+        ImageConverter.NV21toJPEG(nv21, width, height, quality, out);
+        return true;
+    }
+}
@@ -0,0 +1,46 @@
+package com.xetiro.android.camstream.encoding;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+import com.xetiro.android.camstream.utils.ImageConverter;
+
+import java.util.Arrays;
+
+/**
+ * Grayscale encoder for servers that only need the luma (e.g. most vision models working on
+ * gray images). The chroma is replaced by the neutral value before the JPEG encoding, so it
+ * costs almost no bytes and the payload is still a regular JPEG.
+ */
+public class LumaFrameEncoder implements FrameEncoder {
+    public static final String ID = "luma";
+
+    private static final byte NEUTRAL_CHROMA = (byte) 128;
+
+    // A NV21 frame whose chroma is always neutral, only the luma is copied for each frame. One
+    // per encode worker, so the workers encode in parallel
+    private final ThreadLocal<byte[]> mGrayFrame = new ThreadLocal<>();
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean isStateful() {
+        return false;
+    }
+
+    @Override
+    public boolean encode(byte[] nv21, int width, int height, int quality, FrameBuffer out) {
+        int ySize = width * height;
+        int size = ImageConverter.NV21Size(width, height);
+        byte[] grayFrame = mGrayFrame.get();
+        if (grayFrame == null || grayFrame.length != size) {
+            grayFrame = new byte[size];
+            Arrays.fill(grayFrame, ySize, size, NEUTRAL_CHROMA);
+            mGrayFrame.set(grayFrame);
+        }
+        System.arraycopy(nv21, 0, grayFrame, 0, ySize);
+        ImageConverter.NV21toJPEG(grayFrame, width, height, quality, out);
+        return true;
+    }
+}
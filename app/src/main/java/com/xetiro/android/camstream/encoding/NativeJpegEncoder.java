@@ -0,0 +1,209 @@
+package com.xetiro.android.camstream.encoding;
+
+import android.util.Log;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A JPEG encoder on libjpeg-turbo, through JNI. It compresses the YUV planes as they are, without
+ * the NV21 copy and the color conversion of {@link android.graphics.YuvImage}, and can read the
+ * camera planes in place with {@link #encodePlanes}.
+ * <p>
+ * The library is only in the builds with the {@code camstream.nativeJpeg} Gradle property, so
+ * check {@link #isAvailable()} and fall back to the {@link JpegFrameEncoder} otherwise. Both send
+ * the same JPEG frames to the server, under the same id.
+ * <p>
+ * The encoder is stateless and thread safe: each encode borrows a native context, with its own
+ * TurboJPEG handle and direct output buffer, from a small pool shared by all the instances.
+ */
+public class NativeJpegEncoder implements FrameEncoder {
+    public static String TAG = "NativeJpegEncoderDebug";
+
+    public static final String ID = JpegFrameEncoder.ID;
+
+    private static final String LIBRARY = "camstream-jpeg";
+    // One per encode worker is enough, the extra contexts are destroyed
+    private static final int MAX_POOLED_CONTEXTS = 4;
+
+    /**
+     * The chroma subsampling of the JPEG frames. The camera gives 4:2:0, the other ones keep
+     * sharper color edges only if the server scales the frames up.
+     */
+    public enum Subsampling {
+        CHROMA_444(0),
+        CHROMA_422(1),
+        CHROMA_420(2),
+        GRAY(3);
+
+        // The TurboJPEG TJSAMP constant
+        private final int mNativeValue;
+
+        Subsampling(int nativeValue) {
+            mNativeValue = nativeValue;
+        }
+    }
+
+    private static final boolean mAvailable = loadLibrary();
+    private static final ArrayDeque<EncoderContext> mContextPool = new ArrayDeque<>();
+
+    private final Subsampling mSubsampling;
+
+    public NativeJpegEncoder() {
+        this(Subsampling.CHROMA_420);
+    }
+
+    public NativeJpegEncoder(Subsampling subsampling) {
+        if (!mAvailable) {
+            throw new IllegalStateException("The " + LIBRARY + " library is not available");
+        }
+        mSubsampling = subsampling;
+    }
+
+    /**
+     * True if the native library is in this build and loaded.
+     */
+    public static boolean isAvailable() {
+        return mAvailable;
+    }
+
+    public Subsampling getSubsampling() {
+        return mSubsampling;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean isStateful() {
+        return false;
+    }
+
+    @Override
+    public boolean encode(byte[] nv21, int width, int height, int quality, FrameBuffer out) {
+        EncoderContext context = acquireContext();
+        try {
+            ByteBuffer output = context.getOutput(width, height, mSubsampling);
+            int size = nativeEncodeNV21(context.mHandle, nv21, width, height, mSubsampling.mNativeValue,
+                    clampQuality(quality), output);
+            return copyOutput(context, size, out);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     * Encodes a YUV 4:2:0 image straight from its planes, e.g. the planes of a camera image,
+     * which must be direct buffers starting at the first sample. The luma plane must have a
+     * pixel stride of 1, the chroma planes may be planar or interleaved.
+     */
+    public boolean encodePlanes(ByteBuffer yPlane, int yRowStride, int yPixelStride,
+                                ByteBuffer uPlane, int uRowStride, int uPixelStride,
+                                ByteBuffer vPlane, int vRowStride, int vPixelStride,
+                                int width, int height, int quality, FrameBuffer out) {
+        EncoderContext context = acquireContext();
+        try {
+            ByteBuffer output = context.getOutput(width, height, mSubsampling);
+            int size = nativeEncodePlanes(context.mHandle, yPlane, yRowStride, yPixelStride,
+                    uPlane, uRowStride, uPixelStride, vPlane, vRowStride, vPixelStride,
+                    width, height, mSubsampling.mNativeValue, clampQuality(quality), output);
+            return copyOutput(context, size, out);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    private static int clampQuality(int quality) {
+        return Math.max(1, Math.min(100, quality));
+    }
+
+    private static boolean copyOutput(EncoderContext context, int size, FrameBuffer out) {
+        if (size < 0) {
+            throw new IllegalStateException("Native JPEG encode failed: " + nativeGetError(context.mHandle));
+        }
+        ByteBuffer output = context.mOutput;
+        output.clear();
+        output.limit(size);
+        out.write(output);
+        return true;
+    }
+
+    private static EncoderContext acquireContext() {
+        synchronized (mContextPool) {
+            EncoderContext context = mContextPool.poll();
+            if (context != null) {
+                return context;
+            }
+        }
+        long handle = nativeCreate();
+        if (handle == 0) {
+            throw new IllegalStateException("Cannot create a native JPEG encoder");
+        }
+        return new EncoderContext(handle);
+    }
+
+    private static void releaseContext(EncoderContext context) {
+        synchronized (mContextPool) {
+            if (mContextPool.size() < MAX_POOLED_CONTEXTS) {
+                mContextPool.push(context);
+                return;
+            }
+        }
+        nativeDestroy(context.mHandle);
+    }
+
+    private static boolean loadLibrary() {
+        try {
+            System.loadLibrary(LIBRARY);
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.d(TAG, "The native JPEG encoder is not available: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * A TurboJPEG handle with its scratch planes, and the direct buffer it encodes into, grown
+     * to the worst case size of the frames.
+     */
+    private static class EncoderContext {
+        final long mHandle;
+        ByteBuffer mOutput = null;
+
+        EncoderContext(long handle) {
+            mHandle = handle;
+        }
+
+        ByteBuffer getOutput(int width, int height, Subsampling subsampling) {
+            int size = nativeBufferSize(width, height, subsampling.mNativeValue);
+            if (size < 0) {
+                throw new IllegalArgumentException("Frame too large: " + width + "x" + height);
+            }
+            if (mOutput == null || mOutput.capacity() < size) {
+                mOutput = ByteBuffer.allocateDirect(size);
+            }
+            return mOutput;
+        }
+    }
+
+    private static native long nativeCreate();
+
+    private static native void nativeDestroy(long handle);
+
+    private static native int nativeBufferSize(int width, int height, int subsampling);
+
+    private static native String nativeGetError(long handle);
+
+    private static native int nativeEncodeNV21(long handle, byte[] nv21, int width, int height, int subsampling,
+                                               int quality, ByteBuffer output);
+
+    private static native int nativeEncodePlanes(long handle, ByteBuffer yPlane, int yRowStride, int yPixelStride,
+                                                 ByteBuffer uPlane, int uRowStride, int uPixelStride,
+                                                 ByteBuffer vPlane, int vRowStride, int vPixelStride,
+                                                 int width, int height, int subsampling, int quality,
+                                                 ByteBuffer output);
+}
@@ -0,0 +1,210 @@
+package com.xetiro.android.camstream.encoding;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+/**
+ * Encodes NV21 frames as tile deltas for mostly static scenes.
+ * <p>
+ * The frame is split in square tiles and the luma of each tile is compared to the reference
+ * frame, which is what the server currently displays. Only the tiles that changed are sent, each
+ * one as a small JPEG with its coordinates. A keyframe with the whole frame as a single tile is
+ * sent every {@code keyframeInterval} frames, when the resolution changes or when requested
+ * (e.g. by the server or after a frame was lost on the way).
+ * <p>
+ * Message layout, big-endian:
+ * <pre>
+ * magic 'D' (1) | version (1) | flags (1) | reserved (1)
+ * width (2) | height (2) | tile size (2) | reserved (2) | tile count (4)
+ * tile count x [ x (2) | y (2) | width (2) | height (2) | jpeg length (4) | jpeg bytes ]
+ * </pre>
+ * Tiles carry absolute content, so the server just draws each tile JPEG at its coordinates on
+ * top of the last frame.
+ */
+public class TileDeltaEncoder implements FrameEncoder {
+    public static final String ID = "delta";
+    public static final byte MESSAGE_MAGIC = 'D';
+    public static final byte MESSAGE_VERSION = 1;
+    public static final int FLAG_KEYFRAME = 0x01;
+
+    public static final int DEFAULT_TILE_SIZE = 64;
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 100;
+    public static final int DEFAULT_THRESHOLD = 6;
+
+    // Only one luma sample out of SAMPLE_STEP x SAMPLE_STEP is compared
+    private static final int SAMPLE_STEP = 2;
+    private static final int TILE_COUNT_OFFSET = 12;
+
+    /**
+     * Compresses a tile of a NV21 frame to JPEG.
+     */
+    interface TileCompressor {
+        void compress(byte[] nv21, int frameWidth, int frameHeight, int x, int y, int width, int height,
+                      int quality, FrameBuffer out);
+    }
+
+    private final int mTileSize;
+    private final TileCompressor mCompressor;
+    private volatile int mKeyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+    private volatile int mThreshold = DEFAULT_THRESHOLD;
+
+    // The luma the server has, guarded by this
+    private byte[] mReference = null;
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int mFramesSinceKeyframe = 0;
+    private final Rect mTileRect = new Rect();
+
+    private volatile boolean mKeyframeRequested = true;
+
+    public TileDeltaEncoder() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * @param tileSize the tile side in pixels, a multiple of 16 to match the JPEG blocks
+     */
+    public TileDeltaEncoder(int tileSize) {
+        this(tileSize, null);
+    }
+
+    /**
+     * @param compressor compresses the tiles instead of {@link YuvImage}, e.g. in the unit tests
+     */
+    TileDeltaEncoder(int tileSize, TileCompressor compressor) {
+        if (tileSize <= 0 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException("Tile size must be a multiple of 16: " + tileSize);
+        }
+        mTileSize = tileSize;
+        mCompressor = compressor;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean isStateful() {
+        return true;
+    }
+
+    public void setKeyframeInterval(int keyframeInterval) {
+        mKeyframeInterval = Math.max(1, keyframeInterval);
+    }
+
+    /**
+     * Sets the mean absolute luma difference above which a tile is considered changed.
+     */
+    public void setThreshold(int threshold) {
+        mThreshold = Math.max(0, threshold);
+    }
+
+    /**
+     * The next encoded frame will be a keyframe.
+     */
+    public void requestKeyframe() {
+        mKeyframeRequested = true;
+    }
+
+    /**
+     * Encodes the frame as a delta message against the reference frame, at the end of the given
+     * output buffer.
+     *
+     * @return false if nothing changed, in which case nothing was written and there's nothing
+     * to send.
+     */
+    @Override
+    public synchronized boolean encode(byte[] nv21, int width, int height, int quality, FrameBuffer out) {
+        boolean keyframe = mKeyframeRequested || mReference == null || width != mWidth
+                || height != mHeight || mFramesSinceKeyframe >= mKeyframeInterval;
+        if (keyframe) {
+            mKeyframeRequested = false;
+            if (mReference == null || mReference.length != width * height) {
+                mReference = new byte[width * height];
+            }
+            mWidth = width;
+            mHeight = height;
+            mFramesSinceKeyframe = 0;
+        } else {
+            mFramesSinceKeyframe++;
+        }
+
+        YuvImage yuv = mCompressor == null ? new YuvImage(nv21, ImageFormat.NV21, width, height, null) : null;
+        int start = out.size();
+        writeHeader(out, keyframe, width, height);
+        int tileCount = 0;
+        if (keyframe) {
+            writeTile(yuv, nv21, 0, 0, width, height, quality, out);
+            tileCount = 1;
+        } else {
+            for (int y = 0; y < height; y += mTileSize) {
+                int tileHeight = Math.min(mTileSize, height - y);
+                for (int x = 0; x < width; x += mTileSize) {
+                    int tileWidth = Math.min(mTileSize, width - x);
+                    if (tileChanged(nv21, x, y, tileWidth, tileHeight)) {
+                        writeTile(yuv, nv21, x, y, tileWidth, tileHeight, quality, out);
+                        tileCount++;
+                    }
+                }
+            }
+        }
+
+        if (tileCount == 0) {
+            out.truncate(start);
+            return false;
+        }
+        out.putInt(start + TILE_COUNT_OFFSET, tileCount);
+        return true;
+    }
+
+    private void writeHeader(FrameBuffer out, boolean keyframe, int width, int height) {
+        out.write(MESSAGE_MAGIC);
+        out.write(MESSAGE_VERSION);
+        out.write(keyframe ? FLAG_KEYFRAME : 0);
+        out.write(0);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.writeShort(mTileSize);
+        out.writeShort(0);
+        out.writeInt(0);    // Tile count, patched once the tiles are written
+    }
+
+    private void writeTile(YuvImage yuv, byte[] nv21, int x, int y, int width, int height,
+                           int quality, FrameBuffer out) {
+        out.writeShort(x);
+        out.writeShort(y);
+        out.writeShort(width);
+        out.writeShort(height);
+        int lengthOffset = out.size();
+        out.writeInt(0);    // JPEG length, patched once the JPEG is written
+        if (mCompressor != null) {
+            mCompressor.compress(nv21, mWidth, mHeight, x, y, width, height, quality, out);
+        } else {
+            mTileRect.set(x, y, x + width, y + height);
+            yuv.compressToJpeg(mTileRect, quality, out);
+        }
+        out.putInt(lengthOffset, out.size() - lengthOffset - 4);
+
+        // The server has this tile now
+        for (int row = y; row < y + height; row++) {
+            System.arraycopy(nv21, row * mWidth + x, mReference, row * mWidth + x, width);
+        }
+    }
+
+    private boolean tileChanged(byte[] nv21, int x, int y, int width, int height) {
+        long sad = 0;
+        int samples = 0;
+        for (int row = y; row < y + height; row += SAMPLE_STEP) {
+            int offset = row * mWidth;
+            for (int col = x; col < x + width; col += SAMPLE_STEP) {
+                sad += Math.abs((nv21[offset + col] & 0xff) - (mReference[offset + col] & 0xff));
+                samples++;
+            }
+        }
+        return sad > (long) mThreshold * samples;
+    }
+}
@@ -0,0 +1,69 @@
+package com.xetiro.android.camstream.encoding;
+
+import android.graphics.Bitmap;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+/**
+ * WebP encoder. Smaller than JPEG at the same quality but much more expensive to encode, and
+ * the frame has to go through ARGB first because Android can only encode WebP from a Bitmap.
+ */
+public class WebpFrameEncoder implements FrameEncoder {
+    public static final String ID = "webp";
+
+    // Reused between frames of the same resolution, one per encode worker so the workers
+    // convert and compress in parallel
+    private final ThreadLocal<int[]> mArgb = new ThreadLocal<>();
+    private final ThreadLocal<Bitmap> mBitmap = new ThreadLocal<>();
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public boolean isStateful() {
+        return false;
+    }
+
+    @Override
+    public boolean encode(byte[] nv21, int width, int height, int quality, FrameBuffer out) {
+        Bitmap bitmap = mBitmap.get();
+        int[] argb = mArgb.get();
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            argb = new int[width * height];
+            mBitmap.set(bitmap);
+            mArgb.set(argb);
+        }
+        NV21toARGB(nv21, width, height, argb);
+        bitmap.setPixels(argb, 0, width, 0, 0, width, height);
+        bitmap.compress(Bitmap.CompressFormat.WEBP, quality, out);
+        return true;
+    }
+
+    // BT.601 full range conversion, in fixed point
+    private static void NV21toARGB(byte[] nv21, int width, int height, int[] argb) {
+        int ySize = width * height;
+        for (int row = 0; row < height; row++) {
+            int uvOffset = ySize + (row >> 1) * width;
+            for (int col = 0; col < width; col++) {
+                int y = nv21[row * width + col] & 0xff;
+                int vuIndex = uvOffset + (col & ~1);
+                int v = (nv21[vuIndex] & 0xff) - 128;
+                int u = (nv21[vuIndex + 1] & 0xff) - 128;
+                int r = y + ((91881 * v) >> 16);
+                int g = y - ((22554 * u + 46802 * v) >> 16);
+                int b = y + ((116130 * u) >> 16);
+                argb[row * width + col] = 0xff000000 | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
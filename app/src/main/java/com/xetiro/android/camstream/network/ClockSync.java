@@ -0,0 +1,196 @@
+package com.xetiro.android.camstream.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the server clock from the phone, NTP style, so the frames carry capture times the
+ * server can compare with its own clock, whatever the drift of the phone clock.
+ * <p>
+ * Every exchange gives four times: the ping sent (t0) and the pong received (t3) on the local
+ * clock, the ping received (t1) and the pong sent (t2) on the server clock. The offset between
+ * the clocks is {@code ((t1 - t0) + (t2 - t3)) / 2}, with an error of at most half the round
+ * trip {@code (t3 - t0) - (t2 - t1)}. The exchanges delayed by the network give the worst
+ * estimates, so only the ones with a round trip close to the shortest of the recent window are
+ * kept. Once they span long enough, a least squares fit of the offset over time gives the drift
+ * of the local clock as well.
+ * <p>
+ * The local clock is the one of the camera sensor timestamps, so a sensor timestamp maps
+ * straight to the server time. The server times are in microseconds since the epoch.
+ */
+public class ClockSync {
+    /**
+     * The local clock of the sensor timestamps.
+     */
+    public enum Timebase {
+        /** {@code SystemClock.elapsedRealtimeNanos()}, the one of most cameras */
+        REALTIME,
+        /** {@code System.nanoTime()}, for the cameras with an unknown timestamp source */
+        MONOTONIC
+    }
+
+    public static final int DEFAULT_WINDOW = 16;
+    // The round trips within this ratio of the shortest one, plus the slack, are kept
+    private static final double RTT_OUTLIER_RATIO = 1.5;
+    private static final long RTT_OUTLIER_SLACK_US = 2000;
+    // The drift is only fitted over samples spanning this long, and clamped to this much
+    private static final long MIN_DRIFT_SPAN_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final double MAX_DRIFT = 500e-6;
+
+    // The samples, in a ring, guarded by this
+    private final long[] mLocalNanos;       // The middle of the exchange on the local clock
+    private final long[] mOffsetMicros;     // Server time minus local time
+    private final long[] mRttMicros;
+    private int mCount = 0;
+    private int mNext = 0;
+
+    // The estimate, valid once synchronized
+    private boolean mSynchronized = false;
+    private long mReferenceNanos = 0;
+    private long mReferenceOffsetMicros = 0;
+    private double mDrift = 0;
+    private long mMinRttMicros = 0;
+
+    public ClockSync() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window how many of the last exchanges the estimate is based on
+     */
+    public ClockSync(int window) {
+        mLocalNanos = new long[window];
+        mOffsetMicros = new long[window];
+        mRttMicros = new long[window];
+    }
+
+    /**
+     * Adds an exchange and updates the estimate.
+     *
+     * @param pingSentNanos t0, on the local clock
+     * @param serverReceivedMicros t1, on the server clock
+     * @param serverSentMicros t2, on the server clock
+     * @param pongReceivedNanos t3, on the local clock
+     * @return false if the exchange was discarded as inconsistent.
+     */
+    public synchronized boolean addSample(long pingSentNanos, long serverReceivedMicros, long serverSentMicros,
+                                          long pongReceivedNanos) {
+        long rtt = TimeUnit.NANOSECONDS.toMicros(pongReceivedNanos - pingSentNanos)
+                - (serverSentMicros - serverReceivedMicros);
+        if (rtt < 0 || serverSentMicros < serverReceivedMicros) {
+            return false;
+        }
+        long localMiddle = pingSentNanos + (pongReceivedNanos - pingSentNanos) / 2;
+        long serverMiddle = serverReceivedMicros + (serverSentMicros - serverReceivedMicros) / 2;
+        mLocalNanos[mNext] = localMiddle;
+        mOffsetMicros[mNext] = serverMiddle - TimeUnit.NANOSECONDS.toMicros(localMiddle);
+        mRttMicros[mNext] = rtt;
+        mNext = (mNext + 1) % mLocalNanos.length;
+        mCount = Math.min(mCount + 1, mLocalNanos.length);
+        estimate();
+        return true;
+    }
+
+    /**
+     * Forgets the exchanges, e.g. when streaming to another server.
+     */
+    public synchronized void reset() {
+        mCount = 0;
+        mNext = 0;
+        mSynchronized = false;
+        mDrift = 0;
+    }
+
+    public synchronized boolean isSynchronized() {
+        return mSynchronized;
+    }
+
+    /**
+     * The server time at the given local time, in microseconds since the epoch, or 0 if not
+     * synchronized yet.
+     */
+    public synchronized long toServerTimeMicros(long localNanos) {
+        if (!mSynchronized) {
+            return 0;
+        }
+        long offset = mReferenceOffsetMicros + Math.round(mDrift * TimeUnit.NANOSECONDS.toMicros(localNanos - mReferenceNanos));
+        return TimeUnit.NANOSECONDS.toMicros(localNanos) + offset;
+    }
+
+    /**
+     * The current offset of the server clock from the local clock, in microseconds.
+     */
+    public synchronized long getOffsetMicros(long localNanos) {
+        if (!mSynchronized) {
+            return 0;
+        }
+        return toServerTimeMicros(localNanos) - TimeUnit.NANOSECONDS.toMicros(localNanos);
+    }
+
+    /**
+     * How fast the local clock drifts from the server clock, in parts per million.
+     */
+    public synchronized double getDriftPpm() {
+        return mDrift * 1e6;
+    }
+
+    /**
+     * The bound of the error of the estimate, half the shortest recent round trip.
+     */
+    public synchronized long getUncertaintyMicros() {
+        return mMinRttMicros / 2;
+    }
+
+    private void estimate() {
+        long minRtt = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            minRtt = Math.min(minRtt, mRttMicros[i]);
+        }
+        long maxRtt = (long) (minRtt * RTT_OUTLIER_RATIO) + RTT_OUTLIER_SLACK_US;
+
+        // The offsets are fitted relative to the best exchange, so the doubles keep their precision
+        int best = 0;
+        for (int i = 1; i < mCount; i++) {
+            if (mRttMicros[i] < mRttMicros[best]) {
+                best = i;
+            }
+        }
+        long referenceNanos = mLocalNanos[best];
+        long referenceOffset = mOffsetMicros[best];
+        int kept = 0;
+        long firstNanos = Long.MAX_VALUE;
+        long lastNanos = Long.MIN_VALUE;
+        double sumX = 0;
+        double sumY = 0;
+        double sumXX = 0;
+        double sumXY = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mRttMicros[i] > maxRtt) {
+                continue;
+            }
+            double x = (mLocalNanos[i] - referenceNanos) / 1e3;
+            double y = mOffsetMicros[i] - referenceOffset;
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+            firstNanos = Math.min(firstNanos, mLocalNanos[i]);
+            lastNanos = Math.max(lastNanos, mLocalNanos[i]);
+            kept++;
+        }
+
+        double drift = 0;
+        double variance = kept * sumXX - sumX * sumX;
+        if (kept >= 3 && lastNanos - firstNanos >= MIN_DRIFT_SPAN_NANOS && variance > 0) {
+            drift = (kept * sumXY - sumX * sumY) / variance;
+            drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, drift));
+        }
+        // The fitted line through the mean of the kept exchanges
+        double meanX = sumX / kept;
+        double meanY = sumY / kept;
+        mReferenceNanos = referenceNanos;
+        mReferenceOffsetMicros = referenceOffset + Math.round(meanY - drift * meanX);
+        mDrift = drift;
+        mMinRttMicros = minRtt;
+        mSynchronized = true;
+    }
+}
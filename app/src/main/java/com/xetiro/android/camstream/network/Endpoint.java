@@ -0,0 +1,136 @@
+package com.xetiro.android.camstream.network;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An ingest server the client can stream to, with its health and latency as measured by the
+ * {@link EndpointProber}.
+ */
+public class Endpoint {
+    public static String TAG = "EndpointDebug";
+
+    /**
+     * The latency of an endpoint not probed successfully yet.
+     */
+    public static final long UNKNOWN_RTT = -1;
+
+    // Consecutive failed probes after which an endpoint is unhealthy
+    private static final int MAX_FAILURES = 2;
+    // Weight of the last probe in the smoothed round trip time
+    private static final double RTT_SMOOTHING = 0.25;
+
+    private final String mHost;
+    private final int mPort;
+
+    // Guarded by this
+    private long mRttMicros = UNKNOWN_RTT;
+    private int mFailures = 0;
+    private long mProbeCount = 0;
+    private long mFailureCount = 0;
+
+    public Endpoint(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * Parses a comma or space separated list of {@code host} or {@code host:port} endpoints. The
+     * endpoints with an invalid port are skipped.
+     *
+     * @param defaultPort the port of the endpoints without one
+     */
+    public static List<Endpoint> parseList(String endpoints, int defaultPort) {
+        List<Endpoint> list = new ArrayList<>();
+        for (String endpoint : endpoints.split("[,\\s]+")) {
+            if (endpoint.isEmpty()) {
+                continue;
+            }
+            int colon = endpoint.lastIndexOf(':');
+            if (colon > 0 && endpoint.indexOf(':') == colon) {
+                int port;
+                try {
+                    port = Integer.parseInt(endpoint.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    port = -1;
+                }
+                if (port <= 0 || port > 65535) {
+                    Log.d(TAG, "Skipping the endpoint " + endpoint + ", invalid port");
+                    continue;
+                }
+                list.add(new Endpoint(endpoint.substring(0, colon), port));
+            } else {
+                list.add(new Endpoint(endpoint, defaultPort));
+            }
+        }
+        return list;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    /**
+     * The smoothed round trip time in microseconds, or {@link #UNKNOWN_RTT}.
+     */
+    public synchronized long getRttMicros() {
+        return mRttMicros;
+    }
+
+    /**
+     * An endpoint is healthy until it fails a few probes in a row.
+     */
+    public synchronized boolean isHealthy() {
+        return mFailures < MAX_FAILURES;
+    }
+
+    public synchronized long getProbeCount() {
+        return mProbeCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return mFailureCount;
+    }
+
+    synchronized void onProbeSucceeded(long rttMicros) {
+        mProbeCount++;
+        mFailures = 0;
+        if (mRttMicros == UNKNOWN_RTT) {
+            mRttMicros = rttMicros;
+        } else {
+            mRttMicros = (long) (mRttMicros + RTT_SMOOTHING * (rttMicros - mRttMicros));
+        }
+    }
+
+    synchronized void onProbeFailed() {
+        mProbeCount++;
+        mFailureCount++;
+        mFailures++;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Endpoint)) {
+            return false;
+        }
+        Endpoint other = (Endpoint) o;
+        return mPort == other.mPort && mHost.equals(other.mHost);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mHost.hashCode() + mPort;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mHost + ":" + mPort + (isHealthy() ? "" : " down")
+                + (mRttMicros == UNKNOWN_RTT ? "" : String.format(" %.1fms", mRttMicros / 1000.0));
+    }
+}
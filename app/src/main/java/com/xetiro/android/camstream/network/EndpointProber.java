@@ -0,0 +1,97 @@
+package com.xetiro.android.camstream.network;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes the round trip time of the ingest endpoints, continuously, by timing a TCP connection
+ * to each of them. The handshake takes a single round trip and works with any server listening
+ * on the endpoint port, whatever its transport.
+ */
+public class EndpointProber {
+    public static String TAG = "EndpointProberDebug";
+
+    public static final long DEFAULT_PROBE_INTERVAL_MS = 2000;
+    private static final int PROBE_TIMEOUT_MS = 1000;
+
+    /**
+     * Notified from the probing thread after every round of probes.
+     */
+    public interface Listener {
+        void onEndpointsProbed(List<Endpoint> endpoints);
+    }
+
+    private final List<Endpoint> mEndpoints;
+    private final Listener mListener;
+    private ScheduledExecutorService mScheduler = null;
+
+    public EndpointProber(List<Endpoint> endpoints, Listener listener) {
+        mEndpoints = endpoints;
+        mListener = listener;
+    }
+
+    public synchronized void start(long intervalMs) {
+        if (mScheduler != null) {
+            return;
+        }
+        mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "EndpointProber");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mScheduler.scheduleWithFixedDelay(mProbeRound, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (mScheduler != null) {
+            mScheduler.shutdownNow();
+            mScheduler = null;
+        }
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return mEndpoints;
+    }
+
+    // An exception out of the task would silently cancel the following rounds
+    private final Runnable mProbeRound = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                for (Endpoint endpoint : mEndpoints) {
+                    probe(endpoint);
+                }
+                mListener.onEndpointsProbed(mEndpoints);
+            } catch (RuntimeException e) {
+                Log.d(TAG, "Probe round failed: " + e);
+            }
+        }
+    };
+
+    private static void probe(Endpoint endpoint) {
+        Socket socket = new Socket();
+        try {
+            // Resolves the host first, so the name lookup isn't timed
+            InetSocketAddress address = new InetSocketAddress(endpoint.getHost(), endpoint.getPort());
+            long start = System.nanoTime();
+            socket.connect(address, PROBE_TIMEOUT_MS);
+            endpoint.onProbeSucceeded(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        } catch (IOException | IllegalArgumentException e) {
+            endpoint.onProbeFailed();
+            Log.d(TAG, "Probe of " + endpoint.getHost() + ":" + endpoint.getPort() + " failed: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
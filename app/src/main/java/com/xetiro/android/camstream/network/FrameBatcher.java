@@ -0,0 +1,220 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces several enveloped frames into a single binary message, for high frequency streams
+ * of small frames (e.g. thumbnails) where the per-message overhead costs more than the payload.
+ * <p>
+ * A batch is flushed on whichever comes first: its size reaches the byte threshold, it holds
+ * the maximum number of frames, or its first frame waited for the maximum linger time. So the
+ * latency added to a frame is bounded by the linger time.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ * magic 'B' (1) | version (1) | frame count (2)
+ * frame count x [ frame length (4) | {@link FrameEnvelope} header and payload ]
+ * </pre>
+ * Each frame keeps its own envelope, so the server handles the frames of a batch the same way
+ * as the frames sent alone.
+ */
+public class FrameBatcher {
+    public static final byte MAGIC = 'B';
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 4;
+
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+    public static final int DEFAULT_MAX_FRAMES = 4;
+    public static final long DEFAULT_MAX_LINGER_MS = 250;
+
+    private static final int FRAME_COUNT_OFFSET = 2;
+
+    /**
+     * Receives the full batches. It owns the batch buffer afterwards.
+     */
+    public interface Sink {
+        void onBatch(FrameBuffer batch, int frameCount);
+    }
+
+    private final BufferPool mPool;
+    private final Sink mSink;
+    private ScheduledExecutorService mScheduler = null;
+
+    // Guarded by this
+    private int mMaxBytes = DEFAULT_MAX_BYTES;
+    private int mMaxFrames = DEFAULT_MAX_FRAMES;
+    private long mMaxLingerNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_LINGER_MS);
+    private FrameBuffer mBatch = null;
+    private int mFrameCount = 0;
+    private long mBatchStartNanos = 0;
+    private ScheduledFuture<?> mLingerTask = null;
+
+    public FrameBatcher(BufferPool pool, Sink sink) {
+        mPool = pool;
+        mSink = sink;
+    }
+
+    public synchronized void setMaxBytes(int maxBytes) {
+        mMaxBytes = Math.max(HEADER_SIZE, maxBytes);
+    }
+
+    public synchronized void setMaxFrames(int maxFrames) {
+        mMaxFrames = Math.max(1, maxFrames);
+    }
+
+    public synchronized void setMaxLinger(long maxLingerMs) {
+        mMaxLingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxLingerMs));
+    }
+
+    /**
+     * Appends an enveloped frame to the current batch, and flushes the batch if it is full. The
+     * frame buffer is released.
+     */
+    public synchronized void add(FrameBuffer frame) {
+        int entrySize = 4 + frame.size();
+        if (mBatch != null && mBatch.size() + entrySize > mMaxBytes) {
+            flush();    // Keep the batch below the byte threshold
+        }
+        if (mBatch == null) {
+            startBatch();
+        }
+        mBatch.writeInt(frame.size());
+        mBatch.write(frame.getBuffer(), 0, frame.size());
+        frame.release();
+        mFrameCount++;
+        if (mFrameCount >= mMaxFrames || mBatch.size() >= mMaxBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Hands the current batch to the sink right away, if there's any.
+     */
+    public synchronized void flush() {
+        if (mBatch == null) {
+            return;
+        }
+        if (mLingerTask != null) {
+            mLingerTask.cancel(false);
+            mLingerTask = null;
+        }
+        FrameBuffer batch = mBatch;
+        int frameCount = mFrameCount;
+        batch.putShort(FRAME_COUNT_OFFSET, frameCount);
+        mBatch = null;
+        mFrameCount = 0;
+        mSink.onBatch(batch, frameCount);
+    }
+
+    /**
+     * Drops the frames of the current batch, e.g. when the connection was lost.
+     */
+    public synchronized void clear() {
+        if (mLingerTask != null) {
+            mLingerTask.cancel(false);
+            mLingerTask = null;
+        }
+        if (mBatch != null) {
+            mBatch.release();
+            mBatch = null;
+            mFrameCount = 0;
+        }
+    }
+
+    /**
+     * Drops the current batch and stops the linger timer thread.
+     */
+    public synchronized void shutdown() {
+        clear();
+        if (mScheduler != null) {
+            mScheduler.shutdownNow();
+            mScheduler = null;
+        }
+    }
+
+    /**
+     * The number of frames of a batch.
+     */
+    public static int getFrameCount(FrameBuffer batch) {
+        byte[] buffer = batch.getBuffer();
+        return ((buffer[FRAME_COUNT_OFFSET] & 0xff) << 8) | (buffer[FRAME_COUNT_OFFSET + 1] & 0xff);
+    }
+
+    /**
+     * Sets the send time of every frame of a batch.
+     */
+    static void putSendTime(FrameBuffer batch, long sendTimeMs) {
+        int offset = HEADER_SIZE;
+        int frameCount = getFrameCount(batch);
+        for (int i = 0; i < frameCount; i++) {
+            batch.putLong(offset + 4 + FrameEnvelope.SEND_TIME_OFFSET, sendTimeMs);
+            offset += 4 + frameLengthAt(batch, offset);
+        }
+    }
+
+    /**
+     * Maps the capture time of every frame of a batch to the server clock.
+     */
+    static void putServerCaptureTimes(FrameBuffer batch, ClockSync clock) {
+        int offset = HEADER_SIZE;
+        int frameCount = getFrameCount(batch);
+        for (int i = 0; i < frameCount; i++) {
+            FrameEnvelope.putServerCaptureTime(batch, offset + 4, clock);
+            offset += 4 + frameLengthAt(batch, offset);
+        }
+    }
+
+    /**
+     * Adds the given envelope flags to every frame of a batch.
+     */
+    static void addFlags(FrameBuffer batch, int flags) {
+        byte[] buffer = batch.getBuffer();
+        int offset = HEADER_SIZE;
+        int frameCount = getFrameCount(batch);
+        for (int i = 0; i < frameCount; i++) {
+            buffer[offset + 4 + FrameEnvelope.FLAGS_OFFSET] |= flags;
+            offset += 4 + frameLengthAt(batch, offset);
+        }
+    }
+
+    private static int frameLengthAt(FrameBuffer batch, int offset) {
+        byte[] buffer = batch.getBuffer();
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private void startBatch() {
+        mBatch = mPool.acquireFrameBuffer();
+        mBatch.write(MAGIC);
+        mBatch.write(VERSION);
+        mBatch.writeShort(0);   // Frame count, patched on flush
+        mFrameCount = 0;
+        mBatchStartNanos = System.nanoTime();
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "FrameBatcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        mLingerTask = mScheduler.schedule(mLingerFlush, mMaxLingerNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private final Runnable mLingerFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (FrameBatcher.this) {
+                // A late timer must not flush the next batch before its own linger time
+                if (mBatch != null && System.nanoTime() - mBatchStartNanos >= mMaxLingerNanos) {
+                    flush();
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,108 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.streaming.Frame;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+/**
+ * The binary header sent in front of every frame payload, in the same binary attachment.
+ * <p>
+ * It lets the server know the frame order, the capture and send times and how the frame was
+ * encoded without decoding the payload, so it can measure the latency from the sensor and spot
+ * the dropped frames from the sequence gaps.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ *  0 magic 'F' (1) | version (1) | header length (1) | encoder type (1)
+ *  4 quality (1) | flags (1) | rotation degrees (2)
+ *  8 sequence (4)
+ * 12 width (2) | height (2)
+ * 16 sensor timestamp in ns (8)
+ * 24 send time in ms since epoch (8)
+ * 32 encode duration in us (4)
+ * 36 simulcast layer (1, 0 for a single stream) | reserved (3)
+ * 40 capture time on the server clock in us since epoch (8), 0 until the clocks are synchronized
+ * 48 payload
+ * </pre>
+ * The header length lets newer versions append fields that older servers skip. The encoder type
+ * is the one of
+ * {@link com.xetiro.android.camstream.encoding.FrameEncoders#typeOf(String)}. The flags are a
+ * combination of the {@code FLAG_} constants. The capture time on the server clock is the
+ * sensor timestamp mapped by the {@link ClockSync} when the frame is sent.
+ */
+public class FrameEnvelope {
+    public static final byte MAGIC = 'F';
+    public static final byte VERSION = 3;
+    public static final int HEADER_SIZE = 48;
+
+    /** The frame was stored in the spool while it couldn't be sent, and is sent late */
+    public static final int FLAG_SPOOLED = 0x01;
+
+    static final int FLAGS_OFFSET = 5;
+    static final int TIMESTAMP_OFFSET = 16;
+    static final int SEND_TIME_OFFSET = 24;
+    static final int LAYER_OFFSET = 36;
+    static final int SERVER_CAPTURE_TIME_OFFSET = 40;
+
+    private FrameEnvelope() {
+        // Static helpers only
+    }
+
+    /**
+     * Reserves room for the header at the start of an empty buffer, so the encoders write the
+     * payload right after it and the header never requires to copy the payload.
+     */
+    public static void reserveHeader(FrameBuffer out) {
+        if (out.size() != 0) {
+            throw new IllegalStateException("The header must be reserved in an empty buffer");
+        }
+        out.skip(HEADER_SIZE);
+    }
+
+    /**
+     * Writes the header of the frame in the room reserved at the start of its encoded buffer.
+     * The send time is written later, just before the frame is handed to the socket.
+     *
+     * @param encoderType the type of the encoder of the frame in the envelope
+     */
+    public static void writeHeader(Frame frame, int encoderType, FrameBuffer out) {
+        byte[] buffer = out.getBuffer();
+        buffer[0] = MAGIC;
+        buffer[1] = VERSION;
+        buffer[2] = HEADER_SIZE;
+        buffer[3] = (byte) encoderType;
+        buffer[4] = (byte) frame.quality;
+        buffer[FLAGS_OFFSET] = 0;
+        out.putShort(6, frame.rotationDegrees);
+        out.putInt(8, (int) frame.sequence);
+        out.putShort(12, frame.width);
+        out.putShort(14, frame.height);
+        out.putLong(TIMESTAMP_OFFSET, frame.timestampNanos);
+        out.putLong(SEND_TIME_OFFSET, 0);
+        out.putInt(32, (int) Math.min(Integer.MAX_VALUE, frame.encodeNanos / 1000));
+        out.putInt(LAYER_OFFSET, frame.layer << 24);
+        out.putLong(SERVER_CAPTURE_TIME_OFFSET, 0);
+    }
+
+    /**
+     * Sets the send time of an enveloped frame.
+     */
+    static void putSendTime(FrameBuffer out, long sendTimeMs) {
+        out.putLong(SEND_TIME_OFFSET, sendTimeMs);
+    }
+
+    /**
+     * Maps the sensor timestamp of the enveloped frame at the given offset to the server clock.
+     * Left at 0 while the clocks are not synchronized.
+     */
+    static void putServerCaptureTime(FrameBuffer out, int offset, ClockSync clock) {
+        long sensorNanos = out.getLong(offset + TIMESTAMP_OFFSET);
+        out.putLong(offset + SERVER_CAPTURE_TIME_OFFSET, clock.toServerTimeMicros(sensorNanos));
+    }
+
+    /**
+     * Adds the given flags to the header of an enveloped frame.
+     */
+    static void addFlags(FrameBuffer out, int flags) {
+        out.getBuffer()[FLAGS_OFFSET] |= flags;
+    }
+}
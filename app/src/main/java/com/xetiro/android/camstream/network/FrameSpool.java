@@ -0,0 +1,328 @@
+package com.xetiro.android.camstream.network;
+
+import android.util.Log;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+
+/**
+ * A store-and-forward spool keeping the encoded frames that couldn't be sent, so they can be
+ * sent once the connection is back.
+ * <p>
+ * The spool is a size-capped ring of records in a memory-mapped file. When it is full the oldest
+ * records are overwritten. Each record carries a sequence number and a CRC, so after the process
+ * is killed the spool is recovered by scanning the records from the persisted head until the
+ * first one that is torn, stale or out of sequence. The index of the records is kept in memory
+ * and rebuilt by that scan.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ * header: magic (4) | version (4) | capacity (4) | head offset (4) | head sequence (8) | reserved (8)
+ * record: magic (4) | sequence (8) | body length (4) | body CRC32 (4) | event length (1) | event | frame
+ * </pre>
+ * A wrap marker, or the end of the ring being too close for a record header, sends the reader
+ * back to the start of the ring. Writes go through the page cache, so the spool survives the
+ * process being killed but not necessarily a power loss.
+ */
+public class FrameSpool implements Closeable {
+    public static String TAG = "FrameSpoolDebug";
+
+    private static final int FILE_MAGIC = 0x53504f4c;    // "SPOL"
+    private static final int FILE_VERSION = 1;
+    private static final int RECORD_MAGIC = 0x46524d31;  // "FRM1"
+    private static final int WRAP_MAGIC = 0x57524150;    // "WRAP"
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_HEADER_SIZE = 20;
+    private static final int HEAD_OFFSET_POSITION = 12;
+    private static final int HEAD_SEQUENCE_POSITION = 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Entry {
+        final int offset;
+        final int size;
+
+        Entry(int offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The oldest frame as copied by {@link #peek(FrameBuffer)}.
+     */
+    public static class Head {
+        public final String event;
+        // Given back to remove(long), so only this frame is removed
+        public final long sequence;
+
+        Head(String event, long sequence) {
+            this.event = event;
+            this.sequence = sequence;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMap;
+    private final int mCapacity;
+    private final CRC32 mCrc = new CRC32();
+
+    // The records from the oldest to the newest, guarded by this
+    private final ArrayDeque<Entry> mIndex = new ArrayDeque<>();
+    private long mHeadSequence = 0;
+    private int mTail = 0;
+    private long mBytes = 0;
+    private long mOverwrittenCount = 0;
+    private byte[] mScratch = new byte[0];
+
+    /**
+     * Opens the spool file, or creates it with the given capacity. An existing spool with a
+     * different capacity is discarded.
+     */
+    public FrameSpool(File file, int capacity) throws IOException {
+        mCapacity = capacity;
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(HEADER_SIZE + capacity);
+        mMap = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        if (mMap.getInt(0) == FILE_MAGIC && mMap.getInt(4) == FILE_VERSION && mMap.getInt(8) == capacity) {
+            recover();
+        } else {
+            mMap.putInt(0, FILE_MAGIC);
+            mMap.putInt(4, FILE_VERSION);
+            mMap.putInt(8, capacity);
+            writeHead(0, 0);
+        }
+        Log.d(TAG, "Spool opened with " + mIndex.size() + " frames (" + mBytes + " bytes)");
+    }
+
+    /**
+     * Appends a copy of the frame, overwriting the oldest frames if there is not enough room.
+     * The caller still owns the frame buffer.
+     *
+     * @return false if the frame is too big for the spool.
+     */
+    public synchronized boolean append(String event, FrameBuffer frame) {
+        byte[] eventBytes = event.getBytes(UTF_8);
+        int bodyLength = 1 + eventBytes.length + frame.size();
+        int size = RECORD_HEADER_SIZE + bodyLength;
+        if (eventBytes.length > 255 || size > mCapacity / 2) {
+            return false;
+        }
+        int offset;
+        while ((offset = findRoom(size)) < 0) {
+            dropOldest();
+            mOverwrittenCount++;
+        }
+        if (offset != mTail && mTail + 4 <= mCapacity) {
+            mMap.putInt(HEADER_SIZE + mTail, WRAP_MAGIC);
+        }
+
+        mCrc.reset();
+        mCrc.update(eventBytes.length);
+        mCrc.update(eventBytes, 0, eventBytes.length);
+        mCrc.update(frame.getBuffer(), 0, frame.size());
+        long sequence = mHeadSequence + mIndex.size();
+        int position = HEADER_SIZE + offset;
+        // The body first, so a torn record never has a valid header with a wrong body
+        mMap.put(position + RECORD_HEADER_SIZE, (byte) eventBytes.length);
+        putBytes(position + RECORD_HEADER_SIZE + 1, eventBytes, eventBytes.length);
+        putBytes(position + RECORD_HEADER_SIZE + 1 + eventBytes.length, frame.getBuffer(), frame.size());
+        mMap.putLong(position + 4, sequence);
+        mMap.putInt(position + 12, bodyLength);
+        mMap.putInt(position + 16, (int) mCrc.getValue());
+        mMap.putInt(position, RECORD_MAGIC);
+
+        if (mIndex.isEmpty()) {
+            writeHead(offset, mHeadSequence);
+        }
+        mIndex.addLast(new Entry(offset, size));
+        mTail = offset + size;
+        mBytes += size;
+        return true;
+    }
+
+    /**
+     * Copies the oldest frame into the given buffer, without removing it.
+     *
+     * @return the event and the sequence of the frame, or null if the spool is empty.
+     */
+    public synchronized Head peek(FrameBuffer out) {
+        Entry entry = mIndex.peekFirst();
+        if (entry == null) {
+            return null;
+        }
+        int position = HEADER_SIZE + entry.offset + RECORD_HEADER_SIZE;
+        int eventLength = mMap.get(position) & 0xff;
+        byte[] eventBytes = new byte[eventLength];
+        getBytes(position + 1, eventBytes, eventLength);
+        int frameLength = entry.size - RECORD_HEADER_SIZE - 1 - eventLength;
+        ensureScratch(frameLength);
+        getBytes(position + 1 + eventLength, mScratch, frameLength);
+        out.write(mScratch, 0, frameLength);
+        return new Head(new String(eventBytes, UTF_8), mHeadSequence);
+    }
+
+    /**
+     * Removes the oldest frame once it was handed over for sending, unless it is not the peeked
+     * one anymore: a full spool may have overwritten it meanwhile, and the new oldest frame was
+     * never sent.
+     *
+     * @return false if the frame with the given sequence was not the oldest anymore.
+     */
+    public synchronized boolean remove(long sequence) {
+        if (mIndex.isEmpty() || mHeadSequence != sequence) {
+            return false;
+        }
+        dropOldest();
+        return true;
+    }
+
+    public synchronized int getFrameCount() {
+        return mIndex.size();
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * The number of frames overwritten because the spool was full.
+     */
+    public synchronized long getOverwrittenCount() {
+        return mOverwrittenCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mMap.force();
+        mFile.close();
+    }
+
+    /**
+     * The offset where a record of the given size can be written without overwriting a live
+     * record, or -1 if the oldest records must be dropped first.
+     */
+    private int findRoom(int size) {
+        if (mIndex.isEmpty()) {
+            return 0;
+        }
+        int head = mIndex.peekFirst().offset;
+        if (head < mTail) {
+            // The live records are [head, tail), there's room after them or at the start
+            if (mTail + size <= mCapacity) {
+                return mTail;
+            }
+            return size <= head ? 0 : -1;
+        }
+        // The live records wrapped around, as [head, capacity) and [0, tail)
+        return mTail + size <= head ? mTail : -1;
+    }
+
+    private void dropOldest() {
+        Entry entry = mIndex.pollFirst();
+        mBytes -= entry.size;
+        mHeadSequence++;
+        Entry head = mIndex.peekFirst();
+        if (head != null) {
+            writeHead(head.offset, mHeadSequence);
+        } else {
+            mTail = 0;
+            writeHead(0, mHeadSequence);
+        }
+    }
+
+    private void writeHead(int offset, long sequence) {
+        mMap.putInt(HEAD_OFFSET_POSITION, offset);
+        mMap.putLong(HEAD_SEQUENCE_POSITION, sequence);
+    }
+
+    /**
+     * Rebuilds the index by scanning the records from the head.
+     */
+    private void recover() {
+        int offset = mMap.getInt(HEAD_OFFSET_POSITION);
+        mHeadSequence = mMap.getLong(HEAD_SEQUENCE_POSITION);
+        if (offset < 0 || offset >= mCapacity) {
+            offset = 0;
+        }
+        mTail = offset;
+        long sequence = mHeadSequence;
+        long scanned = 0;
+        boolean wrapped = false;
+        while (scanned < mCapacity) {
+            if (offset + RECORD_HEADER_SIZE > mCapacity || mMap.getInt(HEADER_SIZE + offset) == WRAP_MAGIC) {
+                if (wrapped) {
+                    break;
+                }
+                wrapped = true;
+                scanned += mCapacity - offset;
+                offset = 0;
+                continue;
+            }
+            int size = validRecordSize(offset, sequence);
+            if (size < 0) {
+                break;
+            }
+            mIndex.addLast(new Entry(offset, size));
+            mBytes += size;
+            offset += size;
+            scanned += size;
+            sequence++;
+            mTail = offset;
+        }
+        if (mIndex.isEmpty()) {
+            mTail = 0;
+            writeHead(0, mHeadSequence);
+        }
+    }
+
+    /**
+     * The size of the record at the given offset if it is complete and has the expected
+     * sequence number, -1 otherwise.
+     */
+    private int validRecordSize(int offset, long sequence) {
+        int position = HEADER_SIZE + offset;
+        if (mMap.getInt(position) != RECORD_MAGIC || mMap.getLong(position + 4) != sequence) {
+            return -1;
+        }
+        int bodyLength = mMap.getInt(position + 12);
+        if (bodyLength < 1 || offset + RECORD_HEADER_SIZE + bodyLength > mCapacity) {
+            return -1;
+        }
+        ensureScratch(bodyLength);
+        getBytes(position + RECORD_HEADER_SIZE, mScratch, bodyLength);
+        mCrc.reset();
+        mCrc.update(mScratch, 0, bodyLength);
+        if ((int) mCrc.getValue() != mMap.getInt(position + 16)) {
+            return -1;
+        }
+        return RECORD_HEADER_SIZE + bodyLength;
+    }
+
+    private void putBytes(int position, byte[] bytes, int length) {
+        ByteBuffer buffer = mMap.duplicate();
+        buffer.position(position);
+        buffer.put(bytes, 0, length);
+    }
+
+    private void getBytes(int position, byte[] bytes, int length) {
+        ByteBuffer buffer = mMap.duplicate();
+        buffer.position(position);
+        buffer.get(bytes, 0, length);
+    }
+
+    private void ensureScratch(int length) {
+        if (mScratch.length < length) {
+            mScratch = new byte[length];
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.xetiro.android.camstream.network;
+
+import java.util.Random;
+
+/**
+ * How a {@link Transport} retries to connect: an exponential backoff doubling the delay after
+ * every failed attempt, up to a maximum delay, with a random jitter so a server restart isn't
+ * followed by all its clients reconnecting at once.
+ * <p>
+ * The doubling is the one of the Socket.IO reconnection manager, so both transports behave the
+ * same way with the same policy.
+ */
+public class ReconnectPolicy {
+    /**
+     * Retries forever.
+     */
+    public static final int UNLIMITED_ATTEMPTS = -1;
+
+    /**
+     * Starts retrying quickly, so a short network loss is recovered within a second, and then
+     * retries every few seconds forever.
+     */
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(250, 8000, 0.5, UNLIMITED_ATTEMPTS);
+
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final double mJitter;
+    private final int mMaxAttempts;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param jitter the fraction of each delay which is random, from 0 (none) to 1
+     * @param maxAttempts the attempts before giving up, or {@link #UNLIMITED_ATTEMPTS}
+     */
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, double jitter, int maxAttempts) {
+        mInitialDelayMs = Math.max(1, initialDelayMs);
+        mMaxDelayMs = Math.max(mInitialDelayMs, maxDelayMs);
+        mJitter = Math.min(1, Math.max(0, jitter));
+        mMaxAttempts = maxAttempts;
+    }
+
+    public long getInitialDelayMs() {
+        return mInitialDelayMs;
+    }
+
+    public long getMaxDelayMs() {
+        return mMaxDelayMs;
+    }
+
+    public double getJitter() {
+        return mJitter;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public boolean isUnlimited() {
+        return mMaxAttempts < 0;
+    }
+
+    /**
+     * True if the transport may try again after the given number of failed attempts.
+     */
+    public boolean canRetry(int failedAttempts) {
+        return isUnlimited() || failedAttempts < mMaxAttempts;
+    }
+
+    /**
+     * The delay before the next attempt, after the given number of failed attempts.
+     */
+    public long getDelayMs(int failedAttempts) {
+        long delay = mMaxDelayMs;
+        if (failedAttempts < 31) {
+            delay = Math.min(mMaxDelayMs, mInitialDelayMs << failedAttempts);
+        }
+        // Randomly shortens the delay by up to the jitter fraction
+        double random;
+        synchronized (mRandom) {
+            random = mRandom.nextDouble();
+        }
+        return Math.max(1, (long) (delay * (1 - mJitter * random)));
+    }
+}
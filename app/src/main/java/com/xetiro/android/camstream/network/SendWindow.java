@@ -0,0 +1,311 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Bounds the number of frames in flight between the client and the server.
+ * <p>
+ * A frame is in flight from the moment it is handed to the socket until the server acknowledges
+ * it. When the window is full the new frames wait in a small pending queue, and when that queue
+ * is full the {@link DropPolicy} decides which frame is thrown away. This keeps the latency
+ * bounded on slow uplinks, instead of piling frames up inside the socket buffers.
+ * <p>
+ * Servers that don't acknowledge frames are handled by the ack timeout: an in-flight frame that
+ * isn't acknowledged in time frees its slot.
+ */
+public class SendWindow {
+    private static final int DEFAULT_MAX_IN_FLIGHT = 2;
+    private static final int DEFAULT_MAX_QUEUED = 1;
+    private static final long DEFAULT_MAX_FRAME_AGE_MS = 1000;
+    private static final long DEFAULT_ACK_TIMEOUT_MS = 3000;
+
+    public enum DropPolicy {
+        /** Drop the oldest pending frame to make room for the new one */
+        DROP_OLDEST,
+        /** Keep the pending frames and drop the new one */
+        DROP_NEWEST,
+        /** Latest frame wins: the new frame replaces all the pending ones */
+        REPLACE_PENDING
+    }
+
+    /**
+     * Sends a frame to the server as the given event. The implementation must call
+     * {@link #onAcked(long)} with the given id once the server acknowledges the frame, and it
+     * owns the frame afterwards.
+     */
+    public interface Sender {
+        void send(long id, String event, FrameBuffer frame);
+    }
+
+    /**
+     * Observes the link through the frames going through the window. Called while holding the
+     * window lock, so implementations must be quick and must not call back into the window.
+     */
+    public interface Listener {
+        /**
+         * A frame of the given size was acknowledged by the server after the given round trip.
+         */
+        void onFrameAcked(int size, long roundTripNanos, int inFlight, int queued);
+
+        /**
+         * A frame was dropped or expired before being sent, or its ack never arrived.
+         */
+        void onFrameLost();
+    }
+
+    /**
+     * Takes the frames the window couldn't send, i.e. dropped, expired or still pending when
+     * cleared, instead of throwing them away. It owns the frame afterwards.
+     */
+    public interface Overflow {
+        void onOverflow(String event, FrameBuffer frame);
+    }
+
+    private static class Entry {
+        long id;
+        long time;  // When the frame was queued or sent
+        String event;
+        FrameBuffer frame;
+        int size;
+
+        Entry(long id, long time, String event, FrameBuffer frame) {
+            this.id = id;
+            this.time = time;
+            this.event = event;
+            this.frame = frame;
+            this.size = frame.size();
+        }
+    }
+
+    private final Sender mSender;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private Overflow mOverflow = null;
+    private final ArrayDeque<Entry> mPending = new ArrayDeque<>();
+    private final ArrayDeque<Entry> mInFlight = new ArrayDeque<>();
+
+    private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int mMaxQueued = DEFAULT_MAX_QUEUED;
+    private DropPolicy mDropPolicy = DropPolicy.REPLACE_PENDING;
+    private long mMaxFrameAgeNanos = DEFAULT_MAX_FRAME_AGE_MS * 1000000L;
+    private long mAckTimeoutNanos = DEFAULT_ACK_TIMEOUT_MS * 1000000L;
+
+    private long mNextId = 0;
+
+    // Counters
+    private long mSentCount = 0;
+    private long mAckedCount = 0;
+    private long mDroppedCount = 0;
+    private long mExpiredCount = 0;
+    private long mAckTimeoutCount = 0;
+
+    public SendWindow(Sender sender) {
+        mSender = sender;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Sets who takes the frames the window couldn't send, or null to release them.
+     */
+    public synchronized void setOverflow(Overflow overflow) {
+        mOverflow = overflow;
+    }
+
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        mMaxInFlight = Math.max(1, maxInFlight);
+        pump(System.nanoTime());
+    }
+
+    public synchronized void setMaxQueued(int maxQueued) {
+        mMaxQueued = Math.max(1, maxQueued);
+        while (mPending.size() > mMaxQueued) {
+            drop(mPending.pollFirst());
+        }
+    }
+
+    public synchronized void setDropPolicy(DropPolicy dropPolicy) {
+        mDropPolicy = dropPolicy;
+    }
+
+    /**
+     * Pending frames older than this are expired instead of being sent.
+     */
+    public synchronized void setMaxFrameAge(long maxFrameAgeMs) {
+        mMaxFrameAgeNanos = maxFrameAgeMs * 1000000L;
+    }
+
+    /**
+     * In-flight frames not acknowledged after this time free their slot in the window.
+     */
+    public synchronized void setAckTimeout(long ackTimeoutMs) {
+        mAckTimeoutNanos = ackTimeoutMs * 1000000L;
+    }
+
+    /**
+     * Sends the frame right away if the window has room for it, otherwise queues it according
+     * to the drop policy. The window owns the frame afterwards.
+     */
+    public synchronized void offer(String event, FrameBuffer frame) {
+        long now = System.nanoTime();
+        Entry entry = new Entry(mNextId++, now, event, frame);
+        expireInFlight(now);
+        if (mPending.isEmpty() && mInFlight.size() < mMaxInFlight) {
+            send(entry, now);
+            return;
+        }
+
+        switch (mDropPolicy) {
+            case DROP_OLDEST:
+                if (mPending.size() >= mMaxQueued) {
+                    drop(mPending.pollFirst());
+                }
+                mPending.addLast(entry);
+                break;
+            case DROP_NEWEST:
+                if (mPending.size() >= mMaxQueued) {
+                    drop(entry);
+                } else {
+                    mPending.addLast(entry);
+                }
+                break;
+            case REPLACE_PENDING:
+                while (!mPending.isEmpty()) {
+                    drop(mPending.pollFirst());
+                }
+                mPending.addLast(entry);
+                break;
+        }
+        pump(now);
+    }
+
+    /**
+     * Called by the sender when the server acknowledged the frame with the given id.
+     */
+    public synchronized void onAcked(long id) {
+        Iterator<Entry> iterator = mInFlight.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.id == id) {
+                iterator.remove();
+                mAckedCount++;
+                long roundTrip = System.nanoTime() - entry.time;
+                for (Listener listener : mListeners) {
+                    listener.onFrameAcked(entry.size, roundTrip, mInFlight.size(), mPending.size());
+                }
+                break;
+            }
+        }
+        pump(System.nanoTime());
+    }
+
+    /**
+     * Drops all the pending frames and forgets the in-flight ones, e.g. when the connection was
+     * lost and the acks will never arrive.
+     */
+    public synchronized void clear() {
+        while (!mPending.isEmpty()) {
+            drop(mPending.pollFirst());
+        }
+        mInFlight.clear();
+    }
+
+    /**
+     * True if a frame offered now would be sent right away, without waiting or replacing any
+     * pending frame.
+     */
+    public synchronized boolean isIdle() {
+        expireInFlight(System.nanoTime());
+        return mPending.isEmpty() && mInFlight.size() < mMaxInFlight;
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    public synchronized int getQueuedCount() {
+        return mPending.size();
+    }
+
+    public synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    public synchronized long getAckedCount() {
+        return mAckedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    public synchronized long getAckTimeoutCount() {
+        return mAckTimeoutCount;
+    }
+
+    private void pump(long now) {
+        expireInFlight(now);
+        while (!mPending.isEmpty() && mInFlight.size() < mMaxInFlight) {
+            Entry entry = mPending.pollFirst();
+            if (now - entry.time > mMaxFrameAgeNanos) {
+                overflow(entry);
+                mExpiredCount++;
+                notifyLost();
+            } else {
+                send(entry, now);
+            }
+        }
+    }
+
+    private void send(Entry entry, long now) {
+        FrameBuffer frame = entry.frame;
+        entry.frame = null;  // The sender owns it now
+        entry.time = now;
+        mInFlight.addLast(entry);
+        mSentCount++;
+        mSender.send(entry.id, entry.event, frame);
+    }
+
+    private void expireInFlight(long now) {
+        while (!mInFlight.isEmpty() && now - mInFlight.peekFirst().time > mAckTimeoutNanos) {
+            mInFlight.pollFirst();
+            mAckTimeoutCount++;
+            notifyLost();
+        }
+    }
+
+    private void drop(Entry entry) {
+        overflow(entry);
+        mDroppedCount++;
+        notifyLost();
+    }
+
+    private void overflow(Entry entry) {
+        FrameBuffer frame = entry.frame;
+        entry.frame = null;
+        if (mOverflow != null) {
+            mOverflow.onOverflow(entry.event, frame);
+        } else {
+            frame.release();
+        }
+    }
+
+    private void notifyLost() {
+        for (Listener listener : mListeners) {
+            listener.onFrameLost();
+        }
+    }
+}
@@ -1,16 +1,33 @@
 package com.xetiro.android.camstream.network;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.net.URISyntaxException;
+import com.xetiro.android.camstream.encoding.FrameEncoders;
+import com.xetiro.android.camstream.encoding.JpegFrameEncoder;
+import com.xetiro.android.camstream.encoding.TileDeltaEncoder;
+import com.xetiro.android.camstream.streaming.Frame;
+import com.xetiro.android.camstream.streaming.SimulcastLayer;
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
-import io.socket.client.IO;
-import io.socket.client.Socket;
-import io.socket.emitter.Emitter;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Implementation of a client based on Socket.IO websockets. This is a singleton class to keep
- * the state alive through different Activities of the Application.
+ * Implementation of a client based on Socket.IO websockets by default, or on a lighter
+ * {@link TcpTransport}. This is a singleton class to keep the state alive through different
+ * Activities of the Application.
  * <p>
  * Created by xetiro (aka Ruben Geraldes) on 2020/08/29.
  */
@@ -18,21 +35,124 @@ public class ServerClient {
     public static String TAG = "ServerClientDebug";
 
     private static String EVENT_AUTHENTICATION = "onAuthentication";
+    private static String EVENT_RECEIVE_IMAGE = "receiveImage";
+    private static String EVENT_RECEIVE_DELTA = "receiveDelta";
+    private static String EVENT_RECEIVE_BATCH = "receiveBatch";
+    private static String EVENT_REQUEST_KEYFRAME = "requestKeyframe";
+    private static String EVENT_CONFIGURE_STREAM = "configureStream";
+    private static String EVENT_SET_LAYER = "setLayer";
+    private static String EVENT_CLOCK_PING = "clockPing";
+    private static String EVENT_CLOCK_PONG = "clockPong";
+    private static String EVENT_AUTHENTICATE = "authenticate";
+    private static String EVENT_RESUME = "resume";
+
+    // Switching to a faster endpoint needs this much less round trip time, and this ratio of it
+    private static long SWITCH_MIN_GAIN_US = 20000;
+    private static double SWITCH_MAX_RATIO = 0.67;
+    // The previous endpoint stays connected this long after a switch, to get the pending acks
+    private static long SWITCH_DRAIN_MS = 2000;
+    // A few quick clock pings after the authentication, then one every interval
+    private static int CLOCK_SYNC_BURST = 5;
+    private static long CLOCK_SYNC_BURST_INTERVAL_MS = 200;
+    private static long CLOCK_SYNC_INTERVAL_MS = 10000;
+
+    private volatile Transport mTransport = null;
+    private String mTransportId = SocketIoTransport.ID;
 
-    private Socket mSocket = null;
-    private String mServerIp = "localhost";
-    private int mServerPort = 8080;
+    // The ingest endpoints and the one streamed to, guarded by this
+    private List<Endpoint> mEndpoints = Collections.singletonList(new Endpoint("localhost", 8080));
+    private volatile Endpoint mEndpoint = mEndpoints.get(0);
+    private EndpointProber mProber = null;
+    // Connects and authenticates to a better endpoint, before the stream is switched to it
+    private Transport mStandbyTransport = null;
+    private Endpoint mStandbyEndpoint = null;
+    private boolean mConnectRequested = false;
 
     private String mUsername = null;
     private String mPassword = null;
+    private volatile boolean mAuthenticated = false;
+    // Issued by the server on authentication, resumes the session without the credentials
+    private volatile String mSessionToken = null;
+    private ReconnectPolicy mReconnectPolicy = ReconnectPolicy.DEFAULT;
+    // Measures how long it takes to be streaming again once the network is back
+    private volatile long mRetryStartNanos = 0;
+
+    // The encoder of the streamed frames, advertised to the server after the authentication
+    private volatile String mEncoderId = JpegFrameEncoder.ID;
+    // The simulcast layers, advertised along with the encoder, none for a single stream
+    private volatile List<SimulcastLayer> mLayers = Collections.emptyList();
 
     // A single callback to the client aimed to be registered by the current Activity
     private ServerResultCallback mSingleCallback = null;
+    private StreamControlCallback mStreamControlCallback = null;
+
+    // Bounds the frames in flight using the server acks
+    private final SendWindow mSendWindow;
+    private final StreamMetrics mMetrics = new StreamMetrics();
+
+    // Coalesces the frames into batches when enabled, for high frequency thumbnail streams
+    private final FrameBatcher mFrameBatcher;
+    private volatile boolean mBatchingEnabled = false;
+
+    // Keeps the uplink within its bytes per second budget, if one is set
+    private final TokenBucketShaper mShaper;
+
+    // Keeps the frames that couldn't be sent when set, and drains them once authenticated again
+    private volatile FrameSpool mFrameSpool = null;
+    private int mSpoolDrainRate = DEFAULT_SPOOL_DRAIN_RATE;
+    private ScheduledFuture<?> mSpoolDrainTask = null;
+
+    // Maps the sensor timestamps to the server clock, from clock pings to the server
+    private final ClockSync mClockSync = new ClockSync();
+    private volatile ClockSync.Timebase mSensorTimebase = ClockSync.Timebase.REALTIME;
+    // The transport the clock is synchronized with and the pings, guarded by this
+    private Transport mClockSyncTransport = null;
+    private int mClockPingCount = 0;
+    private ScheduledFuture<?> mClockPingTask = null;
+
+    // Disconnects after a delay, so the connection stays warm across Activity transitions
+    private ScheduledFuture<?> mDisconnectTask = null;
+    private ScheduledExecutorService mScheduler = null;
+
+    public static final int DEFAULT_SPOOL_DRAIN_RATE = 5;
 
     private static ServerClient mInstance = null;
 
     private ServerClient() {
         // Private constructor is part of singleton implementation
+        mSendWindow = new SendWindow(new SendWindow.Sender() {
+            @Override
+            public void send(long id, String event, FrameBuffer frame) {
+                emitFrame(event, frame, id);
+            }
+        });
+        mSendWindow.addListener(mMetrics);
+        mShaper = new TokenBucketShaper(new TokenBucketShaper.Sink() {
+            @Override
+            public void onSend(String event, FrameBuffer frame) {
+                // The window decides if the frame is sent now, queued or dropped
+                mSendWindow.offer(event, frame);
+            }
+
+            @Override
+            public void onDrop(String event, FrameBuffer frame) {
+                mMetrics.recordDropped();
+                spoolFrame(event, frame);
+                if (EVENT_RECEIVE_DELTA.equals(event)) {
+                    // The server misses the tiles of the dropped delta
+                    onKeyframeRequested();
+                }
+            }
+        });
+        mMetrics.setShaper(mShaper);
+        mMetrics.setClockSync(mClockSync);
+        mFrameBatcher = new FrameBatcher(BufferPool.getInstance(), new FrameBatcher.Sink() {
+            @Override
+            public void onBatch(FrameBuffer batch, int frameCount) {
+                // The whole batch takes a single slot of the window
+                mShaper.offer(TokenBucketShaper.TrafficClass.FRAME, EVENT_RECEIVE_BATCH, batch);
+            }
+        });
     }
 
     public synchronized static ServerClient getInstance() {
@@ -42,35 +162,104 @@ public class ServerClient {
         return mInstance;
     }
 
+    /**
+     * Sets the credentials and a single server.
+     */
     public void init(String username, String password, String serverIp, int port) {
+        init(username, password, Collections.singletonList(new Endpoint(serverIp, port)));
+    }
+
+    /**
+     * Sets the credentials and the ingest endpoints. The stream starts on the first endpoint and,
+     * with several endpoints, moves to the one with the lowest round trip time as they're probed.
+     * An existing transport to the same endpoints is kept, so calling it again reconnects without
+     * tearing the connection down.
+     */
+    public synchronized void init(String username, String password, List<Endpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No endpoint");
+        }
+        boolean sameCredentials = username.equals(mUsername) && password.equals(mPassword);
+        boolean sameEndpoints = endpoints.equals(mEndpoints);
         mUsername = username;
         mPassword = password;
-        mServerIp = serverIp;
-        mServerPort = port;
-
-        if (mSocket == null) {
-            try {   // Try to create the socket with the server
-                IO.Options options = new IO.Options();
-                options.forceNew = true;
-                options.multiplex = true;
-                options.secure = true;
-                options.reconnection = true;
-                options.reconnectionDelay = 5000;
-                options.reconnectionAttempts = 10;
-                String serverAddress = "http://" + mServerIp + ":" + mServerPort;
-                mSocket = IO.socket(serverAddress, options);
-                Log.d(TAG, "ServerClient initialized successfully.");
-            } catch (URISyntaxException e) {
-                // We failed to connect, consider to inform the user
-                e.printStackTrace();
+        if (!sameEndpoints) {
+            mEndpoints = new ArrayList<>(endpoints);
+        }
+        if (!sameCredentials || !sameEndpoints) {
+            mSessionToken = null;
+        }
+
+        if (mTransport != null) {
+            if (sameEndpoints && mTransportId.equals(mTransport.getId())) {
+                Log.d(TAG, "ServerClient already initialized. Reusing the transport.");
+                if (!sameCredentials && mTransport.isConnected()) {
+                    authenticate(mTransport);
+                }
+                return;
             }
-        } else {
-            Log.d(TAG, "ServerClient already initialized. Clearing sockets. Try again...");
-            mSocket.disconnect();
-            mSocket = null;
+            Log.d(TAG, "ServerClient initialized for other endpoints or transport. Clearing sockets.");
+            stopProbing();
+            mTransport.disconnect();
+            mTransport = null;
+        }
+
+        mEndpoint = mEndpoints.get(0);
+        mTransport = createTransport(mEndpoint);
+        if (mTransport != null) {
+            Log.d(TAG, "ServerClient initialized successfully with transport " + mTransport.getId()
+                    + " to " + mEndpoint.getHost() + ":" + mEndpoint.getPort());
+        }
+    }
+
+    private Transport createTransport(Endpoint endpoint) {
+        try {   // Try to create the socket with the server
+            Transport transport;
+            if (TcpTransport.ID.equals(mTransportId)) {
+                transport = new TcpTransport(endpoint.getHost(), endpoint.getPort(), mReconnectPolicy);
+            } else {
+                transport = new SocketIoTransport(endpoint.getHost(), endpoint.getPort(), mReconnectPolicy);
+            }
+            transport.setListener(new TransportListener(transport), EVENT_AUTHENTICATION, EVENT_REQUEST_KEYFRAME, EVENT_SET_LAYER,
+                    EVENT_CLOCK_PONG);
+            return transport;
+        } catch (URISyntaxException e) {
+            // We failed to connect, consider to inform the user
+            e.printStackTrace();
+            return null;
         }
     }
 
+    /**
+     * The endpoints with their health and round trip time.
+     */
+    public synchronized List<Endpoint> getEndpoints() {
+        return new ArrayList<>(mEndpoints);
+    }
+
+    /**
+     * The endpoint streamed to.
+     */
+    public Endpoint getEndpoint() {
+        return mEndpoint;
+    }
+
+    /**
+     * Sets how the transports created by the next {@link #init(String, String, List)} retry to
+     * connect. Retries forever with a short backoff by default.
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Selects the transport created by the next {@link #init(String, String, List)}:
+     * {@link SocketIoTransport#ID} (the default) or {@link TcpTransport#ID}.
+     */
+    public void setTransport(String transportId) {
+        mTransportId = transportId;
+    }
+
     public void registerCallback(ServerResultCallback callback) {
         mSingleCallback = callback;
     }
@@ -79,152 +268,705 @@ public class ServerClient {
         mSingleCallback = null;
     }
 
+    public void registerStreamControlCallback(StreamControlCallback callback) {
+        mStreamControlCallback = callback;
+    }
+
+    public void unregisterStreamControlCallback() {
+        mStreamControlCallback = null;
+    }
+
+    /**
+     * Reports the stream metrics to the given listener once per second until unregistered.
+     */
+    public void registerMetricsListener(StreamMetricsListener listener) {
+        mMetrics.setListener(listener);
+    }
+
+    public void unregisterMetricsListener() {
+        mMetrics.setListener(null);
+    }
+
+    public StreamMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * The connection to the server is explicitly issued by client activities.
-     * <p>
-     * Register the socket listeners just before trying to connect, so we can receive feedback
-     * from the connection state.
-     */
-    public void connect() {
-        if (mSocket != null && !mSocket.connected() && mUsername != null) {
-            unregisterSocketListeners();
-            registerSocketListeners();
-            mSocket.connect();
+     */
+    public synchronized void connect() {
+        cancelDelayedDisconnect();
+        if (mTransport != null && mUsername != null) {
+            mConnectRequested = true;
+            startProbing();
+        }
+        if (mTransport != null && !mTransport.isConnected() && mUsername != null) {
+            mTransport.connect();
         } else {
             Log.d(TAG, "Cannot connect because socket is null or already connected or username isn't defined.");
         }
     }
 
+    /**
+     * Tries to reconnect right away instead of waiting for the backoff delay, to be called when
+     * the network is available again. Does nothing once disconnected, e.g. by the delayed
+     * disconnect while the app is in the background.
+     */
+    public synchronized void retryNow() {
+        Transport transport = mTransport;
+        if (!mConnectRequested || transport == null || transport.isConnected()) {
+            return;
+        }
+        mRetryStartNanos = System.nanoTime();
+        transport.retryNow();
+    }
+
+    /**
+     * Tells the server which encoder the frames are encoded with, along with all the encoders
+     * supported by this client. Sent again after every authentication.
+     */
+    public void setEncoder(String encoderId) {
+        mEncoderId = encoderId;
+        if (mAuthenticated) {
+            sendStreamConfiguration();
+        }
+    }
+
+    /**
+     * Tells the server which simulcast layers the frames are tagged with. The server turns them
+     * on and off with {@code setLayer(id, enabled)}, which enables or disables the given layer
+     * objects, so they must be the ones the pipeline streams.
+     */
+    public void setSimulcastLayers(List<SimulcastLayer> layers) {
+        mLayers = new ArrayList<>(layers);
+        if (mAuthenticated) {
+            sendStreamConfiguration();
+        }
+    }
+
+    /**
+     * Sets the clock of the sensor timestamps of the frames, which the clock pings are timed
+     * with, so the timestamps map to the server clock.
+     */
+    public synchronized void setSensorTimebase(ClockSync.Timebase timebase) {
+        if (mSensorTimebase != timebase) {
+            mSensorTimebase = timebase;
+            mClockSync.reset();
+            if (mAuthenticated) {
+                startClockSync(mTransport);
+            }
+        }
+    }
+
+    public ClockSync getClockSync() {
+        return mClockSync;
+    }
+
+    /**
+     * Sends the frames in batches as {@code receiveBatch}, instead of one message per frame. The
+     * thresholds of the batches are set on {@link #getFrameBatcher()}.
+     */
+    public void setBatchingEnabled(boolean enabled) {
+        if (mBatchingEnabled != enabled) {
+            mBatchingEnabled = enabled;
+            if (!enabled) {
+                mFrameBatcher.flush();
+            }
+            if (mAuthenticated) {
+                sendStreamConfiguration();
+            }
+        }
+    }
+
+    public FrameBatcher getFrameBatcher() {
+        return mFrameBatcher;
+    }
+
+    /**
+     * The shaper keeping the frames within the uplink budget. Unlimited by default, the budget
+     * and the policy for the frames over budget are set on it.
+     */
+    public TokenBucketShaper getShaper() {
+        return mShaper;
+    }
+
+    /**
+     * Keeps the frames that couldn't be sent in the given spool, i.e. the frames captured while
+     * disconnected and the ones the send window dropped, and sends them late once authenticated
+     * again. The spooled frames are flagged with {@link FrameEnvelope#FLAG_SPOOLED}. Null stops
+     * spooling.
+     */
+    public synchronized void setSpool(FrameSpool spool) {
+        mFrameSpool = spool;
+        if (spool != null) {
+            mSendWindow.setOverflow(new SendWindow.Overflow() {
+                @Override
+                public void onOverflow(String event, FrameBuffer frame) {
+                    spoolFrame(event, frame);
+                }
+            });
+        } else {
+            mSendWindow.setOverflow(null);
+        }
+        scheduleSpoolDrain();
+    }
+
+    /**
+     * Sets how many spooled frames per second are sent at most. They're only sent while the send
+     * window is idle, so the live frames always come first.
+     */
+    public synchronized void setSpoolDrainRate(int framesPerSecond) {
+        mSpoolDrainRate = Math.max(1, framesPerSecond);
+        scheduleSpoolDrain();
+    }
+
     /**
      * This is  main method issued by the client activity to stream pictures to the server.
      */
     public void sendImage(byte[] image) {
-        if (mSocket != null && mSocket.connected()) {
-            mSocket.emit("receiveImage", image);
+        if (mTransport != null && mTransport.isConnected()) {
+            FrameBuffer buffer = BufferPool.getInstance().acquireFrameBuffer();
+            buffer.write(image, 0, image.length);
+            mTransport.send(EVENT_RECEIVE_IMAGE, buffer, Transport.NO_ACK);
         } else {
             Log.d(TAG, "Cannot send message because socket is null or disconnected");
         }
     }
 
     /**
-     * Client activities might issue an explicit disconnect at anytime.
+     * Streams an encoded frame with its {@link FrameEnvelope} header. The encoded buffer of the
+     * frame must start with the room reserved for the header. Tile delta frames are sent as
+     * {@code receiveDelta} and all the others as {@code receiveImage}, unless batching is
+     * enabled in which case they all go in {@code receiveBatch} messages.
      * <p>
-     * Unregister the socket listeners after issuing the disconnect to free resources.
+     * The encoded buffer is released back to its pool once handed to the socket, so the caller
+     * must not use it afterwards. While disconnected the frame goes to the spool, if set.
      */
-    public void disconnect() {
-        if (mSocket != null) {
-            mSocket.disconnect();
-            unregisterSocketListeners();
+    public void sendFrame(Frame frame) {
+        FrameBuffer encoded = frame.encoded;
+        frame.encoded = null;
+        FrameEnvelope.writeHeader(frame, FrameEncoders.typeOf(frame.encoderId), encoded);
+        String event = TileDeltaEncoder.ID.equals(frame.encoderId) ? EVENT_RECEIVE_DELTA : EVENT_RECEIVE_IMAGE;
+        if (mTransport != null && mTransport.isConnected()) {
+            if (mBatchingEnabled) {
+                mFrameBatcher.add(encoded);
+                return;
+            }
+            mShaper.offer(trafficClassOf(frame.encoderId, encoded), event, encoded);
         } else {
-            Log.d(TAG, "Cannot disconnect because socket is null.");
+            Log.d(TAG, "Cannot send message because socket is null or disconnected");
+            spoolFrame(event, encoded);
+        }
+    }
+
+    /**
+     * The tile delta keyframes are what the next deltas are drawn over, they must not be held.
+     * The frames of the other encoders stand alone.
+     */
+    private static TokenBucketShaper.TrafficClass trafficClassOf(String encoderId, FrameBuffer encoded) {
+        if (TileDeltaEncoder.ID.equals(encoderId)
+                && (encoded.getBuffer()[FrameEnvelope.HEADER_SIZE + 2] & TileDeltaEncoder.FLAG_KEYFRAME) != 0) {
+            return TokenBucketShaper.TrafficClass.KEYFRAME;
         }
+        return TokenBucketShaper.TrafficClass.FRAME;
+    }
+
+    /**
+     * The window bounding the frames in flight. Exposes the queue and drop counters, and can be
+     * used to tune the window size and drop policy.
+     */
+    public SendWindow getSendWindow() {
+        return mSendWindow;
     }
 
-    private void registerSocketListeners() {
-        if (mSocket != null) {
-            mSocket.on(Socket.EVENT_CONNECT, onConneted);
-            mSocket.on(Socket.EVENT_CONNECT_ERROR, onConnectionError);
-            mSocket.on(Socket.EVENT_RECONNECT, onReconnecting);
-            mSocket.on(Socket.EVENT_RECONNECT_ERROR, onReconnecting);
-            mSocket.on(Socket.EVENT_DISCONNECT, onDisconnected);
-            mSocket.on(EVENT_AUTHENTICATION, onAuthentication);
-            mSocket.on(Socket.EVENT_ERROR, onEventError);
+    private void emitFrame(String event, FrameBuffer image, long ackId) {
+        Transport transport = mTransport;
+        int size = image.size();
+        int frames = 1;
+        if (EVENT_RECEIVE_BATCH.equals(event)) {
+            frames = FrameBatcher.getFrameCount(image);
+            FrameBatcher.putSendTime(image, System.currentTimeMillis());
+            FrameBatcher.putServerCaptureTimes(image, mClockSync);
+        } else {
+            FrameEnvelope.putSendTime(image, System.currentTimeMillis());
+            FrameEnvelope.putServerCaptureTime(image, 0, mClockSync);
+        }
+        // The transport releases the buffer
+        if (transport != null && transport.send(event, image, ackId)) {
+            mMetrics.recordMessageSent(frames, size);
         } else {
-            Log.d(TAG, "Cannot register listeners because socket is null.");
+            Log.d(TAG, "Cannot send message because socket is null or disconnected");
+            if (transport == null) {
+                image.release();
+            }
         }
     }
 
-    private void unregisterSocketListeners() {
-        if (mSocket != null) {
-            mSocket.off(Socket.EVENT_CONNECT, onConneted);
-            mSocket.off(Socket.EVENT_CONNECT_ERROR, onConnectionError);
-            mSocket.off(Socket.EVENT_RECONNECT, onReconnecting);
-            mSocket.off(Socket.EVENT_RECONNECT_ERROR, onReconnecting);
-            mSocket.off(Socket.EVENT_DISCONNECT, onDisconnected);
-            mSocket.off(EVENT_AUTHENTICATION, onAuthentication);
-            mSocket.off(Socket.EVENT_ERROR, onEventError);
+    /**
+     * Appends a frame that couldn't be sent to the spool, if there's one, and releases it. The
+     * tile deltas are not kept, as they're useless once the tiles they're based on changed.
+     */
+    private void spoolFrame(String event, FrameBuffer frame) {
+        FrameSpool spool = mFrameSpool;
+        if (spool != null && !EVENT_RECEIVE_DELTA.equals(event)) {
+            if (EVENT_RECEIVE_BATCH.equals(event)) {
+                FrameBatcher.addFlags(frame, FrameEnvelope.FLAG_SPOOLED);
+            } else {
+                FrameEnvelope.addFlags(frame, FrameEnvelope.FLAG_SPOOLED);
+            }
+            if (!spool.append(event, frame)) {
+                Log.d(TAG, "Cannot spool a frame of " + frame.size() + " bytes");
+            }
+        }
+        frame.release();
+    }
+
+    private synchronized void scheduleSpoolDrain() {
+        if (mSpoolDrainTask != null) {
+            mSpoolDrainTask.cancel(false);
+            mSpoolDrainTask = null;
+        }
+        if (mFrameSpool == null) {
+            return;
+        }
+        long period = TimeUnit.SECONDS.toNanos(1) / mSpoolDrainRate;
+        mSpoolDrainTask = getScheduler().scheduleAtFixedRate(mSpoolDrain, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends the oldest spooled frame whenever the window has room to spare. The frame is removed
+     * from the spool once handed to the window, so a frame can be sent twice if the process is
+     * killed in between, but is never lost.
+     */
+    private final Runnable mSpoolDrain = new Runnable() {
+        @Override
+        public void run() {
+            FrameSpool spool = mFrameSpool;
+            if (spool == null || !mAuthenticated || spool.getFrameCount() == 0 || !mSendWindow.isIdle()) {
+                return;
+            }
+            FrameBuffer frame = BufferPool.getInstance().acquireFrameBuffer();
+            FrameSpool.Head head = spool.peek(frame);
+            // The spooled frames only use the budget the live frames leave
+            if (head == null || !mShaper.tryConsume(frame.size())) {
+                frame.release();
+                return;
+            }
+            mSendWindow.offer(head.event, frame);
+            // Only this frame, an append may have overwritten it and moved the head meanwhile
+            spool.remove(head.sequence);
+        }
+    };
+
+    /**
+     * Client activities might issue an explicit disconnect at anytime.
+     * <p>
+     */
+    public synchronized void disconnect() {
+        mConnectRequested = false;
+        stopProbing();
+        stopClockSync();
+        if (mTransport != null) {
+            mTransport.disconnect();
+            mFrameBatcher.clear();
+            mShaper.clear();
+            mSendWindow.clear();
         } else {
-            Log.d(TAG, "Cannot unregister listeners because socket is null.");
+            Log.d(TAG, "Cannot disconnect because socket is null.");
+        }
+    }
+
+    /**
+     * Disconnects after the given delay, unless {@link #connect()} is called meanwhile. Keeps
+     * the connection warm while switching Activities or rotating the screen, so the stream
+     * resumes without connecting and authenticating again.
+     */
+    public synchronized void disconnectLater(long delayMs) {
+        cancelDelayedDisconnect();
+        mDisconnectTask = getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ServerClient.this) {
+                    mDisconnectTask = null;
+                    disconnect();
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void cancelDelayedDisconnect() {
+        if (mDisconnectTask != null) {
+            mDisconnectTask.cancel(false);
+            mDisconnectTask = null;
+        }
+    }
+
+    /**
+     * Pings the server clock a few times in a row, then periodically while authenticated. The
+     * estimate starts over with another server, as its clock may differ.
+     */
+    private synchronized void startClockSync(Transport transport) {
+        stopClockSync();
+        if (transport != mClockSyncTransport) {
+            mClockSync.reset();
+            mClockSyncTransport = transport;
+        }
+        mClockPingCount = 0;
+        mClockPingTask = getScheduler().schedule(mClockPing, 0, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopClockSync() {
+        if (mClockPingTask != null) {
+            mClockPingTask.cancel(false);
+            mClockPingTask = null;
+        }
+    }
+
+    private final Runnable mClockPing = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ServerClient.this) {
+                mClockPingTask = null;
+                Transport transport = mTransport;
+                if (!mAuthenticated || transport == null || !transport.isConnected()) {
+                    return;
+                }
+                mShaper.consume(EVENT_CLOCK_PING.length() + 24);
+                transport.emit(EVENT_CLOCK_PING, TimeUnit.NANOSECONDS.toMicros(sensorClockNanos()));
+                mClockPingCount++;
+                long delay = mClockPingCount < CLOCK_SYNC_BURST ? CLOCK_SYNC_BURST_INTERVAL_MS : CLOCK_SYNC_INTERVAL_MS;
+                mClockPingTask = getScheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    };
+
+    private long sensorClockNanos() {
+        return mSensorTimebase == ClockSync.Timebase.REALTIME ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ServerClient");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return mScheduler;
+    }
+
+    private void sendStreamConfiguration() {
+        if (mTransport != null && mTransport.isConnected()) {
+            try {
+                JSONObject configuration = new JSONObject();
+                configuration.put("encoder", mEncoderId);
+                JSONArray encoders = new JSONArray();
+                for (String id : FrameEncoders.IDS) {
+                    encoders.put(id);
+                }
+                configuration.put("encoders", encoders);
+                configuration.put("envelope", FrameEnvelope.VERSION);
+                configuration.put("batch", mBatchingEnabled ? FrameBatcher.VERSION : 0);
+                JSONArray layers = new JSONArray();
+                for (SimulcastLayer layer : mLayers) {
+                    JSONObject description = new JSONObject();
+                    description.put("id", layer.getId());
+                    description.put("width", layer.getWidth());
+                    description.put("height", layer.getHeight());
+                    description.put("fps", layer.getFramesPerSecond());
+                    description.put("quality", layer.getQuality());
+                    description.put("enabled", layer.isEnabled());
+                    layers.put(description);
+                }
+                configuration.put("layers", layers);
+                mShaper.consume(configuration.toString().length());
+                mTransport.emit(EVENT_CONFIGURE_STREAM, configuration);
+            } catch (JSONException e) {
+                Log.d(TAG, "Cannot create the stream configuration: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void startProbing() {
+        if (mProber == null && mEndpoints.size() > 1) {
+            mProber = new EndpointProber(mEndpoints, new EndpointProber.Listener() {
+                @Override
+                public void onEndpointsProbed(List<Endpoint> endpoints) {
+                    selectEndpoint(endpoints);
+                }
+            });
+            mProber.start(EndpointProber.DEFAULT_PROBE_INTERVAL_MS);
+        }
+    }
+
+    private synchronized void stopProbing() {
+        if (mProber != null) {
+            mProber.stop();
+            mProber = null;
+        }
+        cancelStandby();
+    }
+
+    /**
+     * Starts switching to the endpoint with the lowest round trip time if the current one is down,
+     * or if the other is clearly faster so the stream doesn't flap between similar endpoints.
+     */
+    private synchronized void selectEndpoint(List<Endpoint> endpoints) {
+        Endpoint current = mEndpoint;
+        if (!mConnectRequested || mTransport == null) {
+            return;
+        }
+        Endpoint best = null;
+        for (Endpoint endpoint : endpoints) {
+            long rtt = endpoint.getRttMicros();
+            if (endpoint.isHealthy() && rtt != Endpoint.UNKNOWN_RTT
+                    && (best == null || rtt < best.getRttMicros())) {
+                best = endpoint;
+            }
+        }
+        if (best == null || best.equals(current) || best.equals(mStandbyEndpoint)) {
+            return;
+        }
+        long currentRtt = current.getRttMicros();
+        long bestRtt = best.getRttMicros();
+        boolean faster = currentRtt != Endpoint.UNKNOWN_RTT && currentRtt - bestRtt > SWITCH_MIN_GAIN_US
+                && bestRtt < currentRtt * SWITCH_MAX_RATIO;
+        if (!current.isHealthy() || faster) {
+            Log.d(TAG, "Switching from " + current + " to " + best);
+            cancelStandby();
+            mStandbyEndpoint = best;
+            mStandbyTransport = createTransport(best);
+            if (mStandbyTransport != null) {
+                mStandbyTransport.connect();
+            }
         }
     }
 
+    private synchronized void cancelStandby() {
+        if (mStandbyTransport != null) {
+            mStandbyTransport.disconnect();
+        }
+        mStandbyTransport = null;
+        mStandbyEndpoint = null;
+    }
+
     /**
-     * Callback functions for the socket listeners
+     * Moves the stream to the standby transport once it is authenticated. The frames keep their
+     * sequence, the window and the spool are shared by all the endpoints, and the previous
+     * transport stays connected a little longer to receive the acks of its frames in flight.
      */
-    private Emitter.Listener onConneted = new Emitter.Listener() {
+    private synchronized void promoteStandby(Transport standby) {
+        if (standby != mStandbyTransport) {
+            standby.disconnect();
+            return;
+        }
+        final Transport previous = mTransport;
+        mTransport = standby;
+        mEndpoint = mStandbyEndpoint;
+        mStandbyTransport = null;
+        mStandbyEndpoint = null;
+        mAuthenticated = true;
+        Log.d(TAG, "Streaming to " + mEndpoint);
+        sendStreamConfiguration();
+        startClockSync(standby);
+        // The new endpoint has no reference for the tile deltas
+        onKeyframeRequested();
+        if (previous != null) {
+            getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    previous.disconnect();
+                }
+            }, SWITCH_DRAIN_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Callback functions for a transport. Only the transport streamed to changes the state of the
+     * client; the standby one is only authenticated, and then promoted.
+     */
+    private class TransportListener implements Transport.Listener {
+        private final Transport mOwner;
+        private volatile boolean mResuming = false;
+
+        TransportListener(Transport owner) {
+            mOwner = owner;
+        }
+
+        private boolean isCurrent() {
+            return mOwner == mTransport;
+        }
+
         @Override
-        public void call(Object... args) {
+        public void onConnected() {
             // We connected to the server successfully
             Log.d(TAG, "Connected to the server! Starting authentication...");
-            mSocket.emit("authenticate", mUsername, mPassword, EVENT_AUTHENTICATION);
+            mResuming = authenticate(mOwner);
         }
-    };
 
-    private Emitter.Listener onConnectionError = new Emitter.Listener() {
         @Override
-        public void call(Object... args) {
+        public void onConnectionError(String reason) {
             // We got an error while trying to connect
-            // The socket will try to reconnect automatically as many times we set on the options
-            String reason = "no reason received.";
-            if (args.length > 0) {
-                reason = args[0].toString();
-            }
+            // The transport will try to reconnect automatically as many times we set on the options
             Log.d(TAG, "Error while trying to connect: " + reason);
         }
-    };
 
-    private Emitter.Listener onReconnecting = new Emitter.Listener() {
         @Override
-        public void call(Object... args) {
-            // Socket is trying to reconnect automatically
+        public void onReconnecting() {
+            // Transport is trying to reconnect automatically
             Log.d(TAG, "Reconnecting to the server...");
         }
-    };
 
-    private Emitter.Listener onReconnectionError = new Emitter.Listener() {
         @Override
-        public void call(Object... args) {
-            // We fail to reconnect
-            String reason = "no reason received.";
-            if (args.length > 0) {
-                reason = args[0].toString();
+        public void onReconnected() {
+            // The transport reconnected automatically
+            Log.d(TAG, "Reconnected to the server.");
+            if (isCurrent()) {
+                mMetrics.recordReconnect();
             }
-            Log.d(TAG, "Reconnection failed: " + reason);
         }
-    };
 
-    private Emitter.Listener onDisconnected = new Emitter.Listener() {
         @Override
-        public void call(Object... args) {
+        public void onDisconnected(String reason) {
             // We were disconnected from the server
-            String reason = "no reason received.";
-            if (args.length > 0) {
-                reason = args[0].toString();
-            }
             Log.d(TAG, "Disconnected from the server: " + reason);
+            if (!isCurrent()) {
+                return;
+            }
+            mAuthenticated = false;
+            stopClockSync();
+            // The acks of the frames in flight will never arrive
+            mFrameBatcher.clear();
+            mShaper.clear();
+            mSendWindow.clear();
         }
-    };
 
-    private Emitter.Listener onAuthentication = new Emitter.Listener() {
         @Override
-        public void call(Object... args) {
-            boolean result = (boolean) args[0];
-            if(mSingleCallback != null) {
-                mSingleCallback.onConnected(result);
+        public void onEvent(String event, Object... args) {
+            if (EVENT_AUTHENTICATION.equals(event)) {
+                onAuthentication(this, args);
+            } else if (EVENT_REQUEST_KEYFRAME.equals(event) && isCurrent()) {
+                onKeyframeRequested();
+            } else if (EVENT_SET_LAYER.equals(event) && isCurrent()) {
+                onSetLayer(args);
+            } else if (EVENT_CLOCK_PONG.equals(event) && isCurrent()) {
+                onClockPong(args);
             }
-            Log.d(TAG, "onAuthentication: " + result);
         }
-    };
 
-    private Emitter.Listener onEventError = new Emitter.Listener() {
         @Override
-        public void call(Object... args) {
+        public void onAcked(long id) {
+            // The ack ids are unique across the transports, as they come from the window
+            mSendWindow.onAcked(id);
+        }
+
+        @Override
+        public void onError(String reason) {
             // Something went wrong with an event
-            String reason = "no reason received.";
-            if (args.length > 0) {
-                reason = args[0].toString();
-            }
             Log.d(TAG, "Something went wrong with the last event: " + reason);
         }
-    };
-}
\ No newline at end of file
+    }
+
+    /**
+     * Resumes the previous session with its token if there's one, otherwise authenticates with
+     * the credentials. Either way the server answers with {@code onAuthentication}.
+     *
+     * @return true if resuming the session.
+     */
+    private boolean authenticate(Transport transport) {
+        String token = mSessionToken;
+        if (token != null) {
+            transport.emit(EVENT_RESUME, token, EVENT_AUTHENTICATION);
+        } else {
+            transport.emit(EVENT_AUTHENTICATE, mUsername, mPassword, EVENT_AUTHENTICATION);
+        }
+        return token != null;
+    }
+
+    /**
+     * The server answers with the result and, if it supports resuming, a session token.
+     */
+    private void onAuthentication(TransportListener listener, Object... args) {
+        boolean result = (boolean) args[0];
+        if (!result && listener.mResuming) {
+            // The session expired on the server, fall back to the credentials
+            Log.d(TAG, "onAuthentication: the session couldn't be resumed");
+            mSessionToken = null;
+            listener.mResuming = authenticate(listener.mOwner);
+            return;
+        }
+        if (result && args.length > 1 && args[1] instanceof String) {
+            mSessionToken = (String) args[1];
+        }
+        if (!listener.isCurrent()) {
+            Log.d(TAG, "onAuthentication of the standby endpoint: " + result);
+            if (result) {
+                promoteStandby(listener.mOwner);
+            } else {
+                cancelStandby();
+            }
+            return;
+        }
+        mAuthenticated = result;
+        if (result) {
+            sendStreamConfiguration();
+            startClockSync(listener.mOwner);
+            long retryStart = mRetryStartNanos;
+            if (retryStart != 0) {
+                mRetryStartNanos = 0;
+                Log.d(TAG, "Streaming again " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - retryStart)
+                        + " ms after the network came back");
+            }
+        }
+        if(mSingleCallback != null) {
+            mSingleCallback.onConnected(result);
+        }
+        Log.d(TAG, "onAuthentication: " + result + (listener.mResuming ? " (resumed)" : ""));
+    }
+
+    /**
+     * The server answers a clock ping with the ping time, echoed, and the times it received the
+     * ping and sent the pong on its clock, in microseconds since the epoch.
+     */
+    private void onClockPong(Object... args) {
+        long received = sensorClockNanos();
+        if (args.length < 3 || !(args[0] instanceof Number) || !(args[1] instanceof Number)
+                || !(args[2] instanceof Number)) {
+            Log.d(TAG, "onClockPong: unexpected arguments");
+            return;
+        }
+        long sent = TimeUnit.MICROSECONDS.toNanos(((Number) args[0]).longValue());
+        if (!mClockSync.addSample(sent, ((Number) args[1]).longValue(), ((Number) args[2]).longValue(), received)) {
+            Log.d(TAG, "onClockPong: inconsistent times discarded");
+        }
+    }
+
+    /**
+     * The server turns a simulcast layer on or off, e.g. the high resolution layer only while it
+     * needs to recognize something.
+     */
+    private void onSetLayer(Object... args) {
+        if (args.length < 2 || !(args[0] instanceof Number) || !(args[1] instanceof Boolean)) {
+            Log.d(TAG, "onSetLayer: unexpected arguments");
+            return;
+        }
+        int id = ((Number) args[0]).intValue();
+        boolean enabled = (Boolean) args[1];
+        for (SimulcastLayer layer : mLayers) {
+            if (layer.getId() == id) {
+                layer.setEnabled(enabled);
+                Log.d(TAG, "onSetLayer: " + layer);
+                return;
+            }
+        }
+        Log.d(TAG, "onSetLayer: unknown layer " + id);
+    }
+
+    private void onKeyframeRequested() {
+        Log.d(TAG, "onKeyframeRequested");
+        StreamControlCallback callback = mStreamControlCallback;
+        if (callback != null) {
+            callback.onKeyframeRequested();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import java.net.URISyntaxException;
+import java.util.Arrays;
+
+import io.socket.client.Ack;
+import io.socket.client.IO;
+import io.socket.client.Socket;
+import io.socket.emitter.Emitter;
+
+/**
+ * The default {@link Transport}, based on Socket.IO websockets.
+ * <p>
+ * Every binary emit is sent as a text packet with a placeholder plus a separate binary frame,
+ * and goes through the single Socket.IO event thread, so it costs a copy and a thread hop per
+ * frame. See {@link TcpTransport} for a lighter alternative.
+ */
+public class SocketIoTransport implements Transport {
+    public static final String ID = "socket.io";
+
+    private final Socket mSocket;
+    private Listener mListener = null;
+    private String[] mEvents = new String[0];
+    private Emitter.Listener[] mEventListeners = new Emitter.Listener[0];
+
+    public SocketIoTransport(String serverIp, int port, ReconnectPolicy policy) throws URISyntaxException {
+        IO.Options options = new IO.Options();
+        options.forceNew = true;
+        options.multiplex = true;
+        options.secure = true;
+        options.reconnection = true;
+        options.reconnectionDelay = policy.getInitialDelayMs();
+        options.reconnectionDelayMax = policy.getMaxDelayMs();
+        options.randomizationFactor = policy.getJitter();
+        options.reconnectionAttempts = policy.isUnlimited() ? Integer.MAX_VALUE : policy.getMaxAttempts();
+        String serverAddress = "http://" + serverIp + ":" + port;
+        mSocket = IO.socket(serverAddress, options);
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public void setListener(Listener listener, String... events) {
+        unregisterSocketListeners();
+        mListener = listener;
+        mEvents = events;
+        mEventListeners = new Emitter.Listener[events.length];
+        for (int i = 0; i < events.length; i++) {
+            final String event = events[i];
+            mEventListeners[i] = new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    mListener.onEvent(event, args);
+                }
+            };
+        }
+    }
+
+    /**
+     * Register the socket listeners just before trying to connect, so we can receive feedback
+     * from the connection state.
+     */
+    @Override
+    public void connect() {
+        unregisterSocketListeners();
+        registerSocketListeners();
+        mSocket.connect();
+    }
+
+    /**
+     * Unregister the socket listeners after issuing the disconnect to free resources.
+     */
+    @Override
+    public void disconnect() {
+        mSocket.disconnect();
+        unregisterSocketListeners();
+    }
+
+    /**
+     * The Socket.IO manager doesn't expose its backoff timer, so the pending reconnection is
+     * cancelled and a new connection started instead, with the listeners registered again.
+     */
+    @Override
+    public void retryNow() {
+        if (!mSocket.connected()) {
+            mSocket.disconnect();
+            connect();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mSocket.connected();
+    }
+
+    @Override
+    public void emit(String event, Object... args) {
+        mSocket.emit(event, args);
+    }
+
+    @Override
+    public boolean send(String event, FrameBuffer data, final long ackId) {
+        try {
+            if (!mSocket.connected()) {
+                return false;
+            }
+            // Socket.IO sends the whole array as the binary attachment, so it must be exact
+            // sized. The copy is also needed because the socket sends it later from its thread.
+            byte[] payload = Arrays.copyOf(data.getBuffer(), data.size());
+            if (ackId == NO_ACK) {
+                mSocket.emit(event, payload);
+            } else {
+                mSocket.emit(event, new Object[]{payload}, new Ack() {
+                    @Override
+                    public void call(Object... args) {
+                        mListener.onAcked(ackId);
+                    }
+                });
+            }
+            return true;
+        } finally {
+            data.release();
+        }
+    }
+
+    private void registerSocketListeners() {
+        mSocket.on(Socket.EVENT_CONNECT, onConneted);
+        mSocket.on(Socket.EVENT_CONNECT_ERROR, onConnectionError);
+        mSocket.on(Socket.EVENT_RECONNECT, onReconnected);
+        mSocket.on(Socket.EVENT_RECONNECT_ERROR, onReconnecting);
+        mSocket.on(Socket.EVENT_DISCONNECT, onDisconnected);
+        mSocket.on(Socket.EVENT_ERROR, onEventError);
+        for (int i = 0; i < mEvents.length; i++) {
+            mSocket.on(mEvents[i], mEventListeners[i]);
+        }
+    }
+
+    private void unregisterSocketListeners() {
+        mSocket.off(Socket.EVENT_CONNECT, onConneted);
+        mSocket.off(Socket.EVENT_CONNECT_ERROR, onConnectionError);
+        mSocket.off(Socket.EVENT_RECONNECT, onReconnected);
+        mSocket.off(Socket.EVENT_RECONNECT_ERROR, onReconnecting);
+        mSocket.off(Socket.EVENT_DISCONNECT, onDisconnected);
+        mSocket.off(Socket.EVENT_ERROR, onEventError);
+        for (int i = 0; i < mEvents.length; i++) {
+            mSocket.off(mEvents[i], mEventListeners[i]);
+        }
+    }
+
+    private static String reasonOf(Object... args) {
+        return args.length > 0 ? args[0].toString() : "no reason received.";
+    }
+
+    /**
+     * Callback functions for the socket listeners
+     */
+    private Emitter.Listener onConneted = new Emitter.Listener() {
+        @Override
+        public void call(Object... args) {
+            mListener.onConnected();
+        }
+    };
+
+    private Emitter.Listener onConnectionError = new Emitter.Listener() {
+        @Override
+        public void call(Object... args) {
+            mListener.onConnectionError(reasonOf(args));
+        }
+    };
+
+    private Emitter.Listener onReconnecting = new Emitter.Listener() {
+        @Override
+        public void call(Object... args) {
+            mListener.onReconnecting();
+        }
+    };
+
+    private Emitter.Listener onReconnected = new Emitter.Listener() {
+        @Override
+        public void call(Object... args) {
+            mListener.onReconnected();
+        }
+    };
+
+    private Emitter.Listener onDisconnected = new Emitter.Listener() {
+        @Override
+        public void call(Object... args) {
+            mListener.onDisconnected(reasonOf(args));
+        }
+    };
+
+    private Emitter.Listener onEventError = new Emitter.Listener() {
+        @Override
+        public void call(Object... args) {
+            mListener.onError(reasonOf(args));
+        }
+    };
+}
@@ -0,0 +1,13 @@
+package com.xetiro.android.camstream.network;
+
+/**
+ * Control messages sent by the server about the stream itself, as opposed to the connection
+ * state reported by {@link ServerResultCallback}. Called from the socket thread.
+ */
+public interface StreamControlCallback {
+    /**
+     * The server lost track of the stream (e.g. it just joined or it missed a delta frame) and
+     * asks for a full frame.
+     */
+    public void onKeyframeRequested();
+}
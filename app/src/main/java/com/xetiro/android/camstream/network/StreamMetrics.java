@@ -0,0 +1,239 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.utils.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instrumentation of the streaming path: frame rate, per-stage timing histograms, bytes per
+ * second, dropped frames, reconnections and queue depths.
+ * <p>
+ * Recording is lock-free and allocation-free so it can be called for every frame from any
+ * thread. Once per reporting interval the counters are drained into a {@link Snapshot} which is
+ * handed to the {@link StreamMetricsListener}. Timings are reported as percentiles because the
+ * averages hide the stalls we are chasing.
+ */
+public class StreamMetrics implements SendWindow.Listener {
+    private static final long REPORT_INTERVAL_MS = 1000;
+
+    /**
+     * The metrics of one reporting interval. Durations are in milliseconds.
+     */
+    public static class Snapshot {
+        public float framesPerSecond;
+        public float messagesPerSecond;
+        public long bytesPerSecond;
+        public long droppedFrames;
+        public long reconnects;
+        public int inFlight;
+        public int sendQueueDepth;
+        public int encodeQueueDepth;
+        public long budgetBytesPerSecond;   // 0 without budget
+        public float budgetUsage;           // Fraction of the budget used
+        public long budgetAvailableBytes;
+        public float timeToFirstFrameMs;    // Of the last stream start
+        public boolean clockSynchronized;
+        public float clockUncertaintyMs;    // Of the capture times on the server clock
+        public double clockDriftPpm;
+
+        public final float[] convertMs = new float[3];     // p50, p90, p99
+        public final float[] encodeMs = new float[3];
+        public final float[] sendToAckMs = new float[3];
+
+        @Override
+        public String toString() {
+            String budget = "";
+            if (budgetBytesPerSecond > 0) {
+                budget = String.format(Locale.US, "\nbudget %d KB/s: %.0f%% used, %d KB left",
+                        budgetBytesPerSecond / 1024, budgetUsage * 100, budgetAvailableBytes / 1024);
+            }
+            String clock = "\nclock not synchronized";
+            if (clockSynchronized) {
+                clock = String.format(Locale.US, "\nclock \u00b1%.1f ms, drift %.0f ppm",
+                        clockUncertaintyMs, clockDriftPpm);
+            }
+            return String.format(Locale.US,
+                    "%.1f fps | %.1f msg/s | %d KB/s | dropped %d | reconnects %d\n"
+                            + "queues: encode %d send %d in flight %d\n"
+                            + "convert p50/p90/p99: %.1f/%.1f/%.1f ms\n"
+                            + "encode p50/p90/p99: %.1f/%.1f/%.1f ms\n"
+                            + "ack p50/p90/p99: %.1f/%.1f/%.1f ms\n"
+                            + "first frame after %.0f ms",
+                    framesPerSecond, messagesPerSecond, bytesPerSecond / 1024, droppedFrames, reconnects,
+                    encodeQueueDepth, sendQueueDepth, inFlight,
+                    convertMs[0], convertMs[1], convertMs[2],
+                    encodeMs[0], encodeMs[1], encodeMs[2],
+                    sendToAckMs[0], sendToAckMs[1], sendToAckMs[2], timeToFirstFrameMs) + budget + clock;
+        }
+    }
+
+    private final LatencyHistogram mConvertHistogram = new LatencyHistogram();
+    private final LatencyHistogram mEncodeHistogram = new LatencyHistogram();
+    private final LatencyHistogram mSendToAckHistogram = new LatencyHistogram();
+
+    private final AtomicLong mFramesSent = new AtomicLong(0);
+    private final AtomicLong mMessagesSent = new AtomicLong(0);
+    private final AtomicLong mBytesSent = new AtomicLong(0);
+    private final AtomicLong mDroppedFrames = new AtomicLong(0);
+    private final AtomicLong mReconnects = new AtomicLong(0);
+    private final AtomicInteger mInFlight = new AtomicInteger(0);
+    private final AtomicInteger mSendQueueDepth = new AtomicInteger(0);
+    private final AtomicInteger mEncodeQueueDepth = new AtomicInteger(0);
+    private final AtomicLong mTimeToFirstFrame = new AtomicLong(0);
+
+    // Reporting state, only used by the metrics thread
+    private final long[] mDrainedCounts = new long[LatencyHistogram.getBucketCount()];
+    private long mLastReport = System.nanoTime();
+
+    private ScheduledExecutorService mScheduler = null;
+    private ScheduledFuture<?> mReportTask = null;
+    private volatile StreamMetricsListener mListener = null;
+    private volatile TokenBucketShaper mShaper = null;
+    private volatile ClockSync mClockSync = null;
+
+    public void recordConvert(long durationNanos) {
+        mConvertHistogram.record(durationNanos);
+    }
+
+    public void recordEncode(long durationNanos) {
+        mEncodeHistogram.record(durationNanos);
+    }
+
+    /**
+     * A message with the given number of frames was handed to the transport. It is more than one
+     * frame when the frames are batched.
+     */
+    public void recordMessageSent(int frames, int bytes) {
+        mFramesSent.addAndGet(frames);
+        mMessagesSent.incrementAndGet();
+        mBytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * A frame was dropped before reaching the send window, e.g. because the pipeline was full.
+     */
+    public void recordDropped() {
+        mDroppedFrames.incrementAndGet();
+    }
+
+    /**
+     * The time from the start of a stream to its first frame handed to the server client.
+     */
+    public void recordTimeToFirstFrame(long durationNanos) {
+        mTimeToFirstFrame.set(durationNanos);
+    }
+
+    public void recordReconnect() {
+        mReconnects.incrementAndGet();
+    }
+
+    public void setEncodeQueueDepth(int depth) {
+        mEncodeQueueDepth.set(depth);
+    }
+
+    /**
+     * Reports the budget of the given shaper and how much of it is used.
+     */
+    public void setShaper(TokenBucketShaper shaper) {
+        mShaper = shaper;
+    }
+
+    /**
+     * Reports how accurately the capture times map to the server clock.
+     */
+    public void setClockSync(ClockSync clockSync) {
+        mClockSync = clockSync;
+    }
+
+    @Override
+    public void onFrameAcked(int size, long roundTripNanos, int inFlight, int queued) {
+        mSendToAckHistogram.record(roundTripNanos);
+        mInFlight.set(inFlight);
+        mSendQueueDepth.set(queued);
+    }
+
+    @Override
+    public void onFrameLost() {
+        mDroppedFrames.incrementAndGet();
+    }
+
+    /**
+     * Starts reporting to the listener once per interval, or stops reporting if null.
+     */
+    public synchronized void setListener(StreamMetricsListener listener) {
+        mListener = listener;
+        if (listener != null && mReportTask == null) {
+            if (mScheduler == null) {
+                mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "StreamMetrics");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            mReportTask = mScheduler.scheduleAtFixedRate(mReport, REPORT_INTERVAL_MS,
+                    REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } else if (listener == null && mReportTask != null) {
+            mReportTask.cancel(false);
+            mReportTask = null;
+        }
+    }
+
+    private final Runnable mReport = new Runnable() {
+        @Override
+        public void run() {
+            StreamMetricsListener listener = mListener;
+            if (listener != null) {
+                listener.onMetrics(takeSnapshot());
+            }
+        }
+    };
+
+    /**
+     * Drains the counters of the current interval into a new snapshot.
+     */
+    public synchronized Snapshot takeSnapshot() {
+        long now = System.nanoTime();
+        float seconds = Math.max(1, now - mLastReport) / 1e9f;
+        mLastReport = now;
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.framesPerSecond = mFramesSent.getAndSet(0) / seconds;
+        snapshot.messagesPerSecond = mMessagesSent.getAndSet(0) / seconds;
+        snapshot.bytesPerSecond = (long) (mBytesSent.getAndSet(0) / seconds);
+        snapshot.droppedFrames = mDroppedFrames.getAndSet(0);
+        snapshot.reconnects = mReconnects.get();
+        snapshot.inFlight = mInFlight.get();
+        snapshot.sendQueueDepth = mSendQueueDepth.get();
+        snapshot.encodeQueueDepth = mEncodeQueueDepth.get();
+        snapshot.timeToFirstFrameMs = mTimeToFirstFrame.get() / 1e6f;
+        TokenBucketShaper shaper = mShaper;
+        if (shaper != null && shaper.isLimited()) {
+            snapshot.budgetBytesPerSecond = shaper.getBytesPerSecond();
+            snapshot.budgetUsage = shaper.getUsage();
+            snapshot.budgetAvailableBytes = shaper.getAvailableBytes();
+        }
+        ClockSync clockSync = mClockSync;
+        if (clockSync != null && clockSync.isSynchronized()) {
+            snapshot.clockSynchronized = true;
+            snapshot.clockUncertaintyMs = clockSync.getUncertaintyMicros() / 1000f;
+            snapshot.clockDriftPpm = clockSync.getDriftPpm();
+        }
+        drainPercentiles(mConvertHistogram, snapshot.convertMs);
+        drainPercentiles(mEncodeHistogram, snapshot.encodeMs);
+        drainPercentiles(mSendToAckHistogram, snapshot.sendToAckMs);
+        return snapshot;
+    }
+
+    private void drainPercentiles(LatencyHistogram histogram, float[] percentilesMs) {
+        histogram.drainTo(mDrainedCounts);
+        percentilesMs[0] = LatencyHistogram.percentile(mDrainedCounts, 0.50) / 1000f;
+        percentilesMs[1] = LatencyHistogram.percentile(mDrainedCounts, 0.90) / 1000f;
+        percentilesMs[2] = LatencyHistogram.percentile(mDrainedCounts, 0.99) / 1000f;
+    }
+}
@@ -0,0 +1,9 @@
+package com.xetiro.android.camstream.network;
+
+/**
+ * Receives the stream metrics once per reporting interval, from the metrics thread. Registered
+ * on the {@link ServerClient} next to the {@link ServerResultCallback}.
+ */
+public interface StreamMetricsListener {
+    public void onMetrics(StreamMetrics.Snapshot snapshot);
+}
@@ -0,0 +1,457 @@
+package com.xetiro.android.camstream.network;
+
+import android.util.Log;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+
+/**
+ * A lightweight {@link Transport} over a plain TCP connection with length-prefixed messages.
+ * <p>
+ * Frames are written straight from their pooled buffer by a dedicated writer thread, without
+ * the copy and the event thread hop of Socket.IO. The connection semantics are the same as the
+ * Socket.IO transport: it retries to connect following its {@link ReconnectPolicy}, and the
+ * client authenticates again after every connection.
+ * <p>
+ * Message layout, big-endian:
+ * <pre>
+ * length of what follows (4) | type (1) | body
+ * event (both ways): UTF-8 JSON {"event": name, "args": [...]}
+ * frame (client to server): ack id (8, -1 without ack) | event length (1) | event | frame bytes
+ * ack (server to client): ack id (8)
+ * </pre>
+ */
+public class TcpTransport implements Transport {
+    public static String TAG = "TcpTransportDebug";
+    public static final String ID = "tcp";
+
+    public static final byte TYPE_EVENT = 1;
+    public static final byte TYPE_FRAME = 2;
+    public static final byte TYPE_ACK = 3;
+
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Message {
+        final byte type;
+        final long ackId;
+        final byte[] data;          // The event JSON, or the event name of a frame
+        final FrameBuffer frame;
+
+        Message(byte type, long ackId, byte[] data, FrameBuffer frame) {
+            this.type = type;
+            this.ackId = ackId;
+            this.data = data;
+            this.frame = frame;
+        }
+
+        void release() {
+            if (frame != null) {
+                frame.release();
+            }
+        }
+    }
+
+    private final String mHost;
+    private final int mPort;
+    private final ReconnectPolicy mPolicy;
+    private Listener mListener = null;
+
+    // Wakes the connection thread up from its backoff delay, guarded by itself
+    private final Object mRetryLock = new Object();
+    private boolean mRetryNow = false;
+
+    // The thread connecting, reading and reconnecting, and its connection, written under this.
+    // After a disconnect the previous thread may still be unwinding while the next one connects,
+    // so a thread only touches the connection and reports to the listener while it is current
+    private volatile Thread mConnectionThread = null;
+    private volatile Connection mConnection = null;
+
+    public TcpTransport(String serverIp, int port, ReconnectPolicy policy) {
+        mHost = serverIp;
+        mPort = port;
+        mPolicy = policy;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    /**
+     * All the server events are reported, so the events are ignored.
+     */
+    @Override
+    public void setListener(Listener listener, String... events) {
+        mListener = listener;
+    }
+
+    @Override
+    public synchronized void connect() {
+        // The thread ends by itself once it runs out of reconnection attempts
+        if (mConnectionThread == null || !mConnectionThread.isAlive()) {
+            mConnectionThread = new Thread(mConnectionLoop, "TcpTransport");
+            mConnectionThread.start();
+        }
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        if (mConnectionThread != null) {
+            mConnectionThread.interrupt();
+            mConnectionThread = null;
+            Connection connection = mConnection;
+            if (connection != null) {
+                connection.closeSocket();   // Unblocks the reader
+            }
+        }
+    }
+
+    @Override
+    public void retryNow() {
+        synchronized (mRetryLock) {
+            mRetryNow = true;
+            mRetryLock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnection != null;
+    }
+
+    @Override
+    public void emit(String event, Object... args) {
+        try {
+            JSONArray array = new JSONArray();
+            for (Object arg : args) {
+                array.put(arg);
+            }
+            JSONObject message = new JSONObject();
+            message.put("event", event);
+            message.put("args", array);
+            Connection connection = mConnection;
+            if (connection == null || !connection.enqueue(
+                    new Message(TYPE_EVENT, NO_ACK, message.toString().getBytes(UTF_8), null))) {
+                Log.d(TAG, "Cannot emit " + event + " because the transport is disconnected");
+            }
+        } catch (JSONException e) {
+            Log.d(TAG, "Cannot emit " + event + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean send(String event, FrameBuffer data, long ackId) {
+        Connection connection = mConnection;
+        Message message = new Message(TYPE_FRAME, ackId, event.getBytes(UTF_8), data);
+        if (connection == null || !connection.enqueue(message)) {
+            message.release();
+            return false;
+        }
+        return true;
+    }
+
+    private final Runnable mConnectionLoop = new Runnable() {
+        @Override
+        public void run() {
+            boolean reconnecting = false;
+            int attempts = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                Socket socket = new Socket();
+                try {
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                    if (!isCurrent()) {
+                        break;
+                    }
+                    if (reconnecting) {
+                        mListener.onReconnecting();
+                    } else {
+                        mListener.onConnectionError(e.toString());
+                    }
+                    reconnecting = true;
+                    if (!mPolicy.canRetry(attempts)) {
+                        break;
+                    }
+                    if (waitForRetry(mPolicy.getDelayMs(attempts++))) {
+                        attempts = 0;   // The network is back, start the backoff over
+                    }
+                    continue;
+                }
+
+                Connection connection;
+                try {
+                    connection = new Connection(socket);
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                    if (isCurrent()) {
+                        mListener.onError(e.toString());
+                    }
+                    break;
+                }
+                attempts = 0;
+                synchronized (TcpTransport.this) {
+                    if (!isCurrent()) {
+                        // Disconnected while connecting
+                        connection.close();
+                        break;
+                    }
+                    mConnection = connection;
+                }
+                mListener.onConnected();
+                if (reconnecting) {
+                    mListener.onReconnected();
+                }
+
+                String reason = read(connection);
+                synchronized (TcpTransport.this) {
+                    if (mConnection == connection) {
+                        mConnection = null;
+                    }
+                }
+                connection.close();
+                boolean requested = Thread.currentThread().isInterrupted();
+                if (requested) {
+                    // Unless the client already connected again, the next thread reports that
+                    Thread current = mConnectionThread;
+                    if (current == null || current == Thread.currentThread()) {
+                        mListener.onDisconnected("io client disconnect");
+                    }
+                    break;
+                }
+                if (!isCurrent()) {
+                    break;
+                }
+                mListener.onDisconnected(reason);
+                reconnecting = true;
+                waitForRetry(mPolicy.getDelayMs(0));
+            }
+        }
+    };
+
+    /**
+     * Whether the calling thread is the connection thread the client wants, rather than one left
+     * over from a previous connection.
+     */
+    private boolean isCurrent() {
+        return mConnectionThread == Thread.currentThread();
+    }
+
+    /**
+     * Reads the server messages until the connection is closed.
+     *
+     * @return the reason the connection was closed.
+     */
+    private String read(Connection connection) {
+        try {
+            DataInputStream in = connection.mInput;
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > MAX_MESSAGE_SIZE) {
+                    throw new IOException("Invalid message length " + length);
+                }
+                byte type = in.readByte();
+                // The messages still read from a previous connection are not reported
+                if (type == TYPE_ACK && length == 9) {
+                    long ackId = in.readLong();
+                    if (isCurrent()) {
+                        mListener.onAcked(ackId);
+                    }
+                } else if (type == TYPE_EVENT) {
+                    byte[] json = new byte[length - 1];
+                    in.readFully(json);
+                    if (isCurrent()) {
+                        dispatchEvent(new String(json, UTF_8));
+                    }
+                } else {
+                    Log.d(TAG, "Skipping unknown message of type " + type);
+                    skipFully(in, length - 1);
+                }
+            }
+        } catch (EOFException e) {
+            return "transport close";
+        } catch (IOException e) {
+            return "transport error: " + e.getMessage();
+        }
+    }
+
+    private void dispatchEvent(String json) {
+        try {
+            JSONObject message = new JSONObject(json);
+            JSONArray array = message.optJSONArray("args");
+            Object[] args = new Object[array != null ? array.length() : 0];
+            for (int i = 0; i < args.length; i++) {
+                Object arg = array.get(i);
+                args[i] = arg == JSONObject.NULL ? null : arg;
+            }
+            mListener.onEvent(message.getString("event"), args);
+        } catch (JSONException e) {
+            Log.d(TAG, "Invalid event message: " + e.getMessage());
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                in.readByte();  // Throws at the end of the stream
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Waits for the backoff delay, unless {@link #retryNow()} is called meanwhile. An interrupt
+     * leaves the interrupted flag set, so the connection loop stops.
+     *
+     * @return true if woken up by {@link #retryNow()}.
+     */
+    private boolean waitForRetry(long delayMs) {
+        synchronized (mRetryLock) {
+            long deadline = System.currentTimeMillis() + delayMs;
+            try {
+                long remaining = delayMs;
+                while (!mRetryNow && remaining > 0) {
+                    mRetryLock.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            boolean woken = mRetryNow;
+            mRetryNow = false;
+            return woken;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    /**
+     * An open connection with its writer thread.
+     */
+    private static class Connection implements Runnable {
+        final Socket mSocket;
+        final DataInputStream mInput;
+        final DataOutputStream mOutput;
+        final Thread mWriter;
+
+        // Guarded by this
+        private final ArrayDeque<Message> mQueue = new ArrayDeque<>();
+        private boolean mClosed = false;
+
+        Connection(Socket socket) throws IOException {
+            mSocket = socket;
+            mInput = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+            // Writes bigger than the buffer go straight to the socket, so the frames aren't copied
+            mOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+            mWriter = new Thread(this, "TcpTransportWriter");
+            mWriter.start();
+        }
+
+        synchronized boolean enqueue(Message message) {
+            if (mClosed) {
+                return false;
+            }
+            mQueue.add(message);
+            notify();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Message message;
+                synchronized (this) {
+                    while (mQueue.isEmpty() && !mClosed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+                    message = mQueue.poll();
+                }
+                try {
+                    write(message);
+                } catch (IOException e) {
+                    Log.d(TAG, "Write failed: " + e.getMessage());
+                    closeSocket();  // The reader notices and reports the disconnection
+                    return;
+                } finally {
+                    message.release();
+                }
+            }
+        }
+
+        private void write(Message message) throws IOException {
+            if (message.type == TYPE_FRAME) {
+                FrameBuffer frame = message.frame;
+                mOutput.writeInt(1 + 8 + 1 + message.data.length + frame.size());
+                mOutput.writeByte(TYPE_FRAME);
+                mOutput.writeLong(message.ackId);
+                mOutput.writeByte(message.data.length);
+                mOutput.write(message.data);
+                mOutput.write(frame.getBuffer(), 0, frame.size());
+            } else {
+                mOutput.writeInt(1 + message.data.length);
+                mOutput.writeByte(message.type);
+                mOutput.write(message.data);
+            }
+            mOutput.flush();
+        }
+
+        void closeSocket() {
+            closeQuietly(mSocket);
+        }
+
+        /**
+         * Closes the socket, stops the writer and releases the frames that weren't written.
+         */
+        void close() {
+            synchronized (this) {
+                mClosed = true;
+                notify();
+            }
+            closeSocket();
+            try {
+                mWriter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                Message message;
+                while ((message = mQueue.poll()) != null) {
+                    message.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the uplink within a bytes per second budget, e.g. for a metered connection shared with
+ * other apps, whatever the size of the encoded frames.
+ * <p>
+ * The budget fills a bucket of tokens at its rate, up to the burst size, and every message takes
+ * its size in tokens. A frame that doesn't fit is either dropped or delayed until the bucket
+ * has enough tokens, depending on the {@link Policy}. A delayed frame waits in a single slot: a
+ * newer frame takes its place and the older one is dropped, so the stream stays live.
+ * <p>
+ * The control messages and the keyframes are never held: they take their tokens right away,
+ * even if the bucket goes in debt, and the next frames wait for the debt to be paid back. So
+ * the stream degrades by sending fewer frames, never by starving the frames the server needs
+ * to decode the others. A keyframe drops the frame waiting for its tokens, which is older and
+ * must not be decoded after it.
+ */
+public class TokenBucketShaper {
+    /**
+     * No budget, everything is sent right away.
+     */
+    public static final long UNLIMITED = 0;
+    public static final long DEFAULT_MAX_DELAY_MS = 500;
+
+    public enum TrafficClass {
+        /** Small messages driving the session, never held */
+        CONTROL,
+        /** Frames the next ones are decoded against, never held */
+        KEYFRAME,
+        /** Any other frame, delayed or dropped when over budget */
+        FRAME
+    }
+
+    public enum Policy {
+        /** Wait for the tokens, up to the maximum delay, then drop */
+        DELAY,
+        /** Drop the frames over budget right away, for the lowest latency */
+        DROP
+    }
+
+    /**
+     * Receives the frames once shaped. It owns the frame afterwards.
+     */
+    public interface Sink {
+        void onSend(String event, FrameBuffer frame);
+
+        void onDrop(String event, FrameBuffer frame);
+    }
+
+    private static final long USAGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Sink mSink;
+    private ScheduledExecutorService mScheduler = null;
+
+    // Guarded by this
+    private long mBytesPerSecond = UNLIMITED;
+    private long mBurstBytes = 0;
+    private Policy mPolicy = Policy.DELAY;
+    private long mMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_DELAY_MS);
+    private double mTokens = 0;
+    private long mLastRefillNanos = System.nanoTime();
+
+    // The frame waiting for its tokens
+    private String mWaitingEvent = null;
+    private FrameBuffer mWaitingFrame = null;
+    private long mWaitingSinceNanos = 0;
+    private ScheduledFuture<?> mWaitingTask = null;
+
+    // Counters
+    private long mIntervalStartNanos = System.nanoTime();
+    private long mIntervalBytes = 0;
+    private long mLastIntervalBytes = 0;
+    private long mDelayedCount = 0;
+    private long mDroppedCount = 0;
+
+    public TokenBucketShaper(Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Sets the budget, or removes it with {@link #UNLIMITED}. The bucket starts full.
+     *
+     * @param burstBytes how much can be sent at once after an idle period, at least the size of
+     *                   the largest frames or they'd only go through when the bucket is full
+     */
+    public synchronized void setBudget(long bytesPerSecond, long burstBytes) {
+        mBytesPerSecond = Math.max(UNLIMITED, bytesPerSecond);
+        mBurstBytes = Math.max(1, burstBytes);
+        mTokens = mBurstBytes;
+        mLastRefillNanos = System.nanoTime();
+        if (mBytesPerSecond == UNLIMITED) {
+            sendWaiting();
+        } else {
+            scheduleWaiting(System.nanoTime());
+        }
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public synchronized long getBurstBytes() {
+        return mBurstBytes;
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * How long a frame may wait for its tokens with the {@link Policy#DELAY} policy before it is
+     * dropped.
+     */
+    public synchronized void setMaxDelay(long maxDelayMs) {
+        mMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMs));
+    }
+
+    public synchronized boolean isLimited() {
+        return mBytesPerSecond != UNLIMITED;
+    }
+
+    /**
+     * The tokens in the bucket, negative while paying back a debt.
+     */
+    public synchronized long getAvailableBytes() {
+        refill(System.nanoTime());
+        return (long) mTokens;
+    }
+
+    /**
+     * The bytes sent in the last second, including the control messages.
+     */
+    public synchronized long getUsedBytesPerSecond() {
+        updateInterval(System.nanoTime());
+        return mLastIntervalBytes;
+    }
+
+    /**
+     * The fraction of the budget used in the last second, 0 without budget.
+     */
+    public synchronized float getUsage() {
+        if (mBytesPerSecond == UNLIMITED) {
+            return 0;
+        }
+        return getUsedBytesPerSecond() / (float) mBytesPerSecond;
+    }
+
+    public synchronized long getDelayedCount() {
+        return mDelayedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Sends, delays or drops a frame according to its class and the budget.
+     */
+    public synchronized void offer(TrafficClass trafficClass, String event, FrameBuffer frame) {
+        long now = System.nanoTime();
+        if (mBytesPerSecond == UNLIMITED) {
+            send(event, frame, now);
+            return;
+        }
+        refill(now);
+        if (trafficClass != TrafficClass.FRAME) {
+            // The keyframe replaces the waiting frame, which would otherwise be sent after it
+            // and drawn over the fresh reference
+            cancelWaitingTask();
+            if (mWaitingFrame != null) {
+                FrameBuffer waiting = mWaitingFrame;
+                String waitingEvent = mWaitingEvent;
+                mWaitingFrame = null;
+                mWaitingEvent = null;
+                drop(waitingEvent, waiting);
+            }
+            send(event, frame, now);
+            return;
+        }
+        if (mWaitingFrame == null && hasTokensFor(frame.size())) {
+            send(event, frame, now);
+            return;
+        }
+        if (mPolicy == Policy.DROP || delayNanos(frame.size()) > mMaxDelayNanos) {
+            drop(event, frame);
+            return;
+        }
+        // The latest frame wins the waiting slot
+        if (mWaitingFrame != null) {
+            drop(mWaitingEvent, mWaitingFrame);
+        }
+        mWaitingEvent = event;
+        mWaitingFrame = frame;
+        mWaitingSinceNanos = now;
+        mDelayedCount++;
+        scheduleWaiting(now);
+    }
+
+    /**
+     * Takes the tokens of a control message, which is never held.
+     */
+    public synchronized void consume(int bytes) {
+        long now = System.nanoTime();
+        refill(now);
+        take(bytes, now);
+    }
+
+    /**
+     * Takes the tokens of a frame only if it fits the budget right now, and nothing is waiting.
+     * For the frames which can be sent later on, like the spooled ones.
+     */
+    public synchronized boolean tryConsume(int bytes) {
+        long now = System.nanoTime();
+        refill(now);
+        if (mBytesPerSecond != UNLIMITED && (mWaitingFrame != null || !hasTokensFor(bytes))) {
+            return false;
+        }
+        take(bytes, now);
+        return true;
+    }
+
+    /**
+     * Drops the waiting frame, e.g. when the connection was lost.
+     */
+    public synchronized void clear() {
+        cancelWaitingTask();
+        if (mWaitingFrame != null) {
+            mWaitingFrame.release();
+            mWaitingFrame = null;
+            mWaitingEvent = null;
+        }
+    }
+
+    /**
+     * Drops the waiting frame and stops the timer thread.
+     */
+    public synchronized void shutdown() {
+        clear();
+        if (mScheduler != null) {
+            mScheduler.shutdownNow();
+            mScheduler = null;
+        }
+    }
+
+    private void refill(long now) {
+        if (mBytesPerSecond == UNLIMITED) {
+            return;
+        }
+        double elapsed = (now - mLastRefillNanos) / 1e9;
+        mLastRefillNanos = now;
+        mTokens = Math.min(mBurstBytes, mTokens + elapsed * mBytesPerSecond);
+    }
+
+    /**
+     * A frame larger than the burst goes through once the bucket is full, and leaves it in debt.
+     */
+    private boolean hasTokensFor(int bytes) {
+        return mTokens >= Math.min(bytes, mBurstBytes);
+    }
+
+    /**
+     * How long until the bucket has the tokens of a frame of the given size.
+     */
+    private long delayNanos(int bytes) {
+        double missing = Math.min(bytes, mBurstBytes) - mTokens;
+        if (missing <= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(missing * 1e9 / mBytesPerSecond);
+    }
+
+    private void take(int bytes, long now) {
+        if (mBytesPerSecond != UNLIMITED) {
+            mTokens -= bytes;
+        }
+        updateInterval(now);
+        mIntervalBytes += bytes;
+    }
+
+    private void updateInterval(long now) {
+        long elapsed = now - mIntervalStartNanos;
+        if (elapsed >= USAGE_INTERVAL_NANOS) {
+            // Nothing was sent in the intervals skipped entirely
+            mLastIntervalBytes = elapsed < 2 * USAGE_INTERVAL_NANOS ? mIntervalBytes : 0;
+            mIntervalBytes = 0;
+            mIntervalStartNanos = now - elapsed % USAGE_INTERVAL_NANOS;
+        }
+    }
+
+    private void send(String event, FrameBuffer frame, long now) {
+        take(frame.size(), now);
+        mSink.onSend(event, frame);
+    }
+
+    private void drop(String event, FrameBuffer frame) {
+        mDroppedCount++;
+        mSink.onDrop(event, frame);
+    }
+
+    private void sendWaiting() {
+        cancelWaitingTask();
+        if (mWaitingFrame != null) {
+            FrameBuffer frame = mWaitingFrame;
+            String event = mWaitingEvent;
+            mWaitingFrame = null;
+            mWaitingEvent = null;
+            send(event, frame, System.nanoTime());
+        }
+    }
+
+    private void scheduleWaiting(long now) {
+        cancelWaitingTask();
+        if (mWaitingFrame == null) {
+            return;
+        }
+        if (mScheduler == null) {
+            mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "TokenBucketShaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        mWaitingTask = mScheduler.schedule(mWaitingRelease, delayNanos(mWaitingFrame.size()), TimeUnit.NANOSECONDS);
+    }
+
+    private void cancelWaitingTask() {
+        if (mWaitingTask != null) {
+            mWaitingTask.cancel(false);
+            mWaitingTask = null;
+        }
+    }
+
+    private final Runnable mWaitingRelease = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TokenBucketShaper.this) {
+                mWaitingTask = null;
+                if (mWaitingFrame == null) {
+                    return;
+                }
+                long now = System.nanoTime();
+                refill(now);
+                if (hasTokensFor(mWaitingFrame.size()) || mBytesPerSecond == UNLIMITED) {
+                    sendWaiting();
+                } else if (now - mWaitingSinceNanos + delayNanos(mWaitingFrame.size()) > mMaxDelayNanos) {
+                    // A control message or a keyframe took the tokens meanwhile
+                    FrameBuffer frame = mWaitingFrame;
+                    String event = mWaitingEvent;
+                    mWaitingFrame = null;
+                    mWaitingEvent = null;
+                    drop(event, frame);
+                } else {
+                    scheduleWaiting(now);
+                }
+            }
+        }
+    };
+}
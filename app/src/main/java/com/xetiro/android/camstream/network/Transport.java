@@ -0,0 +1,77 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+/**
+ * The connection the {@link ServerClient} talks to the server through. It carries two kinds of
+ * messages: named events with a few arguments (strings, numbers, booleans or JSON objects) for
+ * the authentication and the stream control, and binary frames which the server may acknowledge.
+ * <p>
+ * Implementations connect, reconnect following their {@link ReconnectPolicy} and report the
+ * connection state and the server messages to the {@link Listener} from their own thread.
+ */
+public interface Transport {
+    /**
+     * Ack id of the binary messages the server must not acknowledge.
+     */
+    public static final long NO_ACK = -1;
+
+    public interface Listener {
+        void onConnected();
+
+        void onConnectionError(String reason);
+
+        /**
+         * A reconnection attempt failed, the transport will try again.
+         */
+        void onReconnecting();
+
+        void onReconnected();
+
+        void onDisconnected(String reason);
+
+        /**
+         * The server sent one of the events the listener was registered for.
+         */
+        void onEvent(String event, Object... args);
+
+        /**
+         * The server acknowledged the binary message sent with the given ack id.
+         */
+        void onAcked(long id);
+
+        void onError(String reason);
+    }
+
+    String getId();
+
+    /**
+     * Must be called before {@link #connect()}.
+     *
+     * @param events the server events to report to {@link Listener#onEvent(String, Object...)}
+     */
+    void setListener(Listener listener, String... events);
+
+    void connect();
+
+    void disconnect();
+
+    /**
+     * Skips the remaining backoff delay and tries to reconnect right away, e.g. as soon as the
+     * network is back. Does nothing if connected or not connecting.
+     */
+    void retryNow();
+
+    boolean isConnected();
+
+    void emit(String event, Object... args);
+
+    /**
+     * Sends the valid bytes of the buffer as a binary message of the given event. The transport
+     * owns the buffer afterwards and releases it once written, even if the send fails.
+     *
+     * @param ackId the id reported to {@link Listener#onAcked(long)}, or {@link #NO_ACK}
+     * @return false if the message couldn't be sent, e.g. because the transport is disconnected.
+     */
+    boolean send(String event, FrameBuffer data, long ackId);
+}
@@ -0,0 +1,66 @@
+package com.xetiro.android.camstream.streaming;
+
+import androidx.camera.core.ImageAnalysis;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The images of the CameraX image analysis, delivered on the given executor straight from the
+ * camera buffers. The analysis stays bound in the {@link CameraSession} between the streams, so
+ * starting and stopping only gate the delivery.
+ * <p>
+ * CameraX captures at the target resolution if the camera supports it, otherwise at the one
+ * immediately above.
+ */
+public class CameraAnalysisSource implements FrameSource {
+    private final CameraSession mCameraSession;
+    private final Executor mExecutor;
+    // Only touched from the executor
+    private final SourceImage mImage = new SourceImage();
+
+    private int mTargetWidth = 640;
+    private int mTargetHeight = 480;
+    private volatile Listener mListener = null;
+
+    public CameraAnalysisSource(CameraSession cameraSession, Executor executor) {
+        mCameraSession = cameraSession;
+        mExecutor = executor;
+    }
+
+    @Override
+    public void setTargetResolution(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
+    /**
+     * Must be called from the main thread, like the other {@link CameraSession} calls.
+     */
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+        // Only rebinds the analysis if the resolution changed
+        mCameraSession.bindAnalysis(mTargetWidth, mTargetHeight, mExecutor, mAnalyzer);
+        mCameraSession.setDelivering(true);
+    }
+
+    @Override
+    public void stop() {
+        mCameraSession.setDelivering(false);
+    }
+
+    @Override
+    public void close() {
+        stop();
+        mListener = null;
+    }
+
+    private final ImageAnalysis.Analyzer mAnalyzer = image -> {
+        Listener listener = mListener;
+        if (listener != null) {
+            mImage.wrap(image);
+            listener.onImage(mImage);
+        }
+        image.close();
+    };
+}
@@ -0,0 +1,94 @@
+package com.xetiro.android.camstream.streaming;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.view.TextureView;
+import android.view.View;
+
+import androidx.camera.view.PreviewView;
+
+import com.xetiro.android.camstream.utils.BitmapPool;
+import com.xetiro.android.camstream.utils.BitmapScaler;
+
+/**
+ * The bitmaps of the camera preview, grabbed from the {@link PreviewView} on the
+ * {@link FramePacer} thread at every frame deadline, at the resolution picked by the
+ * {@link RateController}.
+ * <p>
+ * The preview is rendered in RGB, so it is delivered as a bitmap instead of a YUV image.
+ */
+public class CameraPreviewSource implements FrameSource {
+    private final PreviewView mPreviewView;
+    private final FramePacer mFramePacer;
+    private final RateController mRateController;
+    // Reused so we don't allocate bitmaps for every frame
+    private final BitmapScaler mBitmapScaler = new BitmapScaler();
+
+    public CameraPreviewSource(PreviewView previewView, FramePacer framePacer, RateController rateController) {
+        mPreviewView = previewView;
+        mFramePacer = framePacer;
+        mRateController = rateController;
+    }
+
+    /**
+     * Ignored, the rate controller picks the resolution of every frame.
+     */
+    @Override
+    public void setTargetResolution(int width, int height) {
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        // The pacer calls back at the user-defined frequency, so we don't spin between frames
+        mFramePacer.start(new FramePacer.Callback() {
+            @Override
+            public void onFrame(long deadlineNanos) {
+                // The rate controller picks the resolution the link can take
+                BitmapPool bitmapPool = BitmapPool.getInstance();
+                Bitmap bmp = bitmapPool.acquire(mRateController.getTargetWidth(),
+                        mRateController.getTargetHeight());
+                try {
+                    if (grabPreview(bmp)) {     // Otherwise the preview isn't ready yet
+                        listener.onBitmap(bmp, SystemClock.elapsedRealtimeNanos());
+                    }
+                } finally {
+                    bitmapPool.release(bmp);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        mFramePacer.stop();
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Draws the current camera preview scaled into the given bitmap.
+     *
+     * @return false if the preview isn't ready yet.
+     */
+    private boolean grabPreview(Bitmap destination) {
+        // When the preview is rendered on a TextureView it can draw straight into our bitmap,
+        // scaling included, without allocating anything
+        for (int i = 0; i < mPreviewView.getChildCount(); i++) {
+            View child = mPreviewView.getChildAt(i);
+            if (child instanceof TextureView && ((TextureView) child).isAvailable()) {
+                return ((TextureView) child).getBitmap(destination) != null;
+            }
+        }
+        // Otherwise PreviewView gives us a new bitmap, which we scale and free right away
+        Bitmap preview = mPreviewView.getBitmap();
+        if (preview == null) {
+            return false;
+        }
+        mBitmapScaler.scale(preview, destination);
+        preview.recycle();
+        return true;
+    }
+}
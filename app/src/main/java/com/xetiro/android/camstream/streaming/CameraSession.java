@@ -0,0 +1,170 @@
+package com.xetiro.android.camstream.streaming;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.Size;
+
+import androidx.camera.core.CameraSelector;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageProxy;
+import androidx.camera.core.Preview;
+import androidx.camera.lifecycle.ProcessCameraProvider;
+import androidx.core.content.ContextCompat;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the camera use cases bound for the lifetime of the activity, so starting and stopping
+ * the stream only gates the delivery of the camera images to the analyzer, instead of getting
+ * the camera provider and binding the use cases again every time.
+ * <p>
+ * The image analysis use case is bound the first time it is needed and only rebound when the
+ * resolution changes. The camera itself follows the lifecycle of the owner, so it is still
+ * released while the activity is paused.
+ * <p>
+ * All the methods must be called from the main thread.
+ */
+public class CameraSession {
+    public static String TAG = "CameraSessionDebug";
+
+    private final Context mContext;
+    private final LifecycleOwner mOwner;
+    private final CameraSelector mCameraSelector;
+
+    private ProcessCameraProvider mCameraProvider = null;
+    private ListenableFuture<ProcessCameraProvider> mCameraProviderFuture = null;
+    // Run once the camera provider is available
+    private final List<Runnable> mPendingBinds = new ArrayList<>();
+
+    private Preview mPreview = null;
+    private ImageAnalysis mImageAnalysis = null;
+    private Size mAnalysisResolution = null;
+    private ImageAnalysis.Analyzer mAnalyzer = null;
+
+    private volatile boolean mDelivering = false;
+
+    public CameraSession(Context context, LifecycleOwner owner, CameraSelector cameraSelector) {
+        mContext = context;
+        mOwner = owner;
+        mCameraSelector = cameraSelector;
+    }
+
+    /**
+     * Binds the preview to the given surface, once.
+     */
+    public void bindPreview(final Preview.SurfaceProvider surfaceProvider) {
+        if (mPreview != null) {
+            return;
+        }
+        mPreview = new Preview.Builder().build();
+        mPreview.setSurfaceProvider(surfaceProvider);
+        withCameraProvider(new Runnable() {
+            @Override
+            public void run() {
+                mCameraProvider.bindToLifecycle(mOwner, mCameraSelector, mPreview);
+            }
+        });
+    }
+
+    /**
+     * Binds the image analysis at the given target resolution, unless it is already bound at
+     * that resolution. The images go to the analyzer on the given executor while delivering, and
+     * are closed right away otherwise.
+     */
+    public void bindAnalysis(int targetWidth, int targetHeight, Executor executor, ImageAnalysis.Analyzer analyzer) {
+        mAnalyzer = analyzer;
+        final Size resolution = new Size(targetWidth, targetHeight);
+        if (mImageAnalysis != null && resolution.equals(mAnalysisResolution)) {
+            return;
+        }
+        final ImageAnalysis previous = mImageAnalysis;
+        mImageAnalysis = new ImageAnalysis.Builder()
+                .setTargetResolution(resolution)
+                .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)   // non blocking
+                .build();
+        mImageAnalysis.setAnalyzer(executor, mGate);
+        mAnalysisResolution = resolution;
+        final ImageAnalysis analysis = mImageAnalysis;
+        withCameraProvider(new Runnable() {
+            @Override
+            public void run() {
+                if (previous != null) {
+                    Log.d(TAG, "Rebinding the image analysis at " + resolution);
+                    mCameraProvider.unbind(previous);
+                }
+                mCameraProvider.bindToLifecycle(mOwner, mCameraSelector, analysis);
+            }
+        });
+    }
+
+    /**
+     * Starts or stops handing the camera images to the analyzer. Takes effect from the next
+     * image, the camera keeps running either way.
+     */
+    public void setDelivering(boolean delivering) {
+        mDelivering = delivering;
+    }
+
+    public boolean isDelivering() {
+        return mDelivering;
+    }
+
+    /**
+     * Unbinds all the use cases, e.g. when the activity is destroyed.
+     */
+    public void close() {
+        mDelivering = false;
+        mPendingBinds.clear();
+        if (mCameraProvider != null) {
+            mCameraProvider.unbindAll();
+        }
+        mPreview = null;
+        mImageAnalysis = null;
+        mAnalysisResolution = null;
+    }
+
+    private final ImageAnalysis.Analyzer mGate = new ImageAnalysis.Analyzer() {
+        @Override
+        public void analyze(ImageProxy image) {
+            ImageAnalysis.Analyzer analyzer = mAnalyzer;
+            if (mDelivering && analyzer != null) {
+                analyzer.analyze(image);    // The analyzer closes the image
+            } else {
+                image.close();
+            }
+        }
+    };
+
+    /**
+     * Runs the given bind with the camera provider, right away if it is already available.
+     */
+    private void withCameraProvider(Runnable bind) {
+        if (mCameraProvider != null) {
+            bind.run();
+            return;
+        }
+        mPendingBinds.add(bind);
+        if (mCameraProviderFuture != null) {
+            return;
+        }
+        mCameraProviderFuture = ProcessCameraProvider.getInstance(mContext);
+        mCameraProviderFuture.addListener(() -> {
+            try {
+                mCameraProvider = mCameraProviderFuture.get();
+                for (Runnable pending : mPendingBinds) {
+                    pending.run();
+                }
+            } catch (ExecutionException | InterruptedException e) {
+                Log.d(TAG, "Cannot get the camera provider: " + e.getMessage());
+                mCameraProviderFuture = null;   // Tried again on the next bind
+            }
+            mPendingBinds.clear();
+        }, ContextCompat.getMainExecutor(mContext));
+    }
+}
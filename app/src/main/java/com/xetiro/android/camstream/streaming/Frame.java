@@ -0,0 +1,51 @@
+package com.xetiro.android.camstream.streaming;
+
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+/**
+ * A frame going through the streaming pipeline, from the camera to the server.
+ * <p>
+ * The frame owns the pooled buffers it holds: the NV21 copy of the camera image until it is
+ * encoded, and the encoded payload until it is handed to the server client.
+ */
+public class Frame {
+    /**
+     * The layer of the frames of a single stream, when not simulcasting.
+     */
+    public static final int NO_LAYER = 0;
+
+    public long sequence;
+    public long timestampNanos;     // Sensor timestamp of the camera image
+    public int width;
+    public int height;
+    public int rotationDegrees;
+    public int layer = NO_LAYER;    // The simulcast layer id
+
+    public byte[] nv21;
+    public FrameBuffer encoded;     // null if there is nothing to send for this frame
+    public String encoderId;
+    public int quality;
+    public long encodeNanos;
+
+    /**
+     * Gives the NV21 buffer back to the pool once the frame is encoded.
+     */
+    public void releaseNV21(BufferPool pool) {
+        if (nv21 != null) {
+            pool.release(nv21);
+            nv21 = null;
+        }
+    }
+
+    /**
+     * Releases all the buffers still held by the frame, e.g. when it is dropped.
+     */
+    public void release(BufferPool pool) {
+        releaseNV21(pool);
+        if (encoded != null) {
+            encoded.release();
+            encoded = null;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.xetiro.android.camstream.streaming;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the frame capture to the user-defined upload frequency without busy waiting.
+ * <p>
+ * Frames are scheduled against a grid of deadlines ({@code start + n * period}) instead of
+ * "last frame + period", so the time spent capturing and sending a frame doesn't make the
+ * stream drift. When a frame takes longer than a period the slots that were skipped are
+ * counted as missed deadlines and the pacer realigns to the next slot of the grid.
+ * <p>
+ * The pacer can be used in two ways:
+ * <ul>
+ * <li>Timer driven, with {@link #start(Callback)}: the pacer calls back on its own thread at
+ * every deadline (used to grab frames from the camera preview).</li>
+ * <li>Camera driven, with {@link #tryAcquireFrame()}: the camera delivers frames at its own
+ * rate and the pacer only tells if the frame is due (used by the image analysis).</li>
+ * </ul>
+ */
+public class FramePacer {
+    public static String TAG = "FramePacerDebug";
+
+    // How often to check again while paused (frequency of 0 hz)
+    private static final long PAUSED_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    public interface Callback {
+        /**
+         * Called at every deadline from the pacer thread.
+         */
+        void onFrame(long deadlineNanos);
+    }
+
+    private final ScheduledExecutorService mScheduler;
+
+    // A period of 0 means the stream is paused
+    private volatile long mPeriodNanos = 0;
+
+    // Timer driven state, guarded by this
+    private Callback mCallback = null;
+    private ScheduledFuture<?> mTask = null;
+    private long mNextDeadline = 0;
+
+    // Camera driven state
+    private final AtomicLong mNextGateDeadline = new AtomicLong(0);
+
+    private final AtomicLong mFrameCount = new AtomicLong(0);
+    private final AtomicLong mMissedDeadlines = new AtomicLong(0);
+
+    public FramePacer() {
+        mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FramePacer");
+            thread.setPriority(Thread.NORM_PRIORITY + 1);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the delay between two frames. A period of 0 pauses the stream.
+     */
+    public void setPeriod(long period, TimeUnit unit) {
+        long periodNanos = unit.toNanos(period);
+        if (periodNanos == mPeriodNanos) {
+            return;
+        }
+        mPeriodNanos = periodNanos;
+        mNextGateDeadline.set(0);
+        synchronized (this) {
+            if (mCallback != null) {
+                // Restart the grid with the new period instead of waiting for the old deadline
+                scheduleNext(System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Starts calling the callback at every deadline until {@link #stop()} is called.
+     */
+    public synchronized void start(Callback callback) {
+        mCallback = callback;
+        scheduleNext(System.nanoTime());
+    }
+
+    public synchronized void stop() {
+        mCallback = null;
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    /**
+     * Camera driven pacing. Returns true if a frame arriving now is due and should be streamed.
+     * Safe to call from several analyzer threads at once; only one of them wins each slot.
+     */
+    public boolean tryAcquireFrame() {
+        long period = mPeriodNanos;
+        if (period == 0) {
+            return false;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long deadline = mNextGateDeadline.get();
+            if (deadline != 0 && now < deadline) {
+                return false;   // Not due yet
+            }
+            long missed = 0;
+            long next;
+            if (deadline == 0) {
+                next = now + period;
+            } else {
+                missed = (now - deadline) / period;
+                next = deadline + (missed + 1) * period;
+            }
+            if (mNextGateDeadline.compareAndSet(deadline, next)) {
+                mFrameCount.incrementAndGet();
+                if (missed > 0) {
+                    mMissedDeadlines.addAndGet(missed);
+                }
+                return true;
+            }
+        }
+    }
+
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    /**
+     * The number of frame slots that were skipped because a frame took too long, or because the
+     * camera didn't deliver a frame in time.
+     */
+    public long getMissedDeadlines() {
+        return mMissedDeadlines.get();
+    }
+
+    /**
+     * Releases the pacer thread. The pacer cannot be used afterwards.
+     */
+    public void shutdown() {
+        stop();
+        mScheduler.shutdownNow();
+    }
+
+    private void scheduleNext(long deadline) {
+        if (mTask != null) {
+            mTask.cancel(false);
+        }
+        mNextDeadline = deadline;
+        long delay = Math.max(0, deadline - System.nanoTime());
+        mTask = mScheduler.schedule(mTick, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            Callback callback;
+            long deadline;
+            synchronized (FramePacer.this) {
+                callback = mCallback;
+                deadline = mNextDeadline;
+            }
+            if (callback == null) {
+                return;
+            }
+
+            long period = mPeriodNanos;
+            if (period == 0) {
+                synchronized (FramePacer.this) {
+                    if (mCallback == callback) {
+                        scheduleNext(System.nanoTime() + PAUSED_POLL_NANOS);
+                    }
+                }
+                return;
+            }
+
+            try {
+                callback.onFrame(deadline);
+                mFrameCount.incrementAndGet();
+            } catch (RuntimeException e) {
+                Log.d(TAG, "Frame callback failed: " + e);
+            }
+
+            long now = System.nanoTime();
+            long next = deadline + period;
+            if (now > next) {
+                long missed = (now - next) / period + 1;
+                mMissedDeadlines.addAndGet(missed);
+                next += missed * period;
+                Log.d(TAG, "Missed " + missed + " frame deadline(s)");
+            }
+            synchronized (FramePacer.this) {
+                if (mCallback == callback && mNextDeadline == deadline) {
+                    scheduleNext(next);
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,589 @@
+package com.xetiro.android.camstream.streaming;
+
+import android.util.Log;
+
+import com.xetiro.android.camstream.encoding.FrameEncoder;
+import com.xetiro.android.camstream.encoding.NativeJpegEncoder;
+import com.xetiro.android.camstream.network.FrameEnvelope;
+import com.xetiro.android.camstream.network.StreamMetrics;
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+import com.xetiro.android.camstream.utils.ImageConverter;
+import com.xetiro.android.camstream.utils.YuvPlanes;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams the images of a {@link FrameSource}, usually the camera, through separate convert,
+ * encode and send stages.
+ * <p>
+ * <ul>
+ * <li>Convert: runs on the thread of the source, copies the image planes into a pooled NV21
+ * buffer so the image can be given back to the camera right away. With the
+ * {@link NativeJpegEncoder}, the images streamed as captured are encoded from their planes right
+ * here instead, which saves the copy altogether.</li>
+ * <li>Encode: a few workers encoding frames in parallel. Stateful encoders get a single worker
+ * so they see the frames in order.</li>
+ * <li>Send: a single thread reordering the encoded frames by sequence number and handing them
+ * in capture order to the {@link FrameSink}.</li>
+ * </ul>
+ * The number of frames between the convert and the send stage is bounded. When the pipeline is
+ * full the new camera frames are dropped, so a slow encode or network never blocks the camera.
+ * <p>
+ * With {@link SimulcastLayer}s, every camera image gives a frame to each layer due for one. The
+ * image is converted once, for the largest of these layers, and the smaller layers are scaled
+ * down from that frame.
+ */
+public class FramePipeline {
+    public static String TAG = "FramePipelineDebug";
+
+    private static final int DEFAULT_ENCODE_WORKERS = 2;
+    private static final int ENCODE_QUEUE_CAPACITY = 2;
+    private static final long STATS_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Receives the encoded frames in capture order on the send thread. The sink owns the
+     * encoded buffer of the frame afterwards.
+     */
+    public interface FrameSink {
+        void onFrameEncoded(Frame frame);
+    }
+
+    private final BufferPool mPool;
+    private final FrameSink mSink;
+    private final RateController mRateController;
+    private final StreamMetrics mMetrics;
+    private final int mMaxEncodeWorkers;
+
+    private final PipelineStage mConvertStage = new PipelineStage("convert", 1);
+    private PipelineStage mEncodeStage;
+    private final PipelineStage mSendStage = new PipelineStage("send", 1);
+
+    private final ExecutorService mAnalyzerExecutor = Executors.newSingleThreadExecutor();
+    // Crops, scales and rotates the camera planes on the convert stage
+    private final YuvPlanes mYuvPlanes = new YuvPlanes();
+    private volatile boolean mRotateFrames = true;
+
+    // The simulcast layers, none for a single stream. Used by the convert stage
+    private volatile SimulcastLayer[] mLayers = new SimulcastLayer[0];
+    private final YuvPlanes mLayerPlanes = new YuvPlanes();
+    private SimulcastLayer[] mDueLayers = new SimulcastLayer[0];
+    private Frame[] mLayerFrames = new Frame[0];
+
+    // Streaming session state, guarded by this
+    private volatile boolean mRunning = false;
+    private FrameEncoder mEncoder = null;
+    private Thread[] mEncodeWorkers = null;
+    private Thread mSendThread = null;
+    private long mNextSequence = 0;
+
+    // Bounds the frames between the convert and the send stage
+    private Semaphore mOutstanding;
+    private ArrayBlockingQueue<Frame> mEncodeQueue;
+
+    // The last converted frames kept aside while idle, sent when the motion starts, guarded by this
+    private Frame[] mPreRoll = new Frame[0];
+    private int mPreRollCount = 0;
+    private int mPreRollNext = 0;
+    private long mPreRollIntervalNanos = 0;
+    private long mLastRetainedNanos = 0;
+
+    // Reorder buffer, guarded by mReorderLock
+    private final Object mReorderLock = new Object();
+    private Frame[] mReorderSlots;
+    private long mNextSendSequence = 0;
+
+    public FramePipeline(BufferPool pool, RateController rateController, StreamMetrics metrics,
+                         FrameSink sink) {
+        this(pool, rateController, metrics, sink, DEFAULT_ENCODE_WORKERS);
+    }
+
+    public FramePipeline(BufferPool pool, RateController rateController, StreamMetrics metrics,
+                         FrameSink sink, int encodeWorkers) {
+        mPool = pool;
+        mRateController = rateController;
+        mMetrics = metrics;
+        mSink = sink;
+        mMaxEncodeWorkers = Math.max(1, encodeWorkers);
+        mEncodeStage = new PipelineStage("encode", mMaxEncodeWorkers);
+    }
+
+    /**
+     * Whether the frames are rotated upright before encoding, or sent as captured with their
+     * rotation in the envelope for the server to apply.
+     */
+    public void setRotateFrames(boolean rotateFrames) {
+        mRotateFrames = rotateFrames;
+    }
+
+    /**
+     * Sends each image to the given layers instead of a single stream at the resolution of the
+     * rate controller. An empty list goes back to a single stream. The layers are encoded with
+     * the pipeline encoder, which must be stateless as the layers alternate, and don't keep a
+     * pre-roll.
+     */
+    public synchronized void setLayers(List<SimulcastLayer> layers) {
+        mLayers = layers.toArray(new SimulcastLayer[0]);
+        mDueLayers = new SimulcastLayer[layers.size()];
+        mLayerFrames = new Frame[layers.size()];
+        clearPreRoll();
+    }
+
+    public List<SimulcastLayer> getLayers() {
+        return Arrays.asList(mLayers);
+    }
+
+    /**
+     * Keeps up to the given number of frames, at most one per interval, when {@link #retain}ed.
+     * Sending them when the motion starts shows what happened just before it.
+     */
+    public synchronized void setPreRoll(int frames, long interval, TimeUnit unit) {
+        if (Math.max(0, frames) == mPreRoll.length && unit.toNanos(interval) == mPreRollIntervalNanos) {
+            return;
+        }
+        clearPreRoll();
+        mPreRoll = new Frame[Math.max(0, frames)];
+        mPreRollIntervalNanos = unit.toNanos(interval);
+    }
+
+    /**
+     * The executor the camera analyzer must run on, which is the convert stage thread.
+     */
+    public Executor getAnalyzerExecutor() {
+        return mAnalyzerExecutor;
+    }
+
+    /**
+     * Starts the encode and send threads for the given encoder. The threads of a running
+     * pipeline are kept if the encoder is the same, so the pipeline can stay warm between
+     * streams.
+     */
+    public synchronized void start(FrameEncoder encoder) {
+        if (mRunning && encoder == mEncoder) {
+            return;
+        }
+        if (mRunning) {
+            stop();
+        }
+        mEncoder = encoder;
+        int workers = encoder.isStateful() ? 1 : mMaxEncodeWorkers;
+        int capacity = ENCODE_QUEUE_CAPACITY + workers + 1;
+        mOutstanding = new Semaphore(capacity);
+        mEncodeQueue = new ArrayBlockingQueue<>(capacity);
+        synchronized (mReorderLock) {
+            mReorderSlots = new Frame[capacity];
+            mNextSendSequence = 0;
+        }
+        mNextSequence = 0;
+        mEncodeStage = new PipelineStage("encode", workers);
+        mRunning = true;
+
+        mEncodeWorkers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            mEncodeWorkers[i] = new Thread(mEncodeLoop, "FrameEncoder-" + i);
+            mEncodeWorkers[i].start();
+        }
+        mSendThread = new Thread(mSendLoop, "FrameSender");
+        mSendThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        for (Thread worker : mEncodeWorkers) {
+            worker.interrupt();
+        }
+        mSendThread.interrupt();
+        try {
+            for (Thread worker : mEncodeWorkers) {
+                worker.join();
+            }
+            mSendThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Give back the buffers of the frames still in the pipeline
+        Frame frame;
+        while ((frame = mEncodeQueue.poll()) != null) {
+            frame.release(mPool);
+        }
+        synchronized (mReorderLock) {
+            for (int i = 0; i < mReorderSlots.length; i++) {
+                if (mReorderSlots[i] != null) {
+                    mReorderSlots[i].release(mPool);
+                    mReorderSlots[i] = null;
+                }
+            }
+        }
+        clearPreRoll();
+        mEncodeWorkers = null;
+        mSendThread = null;
+    }
+
+    /**
+     * Stops the pipeline and releases the analyzer thread. It cannot be used afterwards.
+     */
+    public void shutdown() {
+        stop();
+        mAnalyzerExecutor.shutdown();
+    }
+
+    /**
+     * Convert stage, called from the thread of the source. Copies the image into the pipeline, the
+     * caller still owns the image and must close it.
+     *
+     * @return false if the frame was dropped because the pipeline is full or not running.
+     */
+    public synchronized boolean submit(SourceImage image) {
+        if (!mRunning) {
+            return false;
+        }
+        // The pre-roll frames older than this one can't be sent after it anymore
+        dropPreRoll(image.getTimestampNanos());
+        if (mLayers.length > 0) {
+            return submitLayers(image);
+        }
+        if (!mOutstanding.tryAcquire()) {
+            mConvertStage.recordDropped();
+            mMetrics.recordDropped();
+            return false;
+        }
+        long start = System.nanoTime();
+        Frame frame = describe(image, mRateController.getTargetWidth(), mRateController.getTargetHeight());
+        frame.sequence = mNextSequence++;
+        if (mEncoder instanceof NativeJpegEncoder && mYuvPlanes.isIdentity()) {
+            // Nothing to crop, scale or rotate, the planes are encoded as they are
+            encodePlanes((NativeJpegEncoder) mEncoder, image, frame);
+            mConvertStage.recordProcessed(System.nanoTime() - start);
+            mMetrics.recordEncode(frame.encodeNanos);
+            reorder(frame);
+            return true;
+        }
+        frame.nv21 = ImageConverter.acquireNV21(image, mYuvPlanes, mPool);
+        mEncodeQueue.add(frame);    // Never full, the semaphore bounds the frames in the pipeline
+        long duration = System.nanoTime() - start;
+        mConvertStage.recordProcessed(duration);
+        mMetrics.recordConvert(duration);
+        mMetrics.setEncodeQueueDepth(mEncodeQueue.size());
+        return true;
+    }
+
+    /**
+     * Converts the image into the pre-roll, without sending it, replacing the oldest pre-roll
+     * frame when full. Images arriving less than the pre-roll interval after the last one kept
+     * are skipped, and the frames older than the pre-roll window before this image are dropped.
+     * The caller still owns the image and must close it.
+     */
+    public synchronized void retain(SourceImage image) {
+        long timestamp = image.getTimestampNanos();
+        if (!mRunning || mPreRoll.length == 0 || mLayers.length > 0
+                || (mPreRollCount > 0 && timestamp - mLastRetainedNanos < mPreRollIntervalNanos)) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (mPreRoll[mPreRollNext] != null) {
+            mPreRoll[mPreRollNext].release(mPool);
+        } else {
+            mPreRollCount++;
+        }
+        mPreRoll[mPreRollNext] = convert(image, mRateController.getTargetWidth(),
+                mRateController.getTargetHeight());
+        mPreRollNext = (mPreRollNext + 1) % mPreRoll.length;
+        mLastRetainedNanos = timestamp;
+        if (mPreRollIntervalNanos > 0) {
+            // After a gap, e.g. while something moved, the frames before it no longer lead to this one
+            dropPreRoll(timestamp - mPreRoll.length * mPreRollIntervalNanos);
+        }
+        mMetrics.recordConvert(System.nanoTime() - start);
+    }
+
+    /**
+     * Sends the pre-roll frames, oldest first, as far as the pipeline has room for them.
+     */
+    public synchronized void flushPreRoll() {
+        int first = (mPreRollNext - mPreRollCount + mPreRoll.length) % Math.max(1, mPreRoll.length);
+        for (int i = 0; i < mPreRollCount; i++) {
+            int slot = (first + i) % mPreRoll.length;
+            Frame frame = mPreRoll[slot];
+            mPreRoll[slot] = null;
+            if (mRunning && mOutstanding.tryAcquire()) {
+                frame.sequence = mNextSequence++;
+                mEncodeQueue.add(frame);
+            } else {
+                mConvertStage.recordDropped();
+                mMetrics.recordDropped();
+                frame.release(mPool);
+            }
+        }
+        mPreRollCount = 0;
+        mPreRollNext = 0;
+    }
+
+    /**
+     * Drops the pre-roll frames captured up to the given timestamp, oldest first.
+     */
+    private void dropPreRoll(long timestampNanos) {
+        while (mPreRollCount > 0) {
+            int oldest = (mPreRollNext - mPreRollCount + mPreRoll.length) % mPreRoll.length;
+            if (mPreRoll[oldest].timestampNanos > timestampNanos) {
+                return;
+            }
+            mPreRoll[oldest].release(mPool);
+            mPreRoll[oldest] = null;
+            mPreRollCount--;
+        }
+    }
+
+    /**
+     * Drops the pre-roll frames, e.g. when the stream stops while the pipeline is kept running.
+     */
+    public synchronized void clearPreRoll() {
+        for (int i = 0; i < mPreRoll.length; i++) {
+            if (mPreRoll[i] != null) {
+                mPreRoll[i].release(mPool);
+                mPreRoll[i] = null;
+            }
+        }
+        mPreRollCount = 0;
+        mPreRollNext = 0;
+    }
+
+    /**
+     * Converts the image once for all the layers due, and queues a frame per layer.
+     */
+    private boolean submitLayers(SourceImage image) {
+        long timestamp = image.getTimestampNanos();
+        SimulcastLayer largest = null;
+        int due = 0;
+        for (SimulcastLayer layer : mLayers) {
+            if (layer.isDue(timestamp)) {
+                mDueLayers[due++] = layer;
+                if (largest == null || layer.getWidth() * layer.getHeight() > largest.getWidth() * largest.getHeight()) {
+                    largest = layer;
+                }
+            }
+        }
+        if (due == 0) {
+            return false;
+        }
+        if (!mOutstanding.tryAcquire(due)) {
+            mConvertStage.recordDropped();
+            mMetrics.recordDropped();
+            return false;
+        }
+        long start = System.nanoTime();
+        Frame source = convert(image, largest.getWidth(), largest.getHeight());
+        // The smaller layers are scaled from the source before it is queued and encoded
+        for (int i = 0; i < due; i++) {
+            SimulcastLayer layer = mDueLayers[i];
+            mLayerFrames[i] = layer == largest ? source : scale(source, layer);
+        }
+        for (int i = 0; i < due; i++) {
+            Frame frame = mLayerFrames[i];
+            SimulcastLayer layer = mDueLayers[i];
+            frame.layer = layer.getId();
+            frame.quality = layer.getQuality();
+            frame.sequence = mNextSequence++;
+            layer.onFrame(timestamp);
+            mEncodeQueue.add(frame);
+            mLayerFrames[i] = null;
+            mDueLayers[i] = null;
+        }
+        long duration = System.nanoTime() - start;
+        mConvertStage.recordProcessed(duration);
+        mMetrics.recordConvert(duration);
+        mMetrics.setEncodeQueueDepth(mEncodeQueue.size());
+        return true;
+    }
+
+    /**
+     * Scales a converted frame down to the resolution of a layer, keeping its orientation.
+     */
+    private Frame scale(Frame source, SimulcastLayer layer) {
+        // The layer resolution is in landscape, the source may already be rotated to portrait
+        boolean portrait = source.height > source.width;
+        mLayerPlanes.configureCenterCrop(source.width, source.height, 0,
+                portrait ? layer.getHeight() : layer.getWidth(), portrait ? layer.getWidth() : layer.getHeight());
+        Frame frame = new Frame();
+        frame.timestampNanos = source.timestampNanos;
+        frame.rotationDegrees = source.rotationDegrees;
+        frame.width = mLayerPlanes.getOutputWidth();
+        frame.height = mLayerPlanes.getOutputHeight();
+        frame.nv21 = mPool.acquire(mLayerPlanes.getOutputSize());
+        mLayerPlanes.toNV21(source.nv21, frame.nv21);
+        return frame;
+    }
+
+    /**
+     * Copies the image into a new frame, cropped, scaled and rotated for the stream at the given
+     * target resolution.
+     */
+    private Frame convert(SourceImage image, int targetWidth, int targetHeight) {
+        Frame frame = describe(image, targetWidth, targetHeight);
+        frame.nv21 = ImageConverter.acquireNV21(image, mYuvPlanes, mPool);
+        return frame;
+    }
+
+    /**
+     * Creates the frame of the image at the given target resolution, without its pixels, and
+     * configures the planes conversion for it.
+     */
+    private Frame describe(SourceImage image, int targetWidth, int targetHeight) {
+        Frame frame = new Frame();
+        frame.timestampNanos = image.getTimestampNanos();
+        int rotation = image.getRotationDegrees();
+        int appliedRotation = mRotateFrames ? rotation : 0;
+        // The camera gives us the resolution above the one we asked for, so we crop and scale to
+        // the target resolution, on the planes before anything else
+        mYuvPlanes.configureCenterCrop(image.getWidth(), image.getHeight(), appliedRotation,
+                targetWidth, targetHeight);
+        frame.rotationDegrees = rotation - appliedRotation;
+        frame.width = mYuvPlanes.getOutputWidth();
+        frame.height = mYuvPlanes.getOutputHeight();
+        return frame;
+    }
+
+    public PipelineStage[] getStages() {
+        return new PipelineStage[]{mConvertStage, mEncodeStage, mSendStage};
+    }
+
+    /**
+     * The number of frames waiting to be encoded.
+     */
+    public int getEncodeQueueDepth() {
+        ArrayBlockingQueue<Frame> queue = mEncodeQueue;
+        return queue != null ? queue.size() : 0;
+    }
+
+    private final Runnable mEncodeLoop = new Runnable() {
+        @Override
+        public void run() {
+            FrameEncoder encoder = mEncoder;
+            ArrayBlockingQueue<Frame> queue = mEncodeQueue;
+            PipelineStage stage = mEncodeStage;
+            while (mRunning) {
+                Frame frame;
+                try {
+                    frame = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long start = System.nanoTime();
+                encode(encoder, frame);
+                frame.encodeNanos = System.nanoTime() - start;
+                stage.recordProcessed(frame.encodeNanos);
+                mMetrics.recordEncode(frame.encodeNanos);
+                mMetrics.setEncodeQueueDepth(queue.size());
+                reorder(frame);
+            }
+        }
+    };
+
+    /**
+     * Hands an encoded frame to the send stage. Even frames with nothing to send go to the
+     * reorder buffer so it doesn't wait for them.
+     */
+    private void reorder(Frame frame) {
+        synchronized (mReorderLock) {
+            mReorderSlots[(int) (frame.sequence % mReorderSlots.length)] = frame;
+            mReorderLock.notifyAll();
+        }
+    }
+
+    private void encode(FrameEncoder encoder, Frame frame) {
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        FrameEnvelope.reserveHeader(out);
+        frame.encoderId = encoder.getId();
+        if (frame.layer == Frame.NO_LAYER) {
+            frame.quality = mRateController.getQuality();
+        }
+        try {
+            if (encoder.encode(frame.nv21, frame.width, frame.height, frame.quality, out)) {
+                frame.encoded = out;
+            } else {
+                out.release();
+            }
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Failed to encode frame " + frame.sequence + ": " + e);
+            out.release();
+        }
+        frame.releaseNV21(mPool);
+    }
+
+    /**
+     * Encodes the image planes straight into the frame, on the convert stage.
+     */
+    private void encodePlanes(NativeJpegEncoder encoder, SourceImage image, Frame frame) {
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        FrameEnvelope.reserveHeader(out);
+        frame.encoderId = encoder.getId();
+        frame.quality = mRateController.getQuality();
+        long start = System.nanoTime();
+        try {
+            encoder.encodePlanes(image.getBuffer(0), image.getRowStride(0), image.getPixelStride(0),
+                    image.getBuffer(1), image.getRowStride(1), image.getPixelStride(1),
+                    image.getBuffer(2), image.getRowStride(2), image.getPixelStride(2),
+                    frame.width, frame.height, frame.quality, out);
+            frame.encoded = out;
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Failed to encode frame " + frame.sequence + ": " + e);
+            out.release();
+        }
+        frame.encodeNanos = System.nanoTime() - start;
+    }
+
+    private final Runnable mSendLoop = new Runnable() {
+        @Override
+        public void run() {
+            long lastStatsLog = System.nanoTime();
+            while (mRunning) {
+                Frame frame;
+                try {
+                    synchronized (mReorderLock) {
+                        int slot = (int) (mNextSendSequence % mReorderSlots.length);
+                        while (mReorderSlots[slot] == null) {
+                            mReorderLock.wait();
+                        }
+                        frame = mReorderSlots[slot];
+                        mReorderSlots[slot] = null;
+                        mNextSendSequence++;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long start = System.nanoTime();
+                if (frame.encoded != null) {
+                    mSink.onFrameEncoded(frame);
+                    frame.encoded = null;   // The sink owns it now
+                }
+                mOutstanding.release();
+                mSendStage.recordProcessed(System.nanoTime() - start);
+
+                if (start - lastStatsLog > STATS_LOG_INTERVAL_NANOS) {
+                    lastStatsLog = start;
+                    logStages();
+                }
+            }
+        }
+    };
+
+    private void logStages() {
+        StringBuilder builder = new StringBuilder("Stage utilization:");
+        for (PipelineStage stage : getStages()) {
+            builder.append(' ').append(stage.getName()).append('=')
+                    .append(Math.round(stage.sampleUtilization() * 100)).append('%')
+                    .append(" (dropped ").append(stage.getDroppedCount()).append(')');
+        }
+        Log.d(TAG, builder.toString());
+    }
+}
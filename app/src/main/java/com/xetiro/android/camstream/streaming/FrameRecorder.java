@@ -0,0 +1,222 @@
+package com.xetiro.android.camstream.streaming;
+
+import android.util.Log;
+
+import com.xetiro.android.camstream.utils.BufferPool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the images of a source into an indexed file, which {@link ReplayFrameSource} plays
+ * back. The images are copied on the caller thread and written on a thread of the recorder, so
+ * a slow storage drops images instead of blocking the camera.
+ * <p>
+ * The file is little endian:
+ * <ul>
+ * <li>A header: the magic, the version, the number of frames and the offset of the index.</li>
+ * <li>The frames, each one tightly packed planar YUV 4:2:0 (I420): the Y plane, then U, then V.</li>
+ * <li>The index, an entry per frame: its offset, capture timestamp, width, height and rotation.</li>
+ * </ul>
+ * The header and the index are only written on {@link #close()}, a recording that wasn't closed
+ * cannot be replayed.
+ */
+public class FrameRecorder implements Closeable {
+    public static String TAG = "FrameRecorderDebug";
+
+    static final int MAGIC = 0x43534652;   // "CSFR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int INDEX_ENTRY_SIZE = 28;
+
+    // The images copied but not written yet
+    private static final int MAX_PENDING_FRAMES = 8;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final BufferPool mPool;
+    private final ExecutorService mWriter;
+    private final Semaphore mPending = new Semaphore(MAX_PENDING_FRAMES);
+
+    // Only touched from the writer thread
+    private long mWriteOffset = HEADER_SIZE;
+    private ByteBuffer mIndex = ByteBuffer.allocate(64 * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private int mFrameCount = 0;
+    private IOException mWriteError = null;
+
+    private volatile int mDroppedCount = 0;
+    private boolean mClosed = false;
+
+    public FrameRecorder(File file, BufferPool pool) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mPool = pool;
+        mWriter = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "FrameRecorder"));
+    }
+
+    /**
+     * The size of an I420 frame of the given resolution, which must be even.
+     */
+    public static int I420Size(int width, int height) {
+        return width * height + 2 * (width / 2) * (height / 2);
+    }
+
+    /**
+     * Copies the image and queues it for writing. The caller still owns the image.
+     *
+     * @return false if the image was dropped because the writer is behind or closed.
+     */
+    public boolean record(SourceImage image) {
+        synchronized (this) {
+            if (mClosed || !mPending.tryAcquire()) {
+                mDroppedCount++;
+                return false;
+            }
+        }
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final long timestamp = image.getTimestampNanos();
+        final int rotation = image.getRotationDegrees();
+        final byte[] i420 = mPool.acquire(I420Size(width, height));
+        int offset = copyPlane(image, 0, width, height, i420, 0);
+        offset = copyPlane(image, 1, width / 2, height / 2, i420, offset);
+        copyPlane(image, 2, width / 2, height / 2, i420, offset);
+        synchronized (this) {
+            // Closed while copying, the writer no longer takes any task
+            if (mClosed) {
+                mPool.release(i420);
+                mPending.release();
+                mDroppedCount++;
+                return false;
+            }
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(i420, timestamp, width, height, rotation);
+                    } finally {
+                        mPool.release(i420);
+                        mPending.release();
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * The number of images dropped because the writer was behind.
+     */
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Writes the images still queued, then the index and the header, and closes the file. Fails
+     * without writing the index if the writer doesn't finish in time, since it would still be
+     * appending frames past it.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        mWriter.shutdown();
+        boolean terminated = false;
+        try {
+            terminated = mWriter.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (!terminated) {
+                mWriter.shutdownNow();
+                throw new IOException("The writer did not finish, the recording is incomplete");
+            }
+            if (mWriteError != null) {
+                throw mWriteError;
+            }
+            mIndex.flip();
+            long indexOffset = mWriteOffset;
+            writeFully(mIndex, indexOffset);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(mFrameCount);
+            header.putInt(0);   // Reserved
+            header.putLong(indexOffset);
+            header.flip();
+            writeFully(header, 0);
+            Log.d(TAG, "Recorded " + mFrameCount + " frames, dropped " + mDroppedCount);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private void write(byte[] i420, long timestamp, int width, int height, int rotation) {
+        if (mWriteError != null) {
+            return;
+        }
+        try {
+            writeFully(ByteBuffer.wrap(i420), mWriteOffset);
+        } catch (IOException e) {
+            Log.d(TAG, "Cannot write the frame: " + e.getMessage());
+            mWriteError = e;
+            return;
+        }
+        if (mIndex.remaining() < INDEX_ENTRY_SIZE) {
+            ByteBuffer index = ByteBuffer.allocate(2 * mIndex.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+            mIndex.flip();
+            index.put(mIndex);
+            mIndex = index;
+        }
+        mIndex.putLong(mWriteOffset);
+        mIndex.putLong(timestamp);
+        mIndex.putInt(width);
+        mIndex.putInt(height);
+        mIndex.putInt(rotation);
+        mWriteOffset += i420.length;
+        mFrameCount++;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Copies a plane of the image, without its padding, and returns the offset after it.
+     */
+    private static int copyPlane(SourceImage image, int plane, int width, int height, byte[] out, int offset) {
+        ByteBuffer buffer = image.getBuffer(plane).duplicate();
+        int rowStride = image.getRowStride(plane);
+        int pixelStride = image.getPixelStride(plane);
+        for (int y = 0; y < height; y++) {
+            int row = y * rowStride;
+            if (pixelStride == 1) {
+                buffer.position(row);
+                buffer.get(out, offset, width);
+                offset += width;
+            } else {
+                for (int x = 0; x < width; x++) {
+                    out[offset++] = buffer.get(row + x * pixelStride);
+                }
+            }
+        }
+        return offset;
+    }
+}
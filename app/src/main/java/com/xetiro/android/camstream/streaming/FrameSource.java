@@ -0,0 +1,46 @@
+package com.xetiro.android.camstream.streaming;
+
+import android.graphics.Bitmap;
+
+/**
+ * Where the streamed frames come from: the camera, through the preview or the image analysis,
+ * a replay of a recorded capture, or a synthetic pattern. The last two stream a reproducible
+ * load without a camera, for tuning and regression tests.
+ * <p>
+ * The YUV sources deliver their images at their own rate, and the listener picks the ones to
+ * stream. The camera preview is grabbed as a bitmap, only when a frame is due.
+ */
+public interface FrameSource {
+    /**
+     * Called from the thread of the source, one image at a time.
+     */
+    interface Listener {
+        /**
+         * A new YUV image, only valid during the call.
+         */
+        void onImage(SourceImage image);
+
+        /**
+         * A new bitmap of the camera preview, due for streaming. Only valid during the call.
+         */
+        void onBitmap(Bitmap bitmap, long timestampNanos);
+    }
+
+    /**
+     * Sets the resolution to capture at, from the next start. Ignored by the sources with a
+     * fixed resolution, like the replays.
+     */
+    void setTargetResolution(int width, int height);
+
+    void start(Listener listener);
+
+    /**
+     * Stops delivering, the source can be started again.
+     */
+    void stop();
+
+    /**
+     * Releases the resources of the source. It cannot be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,222 @@
+package com.xetiro.android.camstream.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells if something moves in front of the camera, cheaply enough to run on every camera frame
+ * before it is converted.
+ * <p>
+ * The luma plane is subsampled to a small grid, which is split in blocks. Each block is compared
+ * to a running average of the previous frames (the background) with the sum of absolute
+ * differences, and a block whose average difference is above the sensitivity threshold changed.
+ * The background follows slow changes like the daylight, so they are not taken for motion.
+ * <p>
+ * The motion state has hysteresis: it becomes active after a few frames with changed blocks in a
+ * row, so a single noisy frame doesn't start the stream, and goes idle only once nothing moved
+ * for the hold time. Blocks in the ignored regions (e.g. a clock or a tree) never count.
+ * <p>
+ * An instance is not thread safe, it must be fed from the analyzer thread.
+ */
+public class MotionDetector {
+    public static final int GRID_WIDTH = 64;
+    public static final int GRID_HEIGHT = 48;
+    public static final int BLOCK_SIZE = 8;
+    public static final int BLOCK_COLUMNS = GRID_WIDTH / BLOCK_SIZE;
+    public static final int BLOCK_ROWS = GRID_HEIGHT / BLOCK_SIZE;
+
+    public static final int DEFAULT_SENSITIVITY = 12;
+    public static final int DEFAULT_MIN_CHANGED_BLOCKS = 1;
+    public static final int DEFAULT_ACTIVATION_FRAMES = 2;
+    public static final long DEFAULT_HOLD_MS = 3000;
+
+    // The background moves 1/16 of the way to every new frame, in fixed point with 4 bits
+    private static final int BACKGROUND_SHIFT = 4;
+
+    public interface Listener {
+        /**
+         * Called from the thread feeding the detector when the motion starts or ends.
+         */
+        void onMotionChanged(boolean active);
+    }
+
+    private Listener mListener = null;
+    private int mSensitivity = DEFAULT_SENSITIVITY;
+    private int mMinChangedBlocks = DEFAULT_MIN_CHANGED_BLOCKS;
+    private int mActivationFrames = DEFAULT_ACTIVATION_FRAMES;
+    private long mHoldNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_HOLD_MS);
+    private final boolean[] mIgnored = new boolean[BLOCK_COLUMNS * BLOCK_ROWS];
+
+    // Offsets of the grid samples in the plane, for the current plane geometry
+    private final int[] mColumnOffsets = new int[GRID_WIDTH];
+    private final int[] mRowOffsets = new int[GRID_HEIGHT];
+    private int mWidth = -1;
+    private int mHeight = -1;
+    private int mRowStride = -1;
+    private int mPixelStride = -1;
+
+    private final int[] mBackground = new int[GRID_WIDTH * GRID_HEIGHT];
+    private final int[] mBlockSad = new int[BLOCK_COLUMNS * BLOCK_ROWS];
+    private boolean mHasBackground = false;
+
+    private volatile boolean mActive = false;
+    private int mMotionFrames = 0;
+    private long mLastMotionNanos = 0;
+    private int mChangedBlocks = 0;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * The average luma difference, from 0 to 255, above which a block changed. The lower, the
+     * more sensitive.
+     */
+    public void setSensitivity(int threshold) {
+        mSensitivity = Math.max(1, threshold);
+    }
+
+    /**
+     * The number of changed blocks a frame needs to count as a motion frame.
+     */
+    public void setMinChangedBlocks(int blocks) {
+        mMinChangedBlocks = Math.max(1, blocks);
+    }
+
+    /**
+     * The number of motion frames in a row that start the motion.
+     */
+    public void setActivationFrames(int frames) {
+        mActivationFrames = Math.max(1, frames);
+    }
+
+    /**
+     * How long the motion lasts after the last motion frame.
+     */
+    public void setHoldTime(long holdMs) {
+        mHoldNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, holdMs));
+    }
+
+    /**
+     * Ignores the blocks overlapping the given region, in fractions of the frame from 0 to 1 in
+     * the orientation of the sensor.
+     */
+    public void addIgnoredRegion(float left, float top, float right, float bottom) {
+        int column0 = Math.max(0, (int) (left * BLOCK_COLUMNS));
+        int column1 = Math.min(BLOCK_COLUMNS, (int) Math.ceil(right * BLOCK_COLUMNS));
+        int row0 = Math.max(0, (int) (top * BLOCK_ROWS));
+        int row1 = Math.min(BLOCK_ROWS, (int) Math.ceil(bottom * BLOCK_ROWS));
+        for (int row = row0; row < row1; row++) {
+            for (int column = column0; column < column1; column++) {
+                mIgnored[row * BLOCK_COLUMNS + column] = true;
+            }
+        }
+    }
+
+    public void clearIgnoredRegions() {
+        for (int i = 0; i < mIgnored.length; i++) {
+            mIgnored[i] = false;
+        }
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * The number of blocks that changed in the last frame.
+     */
+    public int getChangedBlocks() {
+        return mChangedBlocks;
+    }
+
+    /**
+     * Forgets the background and goes idle, e.g. when the camera changes.
+     */
+    public void reset() {
+        mHasBackground = false;
+        mMotionFrames = 0;
+        mChangedBlocks = 0;
+        setActive(false);
+    }
+
+    /**
+     * Compares a luma plane to the background and updates the motion state. The plane is read
+     * with absolute positions, from index 0.
+     *
+     * @return true while there is motion.
+     */
+    public boolean analyze(ByteBuffer yPlane, int rowStride, int pixelStride, int width, int height,
+                           long timestampNanos) {
+        if (width != mWidth || height != mHeight || rowStride != mRowStride || pixelStride != mPixelStride) {
+            configure(width, height, rowStride, pixelStride);
+        }
+
+        for (int i = 0; i < mBlockSad.length; i++) {
+            mBlockSad[i] = 0;
+        }
+        int index = 0;
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            int rowOffset = mRowOffsets[gy];
+            int blockRow = (gy / BLOCK_SIZE) * BLOCK_COLUMNS;
+            for (int gx = 0; gx < GRID_WIDTH; gx++, index++) {
+                int luma = (yPlane.get(rowOffset + mColumnOffsets[gx]) & 0xff) << BACKGROUND_SHIFT;
+                // The first frame is the background
+                int background = mHasBackground ? mBackground[index] : luma;
+                mBlockSad[blockRow + gx / BLOCK_SIZE] += Math.abs(luma - background);
+                mBackground[index] = background + ((luma - background) >> BACKGROUND_SHIFT);
+            }
+        }
+        if (!mHasBackground) {
+            mHasBackground = true;
+            return mActive;
+        }
+
+        int threshold = (mSensitivity * BLOCK_SIZE * BLOCK_SIZE) << BACKGROUND_SHIFT;
+        int changed = 0;
+        for (int i = 0; i < mBlockSad.length; i++) {
+            if (!mIgnored[i] && mBlockSad[i] > threshold) {
+                changed++;
+            }
+        }
+        mChangedBlocks = changed;
+
+        if (changed >= mMinChangedBlocks) {
+            mMotionFrames++;
+            mLastMotionNanos = timestampNanos;
+        } else {
+            mMotionFrames = 0;
+        }
+        if (!mActive && mMotionFrames >= mActivationFrames) {
+            setActive(true);
+        } else if (mActive && timestampNanos - mLastMotionNanos > mHoldNanos) {
+            setActive(false);
+        }
+        return mActive;
+    }
+
+    private void configure(int width, int height, int rowStride, int pixelStride) {
+        mWidth = width;
+        mHeight = height;
+        mRowStride = rowStride;
+        mPixelStride = pixelStride;
+        // The center of each grid cell
+        for (int gx = 0; gx < GRID_WIDTH; gx++) {
+            mColumnOffsets[gx] = (int) (((2L * gx + 1) * width) / (2 * GRID_WIDTH)) * pixelStride;
+        }
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            mRowOffsets[gy] = (int) (((2L * gy + 1) * height) / (2 * GRID_HEIGHT)) * rowStride;
+        }
+        mHasBackground = false;
+    }
+
+    private void setActive(boolean active) {
+        if (mActive != active) {
+            mActive = active;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onMotionChanged(active);
+            }
+        }
+    }
+}
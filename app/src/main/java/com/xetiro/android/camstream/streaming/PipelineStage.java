@@ -0,0 +1,61 @@
+package com.xetiro.android.camstream.streaming;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Utilization and counters of a stage of the {@link FramePipeline}.
+ * <p>
+ * The utilization is the fraction of the wall time the stage workers spent processing frames
+ * since the previous sample. A stage close to 1 is the bottleneck of the pipeline.
+ */
+public class PipelineStage {
+    private final String mName;
+    private final int mWorkers;
+
+    private final AtomicLong mBusyNanos = new AtomicLong(0);
+    private final AtomicLong mProcessedCount = new AtomicLong(0);
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+
+    // Last utilization sample, guarded by this
+    private long mLastSampleTime = System.nanoTime();
+    private long mLastSampleBusy = 0;
+
+    PipelineStage(String name, int workers) {
+        mName = name;
+        mWorkers = workers;
+    }
+
+    void recordProcessed(long busyNanos) {
+        mBusyNanos.addAndGet(busyNanos);
+        mProcessedCount.incrementAndGet();
+    }
+
+    void recordDropped() {
+        mDroppedCount.incrementAndGet();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getProcessedCount() {
+        return mProcessedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns the utilization of the stage from 0 to 1 since the previous call.
+     */
+    public synchronized float sampleUtilization() {
+        long now = System.nanoTime();
+        long busy = mBusyNanos.get();
+        long elapsed = (now - mLastSampleTime) * mWorkers;
+        float utilization = elapsed > 0 ? (float) (busy - mLastSampleBusy) / elapsed : 0;
+        mLastSampleTime = now;
+        mLastSampleBusy = busy;
+        return Math.min(1f, utilization);
+    }
+}
@@ -0,0 +1,184 @@
+package com.xetiro.android.camstream.streaming;
+
+import com.xetiro.android.camstream.network.SendWindow;
+
+/**
+ * Closed-loop controller adapting the JPEG quality and the streamed resolution to the measured
+ * link capacity.
+ * <p>
+ * The controller listens to the {@link SendWindow}: every acknowledged frame gives a round trip
+ * time and some acknowledged bytes, every lost frame means the link couldn't keep up. Once per
+ * control interval it decides if the link is congested (latency or bitrate above target, or
+ * frames lost) and steps down, first the quality and then the resolution. When the link has
+ * headroom it steps back up the same way. The resolution picked by the user is the upper bound
+ * and the frequency is left to the user, so the controller never goes above the user settings.
+ */
+public class RateController implements SendWindow.Listener {
+    public static final int DEFAULT_MAX_QUALITY = 90;
+    public static final int DEFAULT_MIN_QUALITY = 30;
+
+    private static final int QUALITY_STEP_DOWN = 10;
+    private static final int QUALITY_STEP_UP = 5;
+    private static final long CONTROL_INTERVAL_NANOS = 500 * 1000000L;
+    private static final long DEFAULT_TARGET_LATENCY_MS = 250;
+
+    // Fractions of the user resolution we step through, from full resolution to the smallest one
+    private static final int[] SCALE_NUMERATORS = {4, 3, 2, 1};
+    private static final int SCALE_DENOMINATOR = 4;
+
+    private long mTargetLatencyNanos = DEFAULT_TARGET_LATENCY_MS * 1000000L;
+    private long mTargetBitrate = 0;   // bytes per second, 0 means latency driven only
+    private int mMinQuality = DEFAULT_MIN_QUALITY;
+    private int mMaxQuality = DEFAULT_MAX_QUALITY;
+
+    // Upper bounds selected by the user
+    private int mMaxWidth = 320;
+    private int mMaxHeight = 240;
+
+    // Outputs, read by the capture threads
+    private volatile int mQuality = DEFAULT_MAX_QUALITY;
+    private volatile int mScaleLevel = 0;
+    private volatile int mTargetWidth = 320;
+    private volatile int mTargetHeight = 240;
+
+    // Measurements of the current control interval, guarded by this
+    private long mIntervalStart = System.nanoTime();
+    private long mAckedBytes = 0;
+    private int mAckedFrames = 0;
+    private int mLostFrames = 0;
+    private int mMaxQueued = 0;
+    private double mSmoothedRoundTripNanos = 0;
+
+    // Last estimations, for observability
+    private volatile long mThroughput = 0;
+    private volatile long mRoundTripMs = 0;
+
+    public synchronized void setTargetLatency(long targetLatencyMs) {
+        mTargetLatencyNanos = targetLatencyMs * 1000000L;
+    }
+
+    /**
+     * Sets a target bitrate in bytes per second. The controller treats the link as congested
+     * when the measured throughput goes above it. 0 disables it.
+     */
+    public synchronized void setTargetBitrate(long bytesPerSecond) {
+        mTargetBitrate = bytesPerSecond;
+    }
+
+    public synchronized void setQualityRange(int minQuality, int maxQuality) {
+        mMinQuality = minQuality;
+        mMaxQuality = maxQuality;
+        mQuality = clamp(mQuality, mMinQuality, mMaxQuality);
+    }
+
+    /**
+     * Sets the resolution selected by the user, which the controller never exceeds.
+     */
+    public synchronized void setMaxResolution(int width, int height) {
+        mMaxWidth = width;
+        mMaxHeight = height;
+        updateTargetResolution();
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    public int getTargetWidth() {
+        return mTargetWidth;
+    }
+
+    public int getTargetHeight() {
+        return mTargetHeight;
+    }
+
+    /**
+     * The acknowledged bytes per second measured in the last control interval.
+     */
+    public long getThroughput() {
+        return mThroughput;
+    }
+
+    public long getRoundTripMs() {
+        return mRoundTripMs;
+    }
+
+    @Override
+    public synchronized void onFrameAcked(int size, long roundTripNanos, int inFlight, int queued) {
+        mAckedBytes += size;
+        mAckedFrames++;
+        mMaxQueued = Math.max(mMaxQueued, queued);
+        if (mSmoothedRoundTripNanos == 0) {
+            mSmoothedRoundTripNanos = roundTripNanos;
+        } else {
+            mSmoothedRoundTripNanos += (roundTripNanos - mSmoothedRoundTripNanos) / 8;
+        }
+        control(System.nanoTime());
+    }
+
+    @Override
+    public synchronized void onFrameLost() {
+        mLostFrames++;
+        control(System.nanoTime());
+    }
+
+    private void control(long now) {
+        long elapsed = now - mIntervalStart;
+        if (elapsed < CONTROL_INTERVAL_NANOS) {
+            return;
+        }
+        mThroughput = mAckedBytes * 1000000000L / elapsed;
+        mRoundTripMs = (long) (mSmoothedRoundTripNanos / 1000000L);
+
+        boolean congested = mLostFrames > 0
+                || mSmoothedRoundTripNanos > mTargetLatencyNanos
+                || (mTargetBitrate > 0 && mThroughput > mTargetBitrate);
+        boolean headroom = mAckedFrames > 0 && mMaxQueued == 0
+                && mSmoothedRoundTripNanos < mTargetLatencyNanos / 2
+                && (mTargetBitrate == 0 || mThroughput < mTargetBitrate * 3 / 4);
+
+        if (congested) {
+            stepDown();
+        } else if (headroom) {
+            stepUp();
+        }
+
+        mIntervalStart = now;
+        mAckedBytes = 0;
+        mAckedFrames = 0;
+        mLostFrames = 0;
+        mMaxQueued = 0;
+    }
+
+    private void stepDown() {
+        if (mQuality > mMinQuality) {
+            mQuality = Math.max(mMinQuality, mQuality - QUALITY_STEP_DOWN);
+        } else if (mScaleLevel < SCALE_NUMERATORS.length - 1) {
+            // Quality can't go lower, make the frames smaller and restart from a middle quality
+            mScaleLevel++;
+            mQuality = (mMinQuality + mMaxQuality) / 2;
+            updateTargetResolution();
+        }
+    }
+
+    private void stepUp() {
+        if (mQuality < mMaxQuality) {
+            mQuality = Math.min(mMaxQuality, mQuality + QUALITY_STEP_UP);
+        } else if (mScaleLevel > 0) {
+            mScaleLevel--;
+            mQuality = (mMinQuality + mMaxQuality) / 2;
+            updateTargetResolution();
+        }
+    }
+
+    private void updateTargetResolution() {
+        int numerator = SCALE_NUMERATORS[mScaleLevel];
+        // Keep the dimensions even, as required by the YUV 4:2:0 formats
+        mTargetWidth = Math.max(2, (mMaxWidth * numerator / SCALE_DENOMINATOR) & ~1);
+        mTargetHeight = Math.max(2, (mMaxHeight * numerator / SCALE_DENOMINATOR) & ~1);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,152 @@
+package com.xetiro.android.camstream.streaming;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a capture recorded by the {@link FrameRecorder}, with the timing of the recording
+ * sped up by the given factor, so the same load can be streamed again and again without a
+ * camera.
+ * <p>
+ * The file is memory-mapped and the images point straight into the mapping, so nothing is read
+ * or copied up front and the planes are direct buffers the native encoder reads in place. The
+ * images are stamped with the replay time, the recorded timestamps only pace the replay.
+ */
+public class ReplayFrameSource extends TimedFrameSource {
+    public static String TAG = "ReplayFrameSourceDebug";
+
+    // Replays the frames back to back, as fast as the listener takes them
+    public static final float AS_FAST_AS_POSSIBLE = 0;
+
+    private final MappedByteBuffer mMap;
+    private final float mSpeed;
+    private final boolean mLoop;
+
+    private final int mFrameCount;
+    private final long[] mOffsets;
+    private final long[] mTimestamps;
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final int[] mRotations;
+
+    // Only touched from the source thread
+    private int mNextFrame = 0;
+    // The deadline of the first frame of the current pass
+    private long mPassStartNanos = 0;
+
+    /**
+     * @param speed how much faster than recorded to play, e.g. 1 for the original timing, or
+     *              {@link #AS_FAST_AS_POSSIBLE}
+     * @param loop  starts again from the first frame after the last one, instead of stopping
+     */
+    public ReplayFrameSource(File file, float speed, boolean loop) throws IOException {
+        super("FrameReplay");
+        mSpeed = speed;
+        mLoop = loop;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Recording too large to map: " + channel.size() + " bytes");
+            }
+            // The mapping stays valid once the file is closed
+            mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mMap.order(ByteOrder.LITTLE_ENDIAN);
+        if (mMap.capacity() < FrameRecorder.HEADER_SIZE || mMap.getInt(0) != FrameRecorder.MAGIC) {
+            throw new IOException("Not a frame recording: " + file);
+        }
+        if (mMap.getInt(4) != FrameRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + mMap.getInt(4));
+        }
+        mFrameCount = mMap.getInt(8);
+        long indexOffset = mMap.getLong(16);
+        if (mFrameCount <= 0 || indexOffset + (long) mFrameCount * FrameRecorder.INDEX_ENTRY_SIZE > mMap.capacity()) {
+            throw new IOException("Empty or truncated recording: " + file);
+        }
+        mOffsets = new long[mFrameCount];
+        mTimestamps = new long[mFrameCount];
+        mWidths = new int[mFrameCount];
+        mHeights = new int[mFrameCount];
+        mRotations = new int[mFrameCount];
+        for (int i = 0; i < mFrameCount; i++) {
+            int entry = (int) indexOffset + i * FrameRecorder.INDEX_ENTRY_SIZE;
+            mOffsets[i] = mMap.getLong(entry);
+            mTimestamps[i] = mMap.getLong(entry + 8);
+            mWidths[i] = mMap.getInt(entry + 16);
+            mHeights[i] = mMap.getInt(entry + 20);
+            mRotations[i] = mMap.getInt(entry + 24);
+            if (mOffsets[i] + FrameRecorder.I420Size(mWidths[i], mHeights[i]) > indexOffset) {
+                throw new IOException("Frame " + i + " out of the recording: " + file);
+            }
+        }
+        Log.d(TAG, "Replaying " + mFrameCount + " frames of " + mWidths[0] + "x" + mHeights[0]
+                + " over " + (mTimestamps[mFrameCount - 1] - mTimestamps[0]) / 1000000 + " ms");
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Ignored, the frames are replayed at their recorded resolution.
+     */
+    @Override
+    public void setTargetResolution(int width, int height) {
+    }
+
+    @Override
+    protected void onStart(long startNanos) {
+        mNextFrame = 0;
+        mPassStartNanos = startNanos;
+    }
+
+    @Override
+    protected long nextFrame(SourceImage image, long deadlineNanos) {
+        int frame = mNextFrame;
+        int width = mWidths[frame];
+        int height = mHeights[frame];
+        int offset = (int) mOffsets[frame];
+        int chromaWidth = width / 2;
+        int chromaSize = chromaWidth * (height / 2);
+        image.set(width, height, SystemClock.elapsedRealtimeNanos(), mRotations[frame]);
+        image.setPlane(0, slice(offset, width * height), width, 1);
+        image.setPlane(1, slice(offset + width * height, chromaSize), chromaWidth, 1);
+        image.setPlane(2, slice(offset + width * height + chromaSize, chromaSize), chromaWidth, 1);
+
+        mNextFrame++;
+        if (mNextFrame == mFrameCount) {
+            if (!mLoop) {
+                Log.d(TAG, "Replay done");
+                return -1;
+            }
+            // The next pass starts one average frame interval after the last frame
+            long interval = mFrameCount > 1 ? (mTimestamps[mFrameCount - 1] - mTimestamps[0]) / (mFrameCount - 1) : 0;
+            mNextFrame = 0;
+            mPassStartNanos = deadlineNanos + scale(interval);
+            return mSpeed == AS_FAST_AS_POSSIBLE ? System.nanoTime() : mPassStartNanos;
+        }
+        if (mSpeed == AS_FAST_AS_POSSIBLE) {
+            return System.nanoTime();
+        }
+        return mPassStartNanos + scale(mTimestamps[mNextFrame] - mTimestamps[0]);
+    }
+
+    private long scale(long recordedNanos) {
+        return mSpeed == AS_FAST_AS_POSSIBLE ? 0 : (long) (recordedNanos / mSpeed);
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer buffer = mMap.duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer.slice();
+    }
+}
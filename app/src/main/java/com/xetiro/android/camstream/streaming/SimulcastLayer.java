@@ -0,0 +1,87 @@
+package com.xetiro.android.camstream.streaming;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One of the streams sent from a single camera capture, with its own resolution, rate and
+ * quality, e.g. small frequent frames for tracking and large occasional ones for recognition.
+ * <p>
+ * The layer id tags its frames in the envelope, so the server tells the layers apart on the same
+ * connection, and the server turns the layers on and off by id.
+ */
+public class SimulcastLayer {
+    private final int mId;
+    private final int mWidth;
+    private final int mHeight;
+    private final float mFramesPerSecond;
+    private final int mQuality;
+    private final long mIntervalNanos;
+
+    private volatile boolean mEnabled = true;
+    // Only used by the convert stage
+    private long mLastFrameNanos = Long.MIN_VALUE;
+
+    /**
+     * @param id from 1 to 255, 0 is for the frames of a single stream
+     * @param width the target resolution in landscape, like the camera resolutions
+     * @param quality the quality given to the encoder, from 0 to 100
+     */
+    public SimulcastLayer(int id, int width, int height, float framesPerSecond, int quality) {
+        if (id < 1 || id > 255) {
+            throw new IllegalArgumentException("Layer id out of range: " + id);
+        }
+        mId = id;
+        mWidth = width;
+        mHeight = height;
+        mFramesPerSecond = framesPerSecond;
+        mQuality = quality;
+        mIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / framesPerSecond);
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public float getFramesPerSecond() {
+        return mFramesPerSecond;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * True if the layer is enabled and its interval elapsed since its last frame. Accepts a
+     * frame slightly early, so the camera jitter doesn't push the layer to the next frame.
+     */
+    boolean isDue(long timestampNanos) {
+        return mEnabled && (mLastFrameNanos == Long.MIN_VALUE
+                || timestampNanos - mLastFrameNanos >= mIntervalNanos * 9 / 10);
+    }
+
+    void onFrame(long timestampNanos) {
+        mLastFrameNanos = timestampNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "layer " + mId + " " + mWidth + "x" + mHeight + " @ " + mFramesPerSecond + " fps q" + mQuality
+                + (mEnabled ? "" : " (off)");
+    }
+}
@@ -0,0 +1,79 @@
+package com.xetiro.android.camstream.streaming;
+
+import androidx.camera.core.ImageProxy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV 4:2:0 image delivered by a {@link FrameSource}, whatever its origin: the three planes
+ * with their strides, laid out like the camera ones, the sensor timestamp and the rotation.
+ * <p>
+ * The sources reuse the same instance for all their images, so it is only valid during the
+ * {@link FrameSource.Listener#onImage(SourceImage)} call. The plane buffers start at the first
+ * sample of their plane.
+ */
+public class SourceImage {
+    private final ByteBuffer[] mBuffers = new ByteBuffer[3];
+    private final int[] mRowStrides = new int[3];
+    private final int[] mPixelStrides = new int[3];
+    private int mWidth;
+    private int mHeight;
+    private long mTimestampNanos;
+    private int mRotationDegrees;
+
+    public void set(int width, int height, long timestampNanos, int rotationDegrees) {
+        mWidth = width;
+        mHeight = height;
+        mTimestampNanos = timestampNanos;
+        mRotationDegrees = rotationDegrees;
+    }
+
+    /**
+     * @param index 0 for Y, 1 for U and 2 for V
+     */
+    public void setPlane(int index, ByteBuffer buffer, int rowStride, int pixelStride) {
+        mBuffers[index] = buffer;
+        mRowStrides[index] = rowStride;
+        mPixelStrides[index] = pixelStride;
+    }
+
+    /**
+     * Points to the planes of a camera image, without copying them.
+     */
+    public void wrap(ImageProxy image) {
+        set(image.getWidth(), image.getHeight(), image.getImageInfo().getTimestamp(),
+                image.getImageInfo().getRotationDegrees());
+        ImageProxy.PlaneProxy[] planes = image.getPlanes();
+        for (int i = 0; i < 3; i++) {
+            setPlane(i, planes[i].getBuffer(), planes[i].getRowStride(), planes[i].getPixelStride());
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    public int getRotationDegrees() {
+        return mRotationDegrees;
+    }
+
+    public ByteBuffer getBuffer(int plane) {
+        return mBuffers[plane];
+    }
+
+    public int getRowStride(int plane) {
+        return mRowStrides[plane];
+    }
+
+    public int getPixelStride(int plane) {
+        return mPixelStrides[plane];
+    }
+}
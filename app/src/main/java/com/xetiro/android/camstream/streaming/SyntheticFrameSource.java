@@ -0,0 +1,160 @@
+package com.xetiro.android.camstream.streaming;
+
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates images of a synthetic pattern at a fixed frame rate, e.g. to measure the pipeline
+ * without a camera in the loop. The patterns only depend on the frame number, so every run
+ * streams the same frames.
+ */
+public class SyntheticFrameSource extends TimedFrameSource {
+    private static final long NOISE_SEED = 0x5eed;
+
+    public enum Pattern {
+        // The same gradient in every frame, what a still scene costs to the delta encoders
+        STATIC,
+        // New random pixels in every frame, the worst case for every encoder
+        NOISE,
+        // A square moving over the gradient, a small moving region like a tracked object
+        MOVING
+    }
+
+    private final Pattern mPattern;
+    private final long mPeriodNanos;
+
+    private volatile int mWidth = 640;
+    private volatile int mHeight = 480;
+
+    // Only touched from the source thread
+    private final Random mRandom = new Random(NOISE_SEED);
+    private int mFrameWidth = 0;
+    private int mFrameHeight = 0;
+    private long mFrameNumber = 0;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    // The gradient, copied back over the previous frame of the moving pattern
+    private byte[] mBackgroundY;
+    private byte[] mBackgroundChroma;
+    private byte[] mNoise;
+
+    public SyntheticFrameSource(Pattern pattern, int frequency) {
+        super("SyntheticFrames");
+        mPattern = pattern;
+        mPeriodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, frequency);
+    }
+
+    /**
+     * The resolution of the generated images, rounded down to even values for the 4:2:0
+     * chroma planes.
+     */
+    @Override
+    public void setTargetResolution(int width, int height) {
+        mWidth = width & ~1;
+        mHeight = height & ~1;
+    }
+
+    @Override
+    protected void onStart(long startNanos) {
+        mFrameNumber = 0;
+        mRandom.setSeed(NOISE_SEED);
+        if (mWidth != mFrameWidth || mHeight != mFrameHeight) {
+            allocate(mWidth, mHeight);
+        }
+        // Every pattern starts from the gradient
+        drawBackground();
+    }
+
+    @Override
+    protected long nextFrame(SourceImage image, long deadlineNanos) {
+        switch (mPattern) {
+            case NOISE:
+                drawNoise();
+                break;
+            case MOVING:
+                drawBackground();
+                drawSquare(mFrameNumber);
+                break;
+            default:
+                break;
+        }
+        image.set(mFrameWidth, mFrameHeight, SystemClock.elapsedRealtimeNanos(), 0);
+        image.setPlane(0, mY, mFrameWidth, 1);
+        image.setPlane(1, mU, mFrameWidth / 2, 1);
+        image.setPlane(2, mV, mFrameWidth / 2, 1);
+        mFrameNumber++;
+
+        long next = deadlineNanos + mPeriodNanos;
+        long now = System.nanoTime();
+        // When behind, the frames that were due are skipped like a camera would
+        return next < now ? now + mPeriodNanos - (now - next) % mPeriodNanos : next;
+    }
+
+    private void allocate(int width, int height) {
+        mFrameWidth = width;
+        mFrameHeight = height;
+        int chromaSize = (width / 2) * (height / 2);
+        // Direct, like the camera planes, so the native encoder reads them in place
+        mY = ByteBuffer.allocateDirect(width * height);
+        mU = ByteBuffer.allocateDirect(chromaSize);
+        mV = ByteBuffer.allocateDirect(chromaSize);
+        mNoise = new byte[FrameRecorder.I420Size(width, height)];
+        mBackgroundY = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                mBackgroundY[y * width + x] = (byte) (16 + (x + y) * 219 / (width + height));
+            }
+        }
+        mBackgroundChroma = new byte[chromaSize];
+        Arrays.fill(mBackgroundChroma, (byte) 128);
+    }
+
+    private void drawBackground() {
+        mY.clear();
+        mY.put(mBackgroundY);
+        mU.clear();
+        mU.put(mBackgroundChroma);
+        mV.clear();
+        mV.put(mBackgroundChroma);
+    }
+
+    /**
+     * Draws a red square bouncing across the frame, a frame width every two seconds at 30 hz.
+     */
+    private void drawSquare(long frameNumber) {
+        int size = (mFrameHeight / 4) & ~1;
+        int travel = Math.max(1, mFrameWidth - size);
+        int position = (int) (frameNumber * mFrameWidth / 60 % (2 * travel));
+        int left = (position < travel ? position : 2 * travel - position) & ~1;
+        int top = (mFrameHeight - size) / 2 & ~1;
+        for (int y = top; y < top + size; y++) {
+            for (int x = left; x < left + size; x++) {
+                mY.put(y * mFrameWidth + x, (byte) 82);
+            }
+        }
+        int chromaWidth = mFrameWidth / 2;
+        for (int y = top / 2; y < (top + size) / 2; y++) {
+            for (int x = left / 2; x < (left + size) / 2; x++) {
+                mU.put(y * chromaWidth + x, (byte) 90);
+                mV.put(y * chromaWidth + x, (byte) 240);
+            }
+        }
+    }
+
+    private void drawNoise() {
+        mRandom.nextBytes(mNoise);
+        int ySize = mY.capacity();
+        int chromaSize = mU.capacity();
+        mY.clear();
+        mY.put(mNoise, 0, ySize);
+        mU.clear();
+        mU.put(mNoise, ySize, chromaSize);
+        mV.clear();
+        mV.put(mNoise, ySize + chromaSize, chromaSize);
+    }
+}
@@ -0,0 +1,113 @@
+package com.xetiro.android.camstream.streaming;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A source producing its images on its own thread at the times it picks, like a camera would,
+ * for the sources that have no camera behind them.
+ */
+abstract class TimedFrameSource implements FrameSource {
+    public static String TAG = "TimedFrameSourceDebug";
+
+    private final ScheduledExecutorService mScheduler;
+    // Only touched from the source thread
+    private final SourceImage mImage = new SourceImage();
+
+    // Guarded by this
+    private Listener mListener = null;
+    private ScheduledFuture<?> mTask = null;
+    private long mNextDeadline = 0;
+
+    TimedFrameSource(final String threadName) {
+        mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, threadName));
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        stop();
+        mListener = listener;
+        final long now = System.nanoTime();
+        // Prepared on the source thread, like the frames
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                onStart(now);
+            }
+        });
+        scheduleNext(now);
+    }
+
+    @Override
+    public synchronized void stop() {
+        mListener = null;
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+        mScheduler.shutdown();
+    }
+
+    /**
+     * Called from the source thread before the first frame of a start.
+     *
+     * @param startNanos the {@link System#nanoTime()} of the start, the deadline of the first frame
+     */
+    protected abstract void onStart(long startNanos);
+
+    /**
+     * Fills the image with the frame due at the given deadline, from the source thread.
+     *
+     * @return the {@link System#nanoTime()} deadline of the next frame, or -1 if there is none.
+     */
+    protected abstract long nextFrame(SourceImage image, long deadlineNanos);
+
+    private void scheduleNext(long deadline) {
+        mNextDeadline = deadline;
+        long delay = Math.max(0, deadline - System.nanoTime());
+        mTask = mScheduler.schedule(mTick, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            Listener listener;
+            long deadline;
+            synchronized (TimedFrameSource.this) {
+                listener = mListener;
+                deadline = mNextDeadline;
+            }
+            if (listener == null) {
+                return;
+            }
+
+            long next = nextFrame(mImage, deadline);
+            try {
+                listener.onImage(mImage);
+            } catch (RuntimeException e) {
+                Log.d(TAG, "Image listener failed: " + e);
+            }
+
+            synchronized (TimedFrameSource.this) {
+                if (mListener != listener || mNextDeadline != deadline) {
+                    return;     // Stopped or restarted meanwhile
+                }
+                if (next < 0) {
+                    mListener = null;
+                    mTask = null;
+                } else {
+                    scheduleNext(next);
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,108 @@
+package com.xetiro.android.camstream.utils;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * A pool of reusable ARGB bitmaps keyed by their dimensions, for the camera preview streaming
+ * path which would otherwise allocate full frame bitmaps for every frame.
+ * <p>
+ * There are only a few different sizes at a time, so the buckets are searched linearly, which
+ * keeps acquiring and releasing a bitmap free of allocations.
+ */
+public class BitmapPool {
+    private static final int DEFAULT_MAX_BITMAPS_PER_SIZE = 2;
+
+    private static class Bucket {
+        final int width;
+        final int height;
+        final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>();
+
+        Bucket(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final int mMaxBitmapsPerSize;
+    private final ArrayList<Bucket> mBuckets = new ArrayList<>();
+
+    private static BitmapPool mInstance = null;
+
+    public BitmapPool() {
+        this(DEFAULT_MAX_BITMAPS_PER_SIZE);
+    }
+
+    public BitmapPool(int maxBitmapsPerSize) {
+        mMaxBitmapsPerSize = maxBitmapsPerSize;
+    }
+
+    public synchronized static BitmapPool getInstance() {
+        if (mInstance == null) {
+            mInstance = new BitmapPool();
+        }
+        return mInstance;
+    }
+
+    /**
+     * Returns a mutable ARGB_8888 bitmap with the given dimensions. The content is undefined.
+     */
+    public Bitmap acquire(int width, int height) {
+        synchronized (mBuckets) {
+            Bucket bucket = findBucket(width, height);
+            if (bucket != null && !bucket.bitmaps.isEmpty()) {
+                return bucket.bitmaps.pollLast();
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Gives a bitmap back to the pool. It is recycled if the pool already holds enough bitmaps
+     * of its size. The caller must not use the bitmap afterwards.
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        synchronized (mBuckets) {
+            Bucket bucket = findBucket(bitmap.getWidth(), bitmap.getHeight());
+            if (bucket == null) {
+                bucket = new Bucket(bitmap.getWidth(), bitmap.getHeight());
+                mBuckets.add(bucket);
+            }
+            if (bucket.bitmaps.size() < mMaxBitmapsPerSize) {
+                bucket.bitmaps.addLast(bitmap);
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Recycles all the pooled bitmaps, e.g. when the streaming stops.
+     */
+    public void clear() {
+        synchronized (mBuckets) {
+            for (Bucket bucket : mBuckets) {
+                for (Bitmap bitmap : bucket.bitmaps) {
+                    bitmap.recycle();
+                }
+            }
+            mBuckets.clear();
+        }
+    }
+
+    private Bucket findBucket(int width, int height) {
+        for (int i = 0; i < mBuckets.size(); i++) {
+            Bucket bucket = mBuckets.get(i);
+            if (bucket.width == width && bucket.height == height) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+}
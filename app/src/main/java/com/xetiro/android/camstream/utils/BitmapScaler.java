@@ -0,0 +1,40 @@
+package com.xetiro.android.camstream.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+/**
+ * Scales bitmaps into existing bitmaps through a preallocated Canvas and Matrix, unlike
+ * {@link Bitmap#createScaledBitmap(Bitmap, int, int, boolean)} which allocates a new bitmap every
+ * time. Not thread safe, each streaming thread needs its own scaler.
+ */
+public class BitmapScaler {
+    private final Canvas mCanvas = new Canvas();
+    private final Matrix mMatrix = new Matrix();
+    private final Paint mPaint;
+
+    public BitmapScaler() {
+        this(false);
+    }
+
+    /**
+     * @param filter whether to use bilinear filtering, which looks better but costs more
+     */
+    public BitmapScaler(boolean filter) {
+        mPaint = new Paint(filter ? Paint.FILTER_BITMAP_FLAG : 0);
+    }
+
+    /**
+     * Draws the whole source bitmap stretched over the whole destination bitmap, which must be
+     * mutable.
+     */
+    public void scale(Bitmap source, Bitmap destination) {
+        mCanvas.setBitmap(destination);
+        mMatrix.setScale(destination.getWidth() / (float) source.getWidth(),
+                destination.getHeight() / (float) source.getHeight());
+        mCanvas.drawBitmap(source, mMatrix, mPaint);
+        mCanvas.setBitmap(null);    // Don't keep a reference to the pooled bitmap
+    }
+}
@@ -0,0 +1,118 @@
+package com.xetiro.android.camstream.utils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of reusable byte arrays used by the frame conversion and encoding path, so we don't
+ * allocate a few hundred KB of garbage for every frame we stream.
+ * <p>
+ * Raw frame buffers (e.g. NV21) are keyed by their exact size, which means by resolution.
+ * Encoded output buffers ({@link FrameBuffer}) are sized from the recent encoded frame sizes and
+ * rounded up to a coarse granularity, so buffers released by previous frames are reused for the
+ * next ones.
+ * <p>
+ * Every buffer acquired from the pool should be handed back with {@link #release(byte[])} (or
+ * {@link FrameBuffer#release()}) once the caller is done with it. Buffers that are never released
+ * are simply garbage collected.
+ */
+public class BufferPool {
+    private static final int DEFAULT_MAX_BUFFERS_PER_SIZE = 4;
+    private static final int OUTPUT_GRANULARITY = 16 * 1024;
+    private static final int MIN_OUTPUT_CAPACITY = 32 * 1024;
+
+    private final int mMaxBuffersPerSize;
+    private final Map<Integer, ArrayDeque<byte[]>> mBuckets = new HashMap<>();
+
+    // Estimated size of the next encoded frame. Grows immediately but decays slowly.
+    private volatile int mOutputSizeEstimate = MIN_OUTPUT_CAPACITY;
+
+    private static BufferPool mInstance = null;
+
+    public BufferPool() {
+        this(DEFAULT_MAX_BUFFERS_PER_SIZE);
+    }
+
+    public BufferPool(int maxBuffersPerSize) {
+        mMaxBuffersPerSize = maxBuffersPerSize;
+    }
+
+    /**
+     * The pool shared by the conversion and streaming path of the application.
+     */
+    public synchronized static BufferPool getInstance() {
+        if (mInstance == null) {
+            mInstance = new BufferPool();
+        }
+        return mInstance;
+    }
+
+    /**
+     * Returns a buffer with exactly {@code size} bytes. The content is undefined.
+     */
+    public byte[] acquire(int size) {
+        synchronized (mBuckets) {
+            ArrayDeque<byte[]> bucket = mBuckets.get(size);
+            if (bucket != null && !bucket.isEmpty()) {
+                return bucket.pollLast();
+            }
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Hands a buffer back to the pool. The caller must not touch the buffer afterwards.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (mBuckets) {
+            ArrayDeque<byte[]> bucket = mBuckets.get(buffer.length);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>(mMaxBuffersPerSize);
+                mBuckets.put(buffer.length, bucket);
+            }
+            if (bucket.size() < mMaxBuffersPerSize) {
+                bucket.addLast(buffer);
+            }
+        }
+    }
+
+    /**
+     * Returns an empty output buffer big enough to hold a typical encoded frame, based on the
+     * size of the recently encoded frames.
+     */
+    public FrameBuffer acquireFrameBuffer() {
+        int estimate = mOutputSizeEstimate;
+        return new FrameBuffer(this, acquire(outputCapacityFor(estimate + estimate / 4)));
+    }
+
+    /**
+     * Drops all the pooled buffers.
+     */
+    public void clear() {
+        synchronized (mBuckets) {
+            mBuckets.clear();
+        }
+    }
+
+    /**
+     * Rounds a requested output capacity up to the pool granularity, so output buffers of
+     * similar sizes end up in the same bucket.
+     */
+    static int outputCapacityFor(int size) {
+        int capacity = Math.max(size, MIN_OUTPUT_CAPACITY);
+        return ((capacity + OUTPUT_GRANULARITY - 1) / OUTPUT_GRANULARITY) * OUTPUT_GRANULARITY;
+    }
+
+    void recordOutputSize(int size) {
+        int estimate = mOutputSizeEstimate;
+        if (size >= estimate) {
+            mOutputSizeEstimate = size;
+        } else {
+            mOutputSizeEstimate = Math.max(MIN_OUTPUT_CAPACITY, estimate - (estimate - size) / 8);
+        }
+    }
+}
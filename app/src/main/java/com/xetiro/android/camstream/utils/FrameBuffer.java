@@ -0,0 +1,176 @@
+package com.xetiro.android.camstream.utils;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable output buffer leased from a {@link BufferPool}. Encoders write the encoded frame
+ * into it as a regular {@link OutputStream} and the consumer reads it back with
+ * {@link #getBuffer()} and {@link #size()} without any extra copy.
+ * <p>
+ * Whoever holds the buffer last must call {@link #release()} to give the memory back to the pool.
+ */
+public class FrameBuffer extends OutputStream {
+    private final BufferPool mPool;
+    private byte[] mBuffer;
+    private int mCount = 0;
+
+    FrameBuffer(BufferPool pool, byte[] buffer) {
+        mPool = pool;
+        mBuffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(mCount + 1);
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(mCount + len);
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer, e.g. the output of a native encoder.
+     */
+    public void write(ByteBuffer source) {
+        int length = source.remaining();
+        ensureCapacity(mCount + length);
+        source.get(mBuffer, mCount, length);
+        mCount += length;
+    }
+
+    /**
+     * Writes a big-endian 16 bits value.
+     */
+    public void writeShort(int value) {
+        ensureCapacity(mCount + 2);
+        mBuffer[mCount++] = (byte) (value >>> 8);
+        mBuffer[mCount++] = (byte) value;
+    }
+
+    /**
+     * Writes a big-endian 32 bits value.
+     */
+    public void writeInt(int value) {
+        ensureCapacity(mCount + 4);
+        mCount += 4;
+        putInt(mCount - 4, value);
+    }
+
+    /**
+     * Writes the given number of zero bytes, e.g. to reserve room for a header written later.
+     */
+    public void skip(int length) {
+        ensureCapacity(mCount + length);
+        for (int i = 0; i < length; i++) {
+            mBuffer[mCount++] = 0;
+        }
+    }
+
+    /**
+     * Overwrites a big-endian 16 bits value at the given offset, which must have been written
+     * already.
+     */
+    public void putShort(int offset, int value) {
+        checkOffset(offset, 2);
+        mBuffer[offset] = (byte) (value >>> 8);
+        mBuffer[offset + 1] = (byte) value;
+    }
+
+    /**
+     * Overwrites a big-endian 32 bits value at the given offset, which must have been written
+     * already. Useful to patch a length once the data that follows it is written.
+     */
+    public void putInt(int offset, int value) {
+        checkOffset(offset, 4);
+        mBuffer[offset] = (byte) (value >>> 24);
+        mBuffer[offset + 1] = (byte) (value >>> 16);
+        mBuffer[offset + 2] = (byte) (value >>> 8);
+        mBuffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Overwrites a big-endian 64 bits value at the given offset, which must have been written
+     * already.
+     */
+    public void putLong(int offset, long value) {
+        putInt(offset, (int) (value >>> 32));
+        putInt(offset + 4, (int) value);
+    }
+
+    /**
+     * Reads a big-endian 64 bits value at the given offset, which must have been written already.
+     */
+    public long getLong(int offset) {
+        checkOffset(offset, 8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (mBuffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * The backing array. Only the first {@link #size()} bytes are valid.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public void reset() {
+        mCount = 0;
+    }
+
+    /**
+     * Discards everything written after the given size.
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > mCount) {
+            throw new IndexOutOfBoundsException("size " + size);
+        }
+        mCount = size;
+    }
+
+    /**
+     * Copies the valid bytes into a new array. Prefer {@link #getBuffer()} when possible.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mCount);
+    }
+
+    /**
+     * Gives the backing array back to the pool. The buffer must not be used afterwards.
+     */
+    public void release() {
+        if (mBuffer != null) {
+            mPool.recordOutputSize(mCount);
+            mPool.release(mBuffer);
+            mBuffer = null;
+            mCount = 0;
+        }
+    }
+
+    private void checkOffset(int offset, int length) {
+        if (offset < 0 || offset + length > mCount) {
+            throw new IndexOutOfBoundsException("offset " + offset);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            byte[] buffer = mPool.acquire(BufferPool.outputCapacityFor(Math.max(capacity, mBuffer.length * 2)));
+            System.arraycopy(mBuffer, 0, buffer, 0, mCount);
+            mPool.release(mBuffer);
+            mBuffer = buffer;
+        }
+    }
+}
@@ -8,9 +8,10 @@ import android.util.Base64;
 
 import androidx.camera.core.ImageProxy;
 
+import com.xetiro.android.camstream.streaming.SourceImage;
+
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ReadOnlyBufferException;
 
 /**
  * A util class that implements several image conversion methods.
@@ -18,82 +19,93 @@ import java.nio.ReadOnlyBufferException;
  * Created by xetiro (aka Ruben Geraldes) on 2020/08/30.
  */
 public class ImageConverter {
+    public static final int JPEG_QUALITY = 100;
 
     public static byte[] BitmaptoJPEG(Bitmap image) {
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        image.compress(Bitmap.CompressFormat.JPEG, 100, stream);
+        image.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, stream);
         return stream.toByteArray();
     }
 
+    /**
+     * Same as {@link #BitmaptoJPEG(Bitmap)} with the given quality, writing into a pooled output
+     * buffer.
+     */
+    public static void BitmaptoJPEG(Bitmap image, int quality, FrameBuffer out) {
+        image.compress(Bitmap.CompressFormat.JPEG, quality, out);
+    }
+
     public static byte[] YUV_420_800toJPEG(ImageProxy image) {
         byte[] n21 = YUV_420_888toNV21(image);
         return NV21toJPEG(n21, image.getWidth(), image.getHeight());
     }
 
-    // Solution based on https://stackoverflow.com/a/40152147
-    public static byte[] YUV_420_888toNV21(ImageProxy image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int ySize = width * height;
-        int uvSize = width * height / 4;
-
-        byte[] nv21 = new byte[ySize + uvSize * 2];
-
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer(); // Y
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer(); // U
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer(); // V
-
-        int rowStride = image.getPlanes()[0].getRowStride();
-        assert (image.getPlanes()[0].getPixelStride() == 1);
-
-        int pos = 0;
-
-        if (rowStride == width) { // likely
-            yBuffer.get(nv21, 0, ySize);
-            pos += ySize;
-        } else {
-            int yBufferPos = -rowStride; // not an actual position
-            for (; pos < ySize; pos += width) {
-                yBufferPos += rowStride;
-                yBuffer.position(yBufferPos);
-                yBuffer.get(nv21, pos, width);
-            }
+    /**
+     * Same as {@link #YUV_420_800toJPEG(ImageProxy)} with the given quality. The intermediate
+     * NV21 frame is leased from the {@link BufferPool} and the JPEG is written into a pooled
+     * output buffer.
+     */
+    public static void YUV_420_800toJPEG(ImageProxy image, int quality, FrameBuffer out) {
+        BufferPool pool = BufferPool.getInstance();
+        byte[] nv21 = acquireNV21(image, pool);
+        try {
+            NV21toJPEG(nv21, image.getWidth(), image.getHeight(), quality, out);
+        } finally {
+            pool.release(nv21);
         }
+    }
+
+    /**
+     * Converts the image into a NV21 buffer leased from the given pool. The caller must release
+     * the buffer back to the pool when done with it.
+     */
+    public static byte[] acquireNV21(ImageProxy image, BufferPool pool) {
+        byte[] nv21 = pool.acquire(NV21Size(image.getWidth(), image.getHeight()));
+        return YUV_420_888toNV21(image, nv21);
+    }
 
-        rowStride = image.getPlanes()[2].getRowStride();
-        int pixelStride = image.getPlanes()[2].getPixelStride();
-
-        assert (rowStride == image.getPlanes()[1].getRowStride());
-        assert (pixelStride == image.getPlanes()[1].getPixelStride());
-
-        if (pixelStride == 2 && rowStride == width && uBuffer.get(0) == vBuffer.get(1)) {
-            // maybe V an U planes overlap as per NV21, which means vBuffer[1] is alias of uBuffer[0]
-            byte savePixel = vBuffer.get(1);
-            try {
-                vBuffer.put(1, (byte) ~savePixel);
-                if (uBuffer.get(0) == (byte) ~savePixel) {
-                    vBuffer.put(1, savePixel);
-                    vBuffer.get(nv21, ySize, uvSize);
-
-                    return nv21; // shortcut
-                }
-            } catch (ReadOnlyBufferException ex) {
-                // unfortunately, we cannot check if vBuffer and uBuffer overlap
-            }
-
-            // unfortunately, the check failed. We must save U and V pixel by pixel
-            vBuffer.put(1, savePixel);
+    /**
+     * Converts the image into a NV21 buffer leased from the given pool, cropped, scaled and
+     * rotated on the planes as configured on the given {@link YuvPlanes}. The output has the size
+     * of {@link YuvPlanes#getOutputSize()}, and the caller must release it back to the pool.
+     */
+    public static byte[] acquireNV21(SourceImage image, YuvPlanes planes, BufferPool pool) {
+        byte[] nv21 = pool.acquire(planes.getOutputSize());
+        if (planes.isIdentity()) {
+            // A plain copy is cheaper
+            YuvPlanes.copyToNV21(image.getBuffer(0), image.getRowStride(0), image.getBuffer(1),
+                    image.getBuffer(2), image.getRowStride(2), image.getPixelStride(2),
+                    image.getWidth(), image.getHeight(), nv21);
+            return nv21;
         }
+        return YUV_420_888toNV21(image, planes, nv21);
+    }
+
+    public static byte[] YUV_420_888toNV21(SourceImage image, YuvPlanes planes, byte[] nv21) {
+        planes.toNV21(
+                image.getBuffer(0), image.getRowStride(0), image.getPixelStride(0),
+                image.getBuffer(1), image.getRowStride(1), image.getPixelStride(1),
+                image.getBuffer(2), image.getRowStride(2), image.getPixelStride(2),
+                nv21);
+        return nv21;
+    }
+
+    public static int NV21Size(int width, int height) {
+        return YuvPlanes.NV21Size(width, height);
+    }
+
+    public static byte[] YUV_420_888toNV21(ImageProxy image) {
+        return YUV_420_888toNV21(image, new byte[NV21Size(image.getWidth(), image.getHeight())]);
+    }
 
-        // other optimizations could check if (pixelStride == 1) or (pixelStride == 2),
-        // but performance gain would be less significant
-/*        for (int row = 0; row < height / 2; row++) {
-            for (int col = 0; col < width / 2; col++) {
-                int vuPos = col * pixelStride + row * rowStride;
-                nv21[pos++] = vBuffer.get(vuPos);
-                nv21[pos++] = uBuffer.get(vuPos);
-            }
-        }*/
+    public static byte[] YUV_420_888toNV21(ImageProxy image, byte[] nv21) {
+        ImageProxy.PlaneProxy[] planes = image.getPlanes();
+        assert (planes[0].getPixelStride() == 1);
+        assert (planes[2].getRowStride() == planes[1].getRowStride());
+        assert (planes[2].getPixelStride() == planes[1].getPixelStride());
+        YuvPlanes.copyToNV21(planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[2].getRowStride(),
+                planes[2].getPixelStride(), image.getWidth(), image.getHeight(), nv21);
         return nv21;
     }
 
@@ -101,10 +113,19 @@ public class ImageConverter {
     public static byte[] NV21toJPEG(byte[] nv21, int width, int height) {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         YuvImage yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
-        yuv.compressToJpeg(new Rect(0, 0, width, height), 100, out);
+        yuv.compressToJpeg(new Rect(0, 0, width, height), JPEG_QUALITY, out);
         return out.toByteArray();
     }
 
+    /**
+     * Same as {@link #NV21toJPEG(byte[], int, int)} with the given quality, writing into a pooled
+     * output buffer.
+     */
+    public static void NV21toJPEG(byte[] nv21, int width, int height, int quality, FrameBuffer out) {
+        YuvImage yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        yuv.compressToJpeg(new Rect(0, 0, width, height), quality, out);
+    }
+
     // Solution based on // https://stackoverflow.com/questions/56772967/converting-imageproxy-to-bitmap
     private static String YUV_420_888toBase64(ImageProxy image) {
 
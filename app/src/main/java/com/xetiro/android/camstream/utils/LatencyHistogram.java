@@ -0,0 +1,95 @@
+package com.xetiro.android.camstream.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free and allocation-free histogram of durations, precise enough for percentiles.
+ * <p>
+ * Values are kept in microseconds in log-linear buckets: exact below 64us, and 32 buckets per
+ * power of two above it, so any value is reported with less than 3% error. Recording is a single
+ * atomic increment and can be done from any thread on the hot path.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int FIRST_EXPONENT = 6;   // 2^6 = LINEAR_BUCKETS
+    private static final int MAX_EXPONENT = 40;    // About 12 days, way more than we need
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_EXPONENT - FIRST_EXPONENT + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long durationNanos) {
+        mCounts.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(Math.max(0, durationNanos))));
+    }
+
+    /**
+     * Copies the recorded counts into the given array, which must have {@link #getBucketCount()}
+     * elements, and clears the histogram.
+     */
+    public void drainTo(long[] counts) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.getAndSet(i, 0);
+        }
+    }
+
+    public static int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * Returns the value in microseconds below which the given fraction of the counts are.
+     *
+     * @param counts the counts drained from a histogram
+     * @param fraction from 0 to 1, e.g. 0.99 for the 99th percentile
+     */
+    public static long percentile(long[] counts, double fraction) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(counts.length - 1);
+    }
+
+    public static long total(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = FIRST_EXPONENT + (bucket - LINEAR_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
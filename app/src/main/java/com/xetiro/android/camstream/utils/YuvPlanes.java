@@ -0,0 +1,323 @@
+package com.xetiro.android.camstream.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * Crops, downscales and rotates YUV 4:2:0 frames directly on their planes, in a single pass that
+ * writes a NV21 frame of the target resolution.
+ * <p>
+ * Working on the planes costs 1.5 bytes per pixel instead of the 4 of an ARGB bitmap, and the
+ * smaller frame is much cheaper to encode afterwards. The planes can have any row and pixel
+ * stride, as the YUV_420_888 planes of the camera. Downscaling uses a box filter: each output
+ * sample is the average of the source samples it covers.
+ * <p>
+ * Configuring builds the sampling tables once, so converting the following frames with the same
+ * configuration doesn't allocate. An instance is not thread safe.
+ */
+public class YuvPlanes {
+    // Source crop and un-rotated scaled size
+    private int mSourceWidth = -1;
+    private int mSourceHeight = -1;
+    private int mCropX;
+    private int mCropY;
+    private int mCropWidth;
+    private int mCropHeight;
+    private int mScaledWidth;
+    private int mScaledHeight;
+    private int mRotationDegrees;
+
+    // Output size, the scaled size rotated
+    private int mOutputWidth;
+    private int mOutputHeight;
+
+    // Source sample ranges [start, end) of each scaled column and row, for luma and chroma
+    private int[] mLumaX0 = new int[0];
+    private int[] mLumaX1 = new int[0];
+    private int[] mLumaY0 = new int[0];
+    private int[] mLumaY1 = new int[0];
+    private int[] mChromaX0 = new int[0];
+    private int[] mChromaX1 = new int[0];
+    private int[] mChromaY0 = new int[0];
+    private int[] mChromaY1 = new int[0];
+
+    /**
+     * Crops the source to the aspect ratio of the target, centered, rotates it and scales it down
+     * to the target resolution. The target is given in landscape like the camera resolutions and
+     * is swapped when rotating by 90 or 270 degrees, so the frame keeps its orientation. The
+     * frame is never scaled up: a source smaller than the target gives a smaller frame.
+     */
+    public void configureCenterCrop(int sourceWidth, int sourceHeight, int rotationDegrees,
+                                    int targetWidth, int targetHeight) {
+        // Crop to the target aspect ratio, in the source orientation
+        int cropWidth = sourceWidth;
+        int cropHeight = sourceHeight;
+        if ((long) sourceWidth * targetHeight > (long) sourceHeight * targetWidth) {
+            cropWidth = (int) ((long) sourceHeight * targetWidth / targetHeight);
+        } else {
+            cropHeight = (int) ((long) sourceWidth * targetHeight / targetWidth);
+        }
+        cropWidth = Math.max(2, cropWidth & ~1);
+        cropHeight = Math.max(2, cropHeight & ~1);
+        int cropX = ((sourceWidth - cropWidth) / 2) & ~1;
+        int cropY = ((sourceHeight - cropHeight) / 2) & ~1;
+
+        int scaledWidth = Math.min(targetWidth, cropWidth);
+        int scaledHeight = Math.min(targetHeight, cropHeight);
+        boolean swap = rotationDegrees == 90 || rotationDegrees == 270;
+        configure(sourceWidth, sourceHeight, cropX, cropY, cropWidth, cropHeight, rotationDegrees,
+                swap ? scaledHeight : scaledWidth, swap ? scaledWidth : scaledHeight);
+    }
+
+    /**
+     * Sets the crop rectangle in the source, the clockwise rotation and the output resolution.
+     * The crop origin and all the sizes must be even, as the chroma planes have half the
+     * resolution of the luma plane.
+     */
+    public void configure(int sourceWidth, int sourceHeight, int cropX, int cropY, int cropWidth,
+                          int cropHeight, int rotationDegrees, int outputWidth, int outputHeight) {
+        if (rotationDegrees != 0 && rotationDegrees != 90 && rotationDegrees != 180 && rotationDegrees != 270) {
+            throw new IllegalArgumentException("Invalid rotation " + rotationDegrees);
+        }
+        if (((cropX | cropY | cropWidth | cropHeight | outputWidth | outputHeight) & 1) != 0
+                || cropWidth <= 0 || cropHeight <= 0 || outputWidth <= 0 || outputHeight <= 0
+                || cropX < 0 || cropY < 0 || cropX + cropWidth > sourceWidth || cropY + cropHeight > sourceHeight) {
+            throw new IllegalArgumentException("Invalid crop " + cropX + "," + cropY + " " + cropWidth
+                    + "x" + cropHeight + " of " + sourceWidth + "x" + sourceHeight + " to "
+                    + outputWidth + "x" + outputHeight);
+        }
+        boolean swap = rotationDegrees == 90 || rotationDegrees == 270;
+        int scaledWidth = swap ? outputHeight : outputWidth;
+        int scaledHeight = swap ? outputWidth : outputHeight;
+        if (sourceWidth == mSourceWidth && sourceHeight == mSourceHeight && cropX == mCropX
+                && cropY == mCropY && cropWidth == mCropWidth && cropHeight == mCropHeight
+                && rotationDegrees == mRotationDegrees && scaledWidth == mScaledWidth
+                && scaledHeight == mScaledHeight) {
+            return; // Same configuration, the tables are still valid
+        }
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mCropX = cropX;
+        mCropY = cropY;
+        mCropWidth = cropWidth;
+        mCropHeight = cropHeight;
+        mRotationDegrees = rotationDegrees;
+        mScaledWidth = scaledWidth;
+        mScaledHeight = scaledHeight;
+        mOutputWidth = outputWidth;
+        mOutputHeight = outputHeight;
+
+        mLumaX0 = new int[scaledWidth];
+        mLumaX1 = new int[scaledWidth];
+        buildRanges(cropX, cropWidth, scaledWidth, mLumaX0, mLumaX1);
+        mLumaY0 = new int[scaledHeight];
+        mLumaY1 = new int[scaledHeight];
+        buildRanges(cropY, cropHeight, scaledHeight, mLumaY0, mLumaY1);
+        mChromaX0 = new int[scaledWidth / 2];
+        mChromaX1 = new int[scaledWidth / 2];
+        buildRanges(cropX / 2, cropWidth / 2, scaledWidth / 2, mChromaX0, mChromaX1);
+        mChromaY0 = new int[scaledHeight / 2];
+        mChromaY1 = new int[scaledHeight / 2];
+        buildRanges(cropY / 2, cropHeight / 2, scaledHeight / 2, mChromaY0, mChromaY1);
+    }
+
+    public int getOutputWidth() {
+        return mOutputWidth;
+    }
+
+    public int getOutputHeight() {
+        return mOutputHeight;
+    }
+
+    /**
+     * The size of the NV21 output frame.
+     */
+    public int getOutputSize() {
+        return mOutputWidth * mOutputHeight + (mOutputWidth * mOutputHeight / 4) * 2;
+    }
+
+    /**
+     * True if the configuration copies the source as is, in which case a plain plane copy is
+     * cheaper than going through the sampling tables.
+     */
+    public boolean isIdentity() {
+        return mRotationDegrees == 0 && mCropX == 0 && mCropY == 0 && mCropWidth == mSourceWidth
+                && mCropHeight == mSourceHeight && mScaledWidth == mSourceWidth
+                && mScaledHeight == mSourceHeight;
+    }
+
+    /**
+     * Converts a YUV 4:2:0 frame of the configured source size into a NV21 frame of the
+     * configured output size. The plane buffers are read with absolute positions, from index 0.
+     *
+     * @param nv21 the output, with at least {@link #getOutputSize()} bytes
+     */
+    public void toNV21(ByteBuffer yPlane, int yRowStride, int yPixelStride,
+                       ByteBuffer uPlane, int uRowStride, int uPixelStride,
+                       ByteBuffer vPlane, int vRowStride, int vPixelStride, byte[] nv21) {
+        if (mSourceWidth < 0) {
+            throw new IllegalStateException("Not configured");
+        }
+        int ySize = mOutputWidth * mOutputHeight;
+        samplePlane(yPlane, yRowStride, yPixelStride, mLumaX0, mLumaX1, mLumaY0, mLumaY1,
+                mOutputWidth, mOutputHeight, nv21, 0, 1);
+        // NV21 interleaves the chroma as V then U
+        samplePlane(vPlane, vRowStride, vPixelStride, mChromaX0, mChromaX1, mChromaY0, mChromaY1,
+                mOutputWidth / 2, mOutputHeight / 2, nv21, ySize, 2);
+        samplePlane(uPlane, uRowStride, uPixelStride, mChromaX0, mChromaX1, mChromaY0, mChromaY1,
+                mOutputWidth / 2, mOutputHeight / 2, nv21, ySize + 1, 2);
+    }
+
+    /**
+     * Same as {@link #toNV21(ByteBuffer, int, int, ByteBuffer, int, int, ByteBuffer, int, int, byte[])}
+     * from a NV21 frame of the configured source size.
+     */
+    public void toNV21(byte[] source, byte[] nv21) {
+        int ySize = mSourceWidth * mSourceHeight;
+        ByteBuffer buffer = ByteBuffer.wrap(source);
+        // Slices start their absolute positions at the V and U samples
+        buffer.position(ySize);
+        ByteBuffer vPlane = buffer.slice();
+        buffer.position(ySize + 1);
+        ByteBuffer uPlane = buffer.slice();
+        buffer.position(0);
+        toNV21(buffer, mSourceWidth, 1, uPlane, mSourceWidth, 2, vPlane, mSourceWidth, 2, nv21);
+    }
+
+    /**
+     * The size of a NV21 frame of the given resolution.
+     */
+    public static int NV21Size(int width, int height) {
+        return width * height + (width * height / 4) * 2;
+    }
+
+    /**
+     * Copies a YUV 4:2:0 frame as is into a NV21 frame, which is cheaper than going through the
+     * sampling tables when the frame is neither cropped, scaled nor rotated. The luma plane must
+     * have a pixel stride of 1 and the chroma planes the same strides. The plane positions are
+     * moved.
+     */
+    // Solution based on https://stackoverflow.com/a/40152147
+    public static void copyToNV21(ByteBuffer yBuffer, int yRowStride, ByteBuffer uBuffer,
+                                  ByteBuffer vBuffer, int uvRowStride, int uvPixelStride,
+                                  int width, int height, byte[] nv21) {
+        int ySize = width * height;
+        int uvSize = width * height / 4;
+
+        int rowStride = yRowStride;
+        int pos = 0;
+
+        if (rowStride == width) { // likely
+            yBuffer.position(0);
+            yBuffer.get(nv21, 0, ySize);
+            pos += ySize;
+        } else {
+            int yBufferPos = -rowStride; // not an actual position
+            for (; pos < ySize; pos += width) {
+                yBufferPos += rowStride;
+                yBuffer.position(yBufferPos);
+                yBuffer.get(nv21, pos, width);
+            }
+        }
+
+        rowStride = uvRowStride;
+        int pixelStride = uvPixelStride;
+
+        if (pixelStride == 2 && rowStride == width && uBuffer.get(0) == vBuffer.get(1)) {
+            // maybe V an U planes overlap as per NV21, which means vBuffer[1] is alias of uBuffer[0]
+            byte savePixel = vBuffer.get(1);
+            try {
+                vBuffer.put(1, (byte) ~savePixel);
+                if (uBuffer.get(0) == (byte) ~savePixel) {
+                    vBuffer.put(1, savePixel);
+                    // The interleaved VU data is 2 * uvSize bytes, the V plane holds all but the
+                    // last U sample which we take from the U plane
+                    vBuffer.position(0);
+                    vBuffer.get(nv21, ySize, 2 * uvSize - 1);
+                    nv21[ySize + 2 * uvSize - 1] = uBuffer.get(2 * uvSize - 2);
+
+                    return; // shortcut
+                }
+            } catch (ReadOnlyBufferException ex) {
+                // unfortunately, we cannot check if vBuffer and uBuffer overlap
+            }
+
+            // unfortunately, the check failed. We must save U and V pixel by pixel
+            vBuffer.put(1, savePixel);
+        }
+
+        // other optimizations could check if (pixelStride == 1) or (pixelStride == 2),
+        // but performance gain would be less significant
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                int vuPos = col * pixelStride + row * rowStride;
+                nv21[pos++] = vBuffer.get(vuPos);
+                nv21[pos++] = uBuffer.get(vuPos);
+            }
+        }
+    }
+
+    /**
+     * Samples a plane of the scaled frame into the output, rotated. The output plane has the
+     * rotated size and its samples are {@code outPixelStride} apart.
+     */
+    private void samplePlane(ByteBuffer plane, int rowStride, int pixelStride, int[] x0, int[] x1,
+                             int[] y0, int[] y1, int outWidth, int outHeight, byte[] out,
+                             int outOffset, int outPixelStride) {
+        int scaledWidth = x0.length;
+        int scaledHeight = y0.length;
+        int pos = outOffset;
+        for (int oy = 0; oy < outHeight; oy++) {
+            for (int ox = 0; ox < outWidth; ox++) {
+                // The scaled sample shown at (ox, oy) once rotated clockwise
+                int sx;
+                int sy;
+                switch (mRotationDegrees) {
+                    case 90:
+                        sx = oy;
+                        sy = scaledHeight - 1 - ox;
+                        break;
+                    case 180:
+                        sx = scaledWidth - 1 - ox;
+                        sy = scaledHeight - 1 - oy;
+                        break;
+                    case 270:
+                        sx = scaledWidth - 1 - oy;
+                        sy = ox;
+                        break;
+                    default:
+                        sx = ox;
+                        sy = oy;
+                        break;
+                }
+                int xStart = x0[sx];
+                int xEnd = x1[sx];
+                int yStart = y0[sy];
+                int yEnd = y1[sy];
+                int sum = 0;
+                for (int y = yStart; y < yEnd; y++) {
+                    int rowOffset = y * rowStride;
+                    for (int x = xStart; x < xEnd; x++) {
+                        sum += plane.get(rowOffset + x * pixelStride) & 0xff;
+                    }
+                }
+                int count = (xEnd - xStart) * (yEnd - yStart);
+                out[pos] = (byte) ((sum + count / 2) / count);
+                pos += outPixelStride;
+            }
+        }
+    }
+
+    /**
+     * Splits {@code length} source samples from {@code start} in {@code count} boxes. When
+     * scaling up the boxes hold a single sample each.
+     */
+    private static void buildRanges(int start, int length, int count, int[] starts, int[] ends) {
+        for (int i = 0; i < count; i++) {
+            int from = start + (int) ((long) i * length / count);
+            int to = start + (int) ((long) (i + 1) * length / count);
+            starts[i] = from;
+            ends[i] = Math.max(from + 1, to);
+        }
+    }
+}
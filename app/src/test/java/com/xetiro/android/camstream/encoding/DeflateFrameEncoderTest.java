@@ -0,0 +1,86 @@
+package com.xetiro.android.camstream.encoding;
+
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+import com.xetiro.android.camstream.utils.YuvPlanes;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes different frames from several threads at once, as the encode workers do with a
+ * stateless encoder, and inflates each payload back to the frame it was given.
+ */
+public class DeflateFrameEncoderTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int THREADS = 4;
+    private static final int FRAMES_PER_THREAD = 200;
+
+    private final BufferPool mPool = new BufferPool();
+
+    @Test
+    public void encodesFromSeveralWorkersAtOnce() throws Exception {
+        final DeflateFrameEncoder encoder = new DeflateFrameEncoder();
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+        try {
+            Future<?>[] results = new Future<?>[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                final long seed = i;
+                results[i] = workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws DataFormatException {
+                        Random random = new Random(seed);
+                        byte[] nv21 = new byte[YuvPlanes.NV21Size(WIDTH, HEIGHT)];
+                        for (int frame = 0; frame < FRAMES_PER_THREAD; frame++) {
+                            // Runs of a random value, so the frames compress but differ
+                            for (int offset = 0; offset < nv21.length; offset += 16) {
+                                byte value = (byte) random.nextInt(256);
+                                for (int j = offset; j < Math.min(offset + 16, nv21.length); j++) {
+                                    nv21[j] = value;
+                                }
+                            }
+                            assertRoundTrips(encoder, nv21);
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void assertRoundTrips(DeflateFrameEncoder encoder, byte[] nv21) throws DataFormatException {
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        assertTrue(encoder.encode(nv21, WIDTH, HEIGHT, 0, out));
+        byte[] payload = out.toByteArray();
+        out.release();
+
+        ByteBuffer header = ByteBuffer.wrap(payload);
+        assertEquals(WIDTH, header.getShort(0));
+        assertEquals(HEIGHT, header.getShort(2));
+        Inflater inflater = new Inflater();
+        inflater.setInput(payload, 4, payload.length - 4);
+        byte[] decoded = new byte[nv21.length];
+        assertEquals(nv21.length, inflater.inflate(decoded));
+        assertTrue(inflater.finished());
+        inflater.end();
+        assertArrayEquals(nv21, decoded);
+    }
+}
@@ -0,0 +1,211 @@
+package com.xetiro.android.camstream.encoding;
+
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the JNI encoder built for the host, with {@code -Pcamstream.nativeJpeg=true}, and decodes
+ * its output with ImageIO. Skipped in the builds without the native library.
+ */
+public class NativeJpegEncoderTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    // A flat orange, so the decoded colors are easy to check
+    private static final int U = 80;
+    private static final int V = 190;
+
+    private final BufferPool mPool = new BufferPool();
+
+    @Before
+    public void requireNativeLibrary() {
+        assumeTrue("The native library is not built", NativeJpegEncoder.isAvailable());
+    }
+
+    @Test
+    public void encodesNV21() throws IOException {
+        byte[] jpeg = encodeNV21(new NativeJpegEncoder(), 90);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        // Full range BT.601, as in the JFIF files
+        int y = luma(WIDTH / 2, HEIGHT / 2);
+        assertColor(image.getRGB(WIDTH / 2, HEIGHT / 2),
+                y + 1.402 * (V - 128),
+                y - 0.344136 * (U - 128) - 0.714136 * (V - 128),
+                y + 1.772 * (U - 128));
+    }
+
+    @Test
+    public void semiPlanarPlanesGiveTheSameJpeg() {
+        // The camera layout: padded rows and interleaved chroma
+        int rowStride = WIDTH + 64;
+        ByteBuffer y = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        ByteBuffer vu = ByteBuffer.allocateDirect(rowStride * HEIGHT / 2);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int x = 0; x < WIDTH; x++) {
+                y.put(row * rowStride + x, (byte) luma(x, row));
+            }
+        }
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                vu.put(row * rowStride + 2 * x, (byte) V);
+                vu.put(row * rowStride + 2 * x + 1, (byte) U);
+            }
+        }
+        vu.position(1);
+        ByteBuffer u = vu.slice();
+        vu.position(0);
+
+        NativeJpegEncoder encoder = new NativeJpegEncoder();
+        assertArrayEquals(encodeNV21(encoder, 75),
+                encodePlanes(encoder, y, rowStride, 1, u, rowStride, 2, vu, rowStride, 2, 75));
+    }
+
+    @Test
+    public void planarPlanesGiveTheSameJpeg() {
+        // Read in place, without the chroma copy
+        ByteBuffer y = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        ByteBuffer u = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 4);
+        ByteBuffer v = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 4);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int x = 0; x < WIDTH; x++) {
+                y.put(row * WIDTH + x, (byte) luma(x, row));
+            }
+        }
+        for (int i = 0; i < WIDTH * HEIGHT / 4; i++) {
+            u.put(i, (byte) U);
+            v.put(i, (byte) V);
+        }
+
+        NativeJpegEncoder encoder = new NativeJpegEncoder();
+        assertArrayEquals(encodeNV21(encoder, 75),
+                encodePlanes(encoder, y, WIDTH, 1, u, WIDTH / 2, 1, v, WIDTH / 2, 1, 75));
+    }
+
+    @Test
+    public void rejectsAnUndersizedPlane() {
+        ByteBuffer y = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        ByteBuffer u = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 4);
+        // One sample short, as in a truncated replay
+        ByteBuffer v = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 4 - 1);
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        try {
+            new NativeJpegEncoder().encodePlanes(y, WIDTH, 1, u, WIDTH / 2, 1, v, WIDTH / 2, 1,
+                    WIDTH, HEIGHT, 75, out);
+            fail("Encoded an undersized plane");
+        } catch (IllegalStateException e) {
+            assertEquals(0, out.size());
+        } finally {
+            out.release();
+        }
+
+        // The luma rows are padded, the last one doesn't need its padding
+        ByteBuffer paddedY = ByteBuffer.allocateDirect((HEIGHT - 1) * (WIDTH + 64) + WIDTH);
+        ByteBuffer fullV = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 4);
+        encodePlanes(new NativeJpegEncoder(), paddedY, WIDTH + 64, 1, u, WIDTH / 2, 1, fullV, WIDTH / 2, 1, 75);
+        paddedY.limit(paddedY.capacity() - 1);
+        ByteBuffer shortY = paddedY.slice();
+        out = mPool.acquireFrameBuffer();
+        try {
+            new NativeJpegEncoder().encodePlanes(shortY, WIDTH + 64, 1, u, WIDTH / 2, 1, fullV, WIDTH / 2, 1,
+                    WIDTH, HEIGHT, 75, out);
+            fail("Encoded an undersized luma plane");
+        } catch (IllegalStateException e) {
+            assertEquals(0, out.size());
+        } finally {
+            out.release();
+        }
+    }
+
+    @Test
+    public void encodesEverySubsampling() throws IOException {
+        for (NativeJpegEncoder.Subsampling subsampling : NativeJpegEncoder.Subsampling.values()) {
+            byte[] jpeg = encodeNV21(new NativeJpegEncoder(subsampling), 90);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+            assertEquals(subsampling.toString(), WIDTH, image.getWidth());
+            int rgb = image.getRGB(WIDTH / 2, HEIGHT / 2);
+            if (subsampling == NativeJpegEncoder.Subsampling.GRAY) {
+                int y = luma(WIDTH / 2, HEIGHT / 2);
+                assertColor(rgb, y, y, y);
+            } else {
+                assertTrue(subsampling + " lost the color", ((rgb >> 16) & 0xff) > (rgb & 0xff) + 50);
+            }
+        }
+    }
+
+    @Test
+    public void lowerQualityIsSmaller() {
+        NativeJpegEncoder encoder = new NativeJpegEncoder();
+        assertTrue(encodeNV21(encoder, 30).length < encodeNV21(encoder, 95).length);
+    }
+
+    private byte[] encodeNV21(NativeJpegEncoder encoder, int quality) {
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int x = 0; x < WIDTH; x++) {
+                nv21[row * WIDTH + x] = (byte) luma(x, row);
+            }
+        }
+        for (int i = WIDTH * HEIGHT; i < nv21.length; i += 2) {
+            nv21[i] = (byte) V;
+            nv21[i + 1] = (byte) U;
+        }
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        assertTrue(encoder.encode(nv21, WIDTH, HEIGHT, quality, out));
+        return toBytes(out);
+    }
+
+    private byte[] encodePlanes(NativeJpegEncoder encoder, ByteBuffer y, int yRowStride, int yPixelStride,
+                                ByteBuffer u, int uRowStride, int uPixelStride,
+                                ByteBuffer v, int vRowStride, int vPixelStride, int quality) {
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        assertTrue(encoder.encodePlanes(y, yRowStride, yPixelStride, u, uRowStride, uPixelStride,
+                v, vRowStride, vPixelStride, WIDTH, HEIGHT, quality, out));
+        return toBytes(out);
+    }
+
+    private static byte[] toBytes(FrameBuffer out) {
+        byte[] bytes = out.toByteArray();
+        out.release();
+        // A JPEG starts with SOI and ends with EOI
+        assertEquals((byte) 0xff, bytes[0]);
+        assertEquals((byte) 0xd8, bytes[1]);
+        assertEquals((byte) 0xff, bytes[bytes.length - 2]);
+        assertEquals((byte) 0xd9, bytes[bytes.length - 1]);
+        return bytes;
+    }
+
+    /**
+     * A smooth gradient, which JPEG keeps close to the source.
+     */
+    private static int luma(int x, int y) {
+        return 64 + (x + y) * 128 / (WIDTH + HEIGHT);
+    }
+
+    private static void assertColor(int rgb, double red, double green, double blue) {
+        int tolerance = 12;
+        assertEquals("red", clamp(red), (rgb >> 16) & 0xff, tolerance);
+        assertEquals("green", clamp(green), (rgb >> 8) & 0xff, tolerance);
+        assertEquals("blue", clamp(blue), rgb & 0xff, tolerance);
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+}
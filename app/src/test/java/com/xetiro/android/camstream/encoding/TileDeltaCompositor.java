@@ -0,0 +1,94 @@
+package com.xetiro.android.camstream.encoding;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Does what the server does with the {@link TileDeltaEncoder} messages: a keyframe replaces the
+ * frame, and each tile of a delta is drawn at its coordinates on top of the last frame. Only the
+ * luma is kept, decoded from the tile JPEGs.
+ */
+public class TileDeltaCompositor {
+    private byte[] mLuma = null;
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int mLastTileCount = 0;
+    private boolean mLastKeyframe = false;
+
+    /**
+     * Applies a message, which must start at the given offset.
+     */
+    public void apply(byte[] message, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message, offset, length);
+        if (buffer.get() != TileDeltaEncoder.MESSAGE_MAGIC) {
+            throw new IOException("Not a delta message");
+        }
+        if (buffer.get() != TileDeltaEncoder.MESSAGE_VERSION) {
+            throw new IOException("Unsupported delta version");
+        }
+        boolean keyframe = (buffer.get() & TileDeltaEncoder.FLAG_KEYFRAME) != 0;
+        buffer.get();   // Reserved
+        int width = buffer.getShort() & 0xffff;
+        int height = buffer.getShort() & 0xffff;
+        buffer.getShort();  // Tile size
+        buffer.getShort();  // Reserved
+        int tileCount = buffer.getInt();
+        if (keyframe) {
+            mLuma = new byte[width * height];
+            mWidth = width;
+            mHeight = height;
+        } else if (mLuma == null || width != mWidth || height != mHeight) {
+            throw new IOException("Delta without the keyframe it applies to");
+        }
+        for (int i = 0; i < tileCount; i++) {
+            int x = buffer.getShort() & 0xffff;
+            int y = buffer.getShort() & 0xffff;
+            int tileWidth = buffer.getShort() & 0xffff;
+            int tileHeight = buffer.getShort() & 0xffff;
+            int jpegLength = buffer.getInt();
+            BufferedImage tile = ImageIO.read(new ByteArrayInputStream(message, buffer.position(), jpegLength));
+            if (tile == null || tile.getWidth() != tileWidth || tile.getHeight() != tileHeight) {
+                throw new IOException("Bad tile JPEG at " + x + "," + y);
+            }
+            draw(tile, x, y);
+            buffer.position(buffer.position() + jpegLength);
+        }
+        mLastTileCount = tileCount;
+        mLastKeyframe = keyframe;
+    }
+
+    public byte[] getLuma() {
+        return mLuma;
+    }
+
+    public int getLastTileCount() {
+        return mLastTileCount;
+    }
+
+    public boolean isLastKeyframe() {
+        return mLastKeyframe;
+    }
+
+    private void draw(BufferedImage tile, int x, int y) {
+        Raster raster = tile.getRaster();
+        boolean gray = raster.getNumBands() == 1;
+        for (int row = 0; row < tile.getHeight(); row++) {
+            for (int col = 0; col < tile.getWidth(); col++) {
+                int luma;
+                if (gray) {
+                    luma = raster.getSample(col, row, 0);
+                } else {
+                    int rgb = tile.getRGB(col, row);
+                    luma = (int) Math.round(0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff)
+                            + 0.114 * (rgb & 0xff));
+                }
+                mLuma[(y + row) * mWidth + x + col] = (byte) luma;
+            }
+        }
+    }
+}
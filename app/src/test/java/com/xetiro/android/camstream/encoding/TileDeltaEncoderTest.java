@@ -0,0 +1,170 @@
+package com.xetiro.android.camstream.encoding;
+
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes a short sequence with the {@link TileDeltaEncoder} and composites it like the server
+ * does, with the {@link TileDeltaCompositor}. After every frame the composited luma must match
+ * the source within the JPEG error. The tiles are compressed with ImageIO, as {@code YuvImage}
+ * does nothing on the JVM.
+ */
+public class TileDeltaEncoderTest {
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 128;
+    private static final int TILE_SIZE = 64;
+    private static final int QUALITY = 90;
+    // Mean and worst luma error a quality 90 JPEG of these smooth frames stays under
+    private static final double MAX_MEAN_ERROR = 2;
+    private static final int MAX_ERROR = 24;
+
+    private final BufferPool mPool = new BufferPool();
+    private final TileDeltaCompositor mCompositor = new TileDeltaCompositor();
+    private final TileDeltaEncoder mEncoder = new TileDeltaEncoder(TILE_SIZE, new TileDeltaEncoder.TileCompressor() {
+        @Override
+        public void compress(byte[] nv21, int frameWidth, int frameHeight, int x, int y, int width, int height,
+                             int quality, FrameBuffer out) {
+            compressLuma(nv21, frameWidth, x, y, width, height, quality, out);
+        }
+    });
+
+    @Test
+    public void compositesTheSourceFrames() throws IOException {
+        byte[] frame = gradient();
+        assertTrue(encode(frame));
+        assertTrue("The first frame is a keyframe", mCompositor.isLastKeyframe());
+        assertEquals(1, mCompositor.getLastTileCount());
+        assertLumaMatches(frame);
+
+        // Nothing changed, nothing to send
+        assertFalse(encode(frame.clone()));
+
+        // A square in the second tile of the second row
+        byte[] changed = frame.clone();
+        for (int y = TILE_SIZE + 16; y < TILE_SIZE + 48; y++) {
+            for (int x = TILE_SIZE + 16; x < TILE_SIZE + 48; x++) {
+                changed[y * WIDTH + x] = (byte) 235;
+            }
+        }
+        assertTrue(encode(changed));
+        assertFalse(mCompositor.isLastKeyframe());
+        assertEquals(1, mCompositor.getLastTileCount());
+        assertLumaMatches(changed);
+
+        mEncoder.requestKeyframe();
+        assertTrue(encode(changed));
+        assertTrue("Requested keyframe", mCompositor.isLastKeyframe());
+        assertEquals(1, mCompositor.getLastTileCount());
+        assertLumaMatches(changed);
+    }
+
+    @Test
+    public void sendsTheChangedTilesAtTheirCoordinates() throws IOException {
+        byte[] frame = gradient();
+        encode(frame);
+        // Darkens the last tile of each row, and a partial one of the first
+        byte[] changed = frame.clone();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = WIDTH - TILE_SIZE; x < WIDTH; x++) {
+                changed[y * WIDTH + x] = (byte) 16;
+            }
+        }
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        assertTrue(mEncoder.encode(changed, WIDTH, HEIGHT, QUALITY, out));
+        byte[] message = out.toByteArray();
+        out.release();
+        mCompositor.apply(message, 0, message.length);
+        assertEquals(HEIGHT / TILE_SIZE, mCompositor.getLastTileCount());
+        // The first tile follows the 16 bytes of header
+        assertEquals(WIDTH - TILE_SIZE, ((message[16] & 0xff) << 8) | (message[17] & 0xff));
+        assertEquals(0, ((message[18] & 0xff) << 8) | (message[19] & 0xff));
+        assertLumaMatches(changed);
+    }
+
+    private boolean encode(byte[] luma) throws IOException {
+        byte[] nv21 = Arrays.copyOf(luma, WIDTH * HEIGHT * 3 / 2);
+        Arrays.fill(nv21, WIDTH * HEIGHT, nv21.length, (byte) 128);
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        try {
+            if (!mEncoder.encode(nv21, WIDTH, HEIGHT, QUALITY, out)) {
+                assertEquals(0, out.size());
+                return false;
+            }
+            mCompositor.apply(out.getBuffer(), 0, out.size());
+            return true;
+        } finally {
+            out.release();
+        }
+    }
+
+    private void assertLumaMatches(byte[] source) {
+        byte[] composited = mCompositor.getLuma();
+        long sum = 0;
+        int max = 0;
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            int error = Math.abs((composited[i] & 0xff) - (source[i] & 0xff));
+            sum += error;
+            max = Math.max(max, error);
+        }
+        double mean = (double) sum / (WIDTH * HEIGHT);
+        assertTrue("Mean luma error " + mean, mean <= MAX_MEAN_ERROR);
+        assertTrue("Worst luma error " + max, max <= MAX_ERROR);
+    }
+
+    private static byte[] gradient() {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                luma[y * WIDTH + x] = (byte) (32 + (x + 2 * y) * 160 / (WIDTH + 2 * HEIGHT));
+            }
+        }
+        return luma;
+    }
+
+    /**
+     * Writes a grayscale JPEG of the luma of the tile.
+     */
+    private static void compressLuma(byte[] nv21, int frameWidth, int x, int y, int width, int height,
+                                     int quality, FrameBuffer out) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = image.getRaster();
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                raster.setSample(col, row, 0, nv21[(y + row) * frameWidth + x + col] & 0xff);
+            }
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
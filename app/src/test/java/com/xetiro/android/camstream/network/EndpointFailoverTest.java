@@ -0,0 +1,111 @@
+package com.xetiro.android.camstream.network;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams to the first of two {@link LoopbackServer}s, kills it, and checks that the prober
+ * moves the stream to the other one: a keyframe is requested for the new endpoint, every frame
+ * captured once it streams there is delivered, and the frames acked by the dead one were
+ * delivered by it.
+ */
+public class EndpointFailoverTest {
+    private static final String USERNAME = "failover";
+    private static final String PASSWORD = "failover";
+    private static final int FRAMES_PER_SECOND = 30;
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    // Two failed probe rounds, the standby connection and some slack
+    private static final long FAILOVER_TIMEOUT_MS = 4 * EndpointProber.DEFAULT_PROBE_INTERVAL_MS + 2000;
+
+    @Test
+    public void resumesOnTheOtherEndpoint() throws Exception {
+        LoopbackServer active = new LoopbackServer(USERNAME, PASSWORD);
+        LoopbackServer standby = new LoopbackServer(USERNAME, PASSWORD);
+        ServerClient client = ServerClient.getInstance();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger keyframes = new AtomicInteger();
+        try {
+            final CountDownLatch authenticated = new CountDownLatch(1);
+            client.registerCallback(new ServerResultCallback() {
+                @Override
+                public void onConnected(boolean success) {
+                    if (success) {
+                        authenticated.countDown();
+                    }
+                }
+            });
+            client.registerStreamControlCallback(new StreamControlCallback() {
+                @Override
+                public void onKeyframeRequested() {
+                    keyframes.incrementAndGet();
+                }
+            });
+            client.setTransport(TcpTransport.ID);
+            client.setSensorTimebase(ClockSync.Timebase.MONOTONIC);
+            client.setReconnectPolicy(new ReconnectPolicy(50, 500, 0.5, ReconnectPolicy.UNLIMITED_ATTEMPTS));
+            client.init(USERNAME, PASSWORD, Arrays.asList(new Endpoint("127.0.0.1", active.getPort()),
+                    new Endpoint("127.0.0.1", standby.getPort())));
+            client.connect();
+            assertTrue("Not authenticated by the first server",
+                    authenticated.await(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertEquals(active.getPort(), client.getEndpoint().getPort());
+
+            LoopbackHarness.FrameSource source = new LoopbackHarness.FrameSource(client, 8 * 1024);
+            scheduler.scheduleAtFixedRate(source, 0, TimeUnit.SECONDS.toNanos(1) / FRAMES_PER_SECOND,
+                    TimeUnit.NANOSECONDS);
+            Thread.sleep(1000);
+            SendWindow window = client.getSendWindow();
+            long ackedBeforeKill = window.getAckedCount();
+            assertTrue("Nothing acked by the first server", ackedBeforeKill > 0);
+
+            active.close();
+            int keyframesBeforeKill = keyframes.get();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FAILOVER_TIMEOUT_MS);
+            while (client.getEndpoint().getPort() != standby.getPort() && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals("Not switched to the second server", standby.getPort(), client.getEndpoint().getPort());
+            assertTrue("No keyframe requested for the second server", keyframes.get() > keyframesBeforeKill);
+            long firstOnStandby = source.getCapturedCount();
+
+            Thread.sleep(1000);
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            long captured = source.getCapturedCount();
+            long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+            while (!standby.getDeliveredSequences().get((int) captured - 1)
+                    && System.nanoTime() < drainDeadline) {
+                Thread.sleep(10);
+            }
+
+            BitSet onActive = active.getDeliveredSequences();
+            BitSet onStandby = standby.getDeliveredSequences();
+            // The acks only follow the deliveries, a frame acked by the dead server was delivered by it
+            assertTrue("Acked frames lost: " + ackedBeforeKill + " acked, " + onActive.cardinality()
+                    + " delivered", onActive.cardinality() >= ackedBeforeKill);
+            assertFalse("No frame delivered to the second server", onStandby.isEmpty());
+            for (int sequence = (int) firstOnStandby; sequence < captured; sequence++) {
+                assertTrue("Frame " + sequence + " not delivered to the second server", onStandby.get(sequence));
+            }
+            assertEquals(0, active.getDuplicateCount() + standby.getDuplicateCount());
+        } finally {
+            scheduler.shutdownNow();
+            client.unregisterCallback();
+            client.unregisterStreamControlCallback();
+            client.disconnect();
+            active.close();
+            standby.close();
+        }
+    }
+}
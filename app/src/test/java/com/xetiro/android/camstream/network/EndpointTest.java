@@ -0,0 +1,41 @@
+package com.xetiro.android.camstream.network;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses the endpoints as typed in the login screen, where a typo in a port must leave the
+ * endpoint out rather than fail, even if no endpoint is left.
+ */
+public class EndpointTest {
+
+    @Test
+    public void parsesTheHostsWithTheirPortOrTheDefaultOne() {
+        assertEquals(Arrays.asList(new Endpoint("a", 9000), new Endpoint("b", 8080), new Endpoint("c", 9000)),
+                Endpoint.parseList("a, b:8080 c", 9000));
+    }
+
+    @Test
+    public void skipsTheEndpointsWithAnInvalidPort() {
+        assertEquals(Collections.singletonList(new Endpoint("b", 8080)),
+                Endpoint.parseList("a:x,b:8080,c:0", 9000));
+    }
+
+    @Test
+    public void leavesNoEndpointWhenAllThePortsAreInvalid() {
+        assertTrue(Endpoint.parseList("host:abc", 9000).isEmpty());
+        assertTrue(Endpoint.parseList("host:0", 9000).isEmpty());
+        assertTrue(Endpoint.parseList("a:99999,b:x", 9000).isEmpty());
+        assertTrue(Endpoint.parseList(" , ", 9000).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void theClientRejectsAnEmptyList() {
+        ServerClient.getInstance().init("user", "password", Endpoint.parseList("host:abc", 9000));
+    }
+}
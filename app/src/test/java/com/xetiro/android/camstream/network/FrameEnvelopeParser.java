@@ -0,0 +1,75 @@
+package com.xetiro.android.camstream.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a {@link FrameEnvelope} the way a server must: a field is only read if the version
+ * introduced it and the header is long enough to hold it, and the payload always starts at the
+ * header length, whatever fields a newer version appended.
+ */
+public class FrameEnvelopeParser {
+    // The header of each version, the fields of an older version stay where they are
+    static final int VERSION_1_HEADER_SIZE = 36;
+    static final int VERSION_2_HEADER_SIZE = 40;
+    static final int VERSION_3_HEADER_SIZE = 48;
+
+    public static class Envelope {
+        public int version;
+        public int headerLength;
+        public int encoderType;
+        public int quality;
+        public int flags;
+        public int rotationDegrees;
+        public long sequence;
+        public int width;
+        public int height;
+        public long timestampNanos;
+        public long sendTimeMs;
+        public long encodeMicros;
+        public int layer;                   // Since version 2
+        public long serverCaptureMicros;    // Since version 3
+        public int payloadOffset;
+        public int payloadLength;
+    }
+
+    private FrameEnvelopeParser() {
+    }
+
+    public static Envelope parse(byte[] data, int offset, int length) throws IOException {
+        if (length < VERSION_1_HEADER_SIZE) {
+            throw new IOException("Too short for an envelope: " + length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length).slice();
+        if (buffer.get(0) != FrameEnvelope.MAGIC) {
+            throw new IOException("Not an envelope");
+        }
+        Envelope envelope = new Envelope();
+        envelope.version = buffer.get(1) & 0xff;
+        envelope.headerLength = buffer.get(2) & 0xff;
+        if (envelope.version < 1 || envelope.headerLength < VERSION_1_HEADER_SIZE
+                || envelope.headerLength > length) {
+            throw new IOException("Invalid envelope version " + envelope.version + " or header length "
+                    + envelope.headerLength);
+        }
+        envelope.encoderType = buffer.get(3) & 0xff;
+        envelope.quality = buffer.get(4) & 0xff;
+        envelope.flags = buffer.get(5) & 0xff;
+        envelope.rotationDegrees = buffer.getShort(6) & 0xffff;
+        envelope.sequence = buffer.getInt(8) & 0xffffffffL;
+        envelope.width = buffer.getShort(12) & 0xffff;
+        envelope.height = buffer.getShort(14) & 0xffff;
+        envelope.timestampNanos = buffer.getLong(16);
+        envelope.sendTimeMs = buffer.getLong(24);
+        envelope.encodeMicros = buffer.getInt(32) & 0xffffffffL;
+        if (envelope.version >= 2 && envelope.headerLength >= VERSION_2_HEADER_SIZE) {
+            envelope.layer = buffer.get(36) & 0xff;
+        }
+        if (envelope.version >= 3 && envelope.headerLength >= VERSION_3_HEADER_SIZE) {
+            envelope.serverCaptureMicros = buffer.getLong(40);
+        }
+        envelope.payloadOffset = offset + envelope.headerLength;
+        envelope.payloadLength = length - envelope.headerLength;
+        return envelope;
+    }
+}
@@ -0,0 +1,194 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.encoding.FrameEncoders;
+import com.xetiro.android.camstream.encoding.TileDeltaEncoder;
+import com.xetiro.android.camstream.streaming.Frame;
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes envelopes with every field set and reads them back with the
+ * {@link FrameEnvelopeParser}, and checks that the header length keeps the older and newer
+ * layouts readable.
+ */
+public class FrameEnvelopeTest {
+    private static final byte[] PAYLOAD = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+
+    private final BufferPool mPool = new BufferPool();
+
+    @Test
+    public void roundTripsEveryField() throws IOException {
+        ClockSync clock = synchronizedClock();
+        Frame frame = new Frame();
+        frame.sequence = 0x89abcdefL;
+        frame.timestampNanos = 123456789012345L;
+        frame.width = 1920;
+        frame.height = 1080;
+        frame.rotationDegrees = 270;
+        frame.layer = 2;
+        frame.quality = 87;
+        frame.encodeNanos = 4321000;
+        int encoderType = FrameEncoders.typeOf(TileDeltaEncoder.ID);
+
+        FrameBuffer out = envelope(frame, encoderType);
+        FrameEnvelope.putSendTime(out, 1600000000123L);
+        FrameEnvelope.addFlags(out, FrameEnvelope.FLAG_SPOOLED);
+        FrameEnvelope.putServerCaptureTime(out, 0, clock);
+        byte[] data = out.toByteArray();
+        out.release();
+
+        FrameEnvelopeParser.Envelope envelope = FrameEnvelopeParser.parse(data, 0, data.length);
+        assertEquals(FrameEnvelope.VERSION, envelope.version);
+        assertEquals(FrameEnvelope.HEADER_SIZE, envelope.headerLength);
+        assertEquals(encoderType, envelope.encoderType);
+        assertTrue(encoderType != 0);
+        assertEquals(87, envelope.quality);
+        assertEquals(FrameEnvelope.FLAG_SPOOLED, envelope.flags);
+        assertEquals(270, envelope.rotationDegrees);
+        assertEquals(0x89abcdefL, envelope.sequence);
+        assertEquals(1920, envelope.width);
+        assertEquals(1080, envelope.height);
+        assertEquals(123456789012345L, envelope.timestampNanos);
+        assertEquals(1600000000123L, envelope.sendTimeMs);
+        assertEquals(4321, envelope.encodeMicros);
+        assertEquals(2, envelope.layer);
+        assertEquals(clock.toServerTimeMicros(frame.timestampNanos), envelope.serverCaptureMicros);
+        assertTrue(envelope.serverCaptureMicros != 0);
+        assertPayload(data, envelope);
+    }
+
+    @Test
+    public void serverCaptureTimeStaysZeroUntilSynchronized() throws IOException {
+        Frame frame = new Frame();
+        frame.timestampNanos = 42;
+        FrameBuffer out = envelope(frame, 1);
+        FrameEnvelope.putServerCaptureTime(out, 0, new ClockSync());
+        byte[] data = out.toByteArray();
+        out.release();
+
+        FrameEnvelopeParser.Envelope envelope = FrameEnvelopeParser.parse(data, 0, data.length);
+        assertEquals(0, envelope.serverCaptureMicros);
+        assertEquals(Frame.NO_LAYER, envelope.layer);
+        assertEquals(0, envelope.flags);
+    }
+
+    @Test
+    public void skipsTheFieldsOfANewerVersion() throws IOException {
+        Frame frame = new Frame();
+        frame.sequence = 7;
+        frame.width = 640;
+        frame.layer = 1;
+        byte[] current = toByteArray(envelope(frame, 1));
+        // A next version appending 8 bytes of fields this client doesn't know
+        int headerLength = FrameEnvelope.HEADER_SIZE + 8;
+        byte[] newer = new byte[headerLength + PAYLOAD.length];
+        System.arraycopy(current, 0, newer, 0, FrameEnvelope.HEADER_SIZE);
+        Arrays.fill(newer, FrameEnvelope.HEADER_SIZE, headerLength, (byte) 0x5a);
+        System.arraycopy(PAYLOAD, 0, newer, headerLength, PAYLOAD.length);
+        newer[1] = FrameEnvelope.VERSION + 1;
+        newer[2] = (byte) headerLength;
+
+        FrameEnvelopeParser.Envelope envelope = FrameEnvelopeParser.parse(newer, 0, newer.length);
+        assertEquals(FrameEnvelope.VERSION + 1, envelope.version);
+        assertEquals(7, envelope.sequence);
+        assertEquals(640, envelope.width);
+        assertEquals(1, envelope.layer);
+        assertPayload(newer, envelope);
+    }
+
+    @Test
+    public void readsTheFirstVersion() throws IOException {
+        Frame frame = new Frame();
+        frame.sequence = 3;
+        frame.height = 480;
+        frame.layer = 1;
+        byte[] current = toByteArray(envelope(frame, 1));
+        // The version 1 header stops before the layer, which must not be read from the payload
+        int headerLength = FrameEnvelopeParser.VERSION_1_HEADER_SIZE;
+        byte[] first = new byte[headerLength + PAYLOAD.length];
+        System.arraycopy(current, 0, first, 0, headerLength);
+        System.arraycopy(PAYLOAD, 0, first, headerLength, PAYLOAD.length);
+        first[1] = 1;
+        first[2] = (byte) headerLength;
+
+        FrameEnvelopeParser.Envelope envelope = FrameEnvelopeParser.parse(first, 0, first.length);
+        assertEquals(3, envelope.sequence);
+        assertEquals(480, envelope.height);
+        assertEquals(Frame.NO_LAYER, envelope.layer);
+        assertEquals(0, envelope.serverCaptureMicros);
+        assertPayload(first, envelope);
+    }
+
+    @Test
+    public void parsesAnEnvelopeInsideABatch() throws IOException {
+        Frame frame = new Frame();
+        frame.sequence = 11;
+        byte[] single = toByteArray(envelope(frame, 1));
+        byte[] batch = new byte[5 + single.length];
+        System.arraycopy(single, 0, batch, 5, single.length);
+
+        FrameEnvelopeParser.Envelope envelope = FrameEnvelopeParser.parse(batch, 5, single.length);
+        assertEquals(11, envelope.sequence);
+        assertEquals(5 + FrameEnvelope.HEADER_SIZE, envelope.payloadOffset);
+        assertPayload(batch, envelope);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAHeaderLongerThanTheMessage() throws IOException {
+        byte[] data = toByteArray(envelope(new Frame(), 1));
+        data[2] = (byte) (data.length + 1);
+        FrameEnvelopeParser.parse(data, 0, data.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnotherMagic() throws IOException {
+        byte[] data = toByteArray(envelope(new Frame(), 1));
+        data[0] = TileDeltaEncoder.MESSAGE_MAGIC;
+        FrameEnvelopeParser.parse(data, 0, data.length);
+    }
+
+    private FrameBuffer envelope(Frame frame, int encoderType) {
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        FrameEnvelope.reserveHeader(out);
+        out.write(PAYLOAD, 0, PAYLOAD.length);
+        FrameEnvelope.writeHeader(frame, encoderType, out);
+        return out;
+    }
+
+    private static byte[] toByteArray(FrameBuffer out) {
+        byte[] data = out.toByteArray();
+        out.release();
+        return data;
+    }
+
+    private static void assertPayload(byte[] data, FrameEnvelopeParser.Envelope envelope) {
+        assertEquals(PAYLOAD.length, envelope.payloadLength);
+        assertArrayEquals(PAYLOAD, Arrays.copyOfRange(data, envelope.payloadOffset,
+                envelope.payloadOffset + envelope.payloadLength));
+    }
+
+    /**
+     * A clock synchronized with a server one second ahead, through instant exchanges.
+     */
+    private static ClockSync synchronizedClock() {
+        ClockSync clock = new ClockSync();
+        long offsetMicros = TimeUnit.SECONDS.toMicros(1);
+        for (int i = 0; i < ClockSync.DEFAULT_WINDOW; i++) {
+            long local = TimeUnit.MILLISECONDS.toNanos(100 * i);
+            long server = TimeUnit.NANOSECONDS.toMicros(local) + offsetMicros;
+            clock.addSample(local, server, server, local);
+        }
+        assertTrue(clock.isSynchronized());
+        return clock;
+    }
+}
@@ -0,0 +1,183 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes frames to the spool, damages the file like a killed process would, and checks what is
+ * recovered when it is opened again.
+ */
+public class FrameSpoolTest {
+    private static final int CAPACITY = 4096;
+    private static final String EVENT = "frame";
+    private static final int FRAME_SIZE = 100;
+    // The file header, and a record header, its event and its frame
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 20 + 1 + EVENT.length() + FRAME_SIZE;
+
+    private final BufferPool mPool = new BufferPool();
+    private File mFile;
+
+    @Before
+    public void createFile() throws IOException {
+        mFile = File.createTempFile("frames", ".spool");
+        mFile.delete();
+    }
+
+    @After
+    public void deleteFile() {
+        mFile.delete();
+    }
+
+    @Test
+    public void recoversTheFramesAfterReopening() throws IOException {
+        FrameSpool spool = new FrameSpool(mFile, CAPACITY);
+        append(spool, 0, 3);
+        spool.close();
+
+        spool = new FrameSpool(mFile, CAPACITY);
+        assertFrames(spool, 0, 3);
+        spool.close();
+    }
+
+    @Test
+    public void recoversFromTheHeadAfterRemovals() throws IOException {
+        FrameSpool spool = new FrameSpool(mFile, CAPACITY);
+        append(spool, 0, 4);
+        FrameSpool.Head head = spool.peek(mPool.acquireFrameBuffer());
+        assertTrue(spool.remove(head.sequence));
+        spool.close();
+
+        spool = new FrameSpool(mFile, CAPACITY);
+        assertFrames(spool, 1, 3);
+        spool.close();
+    }
+
+    @Test
+    public void recoversAcrossTheWrapMarker() throws IOException {
+        // More frames than the ring holds, so it wraps and the oldest ones are overwritten
+        int frames = 3 * CAPACITY / RECORD_SIZE;
+        FrameSpool spool = new FrameSpool(mFile, CAPACITY);
+        append(spool, 0, frames);
+        int kept = spool.getFrameCount();
+        assertTrue(spool.getOverwrittenCount() > 0);
+        assertEquals(frames, kept + spool.getOverwrittenCount());
+        spool.close();
+
+        spool = new FrameSpool(mFile, CAPACITY);
+        assertFrames(spool, frames - kept, kept);
+        spool.close();
+    }
+
+    @Test
+    public void stopsAtACorruptRecord() throws IOException {
+        FrameSpool spool = new FrameSpool(mFile, CAPACITY);
+        append(spool, 0, 3);
+        spool.close();
+        // A byte of the second frame, which fails its CRC
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            long position = HEADER_SIZE + RECORD_SIZE + RECORD_SIZE - 10;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        }
+
+        spool = new FrameSpool(mFile, CAPACITY);
+        assertFrames(spool, 0, 1);
+        spool.close();
+    }
+
+    @Test
+    public void stopsAtATornRecord() throws IOException {
+        FrameSpool spool = new FrameSpool(mFile, CAPACITY);
+        append(spool, 0, 3);
+        spool.close();
+        // Cut in the middle of the third frame, the spool grows the file back with zeros
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(HEADER_SIZE + 2 * RECORD_SIZE + RECORD_SIZE / 2);
+        }
+
+        spool = new FrameSpool(mFile, CAPACITY);
+        assertEquals(2, spool.getFrameCount());
+        // The torn record is overwritten by the next one
+        append(spool, 2, 1);
+        spool.close();
+        spool = new FrameSpool(mFile, CAPACITY);
+        assertFrames(spool, 0, 3);
+        spool.close();
+    }
+
+    @Test
+    public void discardsASpoolOfAnotherCapacity() throws IOException {
+        FrameSpool spool = new FrameSpool(mFile, CAPACITY);
+        append(spool, 0, 3);
+        spool.close();
+
+        spool = new FrameSpool(mFile, 2 * CAPACITY);
+        assertEquals(0, spool.getFrameCount());
+        spool.close();
+    }
+
+    @Test
+    public void removeKeepsAFrameThatWasNotPeeked() throws IOException {
+        int fit = CAPACITY / RECORD_SIZE;
+        FrameSpool spool = new FrameSpool(mFile, CAPACITY);
+        append(spool, 0, fit);
+        FrameSpool.Head head = spool.peek(mPool.acquireFrameBuffer());
+        // A full spool overwrites the peeked frame before it is removed
+        append(spool, fit, 1);
+        assertEquals(1, spool.getOverwrittenCount());
+        assertFalse(spool.remove(head.sequence));
+        assertFrames(spool, 1, fit);
+        spool.close();
+    }
+
+    private void append(FrameSpool spool, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            FrameBuffer frame = mPool.acquireFrameBuffer();
+            byte[] payload = payload(i);
+            frame.write(payload, 0, payload.length);
+            assertTrue(spool.append(EVENT, frame));
+            frame.release();
+        }
+    }
+
+    /**
+     * Peeks and removes all the frames, which must be the given ones in order.
+     */
+    private void assertFrames(FrameSpool spool, int first, int count) {
+        assertEquals(count, spool.getFrameCount());
+        for (int i = first; i < first + count; i++) {
+            FrameBuffer frame = mPool.acquireFrameBuffer();
+            FrameSpool.Head head = spool.peek(frame);
+            assertEquals(EVENT, head.event);
+            assertArrayEquals("frame " + i, payload(i), frame.toByteArray());
+            frame.release();
+            assertTrue(spool.remove(head.sequence));
+        }
+        assertNull(spool.peek(mPool.acquireFrameBuffer()));
+    }
+
+    private static byte[] payload(int frame) {
+        byte[] payload = new byte[FRAME_SIZE];
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            payload[i] = (byte) (frame * 31 + i);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,209 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.encoding.DeflateFrameEncoder;
+import com.xetiro.android.camstream.streaming.Frame;
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+import com.xetiro.android.camstream.utils.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the {@link ServerClient} against an in-process stand-in server, with synthetic frames
+ * of a given size at a given rate, and measures what the server received: the delivered frames
+ * per second, the end-to-end latency percentiles and the frames that never made it.
+ * <p>
+ * The client streams over the {@link TcpTransport} to a {@link LoopbackServer}, or over the
+ * {@link SocketIoTransport} to a {@link SocketIoLoopbackServer}. Only the first one can impair
+ * the link.
+ */
+public class LoopbackHarness {
+    private static final String USERNAME = "loopback";
+    private static final String PASSWORD = "loopback";
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    // How long the frames in flight have to arrive once the last frame is captured
+    private static final long DRAIN_TIMEOUT_MS = 3000;
+
+    /**
+     * The stream and the link conditions of a run.
+     */
+    public static class Scenario {
+        public final String name;
+        public String transport = TcpTransport.ID;
+        public int frameSize = 40 * 1024;
+        public int framesPerSecond = 30;
+        public long durationMs = 5000;
+        public long bandwidthBytesPerSecond = 0;    // No limit
+        public long latencyMs = 0;
+        public long disconnectEveryMs = 0;          // Never
+        public boolean batching = false;
+
+        public Scenario(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class Result {
+        public String scenario;
+        public String transport;
+        public long framesCaptured;
+        public long framesDelivered;
+        public long framesDropped;      // By the send window, before being sent
+        public long duplicates;
+        public long connections;
+        public float deliveredFps;
+        public float p50Ms;
+        public float p95Ms;
+        public float p99Ms;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s over %s: %.1f fps delivered, %d/%d frames (%d dropped, %d duplicates)"
+                            + ", latency p50 %.1fms p95 %.1fms p99 %.1fms, %d connections",
+                    scenario, transport, deliveredFps, framesDelivered, framesCaptured, framesDropped, duplicates,
+                    p50Ms, p95Ms, p99Ms, connections);
+        }
+    }
+
+    /**
+     * Streams the scenario to a new loopback server and returns what it received.
+     */
+    public static Result run(final Scenario scenario) throws Exception {
+        final StandInServer server = createServer(scenario);
+        ServerClient client = ServerClient.getInstance();
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        try {
+            final CountDownLatch authenticated = new CountDownLatch(1);
+            client.registerCallback(new ServerResultCallback() {
+                @Override
+                public void onConnected(boolean success) {
+                    if (success) {
+                        authenticated.countDown();
+                    }
+                }
+            });
+            client.setTransport(scenario.transport);
+            // The synthetic frames are stamped with System.nanoTime()
+            client.setSensorTimebase(ClockSync.Timebase.MONOTONIC);
+            client.setReconnectPolicy(new ReconnectPolicy(50, 500, 0.5, ReconnectPolicy.UNLIMITED_ATTEMPTS));
+            // A new server port every run, so the client creates a new transport
+            client.init(USERNAME, PASSWORD, Collections.singletonList(new Endpoint("127.0.0.1", server.getPort())));
+            client.setBatchingEnabled(scenario.batching);
+            client.connect();
+            if (!authenticated.await(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Not authenticated by the loopback server");
+            }
+
+            SendWindow window = client.getSendWindow();
+            long droppedBefore = window.getDroppedCount() + window.getExpiredCount();
+            final FrameSource source = new FrameSource(client, scenario.frameSize);
+            long period = TimeUnit.SECONDS.toNanos(1) / scenario.framesPerSecond;
+            scheduler.scheduleAtFixedRate(source, 0, period, TimeUnit.NANOSECONDS);
+            if (scenario.disconnectEveryMs > 0) {
+                scheduler.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        server.dropConnections();
+                    }
+                }, scenario.disconnectEveryMs, scenario.disconnectEveryMs, TimeUnit.MILLISECONDS);
+            }
+            Thread.sleep(scenario.durationMs);
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            client.getFrameBatcher().flush();
+            waitForDelivery(server, source.getCapturedCount(), window);
+
+            Result result = new Result();
+            result.scenario = scenario.name;
+            result.transport = scenario.transport;
+            result.framesCaptured = source.getCapturedCount();
+            result.framesDelivered = server.getDeliveredCount();
+            result.framesDropped = window.getDroppedCount() + window.getExpiredCount() - droppedBefore;
+            result.duplicates = server.getDuplicateCount();
+            result.connections = server.getConnectionCount();
+            result.deliveredFps = result.framesDelivered * 1000f / scenario.durationMs;
+            long[] counts = new long[LatencyHistogram.getBucketCount()];
+            server.drainLatencies(counts);
+            result.p50Ms = LatencyHistogram.percentile(counts, 0.50) / 1000f;
+            result.p95Ms = LatencyHistogram.percentile(counts, 0.95) / 1000f;
+            result.p99Ms = LatencyHistogram.percentile(counts, 0.99) / 1000f;
+            return result;
+        } finally {
+            scheduler.shutdownNow();
+            client.unregisterCallback();
+            client.disconnect();
+            client.setBatchingEnabled(false);
+            server.close();
+        }
+    }
+
+    private static StandInServer createServer(Scenario scenario) throws IOException {
+        if (SocketIoTransport.ID.equals(scenario.transport)) {
+            if (scenario.bandwidthBytesPerSecond > 0 || scenario.latencyMs > 0) {
+                throw new IllegalArgumentException("The Socket.IO stand-in cannot impair the link");
+            }
+            return new SocketIoLoopbackServer(USERNAME, PASSWORD);
+        }
+        LoopbackServer server = new LoopbackServer(USERNAME, PASSWORD);
+        server.setBandwidth(scenario.bandwidthBytesPerSecond);
+        server.setLatency(scenario.latencyMs);
+        return server;
+    }
+
+    /**
+     * Waits until all the frames are delivered or the window has nothing left to send.
+     */
+    private static void waitForDelivery(StandInServer server, long captured, SendWindow window)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+        while (System.nanoTime() < deadline && server.getDeliveredCount() < captured
+                && (window.getInFlightCount() > 0 || window.getQueuedCount() > 0)) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Captures a synthetic frame every time it runs, stamped with the capture time, and streams
+     * it like the pipeline does.
+     */
+    static class FrameSource implements Runnable {
+        private final ServerClient mClient;
+        private final byte[] mPayload;
+        private long mSequence = 0;
+
+        FrameSource(ServerClient client, int frameSize) {
+            mClient = client;
+            mPayload = new byte[frameSize];
+            new Random(frameSize).nextBytes(mPayload);
+        }
+
+        @Override
+        public void run() {
+            FrameBuffer encoded = BufferPool.getInstance().acquireFrameBuffer();
+            FrameEnvelope.reserveHeader(encoded);
+            encoded.write(mPayload, 0, mPayload.length);
+            Frame frame = new Frame();
+            frame.sequence = mSequence;
+            frame.timestampNanos = System.nanoTime();
+            frame.width = 640;
+            frame.height = 480;
+            frame.encoderId = DeflateFrameEncoder.ID;
+            frame.encoded = encoded;
+            mClient.sendFrame(frame);
+            synchronized (this) {
+                mSequence++;
+            }
+        }
+
+        synchronized long getCapturedCount() {
+            return mSequence;
+        }
+    }
+}
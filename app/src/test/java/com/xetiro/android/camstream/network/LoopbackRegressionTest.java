@@ -0,0 +1,77 @@
+package com.xetiro.android.camstream.network;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams through the {@link LoopbackHarness} under a few link conditions and fails if the
+ * delivered frame rate or the p99 latency regresses past the baselines stored in
+ * {@code loopback-baselines.properties}. The baselines leave room for slow CI machines, so they
+ * catch a regression of the pipeline, not of the machine.
+ */
+public class LoopbackRegressionTest {
+    private static final Properties BASELINES = new Properties();
+
+    @BeforeClass
+    public static void loadBaselines() throws IOException {
+        InputStream in = LoopbackRegressionTest.class.getClassLoader()
+                .getResourceAsStream("loopback-baselines.properties");
+        try {
+            BASELINES.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void cleanLink() throws Exception {
+        check(new LoopbackHarness.Scenario("clean"));
+    }
+
+    @Test
+    public void batchedThumbnails() throws Exception {
+        LoopbackHarness.Scenario scenario = new LoopbackHarness.Scenario("batched");
+        scenario.frameSize = 4 * 1024;
+        scenario.framesPerSecond = 60;
+        scenario.batching = true;
+        check(scenario);
+    }
+
+    @Test
+    public void constrainedBandwidth() throws Exception {
+        // Room for about 15 of the 30 frames per second
+        LoopbackHarness.Scenario scenario = new LoopbackHarness.Scenario("constrained");
+        scenario.bandwidthBytesPerSecond = 15 * 41 * 1024;
+        check(scenario);
+    }
+
+    @Test
+    public void highLatency() throws Exception {
+        LoopbackHarness.Scenario scenario = new LoopbackHarness.Scenario("latency");
+        scenario.latencyMs = 100;
+        check(scenario);
+    }
+
+    @Test
+    public void disconnects() throws Exception {
+        LoopbackHarness.Scenario scenario = new LoopbackHarness.Scenario("disconnects");
+        scenario.disconnectEveryMs = 1500;
+        check(scenario);
+    }
+
+    private static void check(LoopbackHarness.Scenario scenario) throws Exception {
+        LoopbackHarness.Result result = LoopbackHarness.run(scenario);
+        float minFps = Float.parseFloat(BASELINES.getProperty(scenario.name + ".minFps"));
+        float maxP99Ms = Float.parseFloat(BASELINES.getProperty(scenario.name + ".maxP99Ms"));
+        assertTrue("Delivered fps below the baseline of " + minFps + ": " + result,
+                result.deliveredFps >= minFps);
+        assertTrue("p99 latency above the baseline of " + maxP99Ms + "ms: " + result,
+                result.p99Ms <= maxP99Ms);
+    }
+}
@@ -0,0 +1,224 @@
+package com.xetiro.android.camstream.network;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process stand-in for the ingest server, speaking the {@link TcpTransport} protocol. It
+ * acknowledges the frames once delivered.
+ * <p>
+ * The link can be impaired: a bandwidth limit paces the reading of the frames, so the client
+ * sees the same backpressure as on a slow uplink, a one-way latency delays the delivery of the
+ * frames and their acks, and {@link #dropConnections()} cuts all the connections at once.
+ */
+public class LoopbackServer extends StandInServer {
+    private final ServerSocket mServerSocket;
+    private final Thread mAcceptThread;
+    private final ScheduledExecutorService mDelivery = Executors.newSingleThreadScheduledExecutor();
+    private final CopyOnWriteArrayList<Socket> mClients = new CopyOnWriteArrayList<>();
+
+    private volatile long mBytesPerSecond = 0;
+    private volatile long mLatencyNanos = 0;
+
+    public LoopbackServer(String username, String password) throws IOException {
+        super(username, password);
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        mAcceptThread = new Thread(mAcceptLoop, "LoopbackServer");
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    @Override
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Limits the bytes per second read from each client, 0 for no limit.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Delays the delivery of the frames, and again their acks, by the given one-way latency.
+     */
+    public void setLatency(long latencyMs) {
+        mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+    }
+
+    @Override
+    public void dropConnections() {
+        for (Socket socket : mClients) {
+            closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(mServerSocket);
+        dropConnections();
+        mDelivery.shutdownNow();
+        try {
+            mAcceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final Runnable mAcceptLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    mConnections.incrementAndGet();
+                    mClients.add(socket);
+                    Thread reader = new Thread(new ClientConnection(socket), "LoopbackClient");
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+    };
+
+    private class ClientConnection implements Runnable {
+        private final Socket mSocket;
+        private DataOutputStream mOutput;
+        private long mNextReadNanos = 0;
+
+        ClientConnection(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+                mOutput = new DataOutputStream(mSocket.getOutputStream());
+                while (true) {
+                    int length = in.readInt();
+                    byte type = in.readByte();
+                    byte[] body = new byte[length - 1];
+                    in.readFully(body);
+                    if (type == TcpTransport.TYPE_EVENT) {
+                        onEvent(new JSONObject(new String(body, UTF_8)));
+                    } else if (type == TcpTransport.TYPE_FRAME) {
+                        pace(4 + length);
+                        onFrame(ByteBuffer.wrap(body));
+                    }
+                }
+            } catch (IOException | JSONException e) {
+                // Disconnected
+            } finally {
+                mClients.remove(mSocket);
+                closeQuietly(mSocket);
+            }
+        }
+
+        /**
+         * Waits for the time the message takes on a link of the configured bandwidth.
+         */
+        private void pace(int bytes) {
+            long bytesPerSecond = mBytesPerSecond;
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            mNextReadNanos = Math.max(now, mNextReadNanos) + TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+            sleepNanos(mNextReadNanos - now);
+        }
+
+        private void onEvent(JSONObject message) throws JSONException {
+            Object[] reply = LoopbackServer.this.onEvent(message.getString("event"), message.getJSONArray("args"));
+            if (reply != null) {
+                JSONArray args = new JSONArray();
+                for (int i = 1; i < reply.length; i++) {
+                    args.put(reply[i] != null ? reply[i] : JSONObject.NULL);
+                }
+                emit((String) reply[0], args);
+            }
+        }
+
+        private void onFrame(ByteBuffer message) {
+            final long ackId = message.getLong();
+            byte[] event = new byte[message.get() & 0xff];
+            message.get(event);
+            final long arrivalNanos = System.nanoTime();
+            final ByteBuffer frame = message.slice();
+            final String eventName = new String(event, UTF_8);
+            Runnable delivery = new Runnable() {
+                @Override
+                public void run() {
+                    onFramesDelivered(eventName, frame, arrivalNanos + mLatencyNanos);
+                    if (ackId != Transport.NO_ACK) {
+                        schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                ack(ackId);
+                            }
+                        });
+                    }
+                }
+            };
+            schedule(delivery);
+        }
+
+        private void schedule(Runnable runnable) {
+            long latency = mLatencyNanos;
+            if (latency > 0) {
+                mDelivery.schedule(runnable, latency, TimeUnit.NANOSECONDS);
+            } else {
+                mDelivery.execute(runnable);
+            }
+        }
+
+        private void emit(String event, JSONArray args) throws JSONException {
+            JSONObject message = new JSONObject();
+            message.put("event", event);
+            message.put("args", args);
+            byte[] json = message.toString().getBytes(UTF_8);
+            write(TcpTransport.TYPE_EVENT, json, 0);
+        }
+
+        private void ack(long ackId) {
+            write(TcpTransport.TYPE_ACK, null, ackId);
+        }
+
+        private void write(byte type, byte[] data, long ackId) {
+            synchronized (this) {
+                try {
+                    if (data != null) {
+                        mOutput.writeInt(1 + data.length);
+                        mOutput.writeByte(type);
+                        mOutput.write(data);
+                    } else {
+                        mOutput.writeInt(9);
+                        mOutput.writeByte(type);
+                        mOutput.writeLong(ackId);
+                    }
+                    mOutput.flush();
+                } catch (IOException e) {
+                    closeQuietly(mSocket);  // The reader notices
+                }
+            }
+        }
+    }
+}
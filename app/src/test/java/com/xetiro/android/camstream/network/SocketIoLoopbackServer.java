@@ -0,0 +1,490 @@
+package com.xetiro.android.camstream.network;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process stand-in for the ingest server, speaking the {@link SocketIoTransport} protocol:
+ * Socket.IO 2 packets over Engine.IO 3, which opens with HTTP long-polling and then upgrades to
+ * a websocket like the real server does. It acknowledges the frames once received.
+ * <p>
+ * Only what the client uses is implemented: the default namespace, events with and without
+ * acks, and binary events with a single attachment.
+ */
+public class SocketIoLoopbackServer extends StandInServer {
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    // Below the 10s read timeout of the client, a poll with nothing to send returns a noop
+    private static final long POLL_TIMEOUT_MS = 5000;
+
+    private final ServerSocket mServerSocket;
+    private final Thread mAcceptThread;
+    private final CopyOnWriteArrayList<Socket> mClients = new CopyOnWriteArrayList<>();
+    private final Map<String, EngineSession> mEngineSessions = new ConcurrentHashMap<>();
+
+    public SocketIoLoopbackServer(String username, String password) throws IOException {
+        super(username, password);
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        mAcceptThread = new Thread(mAcceptLoop, "SocketIoLoopbackServer");
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    @Override
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    @Override
+    public void dropConnections() {
+        mEngineSessions.clear();
+        for (Socket socket : mClients) {
+            closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(mServerSocket);
+        dropConnections();
+        try {
+            mAcceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final Runnable mAcceptLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    mClients.add(socket);
+                    Thread reader = new Thread(new HttpConnection(socket), "SocketIoLoopbackClient");
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+    };
+
+    /**
+     * An Engine.IO session, which outlives the HTTP requests of the long-polling and moves to a
+     * websocket once upgraded.
+     */
+    private class EngineSession {
+        final String mId = UUID.randomUUID().toString();
+        // The packets waiting for the next poll, until upgraded
+        final LinkedBlockingQueue<String> mOutbox = new LinkedBlockingQueue<>();
+        volatile WebSocket mWebSocket = null;
+
+        // The binary event waiting for its attachment
+        String mPendingEvent = null;
+        long mPendingAckId = -1;
+
+        synchronized void send(String packet) {
+            WebSocket webSocket = mWebSocket;
+            if (webSocket != null) {
+                webSocket.sendText(packet);
+            } else {
+                mOutbox.add(packet);
+            }
+        }
+
+        synchronized void upgrade(WebSocket webSocket) {
+            mWebSocket = webSocket;
+            List<String> packets = new ArrayList<>();
+            mOutbox.drainTo(packets);
+            for (String packet : packets) {
+                webSocket.sendText(packet);
+            }
+        }
+
+        /**
+         * Handles an Engine.IO packet of the client.
+         */
+        void onPacket(String packet) throws JSONException {
+            char type = packet.charAt(0);
+            if (type == '2') {
+                send("3" + packet.substring(1));    // Pong, also to the upgrade probe
+            } else if (type == '4') {
+                onSocketIoPacket(packet.substring(1));
+            }
+        }
+
+        void onBinaryPacket(byte[] data, int offset, int length) {
+            String event;
+            long ackId;
+            synchronized (this) {
+                event = mPendingEvent;
+                ackId = mPendingAckId;
+                mPendingEvent = null;
+            }
+            if (event == null) {
+                return;
+            }
+            onFramesDelivered(event, ByteBuffer.wrap(data, offset, length).slice(), System.nanoTime());
+            if (ackId >= 0) {
+                send("43" + ackId + "[]");
+            }
+        }
+
+        private void onSocketIoPacket(String packet) throws JSONException {
+            char type = packet.charAt(0);
+            if (type != '2' && type != '5') {
+                return;     // Only the events matter
+            }
+            int position = 1;
+            if (type == '5') {
+                position = packet.indexOf('-') + 1;   // The attachment count, always 1
+            }
+            int dataStart = position;
+            while (dataStart < packet.length() && Character.isDigit(packet.charAt(dataStart))) {
+                dataStart++;
+            }
+            long ackId = dataStart > position ? Long.parseLong(packet.substring(position, dataStart)) : -1;
+            JSONArray data = new JSONArray(packet.substring(dataStart));
+            String event = data.getString(0);
+            if (type == '5') {
+                synchronized (this) {
+                    mPendingEvent = event;
+                    mPendingAckId = ackId;
+                }
+                return;
+            }
+            JSONArray args = new JSONArray();
+            for (int i = 1; i < data.length(); i++) {
+                args.put(data.get(i));
+            }
+            Object[] reply = onEvent(event, args);
+            if (reply != null) {
+                JSONArray message = new JSONArray();
+                for (Object arg : reply) {
+                    message.put(arg != null ? arg : JSONObject.NULL);
+                }
+                send("42" + message.toString());
+            }
+        }
+    }
+
+    private class HttpConnection implements Runnable {
+        private final Socket mSocket;
+
+        HttpConnection(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = new BufferedInputStream(mSocket.getInputStream());
+                OutputStream out = mSocket.getOutputStream();
+                while (true) {
+                    String requestLine = readLine(in);
+                    if (requestLine == null) {
+                        return;
+                    }
+                    Map<String, String> headers = new HashMap<>();
+                    String line;
+                    while ((line = readLine(in)) != null && !line.isEmpty()) {
+                        int colon = line.indexOf(':');
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                    }
+                    String[] parts = requestLine.split(" ");
+                    Map<String, String> query = parseQuery(parts[1]);
+                    if ("websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                        new WebSocket(mSocket, in, out).run(headers, query.get("sid"));
+                        return;
+                    }
+                    byte[] body = new byte[0];
+                    if (headers.containsKey("content-length")) {
+                        body = readFully(in, Integer.parseInt(headers.get("content-length")));
+                    }
+                    if ("POST".equals(parts[0])) {
+                        onPost(query.get("sid"), headers.get("content-type"), body, out);
+                    } else {
+                        onPoll(query.get("sid"), out);
+                    }
+                }
+            } catch (IOException | JSONException | InterruptedException e) {
+                // Disconnected
+            } finally {
+                mClients.remove(mSocket);
+                closeQuietly(mSocket);
+            }
+        }
+
+        private void onPoll(String sid, OutputStream out) throws IOException, InterruptedException {
+            if (sid == null) {
+                // A new session: the handshake, then the connection to the default namespace
+                EngineSession session = new EngineSession();
+                mEngineSessions.put(session.mId, session);
+                mConnections.incrementAndGet();
+                session.send("0{\"sid\":\"" + session.mId + "\",\"upgrades\":[\"websocket\"],"
+                        + "\"pingInterval\":25000,\"pingTimeout\":60000}");
+                session.send("40");
+                respond(out, 200, textPayload(drain(session, 0)));
+                return;
+            }
+            EngineSession session = mEngineSessions.get(sid);
+            if (session == null) {
+                respond(out, 400, "{\"code\":1,\"message\":\"Session ID unknown\"}");
+                return;
+            }
+            respond(out, 200, textPayload(drain(session, POLL_TIMEOUT_MS)));
+        }
+
+        private void onPost(String sid, String contentType, byte[] body, OutputStream out)
+                throws IOException, JSONException {
+            EngineSession session = sid != null ? mEngineSessions.get(sid) : null;
+            if (session == null) {
+                respond(out, 400, "{\"code\":1,\"message\":\"Session ID unknown\"}");
+                return;
+            }
+            if (contentType != null && contentType.startsWith("application/octet-stream")) {
+                // Each packet: 0 for text or 1 for binary, the length in decimal digits, 255
+                int position = 0;
+                while (position < body.length) {
+                    boolean binary = body[position++] == 1;
+                    int length = 0;
+                    while ((body[position] & 0xff) != 255) {
+                        length = length * 10 + body[position++];
+                    }
+                    position++;
+                    if (binary) {
+                        // The first byte is the packet type, a message
+                        session.onBinaryPacket(body, position + 1, length - 1);
+                    } else {
+                        session.onPacket(new String(body, position, length, UTF_8));
+                    }
+                    position += length;
+                }
+            } else {
+                // Each packet: its length, a colon and the packet
+                String payload = new String(body, UTF_8);
+                int position = 0;
+                while (position < payload.length()) {
+                    int colon = payload.indexOf(':', position);
+                    int length = Integer.parseInt(payload.substring(position, colon));
+                    session.onPacket(payload.substring(colon + 1, colon + 1 + length));
+                    position = colon + 1 + length;
+                }
+            }
+            respond(out, 200, "ok");
+        }
+
+        /**
+         * Waits for the packets of the session, and returns a noop if none arrive in time.
+         */
+        private List<String> drain(EngineSession session, long timeoutMs) throws InterruptedException {
+            List<String> packets = new ArrayList<>();
+            String first = session.mOutbox.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            packets.add(first != null ? first : "6");
+            session.mOutbox.drainTo(packets);
+            return packets;
+        }
+
+        private String textPayload(List<String> packets) {
+            StringBuilder payload = new StringBuilder();
+            for (String packet : packets) {
+                payload.append(packet.length()).append(':').append(packet);
+            }
+            return payload.toString();
+        }
+
+        private void respond(OutputStream out, int status, String body) throws IOException {
+            byte[] data = body.getBytes(UTF_8);
+            String header = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Bad Request") + "\r\n"
+                    + "Content-Type: text/plain; charset=UTF-8\r\n"
+                    + "Content-Length: " + data.length + "\r\n"
+                    + "Connection: keep-alive\r\n\r\n";
+            out.write(header.getBytes(UTF_8));
+            out.write(data);
+            out.flush();
+        }
+    }
+
+    /**
+     * The server side of a websocket, unfragmented frames only on the way out.
+     */
+    private class WebSocket {
+        private final Socket mSocket;
+        private final InputStream mIn;
+        private final OutputStream mOut;
+
+        WebSocket(Socket socket, InputStream in, OutputStream out) {
+            mSocket = socket;
+            mIn = in;
+            mOut = out;
+        }
+
+        void run(Map<String, String> headers, String sid) throws IOException, JSONException {
+            String accept;
+            try {
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                accept = Base64.getEncoder().encodeToString(
+                        sha1.digest((headers.get("sec-websocket-key") + WEBSOCKET_GUID).getBytes(UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            mOut.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(UTF_8));
+            mOut.flush();
+
+            EngineSession session = sid != null ? mEngineSessions.get(sid) : null;
+            if (session == null) {
+                return;     // Only upgrades, the client always starts with the long-polling
+            }
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            int messageType = 0;
+            while (true) {
+                int first = mIn.read();
+                int second = mIn.read();
+                if (first < 0 || second < 0) {
+                    return;
+                }
+                boolean fin = (first & 0x80) != 0;
+                int opcode = first & 0x0f;
+                long length = second & 0x7f;
+                if (length == 126) {
+                    length = ((mIn.read() & 0xff) << 8) | (mIn.read() & 0xff);
+                } else if (length == 127) {
+                    length = ByteBuffer.wrap(readFully(mIn, 8)).getLong();
+                }
+                byte[] mask = (second & 0x80) != 0 ? readFully(mIn, 4) : null;
+                byte[] payload = readFully(mIn, (int) length);
+                if (mask != null) {
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] ^= mask[i % 4];
+                    }
+                }
+                if (opcode == 8) {
+                    return;
+                } else if (opcode == 9) {
+                    sendFrame(10, payload);
+                    continue;
+                } else if (opcode != 0) {
+                    messageType = opcode;
+                }
+                message.write(payload);
+                if (!fin) {
+                    continue;
+                }
+                byte[] data = message.toByteArray();
+                message.reset();
+                if (messageType == 2) {
+                    session.onBinaryPacket(data, 1, data.length - 1);
+                } else if (data.length > 0) {
+                    String packet = new String(data, UTF_8);
+                    if (packet.equals("2probe")) {
+                        sendText("3probe");
+                        // Ends the pending poll, so the client can pause the long-polling
+                        session.mOutbox.add("6");
+                    } else if (packet.equals("5")) {
+                        session.upgrade(this);
+                    } else {
+                        session.onPacket(packet);
+                    }
+                }
+            }
+        }
+
+        void sendText(String text) {
+            sendFrame(1, text.getBytes(UTF_8));
+        }
+
+        private void sendFrame(int opcode, byte[] payload) {
+            synchronized (this) {
+                try {
+                    mOut.write(0x80 | opcode);
+                    if (payload.length < 126) {
+                        mOut.write(payload.length);
+                    } else if (payload.length < 65536) {
+                        mOut.write(126);
+                        mOut.write(payload.length >> 8);
+                        mOut.write(payload.length & 0xff);
+                    } else {
+                        mOut.write(127);
+                        mOut.write(ByteBuffer.allocate(8).putLong(payload.length).array());
+                    }
+                    mOut.write(payload);
+                    mOut.flush();
+                } catch (IOException e) {
+                    closeQuietly(mSocket);  // The reader notices
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> parseQuery(String path) {
+        Map<String, String> query = new HashMap<>();
+        int start = path.indexOf('?');
+        if (start < 0) {
+            return query;
+        }
+        for (String parameter : path.substring(start + 1).split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                query.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Reads a CRLF terminated line, or returns null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, UTF_8);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(data, read, length - read);
+            if (count < 0) {
+                throw new IOException("Closed");
+            }
+            read += count;
+        }
+        return data;
+    }
+}
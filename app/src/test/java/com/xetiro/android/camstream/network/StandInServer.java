@@ -0,0 +1,162 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.utils.LatencyHistogram;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the in-process stand-ins for the ingest server have in common, whatever the transport
+ * they speak: they authenticate any client with the expected credentials, issue and resume
+ * session tokens, answer the clock pings and record when each frame is delivered.
+ */
+public abstract class StandInServer {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String mUsername;
+    private final String mPassword;
+    private final Set<String> mSessions = new HashSet<>();
+    protected final AtomicLong mConnections = new AtomicLong();
+
+    // Guarded by this
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final BitSet mDelivered = new BitSet();
+    private long mDuplicates = 0;
+
+    protected StandInServer(String username, String password) {
+        mUsername = username;
+        mPassword = password;
+    }
+
+    public abstract int getPort();
+
+    /**
+     * Closes all the client connections, as if the network was lost.
+     */
+    public abstract void dropConnections();
+
+    public abstract void close();
+
+    /**
+     * The number of connections accepted so far.
+     */
+    public long getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /**
+     * The number of distinct frames delivered, the frames sent twice are counted once.
+     */
+    public synchronized int getDeliveredCount() {
+        return mDelivered.cardinality();
+    }
+
+    /**
+     * The sequences of the frames delivered so far.
+     */
+    public synchronized BitSet getDeliveredSequences() {
+        return (BitSet) mDelivered.clone();
+    }
+
+    public synchronized long getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    /**
+     * Copies the end-to-end latencies of the delivered frames, from their capture timestamp to
+     * their delivery, and clears them. See {@link LatencyHistogram#drainTo(long[])}.
+     */
+    public synchronized void drainLatencies(long[] counts) {
+        mLatency.drainTo(counts);
+    }
+
+    /**
+     * Answers an event of the client.
+     *
+     * @return the event to emit back followed by its arguments, or null if there's no answer.
+     */
+    protected Object[] onEvent(String event, JSONArray args) throws JSONException {
+        if ("authenticate".equals(event)) {
+            boolean success = mUsername.equals(args.getString(0)) && mPassword.equals(args.getString(1));
+            String token = null;
+            if (success) {
+                token = UUID.randomUUID().toString();
+                synchronized (mSessions) {
+                    mSessions.add(token);
+                }
+            }
+            return new Object[]{args.getString(2), success, token};
+        } else if ("resume".equals(event)) {
+            String token = args.getString(0);
+            boolean success;
+            synchronized (mSessions) {
+                success = mSessions.contains(token);
+            }
+            return new Object[]{args.getString(1), success, success ? token : null};
+        } else if ("clockPing".equals(event)) {
+            long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+            return new Object[]{"clockPong", args.getLong(0), now, now};
+        }
+        return null;
+    }
+
+    /**
+     * Records the delivery of the frames of a message, a single enveloped frame or a batch.
+     */
+    protected void onFramesDelivered(String event, ByteBuffer message, long deliveryNanos) {
+        if ("receiveBatch".equals(event)) {
+            int offset = FrameBatcher.HEADER_SIZE;
+            while (offset < message.limit()) {
+                int length = message.getInt(offset);
+                onFrameDelivered(message, offset + 4, deliveryNanos);
+                offset += 4 + length;
+            }
+        } else {
+            onFrameDelivered(message, 0, deliveryNanos);
+        }
+    }
+
+    private synchronized void onFrameDelivered(ByteBuffer frame, int offset, long deliveryNanos) {
+        if (frame.get(offset) != FrameEnvelope.MAGIC) {
+            return;
+        }
+        int sequence = frame.getInt(offset + 8);
+        if (mDelivered.get(sequence)) {
+            mDuplicates++;
+            return;
+        }
+        mDelivered.set(sequence);
+        // The frames are captured in this process, so their timestamps use the same clock
+        mLatency.record(deliveryNanos - frame.getLong(offset + 16));
+    }
+
+    static void sleepNanos(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
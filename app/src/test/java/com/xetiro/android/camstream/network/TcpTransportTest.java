@@ -0,0 +1,147 @@
+package com.xetiro.android.camstream.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reconnects the {@link TcpTransport} to a {@link LoopbackServer} right after disconnecting it,
+ * while the thread of the previous connection is still unwinding, and checks that the new
+ * connection is the one left standing and the last one reported.
+ */
+public class TcpTransportTest {
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    private static final long SETTLE_MS = 200;
+
+    private LoopbackServer mServer;
+    private TcpTransport mTransport;
+    private final List<String> mCallbacks = new ArrayList<>();
+    // Holds the connection thread in the listener, as a slow listener would
+    private final CountDownLatch mEventReceived = new CountDownLatch(1);
+    private final CountDownLatch mReleaseEvent = new CountDownLatch(1);
+
+    @Before
+    public void connect() throws IOException, InterruptedException {
+        mServer = new LoopbackServer("tcp", "tcp");
+        mTransport = new TcpTransport("127.0.0.1", mServer.getPort(),
+                new ReconnectPolicy(50, 500, 0.5, ReconnectPolicy.UNLIMITED_ATTEMPTS));
+        mTransport.setListener(new RecordingListener());
+        mTransport.connect();
+        awaitConnections(1);
+    }
+
+    @After
+    public void close() {
+        mReleaseEvent.countDown();
+        mTransport.disconnect();
+        mServer.close();
+    }
+
+    @Test
+    public void theOldThreadLeavesTheNewConnectionAlone() throws InterruptedException {
+        // The answer of the server keeps the first connection thread in the listener
+        mTransport.emit("clockPing", 1L);
+        assertTrue(mEventReceived.await(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        mTransport.disconnect();
+        mTransport.connect();
+        awaitConnections(2);
+        mReleaseEvent.countDown();
+        Thread.sleep(SETTLE_MS);
+
+        assertTrue("Disconnected by the previous connection thread", mTransport.isConnected());
+        synchronized (mCallbacks) {
+            assertEquals("Reported " + mCallbacks, "connected", mCallbacks.get(mCallbacks.size() - 1));
+        }
+    }
+
+    private void awaitConnections(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS);
+        synchronized (mCallbacks) {
+            while (countConnections() < count) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                assertTrue("Not connected after " + mCallbacks, remaining > 0);
+                mCallbacks.wait(remaining);
+            }
+        }
+    }
+
+    private int countConnections() {
+        int count = 0;
+        for (String callback : mCallbacks) {
+            if (callback.equals("connected")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private class RecordingListener implements Transport.Listener {
+        private void record(String callback) {
+            synchronized (mCallbacks) {
+                mCallbacks.add(callback);
+                mCallbacks.notifyAll();
+            }
+        }
+
+        @Override
+        public void onConnected() {
+            record("connected");
+        }
+
+        @Override
+        public void onConnectionError(String reason) {
+            record("connection error");
+        }
+
+        @Override
+        public void onReconnecting() {
+            record("reconnecting");
+        }
+
+        @Override
+        public void onReconnected() {
+            record("reconnected");
+        }
+
+        @Override
+        public void onDisconnected(String reason) {
+            record("disconnected");
+        }
+
+        @Override
+        public void onEvent(String event, Object... args) {
+            mEventReceived.countDown();
+            // Not even the interrupt of the disconnect lets it go
+            boolean interrupted = false;
+            while (mReleaseEvent.getCount() > 0) {
+                try {
+                    mReleaseEvent.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onAcked(long id) {
+        }
+
+        @Override
+        public void onError(String reason) {
+            record("error");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the order the shaper hands the frames to its sink, with a budget small enough for the
+ * frames to wait.
+ */
+public class TokenBucketShaperTest {
+    private static final long BYTES_PER_SECOND = 1000;
+
+    private final BufferPool mPool = new BufferPool();
+    private final List<String> mSent = new ArrayList<>();
+    private final List<String> mDropped = new ArrayList<>();
+
+    private final TokenBucketShaper mShaper = new TokenBucketShaper(new TokenBucketShaper.Sink() {
+        @Override
+        public void onSend(String event, FrameBuffer frame) {
+            synchronized (mSent) {
+                mSent.add(event);
+            }
+            frame.release();
+        }
+
+        @Override
+        public void onDrop(String event, FrameBuffer frame) {
+            synchronized (mSent) {
+                mDropped.add(event);
+            }
+            frame.release();
+        }
+    });
+
+    @Test
+    public void keyframeDropsTheWaitingDelta() throws InterruptedException {
+        mShaper.setBudget(BYTES_PER_SECOND, BYTES_PER_SECOND);
+        mShaper.offer(TokenBucketShaper.TrafficClass.FRAME, "first", frame(1000));
+        // The bucket is empty, the delta waits about 300 ms for its tokens
+        mShaper.offer(TokenBucketShaper.TrafficClass.FRAME, "delta", frame(300));
+        assertEquals(1, mShaper.getDelayedCount());
+        // Small enough that the delta would still get its tokens in time after it
+        mShaper.offer(TokenBucketShaper.TrafficClass.KEYFRAME, "keyframe", frame(10));
+
+        // Long enough for the delta to have been released if it were still waiting
+        Thread.sleep(600);
+        synchronized (mSent) {
+            assertEquals(Arrays.asList("first", "keyframe"), mSent);
+            assertEquals(Arrays.asList("delta"), mDropped);
+        }
+        mShaper.shutdown();
+    }
+
+    @Test
+    public void waitingDeltaIsSentOnceTheTokensAreBack() throws InterruptedException {
+        mShaper.setBudget(BYTES_PER_SECOND, BYTES_PER_SECOND);
+        mShaper.offer(TokenBucketShaper.TrafficClass.FRAME, "first", frame(1000));
+        mShaper.offer(TokenBucketShaper.TrafficClass.FRAME, "delta", frame(300));
+        Thread.sleep(600);
+        mShaper.offer(TokenBucketShaper.TrafficClass.KEYFRAME, "keyframe", frame(100));
+        synchronized (mSent) {
+            assertEquals(Arrays.asList("first", "delta", "keyframe"), mSent);
+            assertEquals(0, mDropped.size());
+        }
+        mShaper.shutdown();
+    }
+
+    private FrameBuffer frame(int size) {
+        FrameBuffer frame = mPool.acquireFrameBuffer();
+        frame.write(new byte[size], 0, size);
+        return frame;
+    }
+}
@@ -0,0 +1,68 @@
+package com.xetiro.android.camstream.network;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the transports through the {@link LoopbackHarness}: the same streams over the
+ * {@link SocketIoTransport} and the {@link TcpTransport}, each to its in-process stand-in
+ * server, reporting the delivered frames per second and the end-to-end latency percentiles in
+ * {@code build/reports/transport-benchmark.txt}.
+ * <p>
+ * It streams for a while, so it only runs with {@code -Pcamstream.benchmark=true}.
+ */
+public class TransportBenchmark {
+    private static final File REPORT = new File("build/reports/transport-benchmark.txt");
+    private static final String[] TRANSPORTS = {SocketIoTransport.ID, TcpTransport.ID};
+
+    @BeforeClass
+    public static void requireBenchmarks() {
+        assumeTrue("Run with -Pcamstream.benchmark=true", Boolean.getBoolean("camstream.benchmark"));
+    }
+
+    @Test
+    public void compareTransports() throws Exception {
+        List<LoopbackHarness.Result> results = new ArrayList<>();
+        for (String transport : TRANSPORTS) {
+            // A 720p JPEG stream, where the payload dominates
+            LoopbackHarness.Scenario large = new LoopbackHarness.Scenario("40KB at 30fps");
+            large.transport = transport;
+            results.add(LoopbackHarness.run(large));
+
+            // Thumbnails at a high rate, where the per-frame overhead dominates
+            LoopbackHarness.Scenario small = new LoopbackHarness.Scenario("4KB at 120fps");
+            small.transport = transport;
+            small.frameSize = 4 * 1024;
+            small.framesPerSecond = 120;
+            results.add(LoopbackHarness.run(small));
+        }
+        writeReport(results);
+        for (LoopbackHarness.Result result : results) {
+            assertTrue("Nothing delivered: " + result, result.framesDelivered > 0);
+        }
+    }
+
+    private static void writeReport(List<LoopbackHarness.Result> results) throws IOException {
+        REPORT.getParentFile().mkdirs();
+        try (Writer writer = new FileWriter(REPORT)) {
+            writer.write(String.format(Locale.US, "%-16s %-10s %8s %10s %8s %8s %8s%n", "scenario", "transport",
+                    "fps", "delivered", "p50 ms", "p95 ms", "p99 ms"));
+            for (LoopbackHarness.Result result : results) {
+                writer.write(String.format(Locale.US, "%-16s %-10s %8.1f %5d/%-4d %8.1f %8.1f %8.1f%n",
+                        result.scenario, result.transport, result.deliveredFps, result.framesDelivered,
+                        result.framesCaptured, result.p50Ms, result.p95Ms, result.p99Ms));
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.xetiro.android.camstream.streaming;
+
+import android.graphics.Bitmap;
+
+import com.xetiro.android.camstream.utils.BufferPool;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records camera-like images and replays them, which must give back the same pixels in the
+ * same order, whatever the layout of the recorded planes.
+ */
+public class FrameRecorderTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FRAMES = 5;
+
+    @Test
+    public void replaysTheRecordedFrames() throws Exception {
+        File file = File.createTempFile("capture", ".frames");
+        file.deleteOnExit();
+        List<byte[]> recorded = new ArrayList<>();
+        FrameRecorder recorder = new FrameRecorder(file, new BufferPool());
+        SourceImage image = new SourceImage();
+        for (int i = 0; i < FRAMES; i++) {
+            recorded.add(fillSemiPlanar(image, i));
+            assertTrue(recorder.record(image));
+            Thread.sleep(5);    // Lets the writer keep up
+        }
+        recorder.close();
+
+        ReplayFrameSource replay = new ReplayFrameSource(file, ReplayFrameSource.AS_FAST_AS_POSSIBLE, false);
+        assertEquals(FRAMES, replay.getFrameCount());
+        final List<byte[]> replayed = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(FRAMES);
+        replay.start(new FrameSource.Listener() {
+            @Override
+            public void onImage(SourceImage image) {
+                assertEquals(WIDTH, image.getWidth());
+                assertEquals(HEIGHT, image.getHeight());
+                assertEquals(90, image.getRotationDegrees());
+                replayed.add(toI420(image));
+                done.countDown();
+            }
+
+            @Override
+            public void onBitmap(Bitmap bitmap, long timestampNanos) {
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        replay.close();
+
+        for (int i = 0; i < FRAMES; i++) {
+            assertArrayEquals("frame " + i, recorded.get(i), replayed.get(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnclosedRecordings() throws Exception {
+        File file = File.createTempFile("capture", ".frames");
+        file.deleteOnExit();
+        FrameRecorder recorder = new FrameRecorder(file, new BufferPool());
+        SourceImage image = new SourceImage();
+        fillSemiPlanar(image, 0);
+        recorder.record(image);
+        try {
+            new ReplayFrameSource(file, 1, false);
+        } finally {
+            recorder.close();
+        }
+    }
+
+    /**
+     * Fills the image like a camera would, with padded rows and interleaved chroma, and returns
+     * the I420 frame it holds.
+     */
+    private static byte[] fillSemiPlanar(SourceImage image, int frame) {
+        int rowStride = WIDTH + 16;
+        ByteBuffer y = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        ByteBuffer uv = ByteBuffer.allocateDirect(rowStride * HEIGHT / 2);
+        byte[] i420 = new byte[FrameRecorder.I420Size(WIDTH, HEIGHT)];
+        int chromaSize = (WIDTH / 2) * (HEIGHT / 2);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int x = 0; x < WIDTH; x++) {
+                byte value = (byte) (x * 3 + row * 5 + frame * 7);
+                y.put(row * rowStride + x, value);
+                i420[row * WIDTH + x] = value;
+            }
+        }
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                byte u = (byte) (x + frame);
+                byte v = (byte) (row + 100 + frame);
+                uv.put(row * rowStride + 2 * x, u);
+                uv.put(row * rowStride + 2 * x + 1, v);
+                i420[WIDTH * HEIGHT + row * WIDTH / 2 + x] = u;
+                i420[WIDTH * HEIGHT + chromaSize + row * WIDTH / 2 + x] = v;
+            }
+        }
+        uv.position(1);
+        ByteBuffer v = uv.slice();
+        uv.position(0);
+        image.set(WIDTH, HEIGHT, frame * 33000000L, 90);
+        image.setPlane(0, y, rowStride, 1);
+        image.setPlane(1, uv, rowStride, 2);
+        image.setPlane(2, v, rowStride, 2);
+        return i420;
+    }
+
+    private static byte[] toI420(SourceImage image) {
+        byte[] i420 = new byte[FrameRecorder.I420Size(image.getWidth(), image.getHeight())];
+        int offset = 0;
+        for (int plane = 0; plane < 3; plane++) {
+            ByteBuffer buffer = image.getBuffer(plane).duplicate();
+            int size = plane == 0 ? image.getWidth() * image.getHeight() : i420.length / 6;
+            assertEquals(1, image.getPixelStride(plane));
+            buffer.position(0);
+            buffer.get(i420, offset, size);
+            offset += size;
+        }
+        return i420;
+    }
+}
@@ -0,0 +1,254 @@
+package com.xetiro.android.camstream.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Converts small frames with known samples and checks every sample of the NV21 output: the
+ * crop, the box filter, the rotations and the plane layouts the camera can hand over.
+ */
+public class YuvPlanesTest {
+
+    @Test
+    public void centerCropKeepsTheMiddle() {
+        // A 8x4 source into a square target keeps the 4 middle columns
+        byte[] source = nv21(8, 4);
+        YuvPlanes planes = new YuvPlanes();
+        planes.configureCenterCrop(8, 4, 0, 4, 4);
+        assertEquals(4, planes.getOutputWidth());
+        assertEquals(4, planes.getOutputHeight());
+
+        byte[] out = new byte[planes.getOutputSize()];
+        planes.toNV21(source, out);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertEquals("luma " + x + "," + y, luma(x + 2, y), out[y * 4 + x]);
+            }
+        }
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 2; x++) {
+                assertEquals("v " + x + "," + y, v(x + 1, y), out[16 + y * 4 + 2 * x]);
+                assertEquals("u " + x + "," + y, u(x + 1, y), out[16 + y * 4 + 2 * x + 1]);
+            }
+        }
+    }
+
+    @Test
+    public void boxFilterAveragesTheCoveredSamples() {
+        byte[] source = new byte[YuvPlanes.NV21Size(4, 4)];
+        byte[] luma = {
+                10, 20, 0, 0,
+                30, 41, 100, 100,
+                1, 2, 3, 4,
+                5, 6, 7, 8};
+        System.arraycopy(luma, 0, source, 0, luma.length);
+        // V then U, a single chroma sample per 2x2 block after the downscale
+        byte[] chroma = {50, 60, 70, 80, (byte) 200, (byte) 210, (byte) 220, (byte) 231};
+        System.arraycopy(chroma, 0, source, 16, chroma.length);
+        YuvPlanes planes = new YuvPlanes();
+        planes.configure(4, 4, 0, 0, 4, 4, 0, 2, 2);
+
+        byte[] out = new byte[planes.getOutputSize()];
+        planes.toNV21(source, out);
+        // The averages are rounded to the nearest value: 25.25, 50, 3.5 and 5.5
+        assertArrayEquals(new byte[]{25, 50, 4, 6,
+                (byte) ((50 + 70 + 200 + 220 + 2) / 4), (byte) ((60 + 80 + 210 + 231 + 2) / 4)}, out);
+    }
+
+    @Test
+    public void rotatesClockwise() {
+        // 4x2 luma, each sample tells its position
+        byte[] source = nv21(4, 2);
+        YuvPlanes planes = new YuvPlanes();
+
+        planes.configure(4, 2, 0, 0, 4, 2, 90, 2, 4);
+        byte[] out = new byte[planes.getOutputSize()];
+        planes.toNV21(source, out);
+        // The left column of the source becomes the top row, read from the bottom
+        assertArrayEquals(new byte[]{
+                luma(0, 1), luma(0, 0),
+                luma(1, 1), luma(1, 0),
+                luma(2, 1), luma(2, 0),
+                luma(3, 1), luma(3, 0)}, lumaOf(out, 2, 4));
+
+        planes.configure(4, 2, 0, 0, 4, 2, 180, 4, 2);
+        out = new byte[planes.getOutputSize()];
+        planes.toNV21(source, out);
+        assertArrayEquals(new byte[]{
+                luma(3, 1), luma(2, 1), luma(1, 1), luma(0, 1),
+                luma(3, 0), luma(2, 0), luma(1, 0), luma(0, 0)}, lumaOf(out, 4, 2));
+
+        planes.configure(4, 2, 0, 0, 4, 2, 270, 2, 4);
+        out = new byte[planes.getOutputSize()];
+        planes.toNV21(source, out);
+        // The right column of the source becomes the top row, read from the top
+        assertArrayEquals(new byte[]{
+                luma(3, 0), luma(3, 1),
+                luma(2, 0), luma(2, 1),
+                luma(1, 0), luma(1, 1),
+                luma(0, 0), luma(0, 1)}, lumaOf(out, 2, 4));
+    }
+
+    @Test
+    public void rotatesTheChromaWithTheLuma() {
+        // 8x4 source, 4x2 chroma rotated by 90 degrees into 2x4 chroma
+        byte[] source = nv21(8, 4);
+        YuvPlanes planes = new YuvPlanes();
+        planes.configure(8, 4, 0, 0, 8, 4, 90, 4, 8);
+        byte[] out = new byte[planes.getOutputSize()];
+        planes.toNV21(source, out);
+        for (int oy = 0; oy < 4; oy++) {
+            for (int ox = 0; ox < 2; ox++) {
+                int sx = oy;
+                int sy = 1 - ox;
+                assertEquals("v " + ox + "," + oy, v(sx, sy), out[32 + oy * 4 + 2 * ox]);
+                assertEquals("u " + ox + "," + oy, u(sx, sy), out[32 + oy * 4 + 2 * ox + 1]);
+            }
+        }
+    }
+
+    @Test
+    public void skipsTheRowPadding() {
+        int width = 8;
+        int height = 4;
+        int rowStride = width + 8;
+        // The padding is filled with a value no sample has
+        ByteBuffer y = filled(rowStride * height);
+        ByteBuffer u = filled(rowStride * height / 2);
+        ByteBuffer v = filled(rowStride * height / 2);
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                y.put(row * rowStride + x, luma(x, row));
+            }
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int x = 0; x < width / 2; x++) {
+                u.put(row * rowStride + x, u(x, row));
+                v.put(row * rowStride + x, v(x, row));
+            }
+        }
+        YuvPlanes planes = new YuvPlanes();
+        planes.configure(width, height, 0, 0, width, height, 0, width, height);
+        byte[] out = new byte[planes.getOutputSize()];
+        planes.toNV21(y, rowStride, 1, u, rowStride, 1, v, rowStride, 1, out);
+
+        assertArrayEquals(nv21(width, height), out);
+    }
+
+    @Test
+    public void readsPlanarAndSemiPlanarChromaAlike() {
+        int width = 8;
+        int height = 4;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        ByteBuffer y = ByteBuffer.wrap(Arrays.copyOf(nv21(width, height), width * height));
+        // I420 like, each chroma plane on its own
+        ByteBuffer u = ByteBuffer.allocate(chromaWidth * chromaHeight);
+        ByteBuffer v = ByteBuffer.allocate(chromaWidth * chromaHeight);
+        // NV12 like, interleaved U then V with a pixel stride of 2, the V plane starting one byte in
+        ByteBuffer uv = ByteBuffer.allocate(width * chromaHeight);
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                u.put(row * chromaWidth + x, u(x, row));
+                v.put(row * chromaWidth + x, v(x, row));
+                uv.put(row * width + 2 * x, u(x, row));
+                uv.put(row * width + 2 * x + 1, v(x, row));
+            }
+        }
+        uv.position(1);
+        ByteBuffer interleavedV = uv.slice();
+        uv.position(0);
+
+        // Scaled and rotated, so the chroma goes through the sampling tables
+        YuvPlanes planes = new YuvPlanes();
+        planes.configure(width, height, 0, 0, width, height, 270, 2, 4);
+        byte[] planar = new byte[planes.getOutputSize()];
+        planes.toNV21(y, width, 1, u, chromaWidth, 1, v, chromaWidth, 1, planar);
+        byte[] semiPlanar = new byte[planes.getOutputSize()];
+        planes.toNV21(y, width, 1, uv, width, 2, interleavedV, width, 2, semiPlanar);
+
+        assertArrayEquals(planar, semiPlanar);
+        // NV21 has V first. The top chroma sample once rotated is the right half of the source
+        int ySize = 2 * 4;
+        assertEquals((152 + 153 + 160 + 161 + 2) / 4, planar[ySize] & 0xff);
+        assertEquals((102 + 103 + 110 + 111 + 2) / 4, planar[ySize + 1] & 0xff);
+    }
+
+    @Test
+    public void neverScalesUp() {
+        YuvPlanes planes = new YuvPlanes();
+        planes.configureCenterCrop(320, 240, 0, 640, 480);
+        assertEquals(320, planes.getOutputWidth());
+        assertEquals(240, planes.getOutputHeight());
+        assertTrue(planes.isIdentity());
+
+        // Rotated, the frame keeps its portrait orientation
+        planes.configureCenterCrop(320, 240, 90, 640, 480);
+        assertEquals(240, planes.getOutputWidth());
+        assertEquals(320, planes.getOutputHeight());
+
+        // Cropped to the target aspect ratio first, then only as large as the crop
+        planes.configureCenterCrop(640, 480, 0, 1280, 720);
+        assertEquals(640, planes.getOutputWidth());
+        assertEquals(360, planes.getOutputHeight());
+
+        planes.configureCenterCrop(1280, 720, 0, 640, 480);
+        assertEquals(640, planes.getOutputWidth());
+        assertEquals(480, planes.getOutputHeight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnOddCrop() {
+        new YuvPlanes().configure(8, 4, 1, 0, 4, 4, 0, 4, 4);
+    }
+
+    /**
+     * A NV21 frame where every sample has a value derived from its position.
+     */
+    private static byte[] nv21(int width, int height) {
+        byte[] frame = new byte[YuvPlanes.NV21Size(width, height)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                frame[y * width + x] = luma(x, y);
+            }
+        }
+        int ySize = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                frame[ySize + y * width + 2 * x] = v(x, y);
+                frame[ySize + y * width + 2 * x + 1] = u(x, y);
+            }
+        }
+        return frame;
+    }
+
+    private static byte[] lumaOf(byte[] nv21, int width, int height) {
+        return Arrays.copyOf(nv21, width * height);
+    }
+
+    private static ByteBuffer filled(int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, (byte) 0xff);
+        }
+        return buffer;
+    }
+
+    private static byte luma(int x, int y) {
+        return (byte) (y * 16 + x);
+    }
+
+    private static byte u(int x, int y) {
+        return (byte) (100 + y * 8 + x);
+    }
+
+    private static byte v(int x, int y) {
+        return (byte) (150 + y * 8 + x);
+    }
+}
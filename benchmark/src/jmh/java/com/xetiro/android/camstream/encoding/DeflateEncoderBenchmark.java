@@ -0,0 +1,43 @@
+package com.xetiro.android.camstream.encoding;
+
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+import com.xetiro.android.camstream.utils.SyntheticFrames;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The pure Java encoder, into a pooled output buffer as in the pipeline. The JPEG and WebP
+ * encoders go through the Android codecs and can only be measured on a device.
+ */
+@State(Scope.Thread)
+public class DeflateEncoderBenchmark {
+    @Param({"240p", "480p", "720p", "1080p"})
+    public String resolution;
+
+    private final BufferPool mPool = new BufferPool();
+    private final DeflateFrameEncoder mEncoder = new DeflateFrameEncoder();
+    private int mWidth;
+    private int mHeight;
+    private byte[] mNV21;
+
+    @Setup
+    public void setUp() {
+        mWidth = SyntheticFrames.widthOf(resolution);
+        mHeight = SyntheticFrames.heightOf(resolution);
+        mNV21 = SyntheticFrames.nv21(mWidth, mHeight);
+    }
+
+    @Benchmark
+    public int encode() {
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        mEncoder.encode(mNV21, mWidth, mHeight, 80, out);
+        int size = out.size();
+        out.release();
+        return size;
+    }
+}
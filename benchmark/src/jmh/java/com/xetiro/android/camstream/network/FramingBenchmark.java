@@ -0,0 +1,74 @@
+package com.xetiro.android.camstream.network;
+
+import com.xetiro.android.camstream.streaming.Frame;
+import com.xetiro.android.camstream.utils.BufferPool;
+import com.xetiro.android.camstream.utils.FrameBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Wrapping the encoded frames for the wire: the envelope header written in place in front of the
+ * payload, and the batching of several enveloped frames into a single message.
+ */
+@State(Scope.Thread)
+public class FramingBenchmark {
+    // Typical encoded sizes, from a 240p JPEG to a 1080p one
+    @Param({"8192", "32768", "131072"})
+    public int payloadSize;
+
+    private final BufferPool mPool = new BufferPool();
+    private final Frame mFrame = new Frame();
+    private byte[] mPayload;
+    private FrameBatcher mBatcher;
+
+    @Setup
+    public void setUp() {
+        mPayload = new byte[payloadSize];
+        mFrame.width = 1280;
+        mFrame.height = 720;
+        mFrame.quality = 80;
+        mBatcher = new FrameBatcher(mPool, new FrameBatcher.Sink() {
+            @Override
+            public void onBatch(FrameBuffer batch, int frameCount) {
+                batch.release();
+            }
+        });
+        mBatcher.setMaxBytes(Integer.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mBatcher.shutdown();
+    }
+
+    @Benchmark
+    public int envelope() {
+        FrameBuffer out = envelopedFrame();
+        int size = out.size();
+        out.release();
+        return size;
+    }
+
+    @Benchmark
+    public void batch() {
+        for (int i = 0; i < FrameBatcher.DEFAULT_MAX_FRAMES; i++) {
+            mBatcher.add(envelopedFrame());
+        }
+    }
+
+    private FrameBuffer envelopedFrame() {
+        FrameBuffer out = mPool.acquireFrameBuffer();
+        FrameEnvelope.reserveHeader(out);
+        out.write(mPayload, 0, mPayload.length);
+        mFrame.sequence++;
+        mFrame.timestampNanos = System.nanoTime();
+        FrameEnvelope.writeHeader(mFrame, 0, out);
+        FrameEnvelope.putSendTime(out, System.currentTimeMillis());
+        return out;
+    }
+}
@@ -0,0 +1,64 @@
+package com.xetiro.android.camstream.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Acquiring and releasing pooled buffers, alone and with the camera, encoder and network threads
+ * all contending for the pool lock.
+ */
+@State(Scope.Benchmark)
+public class BufferPoolBenchmark {
+    // A 480p NV21 frame
+    private static final int FRAME_SIZE = YuvPlanes.NV21Size(640, 480);
+
+    private final BufferPool mPool = new BufferPool();
+
+    @Setup
+    public void setUp() {
+        // Starts with warm buckets, like the pool after the first frames
+        for (int i = 0; i < 4; i++) {
+            mPool.release(new byte[FRAME_SIZE]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] acquireRelease() {
+        return acquireAndRelease();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] acquireReleaseContended() {
+        return acquireAndRelease();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public FrameBuffer frameBuffer() {
+        return acquireAndReleaseFrameBuffer();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public FrameBuffer frameBufferContended() {
+        return acquireAndReleaseFrameBuffer();
+    }
+
+    private byte[] acquireAndRelease() {
+        byte[] buffer = mPool.acquire(FRAME_SIZE);
+        mPool.release(buffer);
+        return buffer;
+    }
+
+    private FrameBuffer acquireAndReleaseFrameBuffer() {
+        FrameBuffer buffer = mPool.acquireFrameBuffer();
+        buffer.write(0);
+        buffer.release();
+        return buffer;
+    }
+}
@@ -0,0 +1,45 @@
+package com.xetiro.android.camstream.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cropping, scaling and rotating the camera planes down to the streamed resolution. A rotation
+ * by 90 degrees reads the source planes column by column, which is the worst case for the cache.
+ */
+@State(Scope.Thread)
+public class PlaneScalingBenchmark {
+    @Param({"480p", "720p", "1080p"})
+    public String source;
+
+    @Param({"240p", "480p"})
+    public String target;
+
+    @Param({"0", "90", "180"})
+    public int rotation;
+
+    private SyntheticFrames.Planes mPlanes;
+    private final YuvPlanes mScaler = new YuvPlanes();
+    private byte[] mNV21;
+
+    @Setup
+    public void setUp() {
+        int width = SyntheticFrames.widthOf(source);
+        int height = SyntheticFrames.heightOf(source);
+        mPlanes = SyntheticFrames.planes(width, height, SyntheticFrames.SEMI_PLANAR);
+        mScaler.configureCenterCrop(width, height, rotation,
+                SyntheticFrames.widthOf(target), SyntheticFrames.heightOf(target));
+        mNV21 = new byte[mScaler.getOutputSize()];
+    }
+
+    @Benchmark
+    public byte[] toNV21() {
+        SyntheticFrames.Planes p = mPlanes;
+        mScaler.toNV21(p.y, p.yRowStride, 1, p.u, p.uvRowStride, p.uvPixelStride,
+                p.v, p.uvRowStride, p.uvPixelStride, mNV21);
+        return mNV21;
+    }
+}
@@ -0,0 +1,128 @@
+package com.xetiro.android.camstream.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic YUV 4:2:0 camera frames for the benchmarks, with the plane layouts the camera HALs
+ * deliver. The content is a gradient with some noise, so it neither compresses to nothing nor
+ * looks like random data to the encoders.
+ */
+public class SyntheticFrames {
+    /**
+     * Separate U and V planes, without row padding.
+     */
+    public static final String PLANAR = "planar";
+    /**
+     * Separate U and V planes, with rows padded to a 64 bytes alignment.
+     */
+    public static final String PADDED_PLANAR = "padded-planar";
+    /**
+     * Interleaved V and U samples in a single buffer, the U plane starting one byte after the V
+     * plane, like the NV21 output of most devices.
+     */
+    public static final String SEMI_PLANAR = "semi-planar";
+    /**
+     * Same as {@link #SEMI_PLANAR} with rows padded to a 64 bytes alignment.
+     */
+    public static final String PADDED_SEMI_PLANAR = "padded-semi-planar";
+
+    private static final int ROW_ALIGNMENT = 64;
+
+    /**
+     * The planes of a frame, as the ImageProxy of the camera gives them.
+     */
+    public static class Planes {
+        public int width;
+        public int height;
+        public ByteBuffer y;
+        public int yRowStride;
+        public ByteBuffer u;
+        public ByteBuffer v;
+        public int uvRowStride;
+        public int uvPixelStride;
+    }
+
+    private SyntheticFrames() {
+        // Static helpers only
+    }
+
+    public static int widthOf(String resolution) {
+        switch (resolution) {
+            case "240p":
+                return 320;
+            case "480p":
+                return 640;
+            case "720p":
+                return 1280;
+            case "1080p":
+                return 1920;
+            default:
+                throw new IllegalArgumentException("Unknown resolution " + resolution);
+        }
+    }
+
+    public static int heightOf(String resolution) {
+        return Integer.parseInt(resolution.substring(0, resolution.length() - 1));
+    }
+
+    /**
+     * A NV21 frame of the given resolution.
+     */
+    public static byte[] nv21(int width, int height) {
+        Planes planes = planes(width, height, SEMI_PLANAR);
+        byte[] nv21 = new byte[YuvPlanes.NV21Size(width, height)];
+        YuvPlanes.copyToNV21(planes.y, planes.yRowStride, planes.u, planes.v, planes.uvRowStride,
+                planes.uvPixelStride, width, height, nv21);
+        return nv21;
+    }
+
+    public static Planes planes(int width, int height, String layout) {
+        boolean padded = PADDED_PLANAR.equals(layout) || PADDED_SEMI_PLANAR.equals(layout);
+        boolean semiPlanar = SEMI_PLANAR.equals(layout) || PADDED_SEMI_PLANAR.equals(layout);
+        if (!padded && !semiPlanar && !PLANAR.equals(layout)) {
+            throw new IllegalArgumentException("Unknown layout " + layout);
+        }
+        Random random = new Random(width * 31 + height);
+        Planes planes = new Planes();
+        planes.width = width;
+        planes.height = height;
+        planes.yRowStride = padded ? align(width) : width;
+        planes.y = ByteBuffer.wrap(fill(planes.yRowStride, width, height, 1, random));
+
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        if (semiPlanar) {
+            planes.uvPixelStride = 2;
+            planes.uvRowStride = padded ? align(width) : width;
+            // V U V U ..., the U plane is the same memory one byte later
+            ByteBuffer vu = ByteBuffer.wrap(fill(planes.uvRowStride, chromaWidth * 2, chromaHeight, 2, random));
+            vu.limit(vu.capacity() - 1);
+            planes.v = vu.slice();
+            vu.limit(vu.capacity());
+            vu.position(1);
+            planes.u = vu.slice();
+        } else {
+            planes.uvPixelStride = 1;
+            planes.uvRowStride = padded ? align(chromaWidth) : chromaWidth;
+            planes.u = ByteBuffer.wrap(fill(planes.uvRowStride, chromaWidth, chromaHeight, 1, random));
+            planes.v = ByteBuffer.wrap(fill(planes.uvRowStride, chromaWidth, chromaHeight, 1, random));
+        }
+        return planes;
+    }
+
+    private static int align(int rowLength) {
+        return (rowLength + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+    }
+
+    private static byte[] fill(int rowStride, int rowLength, int rows, int pixelStride, Random random) {
+        byte[] plane = new byte[rowStride * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int x = 0; x < rowLength; x++) {
+                int sample = (x / pixelStride + row) * 255 / (rowLength / pixelStride + rows);
+                plane[row * rowStride + x] = (byte) (sample + random.nextInt(8));
+            }
+        }
+        return plane;
+    }
+}
@@ -0,0 +1,50 @@
+package com.xetiro.android.camstream.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The conversion of the camera planes into a NV21 frame: the plain copy used when the frame is
+ * streamed as is, against the sampling tables used when it is cropped, scaled or rotated.
+ */
+@State(Scope.Thread)
+public class YuvConversionBenchmark {
+    @Param({"240p", "480p", "720p", "1080p"})
+    public String resolution;
+
+    @Param({SyntheticFrames.PLANAR, SyntheticFrames.PADDED_PLANAR,
+            SyntheticFrames.SEMI_PLANAR, SyntheticFrames.PADDED_SEMI_PLANAR})
+    public String layout;
+
+    private SyntheticFrames.Planes mPlanes;
+    private final YuvPlanes mIdentity = new YuvPlanes();
+    private byte[] mNV21;
+
+    @Setup
+    public void setUp() {
+        int width = SyntheticFrames.widthOf(resolution);
+        int height = SyntheticFrames.heightOf(resolution);
+        mPlanes = SyntheticFrames.planes(width, height, layout);
+        mIdentity.configureCenterCrop(width, height, 0, width, height);
+        mNV21 = new byte[YuvPlanes.NV21Size(width, height)];
+    }
+
+    @Benchmark
+    public byte[] copyToNV21() {
+        SyntheticFrames.Planes p = mPlanes;
+        YuvPlanes.copyToNV21(p.y, p.yRowStride, p.u, p.v, p.uvRowStride, p.uvPixelStride,
+                p.width, p.height, mNV21);
+        return mNV21;
+    }
+
+    @Benchmark
+    public byte[] sampleToNV21() {
+        SyntheticFrames.Planes p = mPlanes;
+        mIdentity.toNV21(p.y, p.yRowStride, 1, p.u, p.uvRowStride, p.uvPixelStride,
+                p.v, p.uvRowStride, p.uvPixelStride, mNV21);
+        return mNV21;
+    }
+}